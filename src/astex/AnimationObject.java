@@ -41,6 +41,9 @@ class AnimationObject {
     /** The command to execute every animation step. */
     private String animationCommand  = null;
 
+    /** The molecules whose frames we step through. */
+    private String moleculePattern   = null;
+
     /** The MoleculeViewer we are animating. */
     private MoleculeViewer moleculeViewer = null;
 
@@ -90,6 +93,11 @@ class AnimationObject {
 	animationCommand = c;
     }
 
+    /** Set the molecules whose frames are animated. */
+    public void setMoleculePattern(String p){
+	moleculePattern = p;
+    }
+
     /** Start center. */
     private double sx = 0.0, sy = 0.0, sz = 0.0, sr = 0.0, scf = 0.0, scb = 0.0;
 
@@ -191,7 +199,9 @@ class AnimationObject {
 
 	    lastRock = disp;
 	}else if(animationMode == Mode.MoleculeAnimation){
-
+	    if(moleculePattern != null){
+		moleculeRenderer.stepFrames(moleculePattern, 1);
+	    }
 	}else if(animationMode == Mode.Command){
 
 	}else if(animationMode == Mode.Roll){
@@ -217,9 +217,12 @@ public class Atom extends Point3d implements Selectable, GenericInterface {
     }
 
     /** Release an atom after we finished with it. */
-    public synchronized void release(){
-	if(atomCache.size() < MaxAtomCacheSize){
-	    atomCache.push(this);
+    public void release(){
+	// the cache is shared, so lock it as create() does
+	synchronized(Atom.class){
+	    if(atomCache.size() < MaxAtomCacheSize){
+		atomCache.push(this);
+	    }
 	}
     }
 
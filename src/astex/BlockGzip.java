@@ -0,0 +1,594 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.io.*;
+import java.nio.*;
+import java.util.LinkedHashMap;
+import java.util.zip.*;
+
+/**
+ * Block compressed gzip files, as written by bgzip.
+ *
+ * The file is a series of gzip members, each holding at most
+ * 64k of data, with the compressed size of the member in a
+ * "BC" extra field. Plain gzip readers see one long stream,
+ * but because every member can be found from the headers
+ * alone the blocks can be inflated in parallel, and any part
+ * of the data can be read without inflating what comes before.
+ *
+ * The index of blocks is built when the file is opened by
+ * stepping from header to header, so no separate index file
+ * is needed.
+ */
+class BlockGzip {
+    /** The most data written into one block, as bgzip does. */
+    static final int MaxBlockData = 0xff00;
+
+    /** The most data a block can hold. */
+    private static final int MaxBlockSize = 1 << 16;
+
+    /** The size of the header of each block, up to the data. */
+    private static final int HeaderSize = 18;
+
+    /** The size of the crc and length at the end of each block. */
+    private static final int FooterSize = 8;
+
+    /** The empty block that ends a file. */
+    private static final byte EndOfFile[] = {
+	0x1f, (byte)0x8b, 8, 4, 0, 0, 0, 0, 0, (byte)0xff, 6, 0,
+	0x42, 0x43, 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    /** The number of inflated blocks kept for random access. */
+    private static final int CachedBlocks = 64;
+
+    /** The compressed file. */
+    private ByteBuffer compressed;
+
+    /** The start of each block in the compressed file. */
+    private int blockStart[];
+
+    /** The offset of each block in the data, and the total. */
+    private long dataStart[];
+
+    /** The number of blocks. */
+    private int blockCount;
+
+    /** Recently inflated blocks, least recently used first. */
+    private LinkedHashMap<Integer,byte[]> cache =
+	new LinkedHashMap<Integer,byte[]>(CachedBlocks, 0.75f, true){
+	    protected boolean removeEldestEntry(java.util.Map.Entry<Integer,byte[]> eldest){
+		return size() > CachedBlocks;
+	    }
+	};
+
+    private BlockGzip(){
+    }
+
+    /**
+     * Index the compressed contents of a file. Returns null
+     * if they are not block compressed, so that they can be
+     * read as plain gzip.
+     */
+    static BlockGzip open(ByteBuffer buffer){
+	ByteBuffer b = buffer.duplicate();
+	b.order(ByteOrder.LITTLE_ENDIAN);
+
+	int length = b.limit();
+	int starts[] = new int[Math.max(16, length / MaxBlockSize + 1)];
+	long offsets[] = new long[starts.length + 1];
+	int n = 0;
+	long total = 0;
+
+	for(int p = 0; p < length; /* nothing */){
+	    int size = blockSize(b, p);
+
+	    if(size <= 0 || p + size > length){
+		return null;
+	    }
+
+	    if(n + 1 >= starts.length){
+		starts = grow(starts);
+		long newOffsets[] = new long[starts.length + 1];
+		System.arraycopy(offsets, 0, newOffsets, 0, n + 1);
+		offsets = newOffsets;
+	    }
+
+	    long isize = b.getInt(p + size - 4) & 0xffffffffL;
+
+	    if(isize > MaxBlockSize){
+		return null;
+	    }
+
+	    starts[n] = p;
+	    offsets[n] = total;
+	    total += isize;
+	    n++;
+
+	    p += size;
+	}
+
+	if(n == 0){
+	    return null;
+	}
+
+	offsets[n] = total;
+
+	BlockGzip gz = new BlockGzip();
+	gz.compressed = b;
+	gz.blockStart = starts;
+	gz.dataStart = offsets;
+	gz.blockCount = n;
+
+	return gz;
+    }
+
+    private static int[] grow(int a[]){
+	int b[] = new int[a.length * 2];
+	System.arraycopy(a, 0, b, 0, a.length);
+	return b;
+    }
+
+    /**
+     * Return the size of the block that starts at p, or -1 if
+     * there isn't a gzip member with a BC field there.
+     */
+    private static int blockSize(ByteBuffer b, int p){
+	if(p + HeaderSize + FooterSize > b.limit() ||
+	   (b.get(p) & 0xff) != 0x1f || (b.get(p + 1) & 0xff) != 0x8b ||
+	   b.get(p + 2) != 8 || (b.get(p + 3) & 4) == 0){
+	    return -1;
+	}
+
+	int xlen = b.getShort(p + 10) & 0xffff;
+	int end = p + 12 + xlen;
+
+	if(end > b.limit()){
+	    return -1;
+	}
+
+	for(int f = p + 12; f + 4 <= end; /* nothing */){
+	    int slen = b.getShort(f + 2) & 0xffff;
+
+	    if(b.get(f) == 'B' && b.get(f + 1) == 'C' && slen == 2){
+		int size = (b.getShort(f + 4) & 0xffff) + 1;
+
+		// too small to hold its own header and footer
+		if(size < 12 + xlen + FooterSize){
+		    return -1;
+		}
+
+		return size;
+	    }
+
+	    f += 4 + slen;
+	}
+
+	return -1;
+    }
+
+    /** The length of the uncompressed data. */
+    long length(){
+	return dataStart[blockCount];
+    }
+
+    /** The number of uncompressed bytes in block i. */
+    private int blockLength(int i){
+	return (int)(dataStart[i + 1] - dataStart[i]);
+    }
+
+    /**
+     * Inflate block i into dest. The inflater and scratch
+     * space belong to the calling thread.
+     */
+    private void inflate(int i, byte dest[], Inflater inflater, byte scratch[])
+	throws IOException {
+	// the BC field needn't be the first extra field, so
+	// take the size from the index rather than the header
+	int p = blockStart[i];
+	int end = i + 1 < blockCount ? blockStart[i + 1] : compressed.limit();
+	int size = end - p;
+	int xlen = compressed.getShort(p + 10) & 0xffff;
+	int dataOffset = p + 12 + xlen;
+	int dataLength = size - 12 - xlen - FooterSize;
+	int expected = blockLength(i);
+
+	ByteBuffer b = compressed.duplicate();
+	b.position(dataOffset);
+	b.get(scratch, 0, dataLength);
+
+	inflater.reset();
+	inflater.setInput(scratch, 0, dataLength);
+
+	try {
+	    int got = 0;
+	    while(got < expected && !inflater.finished()){
+		int n = inflater.inflate(dest, got, expected - got);
+		if(n == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+		    break;
+		}
+		got += n;
+	    }
+
+	    if(got != expected){
+		throw new ZipException("block " + i + " is truncated");
+	    }
+	}catch(DataFormatException e){
+	    throw new ZipException("block " + i + ": " + e.getMessage());
+	}
+
+	CRC32 crc = new CRC32();
+	crc.update(dest, 0, expected);
+
+	if((int)crc.getValue() != compressed.getInt(p + size - FooterSize)){
+	    throw new ZipException("block " + i + " has a bad crc");
+	}
+    }
+
+    /** Inflate blocks [first, first + count) into dest on the workers. */
+    private void inflate(final int first, int count, final byte dest[][])
+	throws IOException {
+	final IOException error[] = new IOException[1];
+
+	Parallel.forRange(count, 1, new Parallel.Block(){
+		public void run(int start, int end){
+		    Inflater inflater = new Inflater(true);
+		    byte scratch[] = new byte[MaxBlockSize];
+
+		    try {
+			for(int i = start; i < end; i++){
+			    inflate(first + i, dest[i], inflater, scratch);
+			}
+		    }catch(IOException e){
+			synchronized(error){
+			    error[0] = e;
+			}
+		    }finally{
+			inflater.end();
+		    }
+		}
+	    });
+
+	if(error[0] != null){
+	    throw error[0];
+	}
+    }
+
+    /** Return the index of the block that holds data offset position. */
+    private int findBlock(long position){
+	int lo = 0, hi = blockCount - 1;
+
+	while(lo < hi){
+	    int mid = (lo + hi + 1) >>> 1;
+	    if(dataStart[mid] <= position){
+		lo = mid;
+	    }else{
+		hi = mid - 1;
+	    }
+	}
+
+	return lo;
+    }
+
+    /**
+     * Read length bytes of data from position. Only the blocks
+     * that cover the range are inflated, and the most recently
+     * used blocks are kept, so neighbouring reads are cheap.
+     */
+    byte[] read(long position, int length) throws IOException {
+	if(position < 0 || position + length > length()){
+	    throw new EOFException("read past the end of the data");
+	}
+
+	byte result[] = new byte[length];
+
+	if(length == 0){
+	    return result;
+	}
+
+	int first = findBlock(position);
+	int last = findBlock(position + length - 1);
+	int count = last - first + 1;
+	byte blocks[][] = new byte[count][];
+	int missing = 0;
+
+	synchronized(cache){
+	    for(int i = 0; i < count; i++){
+		blocks[i] = cache.get(Integer.valueOf(first + i));
+		if(blocks[i] == null){
+		    missing++;
+		}
+	    }
+	}
+
+	// inflate runs of missing blocks together
+	for(int i = 0; missing > 0 && i < count; /* nothing */){
+	    if(blocks[i] != null){
+		i++;
+		continue;
+	    }
+
+	    int j = i;
+	    while(j < count && blocks[j] == null){
+		j++;
+	    }
+
+	    byte run[][] = new byte[j - i][];
+	    for(int k = 0; k < run.length; k++){
+		run[k] = new byte[blockLength(first + i + k)];
+	    }
+
+	    inflate(first + i, run.length, run);
+
+	    synchronized(cache){
+		for(int k = 0; k < run.length; k++){
+		    blocks[i + k] = run[k];
+		    cache.put(Integer.valueOf(first + i + k), run[k]);
+		}
+	    }
+
+	    missing -= run.length;
+	    i = j;
+	}
+
+	int done = 0;
+	for(int i = 0; i < count; i++){
+	    int from = i == 0 ? (int)(position - dataStart[first]) : 0;
+	    int n = Math.min(blocks[i].length - from, length - done);
+	    System.arraycopy(blocks[i], from, result, done, n);
+	    done += n;
+	}
+
+	return result;
+    }
+
+    /**
+     * Return a stream of the data, inflated in parallel.
+     * Closing it closes source, the stream the file was
+     * opened with.
+     */
+    InputStream getInputStream(InputStream source){
+	return new Input(source);
+    }
+
+    /**
+     * Reads the data in order. Each refill inflates a batch of
+     * blocks, a few for each worker thread.
+     */
+    private class Input extends InputStream {
+	private byte batch[][];
+	private int batchCount = 0;
+	private int nextBlock = 0;
+	private int current = 0;
+	private int offset = 0;
+	private InputStream source;
+
+	Input(InputStream source){
+	    this.source = source;
+	    batch = new byte[4 * Parallel.getThreadCount()][];
+	    for(int i = 0; i < batch.length; i++){
+		batch[i] = new byte[MaxBlockSize];
+	    }
+	}
+
+	/** Make sure there is data to read, false at the end. */
+	private boolean fill() throws IOException {
+	    while(current < batchCount &&
+		  offset >= blockLength(nextBlock - batchCount + current)){
+		current++;
+		offset = 0;
+	    }
+
+	    if(current < batchCount){
+		return true;
+	    }
+
+	    if(nextBlock >= blockCount){
+		return false;
+	    }
+
+	    int count = Math.min(batch.length, blockCount - nextBlock);
+	    inflate(nextBlock, count, batch);
+	    nextBlock += count;
+	    batchCount = count;
+	    current = 0;
+	    offset = 0;
+
+	    // skip empty blocks such as the end of file marker
+	    return fill();
+	}
+
+	public int read() throws IOException {
+	    if(!fill()){
+		return -1;
+	    }
+
+	    return batch[current][offset++] & 0xff;
+	}
+
+	public int read(byte b[], int off, int len) throws IOException {
+	    if(len == 0){
+		return 0;
+	    }
+
+	    int done = 0;
+
+	    while(done < len && fill()){
+		int block = nextBlock - batchCount + current;
+		int n = Math.min(blockLength(block) - offset, len - done);
+		System.arraycopy(batch[current], offset, b, off + done, n);
+		offset += n;
+		done += n;
+	    }
+
+	    return done == 0 ? -1 : done;
+	}
+
+	public void close() throws IOException {
+	    if(source != null){
+		source.close();
+	    }
+	}
+    }
+
+    /**
+     * Writes block compressed gzip. Data is collected into a
+     * batch of blocks that are deflated in parallel and then
+     * written in order. The end of file marker is written when
+     * the stream is closed.
+     */
+    static class Output extends OutputStream {
+	private OutputStream out;
+	private byte data[];
+	private int used = 0;
+	private byte blocks[][];
+	private int blockSizes[];
+	private boolean closed = false;
+
+	Output(OutputStream out){
+	    this.out = out;
+	    int count = 4 * Parallel.getThreadCount();
+	    data = new byte[count * MaxBlockData];
+	    blocks = new byte[count][MaxBlockSize];
+	    blockSizes = new int[count];
+	}
+
+	public void write(int b) throws IOException {
+	    if(used == data.length){
+		writeBlocks();
+	    }
+	    data[used++] = (byte)b;
+	}
+
+	public void write(byte b[], int off, int len) throws IOException {
+	    while(len > 0){
+		if(used == data.length){
+		    writeBlocks();
+		}
+		int n = Math.min(len, data.length - used);
+		System.arraycopy(b, off, data, used, n);
+		used += n;
+		off += n;
+		len -= n;
+	    }
+	}
+
+	/** Compress and write the data collected so far. */
+	private void writeBlocks() throws IOException {
+	    final int count = (used + MaxBlockData - 1) / MaxBlockData;
+	    final int length = used;
+
+	    Parallel.forRange(count, 1, new Parallel.Block(){
+		    public void run(int start, int end){
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			CRC32 crc = new CRC32();
+
+			try {
+			    for(int i = start; i < end; i++){
+				int from = i * MaxBlockData;
+				int n = Math.min(MaxBlockData, length - from);
+				blockSizes[i] = deflate(deflater, crc, data, from, n, blocks[i]);
+			    }
+			}finally{
+			    deflater.end();
+			}
+		    }
+		});
+
+	    for(int i = 0; i < count; i++){
+		out.write(blocks[i], 0, blockSizes[i]);
+	    }
+
+	    used = 0;
+	}
+
+	public void flush() throws IOException {
+	    if(used > 0){
+		writeBlocks();
+	    }
+	    out.flush();
+	}
+
+	public void close() throws IOException {
+	    if(closed){
+		return;
+	    }
+
+	    closed = true;
+
+	    try {
+		if(used > 0){
+		    writeBlocks();
+		}
+		out.write(EndOfFile);
+	    }finally{
+		out.close();
+	    }
+	}
+    }
+
+    /**
+     * Deflate n bytes of src into a complete block in dest and
+     * return its size. Data that doesn't shrink is stored.
+     */
+    private static int deflate(Deflater deflater, CRC32 crc,
+			       byte src[], int from, int n, byte dest[]){
+	int room = MaxBlockSize - HeaderSize - FooterSize;
+	int size = 0;
+
+	for(int attempt = 0; attempt < 2; attempt++){
+	    deflater.reset();
+	    deflater.setLevel(attempt == 0 ? Deflater.DEFAULT_COMPRESSION :
+			      Deflater.NO_COMPRESSION);
+	    deflater.setInput(src, from, n);
+	    deflater.finish();
+
+	    size = 0;
+	    while(!deflater.finished() && size < room){
+		size += deflater.deflate(dest, HeaderSize + size, room - size);
+	    }
+
+	    if(deflater.finished()){
+		break;
+	    }
+	}
+
+	int total = HeaderSize + size + FooterSize;
+
+	System.arraycopy(EndOfFile, 0, dest, 0, 16);
+	putShort(dest, 16, total - 1);
+
+	crc.reset();
+	crc.update(src, from, n);
+	putInt(dest, HeaderSize + size, (int)crc.getValue());
+	putInt(dest, HeaderSize + size + 4, n);
+
+	return total;
+    }
+
+    private static void putShort(byte b[], int p, int v){
+	b[p] = (byte)v;
+	b[p + 1] = (byte)(v >> 8);
+    }
+
+    private static void putInt(byte b[], int p, int v){
+	putShort(b, p, v);
+	putShort(b, p + 2, v >> 16);
+    }
+}
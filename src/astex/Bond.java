@@ -154,6 +154,18 @@ public class Bond extends Generic {
 	this.radii[2] = (byte)(v/bondScale);
     }
 
+    /** Return the three widths packed into an int. */
+    int getPackedWidths(){
+	return (radii[0] & 0xff) | (radii[1] & 0xff) << 8 | (radii[2] & 0xff) << 16;
+    }
+
+    /** Set the widths from getPackedWidths(). */
+    void setPackedWidths(int w){
+	radii[0] = (byte)w;
+	radii[1] = (byte)(w >> 8);
+	radii[2] = (byte)(w >> 16);
+    }
+
     int bondColor;
     
     /**
@@ -0,0 +1,256 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * A treecode for the sum of q / r^2 over a set of point charges,
+ * the distance dependent dielectric potential used to colour
+ * surfaces, with no cutoff.
+ *
+ * Charges are split into a kd-tree. Groups that are far enough
+ * away compared to their size are replaced by a multipole
+ * expansion up to the quadrupole term, so the cost per point is
+ * logarithmic rather than linear in the number of charges.
+ *
+ * The tree is only read after it is built, so it can be
+ * evaluated on several threads at the same time.
+ */
+class ChargeTree {
+    /** The largest number of charges in a leaf. */
+    private static final int LeafSize = 8;
+
+    /**
+     * Groups whose radius is less than Theta times their
+     * distance are expanded.
+     */
+    private static final double Theta = 0.5;
+
+    /** The charges, in tree order. */
+    private double x[], y[], z[], q[];
+
+    /** The range of charges below each node. */
+    private int first[], last[];
+
+    /** The children of each node, -1 for leaves. */
+    private int left[], right[];
+
+    /** The expansion centre and squared radius of each node. */
+    private double cx[], cy[], cz[], r2[];
+
+    /** The monopole, dipole and quadrupole moments of each node. */
+    private double mq[], dx[], dy[], dz[];
+    private double mxx[], mxy[], mxz[], myy[], myz[], mzz[];
+
+    /** The number of nodes. */
+    private int nodeCount = 0;
+
+    /** The depth of the tree. */
+    private int depth = 0;
+
+    /** Build the tree for the first n charges in the arrays. */
+    public ChargeTree(double xs[], double ys[], double zs[], double qs[], int n){
+	x = new double[n];
+	y = new double[n];
+	z = new double[n];
+	q = new double[n];
+
+	System.arraycopy(xs, 0, x, 0, n);
+	System.arraycopy(ys, 0, y, 0, n);
+	System.arraycopy(zs, 0, z, 0, n);
+	System.arraycopy(qs, 0, q, 0, n);
+
+	int maxNodes = Math.max(1, 4 * n / LeafSize + 1);
+
+	first = new int[maxNodes];
+	last = new int[maxNodes];
+	left = new int[maxNodes];
+	right = new int[maxNodes];
+	cx = new double[maxNodes];
+	cy = new double[maxNodes];
+	cz = new double[maxNodes];
+	r2 = new double[maxNodes];
+	mq = new double[maxNodes];
+	dx = new double[maxNodes];
+	dy = new double[maxNodes];
+	dz = new double[maxNodes];
+	mxx = new double[maxNodes];
+	mxy = new double[maxNodes];
+	mxz = new double[maxNodes];
+	myy = new double[maxNodes];
+	myz = new double[maxNodes];
+	mzz = new double[maxNodes];
+
+	if(n > 0){
+	    build(0, n, 1);
+	}
+    }
+
+    /** Build the node for charges [lo, hi) and return its index. */
+    private int build(int lo, int hi, int level){
+	int node = nodeCount++;
+
+	if(level > depth){
+	    depth = level;
+	}
+
+	first[node] = lo;
+	last[node] = hi;
+	left[node] = right[node] = -1;
+
+	double min[] = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+	double max[] = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+	for(int i = lo; i < hi; i++){
+	    if(x[i] < min[0]) min[0] = x[i];
+	    if(x[i] > max[0]) max[0] = x[i];
+	    if(y[i] < min[1]) min[1] = y[i];
+	    if(y[i] > max[1]) max[1] = y[i];
+	    if(z[i] < min[2]) min[2] = z[i];
+	    if(z[i] > max[2]) max[2] = z[i];
+	}
+
+	// expand about the centre of the box, the charges
+	// have both signs so there is no useful centre of charge
+	double ox = cx[node] = 0.5 * (min[0] + max[0]);
+	double oy = cy[node] = 0.5 * (min[1] + max[1]);
+	double oz = cz[node] = 0.5 * (min[2] + max[2]);
+
+	for(int i = lo; i < hi; i++){
+	    double ex = x[i] - ox, ey = y[i] - oy, ez = z[i] - oz;
+	    double qi = q[i];
+
+	    r2[node] = Math.max(r2[node], ex*ex + ey*ey + ez*ez);
+	    mq[node] += qi;
+	    dx[node] += qi * ex;
+	    dy[node] += qi * ey;
+	    dz[node] += qi * ez;
+	    mxx[node] += qi * ex * ex;
+	    mxy[node] += qi * ex * ey;
+	    mxz[node] += qi * ex * ez;
+	    myy[node] += qi * ey * ey;
+	    myz[node] += qi * ey * ez;
+	    mzz[node] += qi * ez * ez;
+	}
+
+	if(hi - lo <= LeafSize){
+	    return node;
+	}
+
+	int a = 0;
+	if(max[1] - min[1] > max[a] - min[a]) a = 1;
+	if(max[2] - min[2] > max[a] - min[a]) a = 2;
+
+	int mid = (lo + hi) >>> 1;
+	select(lo, hi - 1, mid, a);
+
+	left[node] = build(lo, mid, level + 1);
+	right[node] = build(mid, hi, level + 1);
+
+	return node;
+    }
+
+    private double coordinate(int i, int a){
+	return a == 0 ? x[i] : (a == 1 ? y[i] : z[i]);
+    }
+
+    private void swap(int i, int j){
+	double t;
+	t = x[i]; x[i] = x[j]; x[j] = t;
+	t = y[i]; y[i] = y[j]; y[j] = t;
+	t = z[i]; z[i] = z[j]; z[j] = t;
+	t = q[i]; q[i] = q[j]; q[j] = t;
+    }
+
+    /** Partially sort [lo, hi] so that charge k is in place on axis a. */
+    private void select(int lo, int hi, int k, int a){
+	while(hi > lo){
+	    double pivot = coordinate((lo + hi) >>> 1, a);
+	    int i = lo, j = hi;
+
+	    while(i <= j){
+		while(coordinate(i, a) < pivot) i++;
+		while(coordinate(j, a) > pivot) j--;
+		if(i <= j){
+		    swap(i, j);
+		    i++;
+		    j--;
+		}
+	    }
+
+	    if(k <= j){
+		hi = j;
+	    }else if(k >= i){
+		lo = i;
+	    }else{
+		return;
+	    }
+	}
+    }
+
+    /** Return a stack big enough for one call of potential(). */
+    public int[] createStack(){
+	return new int[depth + 2];
+    }
+
+    /** Return the sum of q / r^2 at the point. */
+    public double potential(double px, double py, double pz, int stack[]){
+	if(nodeCount == 0){
+	    return 0.0;
+	}
+
+	double theta2 = Theta * Theta;
+	double v = 0.0;
+	int top = 0;
+
+	stack[top++] = 0;
+
+	while(top > 0){
+	    int node = stack[--top];
+	    double rx = px - cx[node];
+	    double ry = py - cy[node];
+	    double rz = pz - cz[node];
+	    double R2 = rx*rx + ry*ry + rz*rz;
+
+	    if(r2[node] < theta2 * R2){
+		// far away, sum the expansion of 1 / |R - d|^2
+		double invR2 = 1.0 / R2;
+		double invR4 = invR2 * invR2;
+		double dr = dx[node] * rx + dy[node] * ry + dz[node] * rz;
+		double trace = mxx[node] + myy[node] + mzz[node];
+		double rmr =
+		    mxx[node] * rx * rx + myy[node] * ry * ry + mzz[node] * rz * rz +
+		    2.0 * (mxy[node] * rx * ry + mxz[node] * rx * rz + myz[node] * ry * rz);
+
+		v += mq[node] * invR2 + (2.0 * dr - trace) * invR4 +
+		    4.0 * rmr * invR4 * invR2;
+	    }else if(left[node] == -1){
+		for(int i = first[node]; i < last[node]; i++){
+		    double ex = px - x[i];
+		    double ey = py - y[i];
+		    double ez = pz - z[i];
+		    v += q[i] / (ex*ex + ey*ey + ez*ez);
+		}
+	    }else{
+		stack[top++] = right[node];
+		stack[top++] = left[node];
+	    }
+	}
+
+	return v;
+    }
+}
@@ -0,0 +1,583 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.util.*;
+
+/**
+ * Reader for mmCIF (PDBx) files.
+ *
+ * Only the atom_site loop and the cell and space group items are
+ * used. Rows are tokenized in place in a byte buffer and only the
+ * columns we need are turned into numbers or strings, so there
+ * is no object creation for the columns that are skipped. Models
+ * after the first are read as coordinate frames.
+ */
+class CifReader {
+    /** The columns of atom_site that we use. */
+    private static final String AtomSiteColumns[] = {
+	"group_PDB", "id", "type_symbol",
+	"label_atom_id", "auth_atom_id", "label_alt_id",
+	"label_comp_id", "auth_comp_id",
+	"label_asym_id", "auth_asym_id",
+	"label_seq_id", "auth_seq_id", "pdbx_PDB_ins_code",
+	"Cartn_x", "Cartn_y", "Cartn_z",
+	"occupancy", "B_iso_or_equiv", "pdbx_PDB_model_num",
+    };
+
+    private static final int Group = 0, Id = 1, TypeSymbol = 2;
+    private static final int LabelAtom = 3, AuthAtom = 4, AltId = 5;
+    private static final int LabelComp = 6, AuthComp = 7;
+    private static final int LabelAsym = 8, AuthAsym = 9;
+    private static final int LabelSeq = 10, AuthSeq = 11, InsCode = 12;
+    private static final int X = 13, Y = 14, Z = 15;
+    private static final int Occupancy = 16, BFactor = 17, Model = 18;
+
+    /** The file we are reading. */
+    private FILE file;
+
+    /** The molecule we are building. */
+    private Molecule molecule = new Molecule();
+
+    /** Is the current line of the file still to be handled. */
+    private boolean pushedBack = false;
+
+    /** The text of the current row, which may span lines. */
+    private byte row[] = new byte[1024];
+    private int rowLength = 0;
+
+    /** The tokens of the current row. */
+    private int tokenStart[] = new int[64];
+    private int tokenLength[] = new int[64];
+    private int tokenCount = 0;
+
+    /** Cell and space group. */
+    private double cell[] = new double[6];
+    private boolean cellSeen = false;
+    private String spaceGroup = null;
+
+    /** Strings for short names, so that each name is only made once. */
+    private HashMap<Integer,String> names = new HashMap<Integer,String>();
+
+    /** The last chain and residue seen. */
+    private byte lastChain[] = new byte[16];
+    private int lastChainLength = -1;
+    private byte lastComp[] = new byte[16];
+    private int lastCompLength = -1;
+    private int lastSeq = Residue.undefinedResidueNumber;
+    private char lastIns = 0;
+
+    private CifReader(FILE file){
+	this.file = file;
+    }
+
+    /** Read a molecule from an mmCIF file. */
+    public static Molecule read(FILE file){
+	return new CifReader(file).read();
+    }
+
+    private Molecule read(){
+	while(nextLine()){
+	    if(file.currentLineContains("loop_", 0)){
+		readLoop();
+	    }else if(file.getChar(0) == '_'){
+		readItem();
+	    }
+	}
+
+	if(cellSeen){
+	    molecule.setUnitCell(cell);
+	}
+
+	if(spaceGroup != null){
+	    String name = spaceGroup.replace(" ", "");
+
+	    // as for pdb files, use the H classification
+	    // for hexagonally classified spacegroups
+	    if(cellSeen && name.startsWith("R") &&
+	       Math.abs(cell[3] - cell[5]) > 0.001){
+		name = "H" + name.substring(1);
+	    }
+
+	    molecule.setSpaceGroupName(name);
+	    molecule.getSymmetry().setOriginalSpaceGroupName(spaceGroup);
+	}
+
+	Symmetry symmetry = molecule.getSymmetry();
+
+	if(symmetry != null){
+	    symmetry.prepareSymmetry();
+	}
+
+	molecule.connect2();
+
+	return molecule;
+    }
+
+    private boolean nextLine(){
+	if(pushedBack){
+	    pushedBack = false;
+	    return true;
+	}
+
+	return file.nextLine();
+    }
+
+    /** Does the current line start a new item, loop or block. */
+    private boolean startsSection(){
+	char c = file.getChar(0);
+
+	return c == '_' ||
+	    file.currentLineContains("loop_", 0) ||
+	    file.currentLineContains("data_", 0);
+    }
+
+    /** Read a single "_category.item value" item. */
+    private void readItem(){
+	rowLength = 0;
+	tokenCount = 0;
+	appendLine();
+
+	if(tokenCount < 2){
+	    // the value is on the next line
+	    if(!nextLine()){
+		return;
+	    }
+
+	    if(file.getChar(0) == ';'){
+		skipTextField();
+		return;
+	    }
+
+	    if(startsSection()){
+		pushedBack = true;
+		return;
+	    }
+
+	    appendLine();
+	}
+
+	if(tokenCount < 2){
+	    return;
+	}
+
+	String key = token(0);
+
+	if(key.startsWith("_cell.")){
+	    String cellItems[] = {
+		"length_a", "length_b", "length_c",
+		"angle_alpha", "angle_beta", "angle_gamma"
+	    };
+
+	    for(int i = 0; i < 6; i++){
+		if(key.equals("_cell." + cellItems[i])){
+		    cell[i] = number(1);
+		    cellSeen = true;
+		}
+	    }
+	}else if(key.equals("_symmetry.space_group_name_H-M") ||
+		 key.equals("_space_group.name_H-M_alt")){
+	    if(!isNull(1)){
+		spaceGroup = token(1).trim();
+	    }
+	}
+    }
+
+    /** Skip a multi-line text field starting on the current line. */
+    private void skipTextField(){
+	while(file.nextLine()){
+	    if(file.getChar(0) == ';'){
+		return;
+	    }
+	}
+    }
+
+    /** Read a loop, which we only use if it is atom_site. */
+    private void readLoop(){
+	List<String> headers = new ArrayList<String>();
+
+	while(nextLine()){
+	    if(file.getChar(0) == '_'){
+		String h = file.getField(0);
+
+		if(h != null){
+		    headers.add(h);
+		}
+	    }else{
+		pushedBack = true;
+		break;
+	    }
+	}
+
+	if(!headers.isEmpty() && headers.get(0).startsWith("_atom_site.")){
+	    readAtomSite(headers);
+	}else{
+	    while(readRow(headers.size())){
+		// skip
+	    }
+	}
+    }
+
+    /**
+     * Read the next row of a loop with columnCount columns.
+     * Returns false at the end of the loop.
+     */
+    private boolean readRow(int columnCount){
+	rowLength = 0;
+	tokenCount = 0;
+
+	while(tokenCount < columnCount){
+	    if(!nextLine()){
+		return false;
+	    }
+
+	    char c = file.getChar(0);
+
+	    if(c == '#' || file.getLineLength() == 0){
+		continue;
+	    }
+
+	    if(c == ';'){
+		// text fields are never columns we want
+		skipTextField();
+		addToken(rowLength, 0);
+		continue;
+	    }
+
+	    if(tokenCount == 0 && startsSection()){
+		pushedBack = true;
+		return false;
+	    }
+
+	    appendLine();
+	}
+
+	return true;
+    }
+
+    /** Add the current line to the row and split it into tokens. */
+    private void appendLine(){
+	int len = file.getLineLength();
+
+	if(rowLength + len + 1 > row.length){
+	    row = Arrays.copyOf(row, 2 * (rowLength + len + 1));
+	}
+
+	if(rowLength > 0){
+	    row[rowLength++] = ' ';
+	}
+
+	int from = rowLength;
+	rowLength += file.copyLine(row, rowLength);
+
+	int end = rowLength;
+	int i = from;
+
+	while(i < end){
+	    byte c = row[i];
+
+	    if(c == ' ' || c == '\t'){
+		i++;
+		continue;
+	    }
+
+	    if(c == '\'' || c == '"'){
+		// quoted, ends at a matching quote before white space
+		int j = i + 1;
+
+		while(j < end &&
+		      !(row[j] == c &&
+			(j + 1 == end || row[j + 1] == ' ' || row[j + 1] == '\t'))){
+		    j++;
+		}
+
+		addToken(i + 1, j - i - 1);
+		i = j + 1;
+		continue;
+	    }
+
+	    int s = i;
+
+	    while(i < end && row[i] != ' ' && row[i] != '\t'){
+		i++;
+	    }
+
+	    addToken(s, i - s);
+	}
+    }
+
+    private void addToken(int start, int length){
+	if(tokenCount == tokenStart.length){
+	    tokenStart = Arrays.copyOf(tokenStart, 2 * tokenCount);
+	    tokenLength = Arrays.copyOf(tokenLength, 2 * tokenCount);
+	}
+
+	tokenStart[tokenCount] = start;
+	tokenLength[tokenCount] = length;
+	tokenCount++;
+    }
+
+    private String token(int t){
+	return new String(row, tokenStart[t], tokenLength[t]);
+    }
+
+    /** Is the token missing, or one of the null values . and ?. */
+    private boolean isNull(int t){
+	if(t < 0 || t >= tokenCount){
+	    return true;
+	}
+
+	if(tokenLength[t] != 1){
+	    return false;
+	}
+
+	byte c = row[tokenStart[t]];
+
+	return c == '.' || c == '?';
+    }
+
+    private double number(int t){
+	return FILE.readDouble(row, tokenStart[t], tokenLength[t], 0, tokenLength[t]);
+    }
+
+    private int integer(int t){
+	return FILE.readInteger(row, tokenStart[t], tokenLength[t], 0, tokenLength[t]);
+    }
+
+    /** The first character of the token, or blank if it is null. */
+    private char character(int t){
+	return isNull(t) ? ' ' : (char)row[tokenStart[t]];
+    }
+
+    /** Return the token as a string, sharing strings for short names. */
+    private String name(int t){
+	int len = tokenLength[t];
+
+	if(len > 4 || len == 0){
+	    return token(t);
+	}
+
+	int key = 0;
+
+	for(int i = 0; i < len; i++){
+	    key = (key << 8) | (row[tokenStart[t] + i] & 0xff);
+	}
+
+	Integer k = Integer.valueOf(key);
+	String s = names.get(k);
+
+	if(s == null){
+	    s = token(t);
+	    names.put(k, s);
+	}
+
+	return s;
+    }
+
+    /** Is token t the same as the bytes in last. */
+    private boolean same(int t, byte last[], int lastLength){
+	if(tokenLength[t] != lastLength){
+	    return false;
+	}
+
+	for(int i = 0; i < lastLength; i++){
+	    if(row[tokenStart[t] + i] != last[i]){
+		return false;
+	    }
+	}
+
+	return true;
+    }
+
+    /**
+     * Is token t the same chain as the last one. Missing ids
+     * are all taken as the one blank chain id.
+     */
+    private boolean sameChain(int t){
+	if(isNull(t)){
+	    return lastChainLength == 0;
+	}
+
+	return same(t, lastChain, lastChainLength);
+    }
+
+    /** Copy token t into a buffer, growing it if needed. */
+    private byte[] copy(int t, byte dest[]){
+	if(dest.length < tokenLength[t]){
+	    dest = new byte[tokenLength[t]];
+	}
+
+	System.arraycopy(row, tokenStart[t], dest, 0, tokenLength[t]);
+
+	return dest;
+    }
+
+    /** Return the column for the first name that is present. */
+    private static int column(int index[], int preferred, int fallback){
+	return index[preferred] != -1 ? index[preferred] : index[fallback];
+    }
+
+    /** Read the rows of the atom_site loop. */
+    private void readAtomSite(List<String> headers){
+	int index[] = new int[AtomSiteColumns.length];
+
+	for(int c = 0; c < AtomSiteColumns.length; c++){
+	    index[c] = headers.indexOf("_atom_site." + AtomSiteColumns[c]);
+	}
+
+	if(index[X] == -1 || index[Y] == -1 || index[Z] == -1){
+	    Log.error("atom_site has no coordinates");
+	    return;
+	}
+
+	int atomColumn = column(index, AuthAtom, LabelAtom);
+	int compColumn = column(index, AuthComp, LabelComp);
+	int chainColumn = column(index, AuthAsym, LabelAsym);
+	int seqColumn = column(index, AuthSeq, LabelSeq);
+	int columns = headers.size();
+
+	int firstModel = Integer.MIN_VALUE;
+	int currentModel = Integer.MIN_VALUE;
+	float frame[] = null;
+	int frameAtoms = 0;
+
+	while(readRow(columns)){
+	    int model = index[Model] == -1 ? 1 : integer(index[Model]);
+
+	    if(firstModel == Integer.MIN_VALUE){
+		firstModel = model;
+	    }
+
+	    if(model != firstModel){
+		// later models only supply coordinates
+		if(model != currentModel){
+		    MoleculeIO.addFrame(molecule, frame, frameAtoms);
+		    frame = new float[3 * molecule.getAtomCount()];
+		    frameAtoms = 0;
+		    currentModel = model;
+		}
+
+		if(frameAtoms < molecule.getAtomCount()){
+		    frame[3 * frameAtoms]     = (float)number(index[X]);
+		    frame[3 * frameAtoms + 1] = (float)number(index[Y]);
+		    frame[3 * frameAtoms + 2] = (float)number(index[Z]);
+		}
+
+		frameAtoms++;
+		continue;
+	    }
+
+	    if(chainColumn != -1 && !sameChain(chainColumn) ||
+	       lastChainLength == -1){
+		Chain chain = molecule.addChain();
+
+		if(chainColumn != -1 && !isNull(chainColumn)){
+		    chain.setName(token(chainColumn));
+		    lastChain = copy(chainColumn, lastChain);
+		    lastChainLength = tokenLength[chainColumn];
+		}else{
+		    chain.setName(" ");
+		    lastChainLength = 0;
+		}
+
+		lastCompLength = -1;
+	    }
+
+	    int seq = (seqColumn == -1 || isNull(seqColumn)) ?
+		Residue.undefinedResidueNumber : integer(seqColumn);
+	    char ins = index[InsCode] == -1 ? ' ' : character(index[InsCode]);
+
+	    if(lastCompLength == -1 || seq != lastSeq || ins != lastIns ||
+	       (compColumn != -1 && !same(compColumn, lastComp, lastCompLength))){
+		Residue residue = molecule.addResidue();
+		residue.setNumber(seq);
+		residue.setInsertionCode(ins);
+
+		if(compColumn != -1){
+		    residue.setName(name(compColumn));
+		    lastComp = copy(compColumn, lastComp);
+		    lastCompLength = tokenLength[compColumn];
+		}else{
+		    lastCompLength = 0;
+		}
+
+		lastSeq = seq;
+		lastIns = ins;
+	    }
+
+	    addAtom(index, atomColumn, compColumn);
+	}
+
+	MoleculeIO.addFrame(molecule, frame, frameAtoms);
+    }
+
+    /** Add the atom for the current row. */
+    private void addAtom(int index[], int atomColumn, int compColumn){
+	Atom atom = molecule.addAtom();
+	String atomName = atomColumn == -1 ? "" : name(atomColumn);
+
+	atom.setAtomLabel(atomName);
+
+	if(compColumn != -1){
+	    String comp = name(compColumn);
+
+	    if("HOH".equals(comp) || "WAT".equals(comp)){
+		atom.setSolvent(true);
+	    }
+	}
+
+	if(index[Group] != -1 && character(index[Group]) == 'H'){
+	    atom.setHeteroAtom(true);
+	}
+
+	if(index[Id] != -1){
+	    atom.setId(integer(index[Id]));
+	}
+
+	// the alternate location, as read from pdb files
+	atom.setInsertionCode(index[AltId] == -1 ? ' ' : character(index[AltId]));
+
+	atom.set(number(index[X]), number(index[Y]), number(index[Z]));
+
+	int o = index[Occupancy];
+	atom.setOccupancy((o == -1 || isNull(o)) ? 1.0 : number(o));
+
+	int b = index[BFactor];
+	atom.setBFactor((b == -1 || isNull(b)) ? 0.0 : number(b));
+
+	int element = PeriodicTable.UNKNOWN;
+	int t = index[TypeSymbol];
+
+	if(t != -1 && !isNull(t)){
+	    int s = tokenStart[t];
+
+	    if(tokenLength[t] == 1){
+		element = PeriodicTable.getElementFromSymbol(' ', (char)row[s]);
+	    }else{
+		element = PeriodicTable.getElementFromSymbol((char)row[s],
+							     (char)row[s + 1]);
+	    }
+	}
+
+	if(element == PeriodicTable.UNKNOWN && atomName.length() > 0){
+	    element = MoleculeIO.getElementFromPDBAtomLabel(' ', atomName.charAt(0));
+	}
+
+	atom.setElement(element);
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs contouring jobs on a background thread.
+ *
+ * Jobs are keyed, normally by map and contour level. A job
+ * replaces any job with the same key that hasn't started, and
+ * the result of one that is running is thrown away. Finished
+ * results are held until install() is called on the thread that
+ * owns the display, so objects are never changed while they are
+ * being drawn.
+ */
+public class ContourScheduler {
+    /** A job computes its result in the background and installs it later. */
+    public interface Job<T> {
+	/** Compute the result, on the background thread. */
+	T compute();
+
+	/** Install the result, on the thread that calls install(). */
+	void install(T result);
+    }
+
+    /** A finished job and its result. */
+    private static class Result<T> {
+	Job<T> job;
+	T result;
+
+	Result(Job<T> job, T result){
+	    this.job = job;
+	    this.result = result;
+	}
+
+	void install(){
+	    job.install(result);
+	}
+    }
+
+    /** Jobs waiting to start. */
+    private HashMap<String,Job<?>> pending = new HashMap<String,Job<?>>();
+
+    /** The latest generation of each key. */
+    private HashMap<String,Long> generations = new HashMap<String,Long>();
+
+    /** Finished results waiting to be installed. */
+    private HashMap<String,Result<?>> finished = new HashMap<String,Result<?>>();
+
+    /** The number of jobs submitted but not yet finished. */
+    private int outstanding = 0;
+
+    /** Called when a result is ready to install. */
+    private Runnable listener = null;
+
+    /** The contouring thread. */
+    private ExecutorService executor =
+	Executors.newSingleThreadExecutor(new ThreadFactory(){
+		public Thread newThread(Runnable r){
+		    Thread t = new Thread(r, "Contour");
+		    t.setDaemon(true);
+		    return t;
+		}
+	    });
+
+    /** Set the object notified when results are ready, e.g. to repaint. */
+    public void setListener(Runnable r){
+	listener = r;
+    }
+
+    /** Start a new generation for the key, superseding older jobs. */
+    private long supersede(String key){
+	Long g = generations.get(key);
+	long generation = (g == null) ? 1 : g.longValue() + 1;
+
+	generations.put(key, Long.valueOf(generation));
+	finished.remove(key);
+
+	return generation;
+    }
+
+    /** Is this still the latest generation of the key. */
+    private boolean isCurrent(String key, long generation){
+	Long g = generations.get(key);
+
+	return g != null && g.longValue() == generation;
+    }
+
+    /** Run the job in the background, replacing older jobs for the key. */
+    public synchronized void submit(final String key, Job<?> job){
+	supersede(key);
+
+	if(pending.put(key, job) == null){
+	    outstanding++;
+
+	    executor.execute(new Runnable(){
+		    public void run(){
+			runPending(key);
+		    }
+		});
+	}
+    }
+
+    /**
+     * Forget any job for the key, because the caller has done
+     * the work itself.
+     */
+    public synchronized void cancel(String key){
+	supersede(key);
+
+	if(pending.remove(key) != null){
+	    outstanding--;
+	    notifyAll();
+	}
+    }
+
+    /** Run the latest job for the key. */
+    private void runPending(String key){
+	Job<?> job;
+	long generation;
+
+	synchronized(this){
+	    job = pending.remove(key);
+
+	    if(job == null){
+		// cancelled before it started
+		return;
+	    }
+
+	    generation = generations.get(key).longValue();
+	}
+
+	try {
+	    run(key, job, generation);
+	}catch(RuntimeException e){
+	    Log.error("contouring failed " + e);
+	}finally{
+	    synchronized(this){
+		outstanding--;
+		notifyAll();
+	    }
+	}
+    }
+
+    private <T> void run(String key, Job<T> job, long generation){
+	T result = job.compute();
+	boolean ready = false;
+
+	synchronized(this){
+	    if(isCurrent(key, generation)){
+		finished.put(key, new Result<T>(job, result));
+		ready = true;
+	    }
+	}
+
+	if(ready && listener != null){
+	    listener.run();
+	}
+    }
+
+    /**
+     * Install the results that have finished. Call this from the
+     * thread that draws the objects the jobs produce.
+     */
+    public boolean install(){
+	List<Result<?>> results;
+
+	synchronized(this){
+	    if(finished.isEmpty()){
+		return false;
+	    }
+
+	    results = new ArrayList<Result<?>>(finished.values());
+	    finished.clear();
+	}
+
+	for(Result<?> r : results){
+	    r.install();
+	}
+
+	return true;
+    }
+
+    /** Wait for all submitted jobs to finish and install their results. */
+    public void waitForAll(){
+	synchronized(this){
+	    while(outstanding > 0){
+		try {
+		    wait();
+		}catch(InterruptedException e){
+		    Thread.currentThread().interrupt();
+		    break;
+		}
+	    }
+	}
+
+	install();
+    }
+}
@@ -69,6 +69,8 @@ import java.io.*;
 import java.util.*;
 import java.util.zip.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 /**
  * A class which implements a high performance byte based input
@@ -85,9 +87,15 @@ public class FILE extends InputStream {
     /**  The size of the input buffer we will use. */
     private static final int bufferSize = 2048;
 
+    /** The size of the input buffer for files and compressed streams. */
+    private static final int largeBufferSize = 1 << 20;
+
     /** The buffer into which we will read the input. */
     private byte buffer[] = new byte[bufferSize + 1];
 
+    /** The mapped contents of a plain file, or null when reading a stream. */
+    private ByteBuffer mapped = null;
+
     /** The number of characters currently in the buffer. */
     private int charactersInBuffer = 1;
 
@@ -142,6 +150,16 @@ public class FILE extends InputStream {
     /** A buffer for storing the current line in the input. */
     private byte lineBuffer[] = new byte[lineBufferSize];
 
+    /**
+     * The array holding the current line. This is normally the
+     * input buffer itself, so that lines are not copied, or
+     * lineBuffer when a line runs across a buffer fill.
+     */
+    private byte line[] = lineBuffer;
+
+    /** The start of the current line in line[]. */
+    private int lineStart = 0;
+
     /** The length of the current line. */
     private int lineLength = 0;
 
@@ -977,7 +995,14 @@ public class FILE extends InputStream {
 	}
 
 	try {
-	    FileOutputStream fileOutputStream = new FileOutputStream(file);
+	    OutputStream fileOutputStream = new FileOutputStream(file);
+
+	    // .gz files are written block compressed, which any
+	    // gzip reader can read and we can inflate in parallel
+	    if(file.endsWith(".gz")){
+		fileOutputStream = new BlockGzip.Output(fileOutputStream);
+	    }
+
 	    FILE output = new FILE();
 	    output.outputStream = fileOutputStream;
 	    output.setCharactersInBuffer(0);
@@ -989,6 +1014,11 @@ public class FILE extends InputStream {
        
     }
 
+    /** The end of line characters. */
+    byte[] getEol(){
+	return eolLength == 2 ? new byte[] { eol0, eol1 } : new byte[] { eol0 };
+    }
+
     /** Adds end of line. */
     private void eol(){
 	buffer[charactersInBuffer++] = eol0;
@@ -1019,6 +1049,27 @@ public class FILE extends InputStream {
 	}
     }
 
+    /**
+     * Write a block of bytes that are already formatted.
+     * Large blocks go straight to the output stream.
+     */
+    void write(byte b[], int off, int len){
+	if(len < bufferSize - charactersInBuffer){
+	    System.arraycopy(b, off, buffer, charactersInBuffer, len);
+	    charactersInBuffer += len;
+	    if(autoFlush) flush();
+	    return;
+	}
+
+	flush();
+
+	try {
+	    outputStream.write(b, off, len);
+	} catch(Exception e){
+	    System.out.println("Error writing outputStream " + e);
+	}
+    }
+
     /** Constructor for stdout stderr output. */
     public FILE(OutputStream os){
 	outputStream = os;
@@ -1078,6 +1129,38 @@ public class FILE extends InputStream {
     /** Set the input stream. */
     private void setInputStream(InputStream is){
 	inputStream = is;
+	mapped = null;
+    }
+
+    /** Use an input buffer of this size, if it is bigger. */
+    private void setInputBufferSize(int size){
+	if(size > buffer.length - 1){
+	    buffer = new byte[size + 1];
+	}
+    }
+
+    /**
+     * Read large files from their mapped contents, rather than
+     * through read calls on the stream. Small files are read in
+     * one go, as mapping them costs more than it saves.
+     */
+    private void map(FileChannel channel){
+	try {
+	    long size = channel.size();
+
+	    if(size < largeBufferSize){
+		setInputBufferSize((int)Math.max(size, bufferSize));
+	    }else{
+		setInputBufferSize(largeBufferSize);
+
+		if(size <= Integer.MAX_VALUE){
+		    mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+	    }
+	}catch(IOException e){
+	    // the stream still works, it is just slower
+	    mapped = null;
+	}
     }
 
     /** Get the input stream associated with this file. */
@@ -1118,9 +1201,19 @@ public class FILE extends InputStream {
 	buffer[0] = buffer[charactersInBuffer - 1];
 
 	try {
-	    do {
-		charactersRead = inputStream.read(buffer, 1, bufferSize);
-	    } while (charactersRead == 0);
+	    if(mapped != null){
+		charactersRead = Math.min(mapped.remaining(), buffer.length - 1);
+
+		if(charactersRead > 0){
+		    mapped.get(buffer, 1, charactersRead);
+		}else{
+		    charactersRead = EOF;
+		}
+	    }else{
+		do {
+		    charactersRead = inputStream.read(buffer, 1, buffer.length - 1);
+		} while (charactersRead == 0);
+	    }
 			
 	    //System.out.println("fill() returned " + charactersRead +
 	    //				   " characters");
@@ -1199,8 +1292,42 @@ public class FILE extends InputStream {
     public boolean nextLine(){
 	fieldsDetermined = false;
 
+	// most lines lie within the input buffer,
+	// so point straight at them there
+	int start = nextCharacter;
+	int end = charactersInBuffer;
+	byte b[] = buffer;
+
+	for(int i = start; i < end; i++){
+	    byte c = b[i];
+
+	    if(c <= '\r' && c >= 0 && c != '\t'){
+		if(i - start > lineBufferSize){
+		    // long lines are truncated below
+		    break;
+		}
+
+		if(c == '\n'){
+		    nextCharacter = i + 1;
+		}else if(c == '\r' && i + 1 < end){
+		    nextCharacter = (b[i + 1] == '\n') ? i + 2 : i + 1;
+		}else{
+		    // other control characters are dropped below
+		    break;
+		}
+
+		line = b;
+		lineStart = start;
+		lineLength = i - start;
+
+		return true;
+	    }
+	}
+
 	int ch = 0;
 
+	line = lineBuffer;
+	lineStart = 0;
 	lineLength = 0;
 		
 	do {
@@ -1267,7 +1394,7 @@ public class FILE extends InputStream {
      * Return the current line as a String.
      */
     public String getCurrentLineAsString(){
-	return new String(lineBuffer, 0, lineLength);
+	return new String(line, lineStart, lineLength);
     }
 
     /**
@@ -1277,7 +1404,7 @@ public class FILE extends InputStream {
 	if(offset < 0 || offset >= lineLength)
 	    return (char)EOF;
 
-	return (char)lineBuffer[offset];
+	return (char)line[lineStart + offset];
     }
 
     /**
@@ -1291,7 +1418,7 @@ public class FILE extends InputStream {
 	    return false;
 
 	for(int i = 0; i < stringLength; i++){
-	    if(string.charAt(i) != lineBuffer[i + offset]){
+	    if(string.charAt(i) != line[lineStart + i + offset]){
 		return false;
 	    }
 	}
@@ -1306,15 +1433,35 @@ public class FILE extends InputStream {
 	if(lineLength <= offset)
 	    return "";
 	if(offset + length > lineLength)
-	    return new String(lineBuffer, offset, lineLength - offset);
+	    return new String(line, lineStart + offset, lineLength - offset);
 
-        return new String(lineBuffer, offset, length);
+        return new String(line, lineStart + offset, length);
+    }
+
+    /**
+     * Copy the current line into dest at pos and
+     * return its length.
+     */
+    public int copyLine(byte dest[], int pos){
+	System.arraycopy(line, lineStart, dest, pos, lineLength);
+
+	return lineLength;
     }
 
     /**
      * Read an integer from the current line buffer.
      */
     public int readInteger(int offset, int length){
+	return readInteger(line, lineStart, lineLength, offset, length);
+    }
+
+    /**
+     * Read an integer from a line of lineLength bytes that starts
+     * at lineStart in line[], as readInteger(offset, length) does
+     * for the current line.
+     */
+    public static int readInteger(byte line[], int lineStart, int lineLength,
+				  int offset, int length){
 	int end = offset + length;
 
 	// make sure we don't read past the end of the line.
@@ -1327,7 +1474,7 @@ public class FILE extends InputStream {
 
 	for(/* nothing */; currentPosition < end; currentPosition++){
 
-	    byte b = lineBuffer[currentPosition];
+	    byte b = line[lineStart + currentPosition];
 
 	    if(b == ' ' || b == '+'){
 		continue;
@@ -1341,7 +1488,7 @@ public class FILE extends InputStream {
 	int total = 0;
 
 	for(/* nothing */; currentPosition < end; currentPosition++){
-	    byte b = lineBuffer[currentPosition];
+	    byte b = line[lineStart + currentPosition];
 
 	    if(b >= '0' && b <= '9'){
 		total = (10 * total) + (b - '0'); 
@@ -1369,6 +1516,15 @@ public class FILE extends InputStream {
      * Read a double precision number from the specified region.
      */
     public double readDouble(int offset, int length){
+	return readDouble(line, lineStart, lineLength, offset, length);
+    }
+
+    /**
+     * Read a double precision number from a line of lineLength
+     * bytes that starts at lineStart in line[].
+     */
+    public static double readDouble(byte line[], int lineStart, int lineLength,
+				    int offset, int length){
 	int end = offset + length;
 
 	// make sure we don't read past the end of the line.
@@ -1387,7 +1543,7 @@ public class FILE extends InputStream {
 
 	for(/* nothing */; currentPosition < end; currentPosition++){
 
-	    byte b = lineBuffer[currentPosition];
+	    byte b = line[lineStart + currentPosition];
 
 	    if(b >= '0' && b <= '9'){
 		if(exponentSeen){
@@ -1467,7 +1623,7 @@ public class FILE extends InputStream {
 	fieldCount = 0;
 
 	for(int i = 0; i < len; i++){
-	    byte c = lineBuffer[i];
+	    byte c = line[lineStart + i];
 	    if(c != ' ' && c != '\t'){
 		if(inField){
 		    currentLen++;
@@ -1552,7 +1708,7 @@ public class FILE extends InputStream {
 	    return (byte)-1;
 	}
 	if(c >= 0 && c < getFieldLength(f))
-	    return lineBuffer[getFieldStart(f) + c];
+	    return line[lineStart + getFieldStart(f) + c];
 
 	System.out.println("invalid char: field " + f + " char " + c);
 	return (byte)-1;
@@ -1722,12 +1878,25 @@ public class FILE extends InputStream {
 	    System.out.println("opened as resource");
 	}
 
-	if(resource.endsWith(".gz")){
+	if(input != null && resource.endsWith(".gz")){
 	    try {
-		GZIPInputStream gis =
-		    new GZIPInputStream(input.inputStream);
+		// block compressed files that we have mapped
+		// are inflated in parallel
+		BlockGzip bgz = null;
 
-		input.inputStream = gis;
+		if(input.mapped != null){
+		    bgz = BlockGzip.open(input.mapped);
+		}
+
+		if(bgz != null){
+		    input.setInputStream(bgz.getInputStream(input.inputStream));
+		}else{
+		    GZIPInputStream gis =
+			new GZIPInputStream(input.inputStream, 1 << 16);
+
+		    input.setInputStream(gis);
+		}
+		input.setInputBufferSize(largeBufferSize);
 	    }catch(Exception e){
 		input = null;
 		if(debug){
@@ -1790,8 +1959,11 @@ public class FILE extends InputStream {
     public static FILE open(File file){
 	try {
 	    FileInputStream fileInputStream = new FileInputStream(file);
+	    FILE f = new FILE(fileInputStream);
 
-	    return new FILE(fileInputStream);
+	    f.map(fileInputStream.getChannel());
+
+	    return f;
 	}catch(Exception e){
 	    setException(e);
 
@@ -0,0 +1,699 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.util.List;
+import java.util.WeakHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+
+/**
+ * Gaussian density surfaces for very large assemblies.
+ *
+ * Each atom contributes exp(-k(d^2/r^2 - 1)) to a grid, where
+ * r is the van der Waals radius and k the blobbiness. The
+ * grid is contoured at 1.0 with March, which places the
+ * surface close to the van der Waals surface for an isolated
+ * atom and smooths over the crevices between atoms.
+ *
+ * The grid is split into slabs along z that are filled on
+ * separate threads, so no two threads write the same grid
+ * point. The gaussian is separable, so each atom needs only
+ * one exp() per grid line rather than one per grid point.
+ *
+ * Surfaces created with incremental set keep their grid, so
+ * that when a few atoms move only the part of the grid they
+ * touch is recalculated and the patch of triangles inside it
+ * is recontoured and spliced back into the mesh.
+ */
+public class GaussianSurface {
+    /** Default grid spacing. */
+    public static final double DefaultSpacing = 0.7;
+
+    /** Default blobbiness. */
+    public static final double DefaultBlobbiness = 2.0;
+
+    /** The level that we contour the density at. */
+    private static final float Threshold = 1.0f;
+
+    /** Contributions smaller than this are ignored. */
+    private static final double Cutoff = 0.001;
+
+    /** The largest grid we will allocate. */
+    private static int maximumGridPoints = 32 * 1024 * 1024;
+
+    /** Set the largest grid we will allocate. */
+    public static void setMaximumGridPoints(int n){
+	maximumGridPoints = n;
+    }
+
+    /** Number of z-planes given to each thread at a time. */
+    private static final int SlabSize = 4;
+
+    /** Should we produce debug info? */
+    private static boolean debugFlag = false;
+
+    /** Print a debugging message. */
+    private static void debug(String s){
+	if(debugFlag){
+	    System.out.println(s);
+	}
+    }
+
+    /** The grids of the surfaces that can be updated. */
+    private static WeakHashMap<Tmesh,Grid> grids = new WeakHashMap<Tmesh,Grid>();
+
+    /** The atoms and density grid behind one surface. */
+    private static class Grid {
+	Atom atoms[];
+	double ax[], ay[], az[];
+	/** -k/r^2 for each atom. */
+	double ak[];
+	/** Cutoff distance for each atom. */
+	double ac[];
+	double ar2[];
+	int acolor[];
+	double maxCutoff;
+	double blobbiness;
+	boolean solid;
+
+	int gx, gy, gz;
+	double spacing;
+	double xmin, ymin, zmin;
+	float data[];
+
+	/** Grid point at or above coordinate. */
+	int lo(double x, double min, int g){
+	    return Math.max(0, (int)Math.ceil((x - min)/spacing));
+	}
+
+	/** Grid point at or below coordinate. */
+	int hi(double x, double min, int g){
+	    return Math.min(g - 1, (int)Math.floor((x - min)/spacing));
+	}
+
+	/**
+	 * Add the contribution of atom a to the grid
+	 * points inside the box [i0,i1]x[j0,j1]x[k0,k1].
+	 */
+	void splat(int a, int i0, int i1, int j0, int j1, int k0, int k1,
+		   double ex[], double ey[], double ez[]){
+	    double c = ac[a];
+	    double k = ak[a];
+
+	    int kmin = Math.max(k0, lo(az[a] - c, zmin, gz));
+	    int kmax = Math.min(k1, hi(az[a] + c, zmin, gz));
+	    int jmin = Math.max(j0, lo(ay[a] - c, ymin, gy));
+	    int jmax = Math.min(j1, hi(ay[a] + c, ymin, gy));
+	    int imin = Math.max(i0, lo(ax[a] - c, xmin, gx));
+	    int imax = Math.min(i1, hi(ax[a] + c, xmin, gx));
+
+	    if(kmin > kmax || jmin > jmax || imin > imax){
+		return;
+	    }
+
+	    double scale = Math.exp(blobbiness);
+
+	    for(int i = imin; i <= imax; i++){
+		double d = xmin + i * spacing - ax[a];
+		ex[i] = Math.exp(k * d * d);
+	    }
+	    for(int j = jmin; j <= jmax; j++){
+		double d = ymin + j * spacing - ay[a];
+		ey[j] = Math.exp(k * d * d);
+	    }
+	    for(int kk = kmin; kk <= kmax; kk++){
+		double d = zmin + kk * spacing - az[a];
+		ez[kk] = scale * Math.exp(k * d * d);
+	    }
+
+	    for(int kk = kmin; kk <= kmax; kk++){
+		double ezk = ez[kk];
+		int kbase = kk * gx * gy;
+		for(int j = jmin; j <= jmax; j++){
+		    double eyz = ezk * ey[j];
+		    if(eyz < Cutoff){
+			continue;
+		    }
+		    int base = kbase + j * gx;
+		    for(int i = imin; i <= imax; i++){
+			data[base + i] += (float)(eyz * ex[i]);
+		    }
+		}
+	    }
+	}
+
+	/**
+	 * Give points start..end-1 of the surface the color of
+	 * the nearest atom in the lattice. Every point on the
+	 * surface is within the cutoff of at least one atom, so
+	 * the nearest atom is always in a neighbouring cell.
+	 */
+	void color(final Tmesh surface, final int start, int end,
+		   final Lattice l){
+	    surface.ensureVertexColors();
+
+	    Parallel.forRange(end - start, 4096, new Parallel.Block(){
+		    public void run(int s, int e){
+			IntArrayList neighbours = new IntArrayList();
+
+			for(int i = start + s; i < start + e; i++){
+			    double x = surface.x[i];
+			    double y = surface.y[i];
+			    double z = surface.z[i];
+
+			    neighbours.clear();
+			    l.getPossibleNeighbours(Lattice.Undefined, x, y, z,
+						    neighbours, true);
+
+			    int nearest = -1;
+			    double dmin = Double.MAX_VALUE;
+			    int count = neighbours.size();
+			    int nb[] = neighbours.elements();
+
+			    for(int n = 0; n < count; n++){
+				int b = nb[n];
+				double dx = x - ax[b];
+				double dy = y - ay[b];
+				double dz = z - az[b];
+				// distance to the vdw surface of the atom
+				double d = dx*dx + dy*dy + dz*dz - ar2[b];
+				if(d < dmin){
+				    dmin = d;
+				    nearest = b;
+				}
+			    }
+
+			    if(nearest != -1){
+				surface.vcolor[i] = acolor[nearest];
+			    }
+			}
+		    }
+		});
+	}
+    }
+
+    /** Create a gaussian surface with the default parameters. */
+    public static Tmesh gaussian(List<Atom> atoms, boolean solid){
+	return gaussian(atoms, DefaultSpacing, DefaultBlobbiness, solid, false);
+    }
+
+    /**
+     * Create a gaussian surface over the atoms. Each vertex
+     * is given the color of the nearest atom in vcolor.
+     * If incremental is set the grid is kept so that the
+     * surface can later be brought up to date with update().
+     */
+    public static Tmesh gaussian(List<Atom> atoms, double spacing,
+				 double blobbiness, boolean solid,
+				 boolean incremental){
+	Tmesh surface = new Tmesh();
+
+	if(solid){
+	    surface.style = Tmesh.Style.TRIANGLES;
+	}else{
+	    surface.style = Tmesh.Style.LINES;
+	}
+
+	int atomCount = atoms.size();
+
+	if(atomCount == 0){
+	    return surface;
+	}
+
+	if(blobbiness <= 0.0){
+	    blobbiness = DefaultBlobbiness;
+	}
+
+	long then = System.currentTimeMillis();
+
+	final Grid g = new Grid();
+
+	g.atoms = new Atom[atomCount];
+	g.ax = new double[atomCount];
+	g.ay = new double[atomCount];
+	g.az = new double[atomCount];
+	g.ak = new double[atomCount];
+	g.ac = new double[atomCount];
+	g.ar2 = new double[atomCount];
+	g.acolor = new int[atomCount];
+	g.blobbiness = blobbiness;
+	g.solid = solid;
+
+	// beyond this multiple of r^2 the contribution
+	// is below Cutoff
+	double cutoffScale = 1.0 + Math.log(1.0/Cutoff)/blobbiness;
+
+	double xmin =  1.e10, ymin =  1.e10, zmin =  1.e10;
+	double xmax = -1.e10, ymax = -1.e10, zmax = -1.e10;
+
+	int a = 0;
+	for(Atom atom : atoms){
+	    double r = atom.getVDWRadius();
+	    if(r < 0.1){
+		r = 0.1;
+	    }
+	    g.atoms[a] = atom;
+	    g.ax[a] = atom.x;
+	    g.ay[a] = atom.y;
+	    g.az[a] = atom.z;
+	    g.ar2[a] = r * r;
+	    g.ak[a] = -blobbiness / g.ar2[a];
+	    g.ac[a] = Math.sqrt(g.ar2[a] * cutoffScale);
+	    g.acolor[a] = atom.getColor();
+
+	    double c = g.ac[a];
+
+	    if(c > g.maxCutoff) g.maxCutoff = c;
+
+	    if(g.ax[a] - c < xmin) xmin = g.ax[a] - c;
+	    if(g.ay[a] - c < ymin) ymin = g.ay[a] - c;
+	    if(g.az[a] - c < zmin) zmin = g.az[a] - c;
+	    if(g.ax[a] + c > xmax) xmax = g.ax[a] + c;
+	    if(g.ay[a] + c > ymax) ymax = g.ay[a] + c;
+	    if(g.az[a] + c > zmax) zmax = g.az[a] + c;
+	    a++;
+	}
+
+	// make sure the grid is big enough
+	// to close the surface at the edges.
+	// leave more room if we will be moving atoms
+	double border = incremental ? 8.0 * spacing : spacing;
+
+	xmin -= border; ymin -= border; zmin -= border;
+	xmax += border; ymax += border; zmax += border;
+
+	while(true){
+	    g.gx = 1 + (int)Math.ceil((xmax - xmin)/spacing);
+	    g.gy = 1 + (int)Math.ceil((ymax - ymin)/spacing);
+	    g.gz = 1 + (int)Math.ceil((zmax - zmin)/spacing);
+
+	    if((long)g.gx * g.gy * g.gz <= maximumGridPoints){
+		break;
+	    }
+
+	    spacing *= 1.1;
+	}
+
+	g.spacing = spacing;
+	g.xmin = xmin;
+	g.ymin = ymin;
+	g.zmin = zmin;
+
+	final int gx = g.gx, gy = g.gy, gz = g.gz;
+
+	debug("spacing " + spacing + " gx " + gx + " gy " + gy + " gz " + gz);
+
+	g.data = new float[gx * gy * gz];
+
+	// bucket the atoms by the z-plane of their center
+	final int planeStart[] = new int[gz + 1];
+	final int order[] = new int[atomCount];
+	int kcenter[] = new int[atomCount];
+
+	for(a = 0; a < atomCount; a++){
+	    int k = (int)((g.az[a] - zmin)/spacing);
+	    if(k < 0) k = 0;
+	    if(k >= gz) k = gz - 1;
+	    kcenter[a] = k;
+	    planeStart[k + 1]++;
+	}
+
+	for(int k = 0; k < gz; k++){
+	    planeStart[k + 1] += planeStart[k];
+	}
+
+	{
+	    int fill[] = new int[gz];
+	    for(a = 0; a < atomCount; a++){
+		int k = kcenter[a];
+		order[planeStart[k] + fill[k]++] = a;
+	    }
+	}
+
+	final int kreach = 1 + (int)Math.ceil(g.maxCutoff/spacing);
+
+	int slabs = (gz + SlabSize - 1)/SlabSize;
+
+	Parallel.forRange(slabs, 1, new Parallel.Block(){
+		public void run(int start, int end){
+		    double ex[] = new double[gx];
+		    double ey[] = new double[gy];
+		    double ez[] = new double[gz];
+
+		    for(int slab = start; slab < end; slab++){
+			int k0 = slab * SlabSize;
+			int k1 = Math.min(k0 + SlabSize, gz) - 1;
+			int pmin = Math.max(0, k0 - kreach);
+			int pmax = Math.min(gz, k1 + 1 + kreach);
+
+			for(int p = planeStart[pmin]; p < planeStart[pmax]; p++){
+			    g.splat(order[p], 0, gx - 1, 0, gy - 1, k0, k1,
+				    ex, ey, ez);
+			}
+		    }
+		}
+	    });
+
+	debug("Splatting       " + (System.currentTimeMillis() - then));
+
+	then = System.currentTimeMillis();
+
+	March.surface(g.data, gx, gy, gz, Threshold, false, surface, solid);
+
+	debug("Contour         " + (System.currentTimeMillis() - then));
+
+	int pointCount = surface.np;
+
+	for(int i = 0; i < pointCount; i++){
+	    surface.x[i] *= spacing; surface.x[i] += xmin;
+	    surface.y[i] *= spacing; surface.y[i] += ymin;
+	    surface.z[i] *= spacing; surface.z[i] += zmin;
+	}
+
+	then = System.currentTimeMillis();
+
+	Lattice l = new Lattice(g.maxCutoff);
+
+	for(a = 0; a < atomCount; a++){
+	    l.add(a, g.ax[a], g.ay[a], g.az[a]);
+	}
+
+	g.color(surface, 0, pointCount, l);
+
+	debug("Coloring        " + (System.currentTimeMillis() - then));
+
+	if(incremental){
+	    synchronized(grids){
+		grids.put(surface, g);
+	    }
+	}else if(!solid){
+	    // ditch any normals or texture
+	    // storage that we may have if it is a line object
+	    surface.nx = null;
+	    surface.ny = null;
+	    surface.nz = null;
+	    surface.u = null;
+	    surface.v = null;
+	}
+
+	debug("points " + surface.np + " triangles " + surface.nt);
+
+	return surface;
+    }
+
+    /**
+     * Bring an incremental surface up to date with the current
+     * coordinates of its atoms. Only the part of the grid that
+     * the moved atoms touch is recalculated and only the
+     * triangles in those grid cells are replaced.
+     *
+     * Returns false if the surface has to be regenerated from
+     * scratch, because it was not made with incremental set,
+     * the atoms are not the same or they moved off the grid.
+     */
+    public static boolean update(Tmesh surface, List<Atom> atoms){
+	if(surface == null){
+	    return false;
+	}
+
+	Grid g = null;
+
+	synchronized(grids){
+	    g = grids.get(surface);
+	}
+
+	if(g == null || g.atoms.length != atoms.size()){
+	    return false;
+	}
+
+	int atomCount = g.atoms.length;
+	IntArrayList moved = new IntArrayList();
+
+	int a = 0;
+	for(Atom atom : atoms){
+	    if(atom != g.atoms[a]){
+		return false;
+	    }
+	    if(atom.x != g.ax[a] || atom.y != g.ay[a] || atom.z != g.az[a]){
+		moved.add(a);
+	    }
+	    a++;
+	}
+
+	if(moved.size() == 0){
+	    return true;
+	}
+
+	long then = System.currentTimeMillis();
+
+	// the box of grid points that will change is
+	// the union of the old and new atom boxes
+	int i0 = g.gx, j0 = g.gy, k0 = g.gz;
+	int i1 = -1, j1 = -1, k1 = -1;
+
+	double gxmax = g.xmin + (g.gx - 1) * g.spacing;
+	double gymax = g.ymin + (g.gy - 1) * g.spacing;
+	double gzmax = g.zmin + (g.gz - 1) * g.spacing;
+
+	for(int m = 0; m < moved.size(); m++){
+	    a = moved.getInt(m);
+	    Atom atom = g.atoms[a];
+	    double c = g.ac[a];
+
+	    if(atom.x - c < g.xmin || atom.x + c > gxmax ||
+	       atom.y - c < g.ymin || atom.y + c > gymax ||
+	       atom.z - c < g.zmin || atom.z + c > gzmax){
+		return false;
+	    }
+
+	    for(int pass = 0; pass < 2; pass++){
+		double x = pass == 0 ? g.ax[a] : atom.x;
+		double y = pass == 0 ? g.ay[a] : atom.y;
+		double z = pass == 0 ? g.az[a] : atom.z;
+
+		i0 = Math.min(i0, g.lo(x - c, g.xmin, g.gx));
+		j0 = Math.min(j0, g.lo(y - c, g.ymin, g.gy));
+		k0 = Math.min(k0, g.lo(z - c, g.zmin, g.gz));
+		i1 = Math.max(i1, g.hi(x + c, g.xmin, g.gx));
+		j1 = Math.max(j1, g.hi(y + c, g.ymin, g.gy));
+		k1 = Math.max(k1, g.hi(z + c, g.zmin, g.gz));
+	    }
+
+	    g.ax[a] = atom.x;
+	    g.ay[a] = atom.y;
+	    g.az[a] = atom.z;
+	}
+
+	// recalculate the box from scratch rather than
+	// subtracting the old contributions, so that
+	// rounding errors don't build up over many updates
+	IntArrayList local = new IntArrayList();
+	double bxmin = g.xmin + (i0 - 1) * g.spacing;
+	double bymin = g.ymin + (j0 - 1) * g.spacing;
+	double bzmin = g.zmin + (k0 - 1) * g.spacing;
+	double bxmax = g.xmin + (i1 + 1) * g.spacing;
+	double bymax = g.ymin + (j1 + 1) * g.spacing;
+	double bzmax = g.zmin + (k1 + 1) * g.spacing;
+
+	for(a = 0; a < atomCount; a++){
+	    double c = g.ac[a];
+	    if(g.ax[a] + c >= bxmin && g.ax[a] - c <= bxmax &&
+	       g.ay[a] + c >= bymin && g.ay[a] - c <= bymax &&
+	       g.az[a] + c >= bzmin && g.az[a] - c <= bzmax){
+		local.add(a);
+	    }
+	}
+
+	for(int k = k0; k <= k1; k++){
+	    for(int j = j0; j <= j1; j++){
+		int base = k * g.gx * g.gy + j * g.gx;
+		for(int i = i0; i <= i1; i++){
+		    g.data[base + i] = 0.0f;
+		}
+	    }
+	}
+
+	double ex[] = new double[g.gx];
+	double ey[] = new double[g.gy];
+	double ez[] = new double[g.gz];
+
+	for(int n = 0; n < local.size(); n++){
+	    g.splat(local.getInt(n), i0, i1, j0, j1, k0, k1, ex, ey, ez);
+	}
+
+	// every cell with a changed corner gets recontoured
+	int ci0 = Math.max(0, i0 - 1), ci1 = Math.min(g.gx - 2, i1);
+	int cj0 = Math.max(0, j0 - 1), cj1 = Math.min(g.gy - 2, j1);
+	int ck0 = Math.max(0, k0 - 1), ck1 = Math.min(g.gz - 2, k1);
+
+	removeCells(g, surface, ci0, ci1, cj0, cj1, ck0, ck1);
+
+	// contour just the cells in the box
+	int nx = ci1 - ci0 + 2;
+	int ny = cj1 - cj0 + 2;
+	int nz = ck1 - ck0 + 2;
+	float sub[] = new float[nx * ny * nz];
+
+	for(int k = 0; k < nz; k++){
+	    for(int j = 0; j < ny; j++){
+		System.arraycopy(g.data,
+				 (ck0 + k) * g.gx * g.gy + (cj0 + j) * g.gx + ci0,
+				 sub, k * nx * ny + j * nx, nx);
+	    }
+	}
+
+	Tmesh patch = new Tmesh();
+
+	March.surface(sub, nx, ny, nz, Threshold, false, patch, g.solid);
+
+	int firstPoint = surface.np;
+
+	for(int i = 0; i < patch.np; i++){
+	    double x = (patch.x[i] + ci0) * g.spacing + g.xmin;
+	    double y = (patch.y[i] + cj0) * g.spacing + g.ymin;
+	    double z = (patch.z[i] + ck0) * g.spacing + g.zmin;
+
+	    if(patch.nx != null){
+		surface.addPoint(x, y, z,
+				 patch.nx[i], patch.ny[i], patch.nz[i],
+				 0.0, 0.0);
+	    }else{
+		surface.addPoint(x, y, z);
+	    }
+	}
+
+	for(int t = 0; t < patch.nt; t++){
+	    if(patch.t2[t] == -1){
+		surface.addLine(patch.t0[t] + firstPoint,
+				patch.t1[t] + firstPoint, patch.tcolor[t]);
+	    }else{
+		surface.addTriangle(patch.t0[t] + firstPoint,
+				    patch.t1[t] + firstPoint,
+				    patch.t2[t] + firstPoint,
+				    patch.tcolor[t]);
+	    }
+	}
+
+	Lattice l = new Lattice(g.maxCutoff);
+
+	for(int n = 0; n < local.size(); n++){
+	    a = local.getInt(n);
+	    l.add(a, g.ax[a], g.ay[a], g.az[a]);
+	}
+
+	g.color(surface, firstPoint, surface.np, l);
+
+	debug("Update          " + (System.currentTimeMillis() - then) +
+	      " moved " + moved.size() + " patch " + patch.nt);
+
+	return true;
+    }
+
+    /**
+     * Remove the triangles or lines that were contoured from
+     * the cells in the box, along with any points that are
+     * no longer used. March only puts points on the edges
+     * of a cell, so the centroid identifies the cell.
+     */
+    private static void removeCells(Grid g, Tmesh surface,
+				    int ci0, int ci1, int cj0, int cj1,
+				    int ck0, int ck1){
+	int used[] = new int[surface.np];
+	int nt = 0;
+
+	surface.expand();
+
+	for(int t = 0; t < surface.nt; t++){
+	    int v0 = surface.t0[t];
+	    int v1 = surface.t1[t];
+	    int v2 = surface.t2[t];
+	    double cx = surface.x[v0] + surface.x[v1];
+	    double cy = surface.y[v0] + surface.y[v1];
+	    double cz = surface.z[v0] + surface.z[v1];
+	    double n = 2.0;
+
+	    if(v2 != -1){
+		cx += surface.x[v2];
+		cy += surface.y[v2];
+		cz += surface.z[v2];
+		n = 3.0;
+	    }
+
+	    int i = (int)Math.floor((cx/n - g.xmin)/g.spacing);
+	    int j = (int)Math.floor((cy/n - g.ymin)/g.spacing);
+	    int k = (int)Math.floor((cz/n - g.zmin)/g.spacing);
+
+	    if(i >= ci0 && i <= ci1 && j >= cj0 && j <= cj1 &&
+	       k >= ck0 && k <= ck1){
+		continue;
+	    }
+
+	    surface.t0[nt] = v0;
+	    surface.t1[nt] = v1;
+	    surface.t2[nt] = v2;
+	    if(surface.tcolor != null){
+		surface.tcolor[nt] = surface.tcolor[t];
+	    }
+	    nt++;
+
+	    used[v0] = 1;
+	    used[v1] = 1;
+	    if(v2 != -1){
+		used[v2] = 1;
+	    }
+	}
+
+	surface.nt = nt;
+
+	// pack the points that are still used
+	int np = 0;
+
+	for(int v = 0; v < surface.np; v++){
+	    if(used[v] == 1){
+		surface.x[np] = surface.x[v];
+		surface.y[np] = surface.y[v];
+		surface.z[np] = surface.z[v];
+		if(surface.nx != null){
+		    surface.nx[np] = surface.nx[v];
+		    surface.ny[np] = surface.ny[v];
+		    surface.nz[np] = surface.nz[v];
+		}
+		if(surface.u != null){
+		    surface.u[np] = surface.u[v];
+		    surface.v[np] = surface.v[v];
+		}
+		if(surface.vcolor != null){
+		    surface.vcolor[np] = surface.vcolor[v];
+		}
+		used[v] = np++;
+	    }else{
+		used[v] = -1;
+	    }
+	}
+
+	surface.np = np;
+
+	for(int t = 0; t < nt; t++){
+	    surface.t0[t] = used[surface.t0[t]];
+	    surface.t1[t] = used[surface.t1[t]];
+	    if(surface.t2[t] != -1){
+		surface.t2[t] = used[surface.t2[t]];
+	    }
+	}
+    }
+}
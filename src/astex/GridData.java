@@ -0,0 +1,304 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * Storage for the values of a map grid.
+ *
+ * Values are held as floats, half precision floats, or 16 or 8
+ * bit integers scaled over the range of the values, trading
+ * precision for memory. They are decoded a row at a time into
+ * float arrays for contouring.
+ */
+public abstract class GridData {
+    /** How the values are stored. */
+    public enum Precision {
+	FLOAT(4), HALF(2), SHORT(2), BYTE(1);
+
+	/** Bytes per value. */
+	public final int size;
+
+	Precision(int size){
+	    this.size = size;
+	}
+
+	/** Parse a precision name, returning def if it isn't one. */
+	public static Precision parse(String name, Precision def){
+	    if(name != null){
+		for(Precision p : values()){
+		    if(p.name().equalsIgnoreCase(name)){
+			return p;
+		    }
+		}
+	    }
+	    return def;
+	}
+    }
+
+    /** The number of values. */
+    protected final int n;
+
+    protected GridData(int n){
+	this.n = n;
+    }
+
+    /** The number of values. */
+    public int size(){
+	return n;
+    }
+
+    /** The precision of the storage. */
+    public abstract Precision getPrecision();
+
+    /** Get value i. */
+    public abstract float get(int i);
+
+    /** Copy count values starting at pos into dest. */
+    public void get(int pos, float dest[], int destPos, int count){
+	for(int i = 0; i < count; i++){
+	    dest[destPos + i] = get(pos + i);
+	}
+    }
+
+    /** The memory used by the values in bytes. */
+    public long getBytes(){
+	return (long)n * getPrecision().size;
+    }
+
+    /** Store the first n values with the given precision. */
+    public static GridData create(Precision p, float values[], int n){
+	if(p == Precision.FLOAT){
+	    float copy[] = values;
+	    if(values.length != n){
+		copy = new float[n];
+		System.arraycopy(values, 0, copy, 0, n);
+	    }
+	    return new FloatData(copy);
+	}
+
+	if(p == Precision.HALF){
+	    short h[] = new short[n];
+	    for(int i = 0; i < n; i++){
+		h[i] = floatToHalf(values[i]);
+	    }
+	    return new HalfData(h);
+	}
+
+	float min = Float.MAX_VALUE;
+	float max = -Float.MAX_VALUE;
+
+	for(int i = 0; i < n; i++){
+	    if(values[i] < min) min = values[i];
+	    if(values[i] > max) max = values[i];
+	}
+
+	if(n == 0){
+	    min = max = 0.0f;
+	}
+
+	if(p == Precision.SHORT){
+	    float step = (max - min) / 65535.0f;
+	    short s[] = new short[n];
+	    for(int i = 0; i < n; i++){
+		s[i] = (short)quantize(values[i], min, step, 65535);
+	    }
+	    return new ShortData(s, min, step);
+	}
+
+	float step = (max - min) / 255.0f;
+	byte b[] = new byte[n];
+	for(int i = 0; i < n; i++){
+	    b[i] = (byte)quantize(values[i], min, step, 255);
+	}
+	return new ByteData(b, min, step);
+    }
+
+    /** Store all of the values with the given precision. */
+    public static GridData create(Precision p, float values[]){
+	return create(p, values, values.length);
+    }
+
+    /**
+     * Wrap unsigned bytes that already encode offset + scale * b,
+     * as in O maps.
+     */
+    public static GridData create(byte values[], float offset, float scale){
+	return new ByteData(values, offset, scale);
+    }
+
+    /** Wrap half precision floats, as in MRC mode 12. */
+    public static GridData create(short values[]){
+	return new HalfData(values);
+    }
+
+    private static int quantize(float v, float min, float step, int max){
+	if(step == 0.0f){
+	    return 0;
+	}
+	int q = Math.round((v - min) / step);
+	return q < 0 ? 0 : (q > max ? max : q);
+    }
+
+    /** Convert a half precision float to a float. */
+    public static float halfToFloat(int h){
+	int mantissa = h & 0x03ff;
+	int exponent = h & 0x7c00;
+
+	if(exponent == 0x7c00){
+	    // infinity or nan
+	    exponent = 0x3fc00;
+	}else if(exponent != 0){
+	    exponent += 0x1c000;
+	}else if(mantissa != 0){
+	    // denormal, normalise it
+	    exponent = 0x1c400;
+	    do {
+		mantissa <<= 1;
+		exponent -= 0x400;
+	    } while((mantissa & 0x400) == 0);
+	    mantissa &= 0x3ff;
+	}
+
+	return Float.intBitsToFloat((h & 0x8000) << 16 |
+				    (exponent | mantissa) << 13);
+    }
+
+    /** Convert a float to the nearest half precision float. */
+    public static short floatToHalf(float f){
+	int bits = Float.floatToIntBits(f);
+	int sign = (bits >>> 16) & 0x8000;
+	int value = (bits & 0x7fffffff) + 0x1000;
+
+	if(value >= 0x47800000){
+	    if((bits & 0x7fffffff) >= 0x47800000){
+		if(value < 0x7f800000){
+		    // too big, clamp to the largest half
+		    return (short)(sign | 0x7bff);
+		}
+		// nan or infinity
+		return (short)(sign | 0x7c00 | (bits & 0x007fffff) >>> 13);
+	    }
+	    // rounds up to the largest half
+	    return (short)(sign | 0x7bff);
+	}
+
+	if(value >= 0x38800000){
+	    return (short)(sign | (value - 0x38000000) >>> 13);
+	}
+
+	if(value < 0x33000000){
+	    // too small, zero
+	    return (short)sign;
+	}
+
+	// denormal
+	value = (bits & 0x7fffffff) >>> 23;
+	return (short)(sign | ((bits & 0x7fffff | 0x800000) +
+			       (0x800000 >>> value - 102) >>> 126 - value));
+    }
+
+    private static class FloatData extends GridData {
+	float data[];
+
+	FloatData(float data[]){
+	    super(data.length);
+	    this.data = data;
+	}
+
+	public Precision getPrecision(){
+	    return Precision.FLOAT;
+	}
+
+	public float get(int i){
+	    return data[i];
+	}
+
+	public void get(int pos, float dest[], int destPos, int count){
+	    System.arraycopy(data, pos, dest, destPos, count);
+	}
+    }
+
+    private static class HalfData extends GridData {
+	short data[];
+
+	HalfData(short data[]){
+	    super(data.length);
+	    this.data = data;
+	}
+
+	public Precision getPrecision(){
+	    return Precision.HALF;
+	}
+
+	public float get(int i){
+	    return halfToFloat(data[i]);
+	}
+    }
+
+    private static class ShortData extends GridData {
+	short data[];
+	float offset, scale;
+
+	ShortData(short data[], float offset, float scale){
+	    super(data.length);
+	    this.data = data;
+	    this.offset = offset;
+	    this.scale = scale;
+	}
+
+	public Precision getPrecision(){
+	    return Precision.SHORT;
+	}
+
+	public float get(int i){
+	    return offset + scale * (data[i] & 0xffff);
+	}
+
+	public void get(int pos, float dest[], int destPos, int count){
+	    for(int i = 0; i < count; i++){
+		dest[destPos + i] = offset + scale * (data[pos + i] & 0xffff);
+	    }
+	}
+    }
+
+    private static class ByteData extends GridData {
+	byte data[];
+	float offset, scale;
+
+	ByteData(byte data[], float offset, float scale){
+	    super(data.length);
+	    this.data = data;
+	    this.offset = offset;
+	    this.scale = scale;
+	}
+
+	public Precision getPrecision(){
+	    return Precision.BYTE;
+	}
+
+	public float get(int i){
+	    return offset + scale * (data[i] & 0xff);
+	}
+
+	public void get(int pos, float dest[], int destPos, int count){
+	    for(int i = 0; i < count; i++){
+		dest[destPos + i] = offset + scale * (data[pos + i] & 0xff);
+	    }
+	}
+    }
+}
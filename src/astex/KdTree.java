@@ -0,0 +1,206 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.util.List;
+
+/**
+ * A kd-tree of points for nearest neighbour searches with no
+ * distance limit, where a Lattice would have to search an
+ * unknown number of cells.
+ *
+ * The tree is built once and then only read, so searches can
+ * run on several threads at the same time.
+ */
+class KdTree {
+    /** The largest number of points in a leaf. */
+    private static final int LeafSize = 8;
+
+    /** The point coordinates, in tree order. */
+    private double x[], y[], z[];
+
+    /** The split axis of each node, or -1 for a leaf. */
+    private byte axis[];
+
+    /** The split value of each node. */
+    private double split[];
+
+    /** The range of points below each node. */
+    private int first[], last[];
+
+    /** The children of each node. */
+    private int left[], right[];
+
+    /** The number of nodes. */
+    private int nodeCount = 0;
+
+    /** Build the tree for the points. */
+    public KdTree(List<? extends Point3d> points){
+	int n = points.size();
+
+	x = new double[n];
+	y = new double[n];
+	z = new double[n];
+
+	int i = 0;
+	for(Point3d p : points){
+	    x[i] = p.x;
+	    y[i] = p.y;
+	    z[i] = p.z;
+	    i++;
+	}
+
+	// a tree with leaves of at least LeafSize / 2 points
+	int maxNodes = Math.max(1, 4 * n / LeafSize + 1);
+	axis = new byte[maxNodes];
+	split = new double[maxNodes];
+	first = new int[maxNodes];
+	last = new int[maxNodes];
+	left = new int[maxNodes];
+	right = new int[maxNodes];
+
+	if(n > 0){
+	    build(0, n);
+	}
+    }
+
+    /** The number of points in the tree. */
+    public int size(){
+	return x.length;
+    }
+
+    /** Build the node for points [lo, hi) and return its index. */
+    private int build(int lo, int hi){
+	int node = nodeCount++;
+
+	first[node] = lo;
+	last[node] = hi;
+
+	if(hi - lo <= LeafSize){
+	    axis[node] = -1;
+	    return node;
+	}
+
+	// split the widest extent at the median
+	double min[] = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE };
+	double max[] = { -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+
+	for(int i = lo; i < hi; i++){
+	    if(x[i] < min[0]) min[0] = x[i];
+	    if(x[i] > max[0]) max[0] = x[i];
+	    if(y[i] < min[1]) min[1] = y[i];
+	    if(y[i] > max[1]) max[1] = y[i];
+	    if(z[i] < min[2]) min[2] = z[i];
+	    if(z[i] > max[2]) max[2] = z[i];
+	}
+
+	int a = 0;
+	if(max[1] - min[1] > max[a] - min[a]) a = 1;
+	if(max[2] - min[2] > max[a] - min[a]) a = 2;
+
+	int mid = (lo + hi) >>> 1;
+	select(lo, hi - 1, mid, a);
+
+	axis[node] = (byte)a;
+	split[node] = coordinate(mid, a);
+	left[node] = build(lo, mid);
+	right[node] = build(mid, hi);
+
+	return node;
+    }
+
+    private double coordinate(int i, int a){
+	return a == 0 ? x[i] : (a == 1 ? y[i] : z[i]);
+    }
+
+    private void swap(int i, int j){
+	double t;
+	t = x[i]; x[i] = x[j]; x[j] = t;
+	t = y[i]; y[i] = y[j]; y[j] = t;
+	t = z[i]; z[i] = z[j]; z[j] = t;
+    }
+
+    /** Partially sort [lo, hi] so that point k is in place on axis a. */
+    private void select(int lo, int hi, int k, int a){
+	while(hi > lo){
+	    double pivot = coordinate((lo + hi) >>> 1, a);
+	    int i = lo, j = hi;
+
+	    while(i <= j){
+		while(coordinate(i, a) < pivot) i++;
+		while(coordinate(j, a) > pivot) j--;
+		if(i <= j){
+		    swap(i, j);
+		    i++;
+		    j--;
+		}
+	    }
+
+	    if(k <= j){
+		hi = j;
+	    }else if(k >= i){
+		lo = i;
+	    }else{
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Return the squared distance from the point to the
+     * nearest point in the tree, or Double.MAX_VALUE if
+     * the tree is empty.
+     */
+    public double nearestDistance2(double px, double py, double pz){
+	if(nodeCount == 0){
+	    return Double.MAX_VALUE;
+	}
+
+	return nearest(0, px, py, pz, Double.MAX_VALUE);
+    }
+
+    private double nearest(int node, double px, double py, double pz,
+			   double best){
+	int a = axis[node];
+
+	if(a == -1){
+	    for(int i = first[node]; i < last[node]; i++){
+		double dx = px - x[i];
+		double dy = py - y[i];
+		double dz = pz - z[i];
+		double d2 = dx*dx + dy*dy + dz*dz;
+		if(d2 < best){
+		    best = d2;
+		}
+	    }
+	    return best;
+	}
+
+	double d = (a == 0 ? px : (a == 1 ? py : pz)) - split[node];
+	int near = d < 0.0 ? left[node] : right[node];
+	int far  = d < 0.0 ? right[node] : left[node];
+
+	best = nearest(near, px, py, pz, best);
+
+	if(d * d < best){
+	    best = nearest(far, px, py, pz, best);
+	}
+
+	return best;
+    }
+}
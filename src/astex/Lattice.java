@@ -133,10 +133,12 @@ public class Lattice {
 	IntArrayList cellList = hashTable[hashval];
 
 	if(cellList != null){
-	    int ci[] = celli.toIntArray();
-	    int cj[] = cellj.toIntArray();
-	    int ck[] = cellk.toIntArray();
-	    int cl[] = cellList.toIntArray();
+	    // the backing arrays, not copies, so that
+	    // lookups in large lattices stay cheap
+	    int ci[] = celli.elements();
+	    int cj[] = cellj.elements();
+	    int ck[] = cellk.elements();
+	    int cl[] = cellList.elements();
 	    int cellEntries = cellList.size();
 
 	    for(int c = 0; c < cellEntries; c++){
@@ -164,9 +166,9 @@ public class Lattice {
 	int jbox = BOX(y);
 	int kbox = BOX(z);
 
-	int h[] = head.toIntArray();
-	int l[] = list.toIntArray();
-	int idsArray[] = ids.toIntArray();
+	int h[] = head.elements();
+	int l[] = list.elements();
+	int idsArray[] = ids.elements();
 
 	for(int i = -1; i <= 1; i++){
 	    int ii = ibox + i;
@@ -0,0 +1,346 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A molecule or map being read on a background thread.
+ *
+ * Molecules are read and prepared (bonds, rings and optionally
+ * secondary structure) without touching the renderer, and only
+ * then added to it, which fires the usual added event. A map
+ * is read and its displayed levels contoured into new objects
+ * in the same way, and the renderer lock is only held while
+ * they are installed.
+ *
+ * Listeners are told about each stage through
+ * MoleculeRendererListener.loadProgress(), which is called on
+ * the loading thread.
+ */
+public class LoadTask implements Runnable {
+    public enum State {
+	Queued, Running, Finished, Failed, Cancelled
+    }
+
+    /** What is being loaded. */
+    enum Kind {
+	Molecule, Map
+    }
+
+    /** The threads that loads run on. */
+    private static ExecutorService executor = null;
+
+    /** The renderer the result is added to. */
+    private MoleculeRenderer renderer;
+
+    /** The file and the name it will have. */
+    private String filename, name;
+
+    private Kind kind;
+
+    /**
+     * Add the result to the renderer when it is ready,
+     * otherwise it is held until it is taken.
+     */
+    private boolean add;
+
+    /** Assign secondary structure to molecules. */
+    private boolean assignSecondaryStructure = false;
+
+    private volatile State state = State.Queued;
+
+    /** Set once the result is being added and can't be cancelled. */
+    private boolean adding = false;
+
+    /** The current stage, and roughly how far through we are. */
+    private volatile String stage = "queued";
+    private volatile double progress = 0.0;
+
+    /** The results. */
+    private Molecule molecule = null;
+    private Map map = null;
+
+    /** The contours of a map, computed before it is added. */
+    private Tmesh contours[] = null;
+
+    /** The file as it was when we started, to spot changes. */
+    private long modified, length;
+
+    private Future<?> future = null;
+
+    LoadTask(MoleculeRenderer renderer, Kind kind, String filename,
+	     String name, boolean add){
+	this.renderer = renderer;
+	this.kind = kind;
+	this.filename = filename;
+	this.name = name;
+	this.add = add;
+
+	File f = new File(filename);
+	modified = f.lastModified();
+	length = f.length();
+    }
+
+    /** The threads that loads run on, created if necessary. */
+    private static synchronized ExecutorService getExecutor(){
+	if(executor == null){
+	    executor =
+		Executors.newFixedThreadPool(Parallel.getThreadCount(),
+					     new ThreadFactory(){
+						 private int count = 0;
+						 public synchronized Thread newThread(Runnable r){
+						     Thread t = new Thread(r, "Loader-" + count++);
+						     t.setDaemon(true);
+						     return t;
+						 }
+					     });
+	}
+
+	return executor;
+    }
+
+    /** Queue the load. */
+    synchronized void start(){
+	if(future == null && state == State.Queued){
+	    future = getExecutor().submit(this);
+	}
+    }
+
+    /** Assign secondary structure to a molecule once it is read. */
+    public void setAssignSecondaryStructure(boolean b){
+	assignSecondaryStructure = b;
+    }
+
+    public String getFilename(){
+	return filename;
+    }
+
+    public String getName(){
+	return name;
+    }
+
+    public State getState(){
+	return state;
+    }
+
+    /** The stage the load has reached. */
+    public String getStage(){
+	return stage;
+    }
+
+    /** Roughly how far through the load we are, from 0 to 1. */
+    public double getProgress(){
+	return progress;
+    }
+
+    public boolean isDone(){
+	return state == State.Finished || state == State.Failed ||
+	    state == State.Cancelled;
+    }
+
+    public boolean isCancelled(){
+	return state == State.Cancelled;
+    }
+
+    /** The molecule, once a molecule load has finished. */
+    public Molecule getMolecule(){
+	return state == State.Finished ? molecule : null;
+    }
+
+    /** The map, once a map load has finished. */
+    public Map getMap(){
+	return state == State.Finished ? map : null;
+    }
+
+    /**
+     * Stop the load. Nothing is added to the renderer if it
+     * hasn't been already. Returns false if it was too late.
+     */
+    public boolean cancel(){
+	synchronized(this){
+	    if(isDone() || adding){
+		return false;
+	    }
+
+	    state = State.Cancelled;
+	    stage = "cancelled";
+
+	    if(future != null){
+		future.cancel(true);
+	    }
+
+	    notifyAll();
+	}
+
+	renderer.fireLoadProgressEvent(this);
+
+	return true;
+    }
+
+    /** Move to the next stage, returning false if we were cancelled. */
+    private boolean setStage(String s, double p){
+	synchronized(this){
+	    if(state == State.Cancelled){
+		return false;
+	    }
+
+	    stage = s;
+	    progress = p;
+	}
+
+	renderer.fireLoadProgressEvent(this);
+
+	return true;
+    }
+
+    /** Finish in state s, unless we were cancelled. */
+    private void finish(State s, String message){
+	synchronized(this){
+	    if(state == State.Cancelled){
+		return;
+	    }
+
+	    state = s;
+	    stage = message;
+	    progress = 1.0;
+	    notifyAll();
+	}
+
+	renderer.fireLoadProgressEvent(this);
+    }
+
+    public void run(){
+	synchronized(this){
+	    if(state != State.Queued){
+		return;
+	    }
+	    state = State.Running;
+	}
+
+	try {
+	    if(!setStage("reading", 0.0)){
+		return;
+	    }
+
+	    if(kind == Kind.Molecule){
+		molecule = MoleculeIO.read(filename);
+
+		if(molecule == null){
+		    finish(State.Failed, "couldn't load " + filename);
+		    return;
+		}
+
+		molecule.setFilename(filename);
+		molecule.setName(name);
+
+		if(!setStage("rings", 0.6)){
+		    return;
+		}
+
+		molecule.getRingCount();
+
+		if(assignSecondaryStructure){
+		    if(!setStage("secondary structure", 0.8)){
+			return;
+		    }
+
+		    SecondaryStructure.assign(Collections.singletonList(molecule));
+		}
+	    }else{
+		map = Map.create();
+		map.setFile(filename);
+		map.setName(name);
+
+		if(add){
+		    if(!setStage("contouring", 0.6)){
+			return;
+		    }
+
+		    // read and contour off the renderer lock
+		    contours = renderer.prepareMap(map);
+		}
+	    }
+
+	    if(add){
+		if(!setStage("adding", 0.9)){
+		    return;
+		}
+
+		synchronized(renderer){
+		    // a cancel that got in first wins, after
+		    // this it is too late to cancel
+		    synchronized(this){
+			if(state == State.Cancelled){
+			    return;
+			}
+
+			adding = true;
+		    }
+
+		    if(kind == Kind.Molecule){
+			renderer.addMolecule(molecule);
+		    }else{
+			renderer.addMap(map, contours);
+		    }
+		}
+
+		renderer.repaint();
+	    }
+
+	    finish(State.Finished, "loaded");
+	}catch(Exception e){
+	    // a cancel interrupts the read, which isn't an error
+	    if(state != State.Cancelled){
+		Log.error("error loading " + filename + ": " + e);
+	    }
+
+	    finish(State.Failed, e.toString());
+	}
+    }
+
+    /**
+     * Wait for a load that isn't added to the renderer and
+     * return it, or null if it failed, was cancelled or the
+     * file has changed since it was read.
+     */
+    synchronized LoadTask take(){
+	while(!isDone()){
+	    try {
+		wait();
+	    }catch(InterruptedException e){
+		Thread.currentThread().interrupt();
+		return null;
+	    }
+	}
+
+	File f = new File(filename);
+
+	if(state != State.Finished ||
+	   f.lastModified() != modified || f.length() != length){
+	    return null;
+	}
+
+	return this;
+    }
+}
@@ -30,6 +30,17 @@ package astex;
  *	created
  */
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * A class for storing an electron density map.
@@ -138,6 +149,58 @@ public class Map extends Symmetry {
 
     public boolean initialiseContours = true;
 
+    /** Size of the CCP4 header before the symmetry records. */
+    private static final int CCP4HeaderSize = 1024;
+
+    /** Largest piece of the file we will map in one go. */
+    private static final long MaximumMappedChunk = 1L << 30;
+
+    /** Edge length in grid points of the bricks we cache. */
+    private static final int BrickSize = 16;
+
+    /** The mapped CCP4 file, if we could map it. */
+    private MappedFile mapped = null;
+
+    /** A file whose mapped data couldn't be read, so is read as a stream. */
+    private String unmappedFile = null;
+
+    /** The center of the previous region, for prefetching. */
+    private int previousCenter[] = null;
+
+    /** The outstanding prefetch, if any. */
+    private Future<?> prefetch = null;
+
+    /** Background thread that reads bricks ahead of the view. */
+    private static ExecutorService prefetcher = null;
+
+    /** The number of downsampled levels we may contour, 0 for none. */
+    private int pyramidLevels =
+	Settings.getInteger("config", "map.pyramid.levels", 0);
+
+    /** Should downsampled levels be saved next to the map file. */
+    private boolean savePyramid =
+	Settings.getBoolean("config", "map.pyramid.save");
+
+    /** The downsampled levels, built when first needed. */
+    private Map pyramid[] = null;
+
+    /** The pyramid level of this map, 0 for the original map. */
+    private int pyramidLevel = 0;
+
+    /** Grid points of the original map between our grid points. */
+    private int gridStep = 1;
+
+    /** The whole grid held in memory, for downsampled levels and O maps. */
+    private GridData gridData = null;
+
+    /** How bricks and downsampled levels are stored in memory. */
+    private GridData.Precision precision =
+	GridData.Precision.parse(Settings.getString("config", "map.precision"),
+				 GridData.Precision.FLOAT);
+
+    /** The map whose region was last read for contouring. */
+    private Map contourSource = this;
+
     /** Private default constructor. */
     private Map(){
     }
@@ -372,7 +435,6 @@ public class Map extends Symmetry {
     }
     
     int oheader[] = new int[23];
-    byte odata[][][] = null;
     int extent[] = new int[3];
     double prod = 0.0;
     double plus = 0.0;
@@ -450,8 +512,9 @@ public class Map extends Symmetry {
 
 	byte data[] = new byte[512];
 
-	//odata = new byte[inx*8 * iny*8 * inz*8];
-	odata = new byte[inx*8][iny*8][inz*8];
+	// the bytes are kept as they are and decoded as
+	// (b - plus) / prod when regions are read
+	byte odata[] = new byte[extent[0] * extent[1] * extent[2]];
 
 	for (int k=0; k < inz; k++) {
 	    for (int j=0;  j < iny; j++) {
@@ -494,7 +557,7 @@ public class Map extends Symmetry {
 				int pt2 = (j)*8 + m;
 				int pt1 = (i)*8 + l;
 				
-				odata[pt1][pt2][pt3] = sboxLMN;
+				odata[(pt3 * extent[1] + pt2) * extent[0] + pt1] = sboxLMN;
 			    } // l
 			} // m
 		    } // n
@@ -503,6 +566,8 @@ public class Map extends Symmetry {
 	    } // j
 	} // k
 
+	gridData = GridData.create(odata, (float)(-plus/prod), (float)(1.0/prod));
+
 	// setup the different matrices. 
 	setUnitCell(cell);
 
@@ -526,8 +591,8 @@ public class Map extends Symmetry {
 	}
 
 	mode = readInteger(file);
-	// we only support modes 0 and 2.
-	if(mode != 0 && mode != 2){
+	// we only support modes 0, 1, 2 and 12.
+	if(!isSupportedMode(mode)){
 	    file.close();
 	    file = null;
 	    return;
@@ -600,8 +665,14 @@ public class Map extends Symmetry {
 	printStream.println("");
 
 	printStream.print("Map mode      " + d5.format(mode));
-	if(mode == 2){
+	if(mode == 0){
+	    printStream.print(" (1-byte integer)");
+	}else if(mode == 1){
+	    printStream.print(" (2-byte integer)");
+	}else if(mode == 2){
 	    printStream.print(" (4-byte float)");
+	}else if(mode == 12){
+	    printStream.print(" (2-byte float)");
 	}
 	printStream.println("");
 
@@ -640,6 +711,11 @@ public class Map extends Symmetry {
 	needsReadingFlag = true;
     }
 
+    /** Get the center point of the region we will contour. */
+    public Point3d getCenter(){
+	return center.clone();
+    }
+
     /** Set the radius of the region we will contour. */
     public void setRadius(double r){
 	radius = r;
@@ -701,7 +777,7 @@ public class Map extends Symmetry {
 	    return;
 	}
 
-	if((mapType == MapType.CCP4_BINARY && mode != 0 && mode != 2)){
+	if(mapType == MapType.CCP4_BINARY && !isSupportedMode(mode)){
 	    return;
 	}
 
@@ -713,6 +789,37 @@ public class Map extends Symmetry {
 	int dataPoints = dx * dy * dz;
 	ensureMapCapacity(dataPoints);
 
+	if(gridData != null){
+	    for(int s = minimumGrid[2]; s < maximumGrid[2]; s++){
+		for(int r = minimumGrid[1]; r < maximumGrid[1]; r++){
+		    gridData.get((s * grid[1] + r) * grid[0] + minimumGrid[0],
+				 data,
+				 ((s - minimumGrid[2]) * dy + r - minimumGrid[1]) * dx,
+				 dx);
+		}
+	    }
+
+	    if(file != null){
+		file.close();
+		file = null;
+	    }
+
+	    return;
+	}
+
+	// if the mapped file can't be read we fall back to the stream
+	if(mapType == MapType.CCP4_BINARY && mapSections() &&
+	   readBrickedRegion()){
+	    prefetchBricks();
+
+	    if(file != null){
+		file.close();
+		file = null;
+	    }
+
+	    return;
+	}
+
 	// a running total of how many relevant grid points we read
 	int point = 0;
 
@@ -740,13 +847,20 @@ public class Map extends Symmetry {
 			   r >= min1 && r < max1 &&
 			   c >= min0 && c < max0){
 			    
-			    float f = readFloat(file);
-			    data[point++] = f;
+			    if(mode == 0){
+				data[point++] = (byte)file.read();
+			    }else if(mode == 1){
+				data[point++] = readShort(file);
+			    }else if(mode == 12){
+				data[point++] = GridData.halfToFloat(readShort(file));
+			    }else{
+				data[point++] = readFloat(file);
+			    }
 			}else{
 			    // just read as integer if we aren't
 			    // using it as we avoid overhead of converting
 			    // to float
-			    int i = file.skip(4);
+			    int i = file.skip(getModeSize());
 			    if(i == FILE.EOF){
 				System.out.println("unexpected EOF!");
 			    }
@@ -754,48 +868,1102 @@ public class Map extends Symmetry {
 		    }
 		}
 	    }
-	}else if(mapType == MapType.O_BINARY){
-	    for(int s = 0; s < grid2; s++){
-		for(int r = 0; r < grid1; r++){
-		    for(int c = 0; c < grid0; c++){
-			if(s >= min2 && s < max2 &&
-			   r >= min1 && r < max1 &&
-			   c >= min0 && c < max0){
-			    
-			    byte b = odata[c][r][s];
+	}else{
+	    System.out.println("trying to reread data for type " + mapType);
+	}
 
-			    short sb = 0;
-			    if(b < 0){
-				sb = (short)((int)b + 256);
-			    }else{
-				sb = b;
-			    }
-			    float f = (float)(((float)sb - plus)/prod);
+	if(file != null){
+	    file.close();
+	    file = null;
+	}
+    }
+
+    /**
+     * The data sections of a memory mapped CCP4 file and the bricks
+     * read from it. The layout is copied from the header so that
+     * the prefetch thread doesn't see the header being reread.
+     */
+    private static class MappedFile {
+	/** The file that was mapped. */
+	String filename;
+
+	/** Pieces of the file, each holding whole sections. */
+	MappedByteBuffer chunks[];
+
+	/** The index of a block compressed file, instead of chunks. */
+	BlockGzip gzip;
+
+	/** The offset of the first section in the compressed data. */
+	long dataStart;
+
+	/** The number of sections in each piece. */
+	int sectionsPerChunk;
+
+	/** The grid dimensions, mode and byte order. */
+	int grid0, grid1, grid2;
+	int mode;
+	ByteOrder order;
+
+	/** How bricks are stored. */
+	GridData.Precision precision;
+
+	/** Cached bricks, least recently used first. */
+	LinkedHashMap<Long,GridData> bricks;
+
+	/**
+	 * Copy the block [min0,max0)x[min1,max1)x[min2,max2) into
+	 * dest, with rows stride0 apart and sections stride0*stride1
+	 * apart. Each row of the block is contiguous in the file,
+	 * so we convert it in one go.
+	 */
+	void readBlock(int min0, int max0, int min1, int max1,
+		       int min2, int max2,
+		       float dest[], int stride0, int stride1)
+	    throws IOException {
+	    int dx = max0 - min0;
+
+	    if(dx <= 0){
+		return;
+	    }
+
+	    for(int s = min2; s < max2; s++){
+		ByteBuffer bb = rows(s, min1, max1);
+		int point = (s - min2) * stride0 * stride1;
+
+		if(mode == 0){
+		    for(int r = min1; r < max1; r++, point += stride0){
+			int offset = (r - min1) * grid0 + min0;
+			for(int c = 0; c < dx; c++){
+			    dest[point + c] = bb.get(offset + c);
+			}
+		    }
+		}else if(mode == 1 || mode == 12){
+		    ShortBuffer sb = bb.asShortBuffer();
+		    for(int r = min1; r < max1; r++, point += stride0){
+			int offset = (r - min1) * grid0 + min0;
+			for(int c = 0; c < dx; c++){
+			    short v = sb.get(offset + c);
+			    dest[point + c] = mode == 1 ? v : GridData.halfToFloat(v);
+			}
+		    }
+		}else{
+		    FloatBuffer fb = bb.asFloatBuffer();
+		    for(int r = min1; r < max1; r++, point += stride0){
+			fb.position((r - min1) * grid0 + min0);
+			fb.get(dest, point, dx);
+		    }
+		}
+	    }
+	}
+
+	/**
+	 * Return rows [min1, max1) of section s, with the first
+	 * point of row min1 at index 0. Only the blocks of a
+	 * compressed file that hold those rows are inflated.
+	 */
+	ByteBuffer rows(int s, int min1, int max1) throws IOException {
+	    int pointSize = mode == 0 ? 1 : (mode == 1 || mode == 12 ? 2 : 4);
+	    int rowBytes = grid0 * pointSize;
+	    ByteBuffer bb;
+
+	    if(gzip != null){
+		long position = dataStart + ((long)s * grid1 + min1) * rowBytes;
+		int length = (max1 - min1) * rowBytes;
+
+		bb = ByteBuffer.wrap(gzip.read(position, length));
+	    }else{
+		bb = chunks[s / sectionsPerChunk].duplicate();
+		bb.position(((s % sectionsPerChunk) * grid1 + min1) * rowBytes);
+		bb = bb.slice();
+	    }
+
+	    bb.order(order);
+
+	    return bb;
+	}
+
+	/**
+	 * Return brick (bi, bj, bk), reading it from the file if it
+	 * isn't in the cache. Bricks at the edge of the map are only
+	 * partly used.
+	 */
+	GridData getBrick(int bi, int bj, int bk) throws IOException {
+	    int nbi = (grid0 + BrickSize - 1) / BrickSize;
+	    int nbj = (grid1 + BrickSize - 1) / BrickSize;
+	    Long key = Long.valueOf(((long)bk * nbj + bj) * nbi + bi);
+	    GridData brick;
+
+	    synchronized(bricks){
+		brick = bricks.get(key);
+	    }
+
+	    if(brick != null){
+		return brick;
+	    }
+
+	    float values[] = new float[BrickSize * BrickSize * BrickSize];
+
+	    int i0 = bi * BrickSize, j0 = bj * BrickSize, k0 = bk * BrickSize;
+
+	    readBlock(i0, Math.min(i0 + BrickSize, grid0),
+		      j0, Math.min(j0 + BrickSize, grid1),
+		      k0, Math.min(k0 + BrickSize, grid2),
+		      values, BrickSize, BrickSize);
+
+	    // quantized bricks are scaled over their own range
+	    brick = GridData.create(precision, values);
+
+	    synchronized(bricks){
+		bricks.put(key, brick);
+	    }
+
+	    return brick;
+	}
+
+	/** Make sure the bricks covering the block are cached. */
+	void loadBricks(int lo[], int hi[]){
+	    for(int bk = lo[2] / BrickSize; bk <= (hi[2] - 1) / BrickSize; bk++){
+		for(int bj = lo[1] / BrickSize; bj <= (hi[1] - 1) / BrickSize; bj++){
+		    for(int bi = lo[0] / BrickSize; bi <= (hi[0] - 1) / BrickSize; bi++){
+			if(Thread.currentThread().isInterrupted()){
+			    return;
+			}
 
-			    data[point++] = f;
+			try {
+			    getBrick(bi, bj, bk);
+			}catch(IOException e){
+			    // reported when the region itself is read
+			    return;
 			}
 		    }
 		}
 	    }
+	}
+    }
+
+    /**
+     * Can we read this CCP4/MRC mode: 0 bytes, 1 shorts, 2 floats
+     * or 12 half precision floats.
+     */
+    private static boolean isSupportedMode(int m){
+	return m == 0 || m == 1 || m == 2 || m == 12;
+    }
+
+    /** The number of bytes in each grid point of a CCP4 file. */
+    private int getModeSize(){
+	if(mode == 0){
+	    return 1;
+	}else if(mode == 1 || mode == 12){
+	    return 2;
+	}
+	return 4;
+    }
+
+    /** Set how bricks and downsampled levels are stored in memory. */
+    public synchronized void setPrecision(GridData.Precision p){
+	if(p != precision){
+	    precision = p;
+	    // cached data was stored at the old precision
+	    mapped = null;
+	    pyramid = null;
+	}
+    }
+
+    /** Get how bricks and downsampled levels are stored in memory. */
+    public GridData.Precision getPrecision(){
+	return precision;
+    }
+
+    /** The byte order of the data in a CCP4 file. */
+    private ByteOrder getByteOrder(){
+	// littleEndian really means the words are assembled
+	// most significant byte first, see readInteger()
+	return littleEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     * Memory map the data sections of a CCP4 file. Only local
+     * files that are uncompressed or block compressed can be
+     * mapped, anything else returns false and is read as a
+     * stream. Pieces are kept mapped, along with the bricks read
+     * from them, until the map is pointed at a different file.
+     */
+    private boolean mapSections(){
+	if(mapped != null && filename.equals(mapped.filename)){
+	    return true;
+	}
+
+	mapped = null;
+	previousCenter = null;
+
+	if(filename.equals(unmappedFile)){
+	    return false;
+	}
+
+	File f = new File(filename);
+
+	if(!f.isFile()){
+	    return false;
+	}
+
+	long sectionBytes = (long)grid[0] * grid[1] * getModeSize();
+	long start = CCP4HeaderSize + ihdr3[1];
+
+	if(sectionBytes <= 0 || sectionBytes > Integer.MAX_VALUE){
+	    return false;
+	}
+
+	RandomAccessFile raf = null;
+
+	try {
+	    raf = new RandomAccessFile(f, "r");
+	    FileChannel channel = raf.getChannel();
+
+	    MappedFile m = new MappedFile();
+	    m.filename = filename;
+	    m.grid0 = grid[0];
+	    m.grid1 = grid[1];
+	    m.grid2 = grid[2];
+	    m.mode = mode;
+	    m.order = getByteOrder();
+	    m.precision = precision;
+
+	    if(filename.endsWith(".gz")){
+		// plain gzip files can only be read as a stream
+		if(channel.size() > Integer.MAX_VALUE){
+		    return false;
+		}
+
+		m.gzip = BlockGzip.open(channel.map(FileChannel.MapMode.READ_ONLY,
+						    0, channel.size()));
+
+		if(m.gzip == null){
+		    return false;
+		}
+
+		if(start + sectionBytes * grid[2] > m.gzip.length()){
+		    Log.error("map file " + filename + " is too short");
+		    return false;
+		}
+
+		m.dataStart = start;
+	    }else{
+		if(start + sectionBytes * grid[2] > channel.size()){
+		    Log.error("map file " + filename + " is too short");
+		    return false;
+		}
+
+		int perChunk = (int)Math.max(1, MaximumMappedChunk / sectionBytes);
+		int chunks = (grid[2] + perChunk - 1) / perChunk;
+
+		m.chunks = new MappedByteBuffer[chunks];
+		m.sectionsPerChunk = perChunk;
+
+		for(int c = 0; c < chunks; c++){
+		    int first = c * perChunk;
+		    int count = Math.min(perChunk, grid[2] - first);
+		    m.chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+					      start + first * sectionBytes,
+					      count * sectionBytes);
+		}
+	    }
+
+	    long budget = 1024L * 1024L *
+		Settings.getInteger("config", "map.cache.size", 256);
+	    final long maximumBricks =
+		Math.max(8, budget / ((long)precision.size * BrickSize * BrickSize * BrickSize));
+
+	    m.bricks = new LinkedHashMap<Long,GridData>(256, 0.75f, true){
+		protected boolean removeEldestEntry(java.util.Map.Entry<Long,GridData> eldest){
+		    return size() > maximumBricks;
+		}
+	    };
+
+	    // the mappings stay valid after the channel is closed
+	    mapped = m;
+
+	    return true;
+	}catch(IOException e){
+	    Log.error("couldn't map " + filename + " " + e);
+	    return false;
+	}finally{
+	    if(raf != null){
+		try {
+		    raf.close();
+		}catch(IOException e){
+		}
+	    }
+	}
+    }
+
+    /**
+     * Stop using the mapped file after reading it failed, it
+     * is read as a stream from now on.
+     */
+    private void dropMapping(IOException e){
+	Log.error("couldn't read " + filename + " " + e);
+
+	mapped = null;
+	unmappedFile = filename;
+    }
+
+    /**
+     * Assemble the region between minimumGrid and maximumGrid
+     * from bricks. Returns false if the mapped file couldn't be
+     * read, and it has been dropped.
+     */
+    private boolean readBrickedRegion(){
+	int min0 = minimumGrid[0], max0 = maximumGrid[0];
+	int min1 = minimumGrid[1], max1 = maximumGrid[1];
+	int min2 = minimumGrid[2], max2 = maximumGrid[2];
+	int dx = max0 - min0;
+	int dy = max1 - min1;
+
+	if(dx <= 0 || dy <= 0 || max2 <= min2){
+	    return true;
+	}
+
+	try {
+	    readBricks(min0, max0, min1, max1, min2, max2);
+	}catch(IOException e){
+	    dropMapping(e);
+	    return false;
+	}
+
+	return true;
+    }
+
+    /** Copy the bricks covering the region into data. */
+    private void readBricks(int min0, int max0, int min1, int max1,
+			    int min2, int max2) throws IOException {
+	int dx = max0 - min0;
+	int dy = max1 - min1;
+
+	for(int bk = min2 / BrickSize; bk <= (max2 - 1) / BrickSize; bk++){
+	    int k0 = Math.max(min2, bk * BrickSize);
+	    int k1 = Math.min(max2, bk * BrickSize + BrickSize);
+	    for(int bj = min1 / BrickSize; bj <= (max1 - 1) / BrickSize; bj++){
+		int j0 = Math.max(min1, bj * BrickSize);
+		int j1 = Math.min(max1, bj * BrickSize + BrickSize);
+		for(int bi = min0 / BrickSize; bi <= (max0 - 1) / BrickSize; bi++){
+		    int i0 = Math.max(min0, bi * BrickSize);
+		    int i1 = Math.min(max0, bi * BrickSize + BrickSize);
+
+		    GridData brick = mapped.getBrick(bi, bj, bk);
+
+		    for(int k = k0; k < k1; k++){
+			for(int j = j0; j < j1; j++){
+			    int from = ((k - bk * BrickSize) * BrickSize +
+					(j - bj * BrickSize)) * BrickSize +
+				(i0 - bi * BrickSize);
+			    int to = ((k - min2) * dy + (j - min1)) * dx + (i0 - min0);
+			    brick.get(from, data, to, i1 - i0);
+			}
+		    }
+		}
+	    }
+	}
+    }
+
+    /** The thread that prefetches bricks, created if necessary. */
+    private static synchronized ExecutorService getPrefetcher(){
+	if(prefetcher == null){
+	    prefetcher =
+		Executors.newSingleThreadExecutor(new ThreadFactory(){
+			public Thread newThread(Runnable r){
+			    Thread t = new Thread(r, "Map-prefetch");
+			    t.setDaemon(true);
+			    t.setPriority(Thread.MIN_PRIORITY);
+			    return t;
+			}
+		    });
+	}
+
+	return prefetcher;
+    }
+
+    /**
+     * Read the bricks for the next region in the background,
+     * assuming the view keeps moving the way it just did.
+     */
+    private void prefetchBricks(){
+	int delta[] = new int[3];
+	boolean moved = false;
+
+	if(previousCenter != null){
+	    for(int i = 0; i < 3; i++){
+		delta[i] = centerGrid[i] - previousCenter[i];
+		if(delta[i] != 0){
+		    moved = true;
+		}
+	    }
+	}
+
+	previousCenter = centerGrid.clone();
+
+	if(!moved){
+	    return;
+	}
+
+	final int lo[] = new int[3];
+	final int hi[] = new int[3];
+
+	for(int i = 0; i < 3; i++){
+	    lo[i] = Math.max(0, Math.min(grid[i], minimumGrid[i] + delta[i]));
+	    hi[i] = Math.max(0, Math.min(grid[i], maximumGrid[i] + delta[i]));
+	    if(hi[i] <= lo[i]){
+		return;
+	    }
+	}
+
+	if(prefetch != null){
+	    // we have moved on, don't bother with the old region
+	    prefetch.cancel(true);
+	}
+
+	final MappedFile m = mapped;
+
+	prefetch = getPrefetcher().submit(new Runnable(){
+		public void run(){
+		    m.loadBricks(lo, hi);
+		}
+	    });
+    }
+
+    /** Set the number of downsampled levels we may contour. */
+    public void setPyramidLevels(int levels){
+	if(levels != pyramidLevels){
+	    pyramidLevels = levels;
+	    pyramid = null;
+	}
+    }
+
+    /** Get the number of downsampled levels we may contour. */
+    public int getPyramidLevels(){
+	return pyramidLevels;
+    }
+
+    /** Set whether downsampled levels are saved next to the map. */
+    public void setSavePyramid(boolean save){
+	savePyramid = save;
+    }
+
+    /** The pyramid level of this map, 0 for the original. */
+    public int getPyramidLevel(){
+	return pyramidLevel;
+    }
+
+    /** Set the map whose region was last read for contouring. */
+    public void setContourSource(Map m){
+	contourSource = m;
+    }
+
+    /**
+     * The map whose data should be contoured. This is either
+     * this map or one of its downsampled levels.
+     */
+    public Map getContourSource(){
+	return contourSource;
+    }
+
+    /** The largest spacing of the original grid in angstroms. */
+    public double getGridSpacing(){
+	double s = 0.0;
+
+	for(int i = 0; i < 3; i++){
+	    if(nv[i] > 0 && cell[i] / nv[i] > s){
+		s = cell[i] / nv[i];
+	    }
+	}
+
+	return s;
+    }
+
+    /**
+     * Return the map downsampled 2^l times, building it if
+     * necessary. Levels are only available for CCP4 files we
+     * can map, this map is returned if the level can't be made.
+     */
+    public synchronized Map getLevelMap(int l){
+	if(l <= 0 || l > pyramidLevels || pyramidLevel != 0 ||
+	   mapType != MapType.CCP4_BINARY || !canBuildLevels()){
+	    return this;
+	}
+
+	if(pyramid == null || pyramid.length != pyramidLevels + 1){
+	    pyramid = new Map[pyramidLevels + 1];
+	    pyramid[0] = this;
+	}
+
+	for(int i = 1; i <= l; i++){
+	    if(pyramid[i] == null){
+		long then = System.currentTimeMillis();
+
+		pyramid[i] = loadLevel(i);
+
+		if(pyramid[i] == null){
+		    pyramid[i] = buildLevel(pyramid[i - 1], i);
+		}
+
+		if(pyramid[i] == null){
+		    return pyramid[i - 1];
+		}
+
+		Log.info("map " + name + " level " + i + " " +
+			 pyramid[i].grid[0] + "x" + pyramid[i].grid[1] + "x" +
+			 pyramid[i].grid[2] + " " +
+			 (System.currentTimeMillis() - then) + "ms");
+	    }
+	}
+
+	return pyramid[l];
+    }
+
+    /** We need the header and the mapped file to build levels. */
+    private boolean canBuildLevels(){
+	return grid[0] > 0 && isSupportedMode(mode) && mapSections();
+    }
+
+    /** The name of the file that level l is saved in. */
+    private String getLevelFilename(int l){
+	String base = filename;
+
+	if(base.endsWith(".map")){
+	    base = base.substring(0, base.length() - 4);
+	}
+
+	return base + "." + (1 << l) + "x.map";
+    }
+
+    /** Make an empty map for level l with our header. */
+    private Map createLevel(int l){
+	Map m = create();
+	int step = 1 << l;
+
+	m.name = name;
+	m.mapType = MapType.CCP4_BINARY;
+	m.mode = 2;
+	m.pyramidLevel = l;
+	m.gridStep = step;
+	m.littleEndian = littleEndian;
+	m.rms = rms;
+	m.precision = precision;
+	m.headerInitialised = true;
+
+	for(int i = 0; i < 3; i++){
+	    m.grid[i] = (grid[i] - 1) / step + 1;
+	    m.nu[i] = nu[i];
+	    m.nv[i] = nv[i];
+	    m.axis[i] = axis[i];
+	}
+
+	m.cell = cell.clone();
+	m.setSpaceGroupNumber(getSpaceGroupNumber());
+	m.setUnitCell(m.cell);
+
+	return m;
+    }
+
+    /** Read one whole section of the grid into dest. */
+    private void readSection(int s, float dest[]) throws IOException {
+	int sectionSize = grid[0] * grid[1];
+
+	if(gridData != null){
+	    gridData.get(s * sectionSize, dest, 0, sectionSize);
 	}else{
-	    System.out.println("trying to reread data for type " + mapType);
+	    mapped.readBlock(0, grid[0], 0, grid[1], s, s + 1,
+			     dest, grid[0], grid[1]);
 	}
+    }
 
-	if(file != null){
-	    file.close();
-	    file = null;
+    /**
+     * Build level l by halving the grid of the level below,
+     * smoothing with a 1/4 1/2 1/4 filter along each axis so
+     * that each point stays on a point of the original grid.
+     * The sections are built in parallel.
+     */
+    private Map buildLevel(final Map below, int l){
+	if(below.gridData == null && !below.mapSections()){
+	    return null;
 	}
+
+	final Map m = createLevel(l);
+	final int g0 = below.grid[0], g1 = below.grid[1], g2 = below.grid[2];
+	final int n0 = m.grid[0], n1 = m.grid[1], n2 = m.grid[2];
+
+	if((long)n0 * n1 * n2 > Integer.MAX_VALUE){
+	    return null;
+	}
+
+	final float out[] = new float[n0 * n1 * n2];
+	final IOException error[] = new IOException[1];
+
+	Parallel.forRange(n2, 1, new Parallel.Block(){
+		public void run(int start, int end){
+		    float sections[][] = new float[3][g0 * g1];
+		    float plane[] = new float[g0 * g1];
+		    float rows[] = new float[g0 * n1];
+
+		    try {
+			for(int k = start; k < end; k++){
+			    int kc = 2 * k;
+			    below.readSection(Math.max(kc - 1, 0), sections[0]);
+			    below.readSection(kc, sections[1]);
+			    below.readSection(Math.min(kc + 1, g2 - 1), sections[2]);
+
+			    for(int i = 0; i < g0 * g1; i++){
+				plane[i] = 0.25f * (sections[0][i] + sections[2][i]) +
+				    0.5f * sections[1][i];
+			    }
+
+			    for(int j = 0; j < n1; j++){
+				int jc = 2 * j;
+				int ja = Math.max(jc - 1, 0) * g0;
+				int jb = jc * g0;
+				int jd = Math.min(jc + 1, g1 - 1) * g0;
+				for(int i = 0; i < g0; i++){
+				    rows[j * g0 + i] = 0.25f * (plane[ja + i] + plane[jd + i]) +
+					0.5f * plane[jb + i];
+				}
+			    }
+
+			    int o = k * n0 * n1;
+
+			    for(int j = 0; j < n1; j++){
+				int row = j * g0;
+				for(int i = 0; i < n0; i++){
+				    int ic = 2 * i;
+				    out[o++] = 0.25f * (rows[row + Math.max(ic - 1, 0)] +
+							rows[row + Math.min(ic + 1, g0 - 1)]) +
+					0.5f * rows[row + ic];
+				}
+			    }
+			}
+		    }catch(IOException e){
+			synchronized(error){
+			    error[0] = e;
+			}
+		    }
+		}
+	    });
+
+	if(error[0] != null){
+	    below.dropMapping(error[0]);
+	    return null;
+	}
+
+	m.gridData = GridData.create(precision, out);
+
+	if(savePyramid && saveLevel(m, l)){
+	    Map saved = loadLevel(l);
+	    if(saved != null){
+		// use the mapped file rather than keeping the grid
+		return saved;
+	    }
+	}
+
+	return m;
+    }
+
+    /** Save level l as a CCP4 file next to the map. */
+    private boolean saveLevel(Map m, int l){
+	String levelFile = getLevelFilename(l);
+	int headerSize = CCP4HeaderSize + ihdr3[1];
+	int step = 1 << l;
+	RandomAccessFile in = null;
+	RandomAccessFile out = null;
+
+	try {
+	    ByteBuffer header = ByteBuffer.allocate(headerSize);
+	    in = new RandomAccessFile(filename, "r");
+	    in.readFully(header.array());
+	    header.order(getByteOrder());
+
+	    // NC, NR, NS, MODE, NCSTART, NRSTART, NSSTART, NX, NY, NZ
+	    for(int i = 0; i < 3; i++){
+		header.putInt(4 * i, m.grid[i]);
+		header.putInt(16 + 4 * i, (int)Math.floor(nu[i] / (double)step));
+		header.putInt(28 + 4 * i, Math.max(1, nv[i] / step));
+	    }
+	    header.putInt(12, 2);
+
+	    File tmp = new File(levelFile + ".tmp");
+	    out = new RandomAccessFile(tmp, "rw");
+	    out.setLength(0);
+	    FileChannel channel = out.getChannel();
+	    channel.write(header);
+
+	    ByteBuffer bb = ByteBuffer.allocate(4 * 64 * 1024);
+	    bb.order(getByteOrder());
+	    FloatBuffer fb = bb.asFloatBuffer();
+
+	    float values[] = new float[fb.capacity()];
+
+	    for(int pos = 0; pos < m.gridData.size(); ){
+		int count = Math.min(fb.capacity(), m.gridData.size() - pos);
+		m.gridData.get(pos, values, 0, count);
+		fb.clear();
+		fb.put(values, 0, count);
+		bb.clear();
+		bb.limit(4 * count);
+		while(bb.hasRemaining()){
+		    channel.write(bb);
+		}
+		pos += count;
+	    }
+
+	    out.close();
+	    out = null;
+
+	    File f = new File(levelFile);
+	    f.delete();
+
+	    if(!tmp.renameTo(f)){
+		tmp.delete();
+		return false;
+	    }
+
+	    return true;
+	}catch(IOException e){
+	    Log.error("couldn't save map level " + levelFile + " " + e);
+	    return false;
+	}finally{
+	    try {
+		if(in != null) in.close();
+		if(out != null) out.close();
+	    }catch(IOException e){
+	    }
+	}
+    }
+
+    /** Load level l if it was saved after the map was written. */
+    private Map loadLevel(int l){
+	File f = new File(getLevelFilename(l));
+	File original = new File(filename);
+
+	if(!f.isFile() || f.lastModified() < original.lastModified()){
+	    return null;
+	}
+
+	Map m = createLevel(l);
+	Map saved = create();
+
+	saved.setFile(f.getPath());
+	saved.file = FILE.open(f.getPath());
+
+	if(saved.file == null){
+	    return null;
+	}
+
+	saved.readCCP4Header();
+
+	if(saved.file != null){
+	    saved.file.close();
+	    saved.file = null;
+	}
+
+	if(saved.grid[0] != m.grid[0] || saved.grid[1] != m.grid[1] ||
+	   saved.grid[2] != m.grid[2] || saved.mode != 2){
+	    return null;
+	}
+
+	m.filename = saved.filename;
+	m.littleEndian = saved.littleEndian;
+	m.ihdr3[1] = saved.ihdr3[1];
+
+	if(!m.mapSections()){
+	    return null;
+	}
+
+	return m;
     }
 
     /** Convert grid coordinates to cartesian. */
     public void relativeGridToCartesian(double ix, double iy, double iz,
 					Point3d p){
-	absoluteGridToCartesian(ix + nu[0] + minimumGrid[0],
-				iy + nu[1] + minimumGrid[1],
-				iz + nu[2] + minimumGrid[2],
+	// downsampled levels use the grid of the original map
+	absoluteGridToCartesian(nu[0] + (ix + minimumGrid[0]) * gridStep,
+				nu[1] + (iy + minimumGrid[1]) * gridStep,
+				nu[2] + (iz + minimumGrid[2]) * gridStep,
 				p);
     }
 
+    /** The largest block of grid points sample() reads at once. */
+    private static final int MaximumSampleBlock = 1 << 24;
+
+    /**
+     * Set up the transformation from cartesian coordinates to
+     * the grid of the whole map, g[k] = t[4k] * x + t[4k+1] * y +
+     * t[4k+2] * z + t[4k+3], along with the grid dimensions.
+     */
+    private boolean getSamplingTransform(int dims[], double t[]){
+	if(mapType == MapType.INSIGHT_ASCII || mapType == MapType.ASTEX_ASCII){
+	    double origins[] = { origin.x, origin.y, origin.z };
+	    double spacings[] = { spacing.x, spacing.y, spacing.z };
+
+	    for(int k = 0; k < 3; k++){
+		if(spacings[k] == 0.0){
+		    return false;
+		}
+		dims[k] = ngrid[k];
+		for(int j = 0; j < 3; j++){
+		    t[4*k + j] = (j == k) ? 1.0 / spacings[k] : 0.0;
+		}
+		t[4*k + 3] = -origins[k] / spacings[k];
+	    }
+
+	    return true;
+	}
+
+	if(mapType != MapType.CCP4_BINARY && mapType != MapType.O_BINARY){
+	    return false;
+	}
+
+	// the transformation is affine, so find it from the
+	// images of the unit vectors and the origin (f[3])
+	Point3d f[] = new Point3d[4];
+
+	for(int j = 0; j < 4; j++){
+	    f[j] = new Point3d(j == 0 ? 1.0 : 0.0,
+			       j == 1 ? 1.0 : 0.0,
+			       j == 2 ? 1.0 : 0.0);
+	    f[j].transform(cartesianToFractional);
+	}
+
+	for(int k = 0; k < 3; k++){
+	    int a = axis[k];
+	    double scale = (double)nv[a] / gridStep;
+
+	    for(int j = 0; j < 3; j++){
+		t[4*k + j] = (f[j].get(a) - f[3].get(a)) * scale;
+	    }
+	    t[4*k + 3] = f[3].get(a) * scale - (double)nu[k] / gridStep;
+
+	    dims[k] = grid[k];
+	}
+
+	return true;
+    }
+
+    /**
+     * Read the block of the whole map [min, max) into dest,
+     * with the first axis varying fastest.
+     */
+    private void readSampleBlock(int min0, int max0, int min1, int max1,
+				 int min2, int max2, float dest[]){
+	int dx = max0 - min0;
+	int dy = max1 - min1;
+
+	if(gridData != null ||
+	   mapType == MapType.INSIGHT_ASCII || mapType == MapType.ASTEX_ASCII){
+	    int d0 = (gridData != null) ? grid[0] : ngrid[0];
+	    int d1 = (gridData != null) ? grid[1] : ngrid[1];
+
+	    for(int s = min2; s < max2; s++){
+		for(int r = min1; r < max1; r++){
+		    int from = (s * d1 + r) * d0 + min0;
+		    int to = ((s - min2) * dy + r - min1) * dx;
+		    if(gridData != null){
+			gridData.get(from, dest, to, dx);
+		    }else{
+			System.arraycopy(data, from, dest, to, dx);
+		    }
+		}
+	    }
+	}else{
+	    if(mapSections()){
+		try {
+		    mapped.readBlock(min0, max0, min1, max1, min2, max2, dest, dx, dy);
+		    return;
+		}catch(IOException e){
+		    dropMapping(e);
+		}
+	    }
+
+	    // compressed, read it through a copy of the map
+	    // so that the current region is left alone
+	    Map m = Map.create();
+	    m.setFile(filename);
+	    m.read();
+	    m.minimumGrid[0] = min0; m.maximumGrid[0] = max0;
+	    m.minimumGrid[1] = min1; m.maximumGrid[1] = max1;
+	    m.minimumGrid[2] = min2; m.maximumGrid[2] = max2;
+	    m.readRegion();
+
+	    System.arraycopy(m.data, 0, dest, 0, dx * dy * (max2 - min2));
+	}
+    }
+
+    /**
+     * Sample the map at n points by trilinear interpolation.
+     * The values are put in values, and points that lie outside
+     * the map are given the value outside.
+     *
+     * The map is read a slab of sections at a time, covering
+     * the points that fall in it, and the points in each slab
+     * are interpolated in parallel.
+     */
+    public synchronized void sample(final float px[], final float py[],
+				    final float pz[], final int n,
+				    final float values[], final float outside){
+	final int dims[] = new int[3];
+	final double t[] = new double[12];
+
+	read();
+
+	if(!getSamplingTransform(dims, t) ||
+	   dims[0] < 2 || dims[1] < 2 || dims[2] < 2){
+	    java.util.Arrays.fill(values, 0, n, outside);
+	    return;
+	}
+
+	// the lower section of each point, or -1 if it is outside,
+	// and the range of rows and columns that we need
+	final int section[] = new int[n];
+	final int bounds[] = { dims[0], -1, dims[1], -1, dims[2], -1 };
+
+	Parallel.forRange(n, 4096, new Parallel.Block(){
+		public void run(int start, int end){
+		    int b[] = { dims[0], -1, dims[1], -1, dims[2], -1 };
+		    int g[] = new int[3];
+
+		    for(int i = start; i < end; i++){
+			section[i] = -1;
+
+			boolean inside = true;
+
+			for(int k = 0; k < 3 && inside; k++){
+			    double gk = t[4*k] * px[i] + t[4*k+1] * py[i] +
+				t[4*k+2] * pz[i] + t[4*k+3];
+			    if(gk < 0.0 || gk > dims[k] - 1){
+				inside = false;
+			    }else{
+				g[k] = Math.min((int)gk, dims[k] - 2);
+			    }
+			}
+
+			if(!inside){
+			    values[i] = outside;
+			    continue;
+			}
+
+			section[i] = g[2];
+
+			for(int k = 0; k < 3; k++){
+			    if(g[k] < b[2*k]) b[2*k] = g[k];
+			    if(g[k] > b[2*k+1]) b[2*k+1] = g[k];
+			}
+		    }
+
+		    synchronized(bounds){
+			for(int k = 0; k < 3; k++){
+			    bounds[2*k] = Math.min(bounds[2*k], b[2*k]);
+			    bounds[2*k+1] = Math.max(bounds[2*k+1], b[2*k+1]);
+			}
+		    }
+		}
+	    });
+
+	if(bounds[5] < 0){
+	    // nothing inside
+	    return;
+	}
+
+	final int min0 = bounds[0], max0 = bounds[1] + 2;
+	final int min1 = bounds[2], max1 = bounds[3] + 2;
+	final int nx = max0 - min0, ny = max1 - min1;
+	int sectionCount = bounds[5] - bounds[4] + 1;
+
+	// sections per slab, only in memory or memory mapped
+	// maps can be read a piece at a time cheaply
+	int slab = sectionCount;
+
+	if(gridData != null || mapType != MapType.CCP4_BINARY || mapSections()){
+	    slab = Math.max(1, MaximumSampleBlock / (nx * ny) - 1);
+	    slab = Math.min(slab, sectionCount);
+	}
+
+	int slabCount = (sectionCount + slab - 1) / slab;
+
+	// sort the points into slabs
+	int start[] = new int[slabCount + 1];
+
+	for(int i = 0; i < n; i++){
+	    if(section[i] >= 0){
+		start[(section[i] - bounds[4]) / slab + 1]++;
+	    }
+	}
+
+	for(int s = 0; s < slabCount; s++){
+	    start[s + 1] += start[s];
+	}
+
+	final int order[] = new int[start[slabCount]];
+	int next[] = new int[slabCount];
+
+	System.arraycopy(start, 0, next, 0, slabCount);
+
+	for(int i = 0; i < n; i++){
+	    if(section[i] >= 0){
+		order[next[(section[i] - bounds[4]) / slab]++] = i;
+	    }
+	}
+
+	float block[] = null;
+
+	for(int s = 0; s < slabCount; s++){
+	    if(start[s] == start[s + 1]){
+		continue;
+	    }
+
+	    final int min2 = bounds[4] + s * slab;
+	    int max2 = Math.min(min2 + slab, bounds[5] + 1) + 1;
+	    int size = nx * ny * (max2 - min2);
+
+	    if(block == null || block.length < size){
+		block = new float[size];
+	    }
+
+	    readSampleBlock(min0, max0, min1, max1, min2, max2, block);
+
+	    final float b[] = block;
+	    final int first = start[s];
+
+	    Parallel.forRange(start[s + 1] - first, 4096, new Parallel.Block(){
+		    public void run(int from, int to){
+			for(int j = first + from; j < first + to; j++){
+			    int i = order[j];
+
+			    double g0 = t[0] * px[i] + t[1] * py[i] + t[2]  * pz[i] + t[3];
+			    double g1 = t[4] * px[i] + t[5] * py[i] + t[6]  * pz[i] + t[7];
+			    double g2 = t[8] * px[i] + t[9] * py[i] + t[10] * pz[i] + t[11];
+
+			    int i0 = Math.min((int)g0, dims[0] - 2);
+			    int i1 = Math.min((int)g1, dims[1] - 2);
+			    int i2 = section[i];
+
+			    float f0 = (float)(g0 - i0);
+			    float f1 = (float)(g1 - i1);
+			    float f2 = (float)(g2 - i2);
+
+			    int p = ((i2 - min2) * ny + (i1 - min1)) * nx + (i0 - min0);
+			    int q = p + nx * ny;
+
+			    float c00 = b[p] + f0 * (b[p + 1] - b[p]);
+			    float c10 = b[p + nx] + f0 * (b[p + nx + 1] - b[p + nx]);
+			    float c01 = b[q] + f0 * (b[q + 1] - b[q]);
+			    float c11 = b[q + nx] + f0 * (b[q + nx + 1] - b[q + nx]);
+
+			    float c0 = c00 + f1 * (c10 - c00);
+			    float c1 = c01 + f1 * (c11 - c01);
+
+			    values[i] = c0 + f2 * (c1 - c0);
+			}
+		    }
+		});
+	}
+    }
+
     private Point3d dummy = new Point3d();
 
     /** Get the map value at relative grid point. */
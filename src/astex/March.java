@@ -82,6 +82,20 @@ class March {
     private static final int Face0154 = V0|V1|V5|V4;
     private static final int Face0374 = V0|V3|V7|V4;
 
+    /**
+     * Contour with triangles or lines. Setting generateTriangles
+     * and contouring together means another thread can't change
+     * it in between.
+     */
+    public static synchronized
+	Tmesh surface(float data[], int nx, int ny, int nz,
+		      float threshold, boolean invert, Tmesh tm,
+		      boolean triangles){
+	generateTriangles = triangles;
+
+	return surface(data, nx, ny, nz, threshold, invert, tm);
+    }
+
     /** Constructor. */
     public static synchronized
 	Tmesh surface(float data[], int nx, int ny, int nz,
@@ -165,7 +179,7 @@ class March {
 	    System.out.println("Finished marching cubes algorithm");
 	}
 
-	if(invert){
+	if(invert && tmesh.nx != null){
 	    for(int iv = 0; iv < tmesh.np; iv++){
 		tmesh.nx[iv] = -tmesh.nx[iv];
 		tmesh.ny[iv] = -tmesh.ny[iv];
@@ -594,7 +608,12 @@ class March {
 	}
     
 	/* Insert the vertex and the normal into the Tmesh object. */
-	tmesh.addPoint(v[0], v[1], v[2], -n[0], -n[1], -n[2], 0, 0);
+	if(generateTriangles){
+	    tmesh.addPoint(v[0], v[1], v[2], -n[0], -n[1], -n[2], 0, 0);
+	}else{
+	    /* Lines don't need normals. */
+	    tmesh.addPoint(v[0], v[1], v[2]);
+	}
 
 	/* Return the array reference of the vertex. */
 	return (tmesh.getnPoints() - 1);
@@ -68,6 +68,7 @@ package astex;
 
 import astex.generic.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Molecule extends Generic implements Selectable {
     /** Dynamic array of atoms. */
@@ -108,8 +109,8 @@ public class Molecule extends Generic implements Selectable {
     /** Have rings been assigned. */
     private static final int RingsAssigned = 0x1;
 
-    /** Total number of residues. */
-    private static int residueCount = 0;
+    /** Total number of residues, molecules may be read concurrently. */
+    private static final AtomicInteger residueCount = new AtomicInteger();
     
     /* Constants for various overall display styles. */
 
@@ -294,6 +295,23 @@ public class Molecule extends Generic implements Selectable {
 	}
     }
 
+    /** Have the rings been found. */
+    boolean hasRings(){
+	return (flags & RingsAssigned) != 0;
+    }
+
+    /** Return the rings, without looking for them. */
+    List<Ring> getRings(){
+	return rings;
+    }
+
+    /** Use rings that were found earlier, rather than looking again. */
+    void setRings(List<Ring> newRings){
+	rings.clear();
+	rings.addAll(newRings);
+	flags |= RingsAssigned;
+    }
+
     /** Return the number of rings. */
     public int getRingCount(){
 	ensureRingsAssigned();
@@ -350,7 +368,7 @@ public class Molecule extends Generic implements Selectable {
 		
 	Residue residue = chain.addResidue();
 
-	residue.setSequentialNumber(residueCount++);
+	residue.setSequentialNumber(residueCount.getAndIncrement());
 
 	return residue;
     }
@@ -417,6 +435,14 @@ public class Molecule extends Generic implements Selectable {
 	return newBond;
     }
 
+    /** Add a bond that has already been made, as it is. */
+    void addBond(Bond bond){
+	bonds.add(bond);
+
+	bond.getFirstAtom().addBond(bond);
+	bond.getSecondAtom().addBond(bond);
+    }
+
     /** Add a bond to the molecule and return a reference to it. */
     public Bond addBond(int firstAtomIndex, int secondAtomIndex,
 			Bond.BondOrder bondOrder){
@@ -1018,6 +1044,137 @@ public class Molecule extends Generic implements Selectable {
 	return radius;
     }
 
+    /**
+     * Coordinate frames, such as the models of an NMR ensemble.
+     * The atoms hold the coordinates of the current frame, the
+     * others are only stored as packed x, y, z arrays.
+     */
+    private List<float[]> frames = null;
+
+    /** The frame the atoms currently hold. */
+    private int currentFrame = 0;
+
+    /**
+     * Add a frame of packed coordinates for all of the atoms.
+     * The current coordinates become frame 0 when the first
+     * extra frame is added.
+     */
+    public void addFrame(float coords[]){
+	if(coords.length != 3 * getAtomCount()){
+	    Log.error("frame has " + coords.length / 3 + " atoms, molecule has " +
+		      getAtomCount());
+	    return;
+	}
+
+	if(frames == null){
+	    frames = new ArrayList<float[]>();
+	    frames.add(new float[3 * getAtomCount()]);
+	    storeFrame(0);
+	}
+
+	frames.add(coords);
+    }
+
+    /** Return the number of coordinate frames. */
+    public int getFrameCount(){
+	return frames == null ? 1 : frames.size();
+    }
+
+    /** Return the current frame. */
+    public int getFrame(){
+	return currentFrame;
+    }
+
+    /** Return the packed coordinates of frame f. */
+    public float[] getFrameCoordinates(int f){
+	if(frames == null){
+	    float coords[] = new float[3 * getAtomCount()];
+	    for(int a = 0; a < getAtomCount(); a++){
+		Atom atom = getAtom(a);
+		coords[3 * a]     = (float)atom.x;
+		coords[3 * a + 1] = (float)atom.y;
+		coords[3 * a + 2] = (float)atom.z;
+	    }
+	    return coords;
+	}
+
+	if(f == currentFrame){
+	    storeFrame(f);
+	}
+
+	return frames.get(f);
+    }
+
+    /** Copy the atom coordinates back into frame f. */
+    private void storeFrame(int f){
+	float coords[] = frames.get(f);
+
+	for(int a = 0; a < getAtomCount(); a++){
+	    Atom atom = getAtom(a);
+	    coords[3 * a]     = (float)atom.x;
+	    coords[3 * a + 1] = (float)atom.y;
+	    coords[3 * a + 2] = (float)atom.z;
+	}
+    }
+
+    /**
+     * Move the atoms to frame f. Changes made to the atom
+     * coordinates are kept in the frame being left.
+     */
+    public void setFrame(int f){
+	if(frames == null || f == currentFrame){
+	    return;
+	}
+
+	if(f < 0 || f >= frames.size()){
+	    Log.error("no frame " + f + " in " + getName());
+	    return;
+	}
+
+	float coords[] = frames.get(f);
+
+	if(coords.length != 3 * getAtomCount()){
+	    Log.error("atoms have changed, can't change frame");
+	    return;
+	}
+
+	storeFrame(currentFrame);
+	setCoordinates(coords);
+
+	currentFrame = f;
+    }
+
+    /** Copy packed x, y, z coordinates into the atoms. */
+    public void setCoordinates(float coords[]){
+	int atomCount = Math.min(getAtomCount(), coords.length / 3);
+
+	for(int a = 0; a < atomCount; a++){
+	    Atom atom = getAtom(a);
+	    atom.x = coords[3 * a];
+	    atom.y = coords[3 * a + 1];
+	    atom.z = coords[3 * a + 2];
+	}
+
+	center = null;
+    }
+
+    /** A trajectory that supplies coordinates for the atoms. */
+    private Trajectory trajectory = null;
+
+    /** Attach a trajectory, closing any previous one. */
+    public void setTrajectory(Trajectory t){
+	if(trajectory != null){
+	    trajectory.close();
+	}
+
+	trajectory = t;
+    }
+
+    /** Return the attached trajectory, or null. */
+    public Trajectory getTrajectory(){
+	return trajectory;
+    }
+
     /** Make sure that the symmetry object is allocated. */
     private void ensureSymmetryAllocated(){
 	if(symmetry == null){
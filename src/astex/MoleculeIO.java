@@ -95,6 +95,7 @@ package astex;
  */
 
 import java.util.*;
+import java.util.concurrent.Callable;
 
 /**
  * 22-05-01 mjh
@@ -123,6 +124,9 @@ public class MoleculeIO {
     /** PDB file. */
     public static final String PDBFile = "pdb";
 
+    /** mmCIF file. */
+    public static final String MMCIFFile = "cif";
+
     /** Static mapping of file extensions to MoleculeViewer molecule types. */
     public static String getTypeFromExtension(String filename){
 	String type = null;
@@ -131,7 +135,10 @@ public class MoleculeIO {
 	    return null;
 	}
 
-	if(filename.indexOf(".mol2") != -1 ||
+	if(filename.indexOf(".cif") != -1 ||
+	   filename.indexOf(".mmcif") != -1){
+	    type = MMCIFFile;
+	}else if(filename.indexOf(".mol2") != -1 ||
 	   filename.indexOf(".istr") != -1){
 	    type = SybylMol2;
 	}else if(filename.indexOf(".mol") != -1 ||
@@ -201,6 +208,10 @@ public class MoleculeIO {
 	    // SYBYL mol2 file
 	    molecule = readPDB(file);
 
+	}else if(type.equals(MMCIFFile)){
+	    // mmCIF file
+	    molecule = CifReader.read(file);
+
 	}else if(type.equals(SimpleMol)){
 	    // simple molecule file
 	    molecule = readSimple(file);
@@ -757,62 +768,6 @@ public class MoleculeIO {
 	return molecule;
     }
 
-    /* The last values for the various residue and chain names. */
-    private static int lastResidueNumber;
-    private static char lastInsertionCode;
-    private static char lastChainId;
-    private static char lastResidueA;
-    private static char lastResidueB;
-    private static char lastResidueC;
-	
-    /** Initialise the values for chain ids. */
-    private static void initialiseReader(){
-	lastResidueNumber = Residue.undefinedResidueNumber;
-	lastInsertionCode = 0;
-	lastResidueA = 0;
-	lastResidueB = 0;
-	lastResidueC = 0;
-	lastChainId = 0;
-    }
-
-    /**
-     * Do we need a new chain.
-     * Simplified case. Ignore the contents of columns 73-76.
-     */
-    private static boolean needNewChain(char currentChainId){
-	if(currentChainId != lastChainId){
-	    initialiseReader();
-
-	    lastChainId = currentChainId;
-	    return true;
-	}
-
-	return false;
-    }
-
-    /** Do we need a new residue? */
-    private static boolean needNewResidue(int currentResidueNumber,
-					 char currentInsertionCode,
-					 char currentResidueA,
-					 char currentResidueB,
-					 char currentResidueC){
-	if(lastResidueA != currentResidueA ||
-	   lastResidueB != currentResidueB ||
-	   lastResidueC != currentResidueC ||
-	   lastResidueNumber != currentResidueNumber ||
-	   lastInsertionCode != currentInsertionCode){
-
-	    lastResidueNumber = currentResidueNumber;
-	    lastInsertionCode = currentInsertionCode;
-	    lastResidueA = currentResidueA;
-	    lastResidueB = currentResidueB;
-	    lastResidueC = currentResidueC;
-
-	    return true;
-	}
-	return false;
-    }
-
     /**
      * Read a PDB file from the input.
      */
@@ -820,8 +775,12 @@ public class MoleculeIO {
 	Molecule molecule = new Molecule();
         boolean seenENDMDL = false;
 
-	// initialise all of the reader variables.
-	initialiseReader();
+	// the reader variables are initialised with the records
+	PDBAtomRecords records = new PDBAtomRecords();
+
+	// the coordinates of the models after the first
+	float frame[] = null;
+	int frameAtoms = 0;
 
 	// each line is identified with its type.
 	while(file.nextLine()){
@@ -831,39 +790,47 @@ public class MoleculeIO {
 	    char c3 = file.getChar(3);
 
             if(c0 == 'E' && c1 == 'N' && c2 == 'D' && c3 == 'M'){
+		if(seenENDMDL){
+		    addFrame(molecule, frame, frameAtoms);
+		    frame = null;
+		}else{
+		    // the first model defines the atoms
+		    records.flush(molecule);
+		}
+
                 seenENDMDL = true;
             }
 
-	    // its an atom.
-	    if(!seenENDMDL &&
-               ((c0 == 'A' && c1 == 'T' && c2 == 'O' && c3 == 'M') ||
-                (c0 == 'H' && c1 == 'E' && c2 == 'T' && c3 == 'A'))){
+	    boolean atomRecord =
+		(c0 == 'A' && c1 == 'T' && c2 == 'O' && c3 == 'M') ||
+		(c0 == 'H' && c1 == 'E' && c2 == 'T' && c3 == 'A');
 
-		int residueId = file.readInteger(22, 4);
-				// where is the insertion code exactly???
-		char insertionCode = file.getChar(26);
-		char chainId = file.getChar(21);
-		char ca = file.getChar(17);
-		char cb = file.getChar(18);
-		char cc = file.getChar(19);
+	    if(seenENDMDL && atomRecord){
+		// later models only supply coordinates
+		int atomCount = molecule.getAtomCount();
 
-		if(needNewChain(chainId)){
-		    Chain chain = molecule.addChain();
-
-		    chain.setName(file.getSubstring(21, 1));
+		if(frame == null){
+		    frame = new float[3 * atomCount];
+		    frameAtoms = 0;
 		}
 
-		if(needNewResidue(residueId, insertionCode, ca, cb, cc)){
-		    Residue residue = molecule.addResidue();
-		    String residueName = getResidueName(ca, cb, cc);
-		    residue.setNumber(residueId);
-		    residue.setInsertionCode(insertionCode);
-		    residue.setName(residueName);
+		if(frameAtoms < atomCount){
+		    frame[3 * frameAtoms]     = (float)file.readDouble(30, 8);
+		    frame[3 * frameAtoms + 1] = (float)file.readDouble(38, 8);
+		    frame[3 * frameAtoms + 2] = (float)file.readDouble(46, 8);
 		}
 
-		readPDBAtom(file, molecule);
+		frameAtoms++;
+	    }else if(atomRecord){
+		records.add(file);
+
+		if(records.isFull()){
+		    records.flush(molecule);
+		}
 	    }else if(c0 == 'C' && c1 == 'O' && c2 == 'N' && c3 == 'E'){
-		// its a connect record.
+		// its a connect record, which needs the atoms
+		records.flush(molecule);
+
 		int firstId = file.readInteger(6, 5);
 		Atom firstAtom = null;
 
@@ -911,6 +878,13 @@ public class MoleculeIO {
 	    }
 	}
 
+	records.flush(molecule);
+
+	// last model may not have an ENDMDL
+	if(frame != null){
+	    addFrame(molecule, frame, frameAtoms);
+	}
+
 	Symmetry symmetry = molecule.getSymmetry();
 
 	if(symmetry != null){
@@ -923,6 +897,21 @@ public class MoleculeIO {
 	return molecule;
     }
 
+    /** Add a model as a coordinate frame if it has the same atoms. */
+    static void addFrame(Molecule molecule, float frame[], int frameAtoms){
+	if(frame == null){
+	    return;
+	}
+
+	if(frameAtoms == molecule.getAtomCount()){
+	    molecule.addFrame(frame);
+	}else{
+	    Log.warn("model " + (molecule.getFrameCount() + 1) + " has " +
+		     frameAtoms + " atoms, not " + molecule.getAtomCount() +
+		     ", skipped");
+	}
+    }
+
     /** Read a scale record from the input file. */
     private static void readScaleRecord(Molecule molecule, FILE file){
 	Symmetry symmetry = molecule.getSymmetry();
@@ -1021,91 +1010,275 @@ public class MoleculeIO {
     }
 	
     /**
-     * Read a pdb atom from the current record.
+     * A batch of ATOM and HETATM records.
+     *
+     * The lines are copied in as they are read. When the batch is
+     * flushed the fields of the atoms are parsed in parallel, and
+     * then the chains, residues and atoms are built in file order.
      */
-    private static Atom readPDBAtom(FILE file, Molecule molecule){
-	Atom atom = molecule.addAtom();
-
-	// atom name
-	char c12 = file.getChar(12);
-	char c13 = file.getChar(13);
-	char c14 = file.getChar(14);
-	char c15 = file.getChar(15);
-	String atomLabel = getAtomName(c12, c13, c14, c15);
-		
-	atom.setAtomLabel(atomLabel);
+    private static class PDBAtomRecords {
+	/** The number of records parsed together. */
+	private static final int MaxRecords = 1 << 16;
+
+	/** The smallest number of records parsed on one thread. */
+	private static final int MinimumBlock = 4096;
+
+	/** The number of records room is made for at first. */
+	private static final int InitialRecords = 256;
+
+	/** The text of the lines. */
+	private byte text[] = new byte[InitialRecords * 81];
+	private int used = 0;
+
+	/** The start and length of each line in text. */
+	private int start[] = new int[InitialRecords];
+	private int length[] = new int[InitialRecords];
+
+	/** The number of records. */
+	private int count = 0;
+
+	/** The parsed fields. */
+	private int id[], residueId[], element[];
+	private double x[], y[], z[], occupancy[], bFactor[];
+	private String label[];
+
+	/*
+	 * The last values for the various residue and chain names.
+	 * They belong to one read, so that files can be read at the
+	 * same time.
+	 */
+	private int lastResidueNumber;
+	private char lastInsertionCode;
+	private char lastChainId;
+	private char lastResidueA;
+	private char lastResidueB;
+	private char lastResidueC;
+
+	/** Initialise the values for chain ids. */
+	private void initialiseReader(){
+	    lastResidueNumber = Residue.undefinedResidueNumber;
+	    lastInsertionCode = 0;
+	    lastResidueA = 0;
+	    lastResidueB = 0;
+	    lastResidueC = 0;
+	    lastChainId = 0;
+	}
+
+	/**
+	 * Do we need a new chain.
+	 * Simplified case. Ignore the contents of columns 73-76.
+	 */
+	private boolean needNewChain(char currentChainId){
+	    if(currentChainId != lastChainId){
+		initialiseReader();
+
+		lastChainId = currentChainId;
+		return true;
+	    }
 
-	// record if the atom had a left justified name...
-	if(c12 != ' '){
-	    atom.attributes.add(Atom.Attribute.NameLeftJustified);
+	    return false;
 	}
-		
-	if(isSolventAtom()){
-	    atom.setSolvent(true);
+
+	/** Do we need a new residue? */
+	private boolean needNewResidue(int currentResidueNumber,
+				       char currentInsertionCode,
+				       char currentResidueA,
+				       char currentResidueB,
+				       char currentResidueC){
+	    if(lastResidueA != currentResidueA ||
+	       lastResidueB != currentResidueB ||
+	       lastResidueC != currentResidueC ||
+	       lastResidueNumber != currentResidueNumber ||
+	       lastInsertionCode != currentInsertionCode){
+
+		lastResidueNumber = currentResidueNumber;
+		lastInsertionCode = currentInsertionCode;
+		lastResidueA = currentResidueA;
+		lastResidueB = currentResidueB;
+		lastResidueC = currentResidueC;
+
+		return true;
+	    }
+	    return false;
 	}
 
-	char c0 = file.getChar(0);
+	/** Is the atom label a solvent label. */
+	private boolean isSolventAtom(){
+	    if((lastResidueA == 'H' &&
+		lastResidueB == 'O' &&
+		lastResidueC == 'H') ||
+	       (lastResidueA == 'W' &&
+		lastResidueB == 'A' &&
+		lastResidueC == 'T')){
+		return true;
+	    }
 
-	if(c0 == 'H'){
-	    atom.setHeteroAtom(true);
+	    return false;
 	}
 
-	// atom id
-	int id = file.readInteger(6, 5);
-	
-	atom.setId(id);
+	public PDBAtomRecords(){
+	    initialiseReader();
+	}
 
-	// insertion code. 
-	char c16 = file.getChar(16);
-	atom.setInsertionCode(c16);
+	/** Add the current line of the file. */
+	public void add(FILE file){
+	    int len = file.getLineLength();
 
-	// atom coordinates
-	double x = file.readDouble(30, 8);
-	double y = file.readDouble(38, 8);
-	double z = file.readDouble(46, 8);
-		
-	//atom.setCoordinates(x, y, z);
-	atom.set(x, y, z);
+	    if(count == start.length){
+		int n = Math.min(2 * count, MaxRecords);
+		start = Arrays.copyOf(start, n);
+		length = Arrays.copyOf(length, n);
+	    }
 
-	// set bFactor and occupancy
-	double o = file.readDouble(56, 4);
-	atom.setOccupancy(o);
+	    if(used + len > text.length){
+		byte newText[] = new byte[Math.max(2 * text.length, used + len)];
+		System.arraycopy(text, 0, newText, 0, used);
+		text = newText;
+	    }
 
-	double b = file.readDouble(60, 6);
-	atom.setBFactor(b);
+	    start[count] = used;
+	    length[count] = file.copyLine(text, used);
+	    used += len;
+	    count++;
+	}
 
-	// figure out the element
-	int element = PeriodicTable.UNKNOWN;
+	/** Is there room for more records. */
+	public boolean isFull(){
+	    return count == MaxRecords;
+	}
 
-	// assign the element
-	if(file.getLineLength() >= 78){
-	    char e0 = file.getChar(76);
-	    char e1 = file.getChar(77);
+	/** Return character c of record i, as FILE.getChar() does. */
+	private char getChar(int i, int c){
+	    if(c < 0 || c >= length[i]){
+		return (char)FILE.EOF;
+	    }
 
-	    element = PeriodicTable.getElementFromSymbol(e0, e1);
+	    return (char)text[start[i] + c];
 	}
 
-	if(element == PeriodicTable.UNKNOWN){
-	    element = getElementFromPDBAtomLabel(c12, c13);
+	/** Parse the fields of records [from, to). */
+	private void parse(int from, int to){
+	    for(int i = from; i < to; i++){
+		int s = start[i];
+		int len = length[i];
+
+		residueId[i] = FILE.readInteger(text, s, len, 22, 4);
+		id[i] = FILE.readInteger(text, s, len, 6, 5);
+		x[i] = FILE.readDouble(text, s, len, 30, 8);
+		y[i] = FILE.readDouble(text, s, len, 38, 8);
+		z[i] = FILE.readDouble(text, s, len, 46, 8);
+		occupancy[i] = FILE.readDouble(text, s, len, 56, 4);
+		bFactor[i] = FILE.readDouble(text, s, len, 60, 6);
+
+		char c12 = getChar(i, 12);
+		char c13 = getChar(i, 13);
+
+		label[i] = getAtomName(c12, c13, getChar(i, 14), getChar(i, 15));
+
+		// figure out the element
+		int e = PeriodicTable.UNKNOWN;
+
+		if(len >= 78){
+		    e = PeriodicTable.getElementFromSymbol(getChar(i, 76),
+							   getChar(i, 77));
+		}
+
+		if(e == PeriodicTable.UNKNOWN){
+		    e = getElementFromPDBAtomLabel(c12, c13);
+		}
+
+		element[i] = e;
+	    }
 	}
 
-	atom.setElement(element);
+	/** Parse the records and add their atoms to the molecule. */
+	public void flush(Molecule molecule){
+	    if(count == 0){
+		return;
+	    }
 
-	return atom;
-    }
+	    if(x == null || x.length < count){
+		int n = start.length;
+		id = new int[n];
+		residueId = new int[n];
+		element = new int[n];
+		x = new double[n];
+		y = new double[n];
+		z = new double[n];
+		occupancy = new double[n];
+		bFactor = new double[n];
+		label = new String[n];
+	    }
+
+	    Parallel.forRange(count, MinimumBlock, new Parallel.Block(){
+		    public void run(int from, int to){
+			parse(from, to);
+		    }
+		});
+
+	    for(int i = 0; i < count; i++){
+		// where is the insertion code exactly???
+		char insertionCode = getChar(i, 26);
+		char chainId = getChar(i, 21);
+		char ca = getChar(i, 17);
+		char cb = getChar(i, 18);
+		char cc = getChar(i, 19);
+
+		if(needNewChain(chainId)){
+		    Chain chain = molecule.addChain();
+
+		    chain.setName(length[i] <= 21 ?
+				  "" : new String(text, start[i] + 21, 1));
+		}
 
-    /** Is the atom label a solvent label. */
-    private static boolean isSolventAtom(){
-	if((lastResidueA == 'H' &&
-	    lastResidueB == 'O' &&
-	    lastResidueC == 'H') ||
-	   (lastResidueA == 'W' &&
-	    lastResidueB == 'A' &&
-	    lastResidueC == 'T')){
-	    return true;
+		if(needNewResidue(residueId[i], insertionCode, ca, cb, cc)){
+		    Residue residue = molecule.addResidue();
+		    String residueName = getResidueName(ca, cb, cc);
+		    residue.setNumber(residueId[i]);
+		    residue.setInsertionCode(insertionCode);
+		    residue.setName(residueName);
+		}
+
+		addAtom(molecule, i);
+
+		label[i] = null;
+	    }
+
+	    count = 0;
+	    used = 0;
 	}
 
-	return false;
+	/** Add the atom for record i. */
+	private void addAtom(Molecule molecule, int i){
+	    Atom atom = molecule.addAtom();
+
+	    atom.setAtomLabel(label[i]);
+
+	    // record if the atom had a left justified name...
+	    if(getChar(i, 12) != ' '){
+		atom.attributes.add(Atom.Attribute.NameLeftJustified);
+	    }
+
+	    if(isSolventAtom()){
+		atom.setSolvent(true);
+	    }
+
+	    if(getChar(i, 0) == 'H'){
+		atom.setHeteroAtom(true);
+	    }
+
+	    atom.setId(id[i]);
+
+	    // insertion code.
+	    atom.setInsertionCode(getChar(i, 16));
+
+	    atom.set(x[i], y[i], z[i]);
+
+	    atom.setOccupancy(occupancy[i]);
+	    atom.setBFactor(bFactor[i]);
+
+	    atom.setElement(element[i]);
+	}
     }
 
     /** Assign element type from pdb atom label. */
@@ -1296,8 +1469,106 @@ public class MoleculeIO {
 	}
     }
 
+    /**
+     * Write several molecules to one file, as the records of
+     * an SD file for MDL molecules. The molecules of an SD file
+     * are formatted in parallel.
+     */
+    public static void write(List<Molecule> molecules, FILE output, String type){
+	if(type == null && !molecules.isEmpty()){
+	    type = molecules.get(0).getType();
+	}
+
+	if(MDLMol.equals(type)){
+	    final List<Molecule> list = molecules;
+
+	    writeRecords(output, list.size(), MoleculeBlock, new RecordFormatter(){
+		    public void format(RecordBuffer out, int start, int end){
+			for(int m = start; m < end; m++){
+			    formatMDLMol(list.get(m), out, true);
+			}
+		    }
+		});
+	}else{
+	    for(Molecule molecule : molecules){
+		write(molecule, output, type);
+	    }
+	}
+    }
+
+    /** The number of atoms formatted together in one buffer. */
+    private static final int RecordBlock = 16384;
+
+    /** The number of molecules of an SD file formatted together. */
+    private static final int MoleculeBlock = 64;
+
+    /** The size that record buffers start at. */
+    private static final int RecordBufferSize = 1 << 20;
+
+    /** Formats the records for items [start, end) into a buffer. */
+    private interface RecordFormatter {
+	void format(RecordBuffer out, int start, int end);
+    }
+
+    /**
+     * Format the records for n items in blocks of blockSize and
+     * write them in order. With more than one thread, groups of
+     * blocks are formatted on the Parallel workers into buffers
+     * that are reused for each group.
+     */
+    private static void writeRecords(FILE output, int n, int blockSize,
+				     final RecordFormatter formatter){
+	int blocks = (n + blockSize - 1) / blockSize;
+	int threads = Parallel.getThreadCount();
+
+	if(threads == 1 || blocks <= 1 || Parallel.isWorkerThread()){
+	    RecordBuffer buffer = new RecordBuffer(RecordBufferSize, output);
+
+	    for(int start = 0; start < n; start += blockSize){
+		formatter.format(buffer, start, Math.min(n, start + blockSize));
+		buffer.writeTo(output);
+	    }
+
+	    return;
+	}
+
+	int group = Math.min(blocks, 2 * threads);
+	RecordBuffer buffers[] = new RecordBuffer[group];
+
+	for(int b = 0; b < group; b++){
+	    buffers[b] = new RecordBuffer(RecordBufferSize, output);
+	}
+
+	List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(group);
+
+	for(int first = 0; first < blocks; first += group){
+	    int last = Math.min(blocks, first + group);
+
+	    tasks.clear();
+
+	    for(int b = first; b < last; b++){
+		final RecordBuffer buffer = buffers[b - first];
+		final int start = b * blockSize;
+		final int end = Math.min(n, start + blockSize);
+
+		tasks.add(new Callable<Object>(){
+			public Object call(){
+			    formatter.format(buffer, start, end);
+			    return null;
+			}
+		    });
+	    }
+
+	    Parallel.invokeAll(tasks);
+
+	    for(int b = first; b < last; b++){
+		buffers[b - first].writeTo(output);
+	    }
+	}
+    }
+
     /** Write a molecule out as a PDB file. */
-    private static void writePDB(Molecule molecule, FILE output){
+    private static void writePDB(final Molecule molecule, FILE output){
 	Symmetry symmetry = molecule.getSymmetry();
 
 	output.println("REMARK Written by MoleculeViewer " + Version.getVersion());
@@ -1340,134 +1611,132 @@ public class MoleculeIO {
 
 	int atomCount = molecule.getAtomCount();
 
-	for(int i = 0; i < atomCount; i++){
-	    Atom atom = molecule.getAtom(i);
-
-	    if(atom.isHeteroAtom()){
-		output.print("HETATM");
-	    }else{
-		output.print("ATOM  ");
-	    }
-
-	    output.print("%5d", atom.getId());
-
-	    String atomName = atom.getAtomLabel();
-	    int len = atomName.length();
-
-	    output.print(" ");
-
-	    // need to handle hydrogens a bit differently
-	    if(len == 4){
-		output.print("%s", atomName);
-	    }else if(len == 3){
-		if(atom.attributes.contains(Atom.Attribute.NameLeftJustified)){
-		    output.print("%s ", atomName);
-		}else{
-		    output.print(" %s", atomName);
-		}
-	    }else if(len == 2){
-		if(atom.attributes.contains(Atom.Attribute.NameLeftJustified)){
-		    output.print("%s  ", atomName);
-		}else{
-		    output.print(" %s ", atomName);
-		}
-	    }else if(len == 1){
-		if(atom.attributes.contains(Atom.Attribute.NameLeftJustified)){
-		    output.print("%s   ", atomName);
-		}else{
-		    output.print(" %s  ", atomName);
+	writeRecords(output, atomCount, RecordBlock, new RecordFormatter(){
+		public void format(RecordBuffer out, int start, int end){
+		    for(int i = start; i < end; i++){
+			formatPDBAtom(molecule.getAtom(i), out);
+		    }
 		}
-	    }
-
-	    char altLoc = atom.getInsertionCode();
+	    });
 
-	    output.print("%c", altLoc);
+	writeRecords(output, atomCount, RecordBlock, new RecordFormatter(){
+		public void format(RecordBuffer out, int start, int end){
+		    for(int i = start; i < end; i++){
+			formatPDBConects(molecule.getAtom(i), out);
+		    }
+		}
+	    });
+    }
 
-	    Residue res = atom.getResidue();
+    /** Format the ATOM or HETATM record for an atom. */
+    private static void formatPDBAtom(Atom atom, RecordBuffer out){
+	if(atom.isHeteroAtom()){
+	    out.put("HETATM");
+	}else{
+	    out.put("ATOM  ");
+	}
 
-	    output.print("%-3s", res.getName());
+	out.putInt(atom.getId(), 5);
 
-	    Chain chain = res.getParent();
+	String atomName = atom.getAtomLabel();
+	int len = atomName.length();
 
-	    String chainName = chain.getName();
+	out.put(' ');
 
-	    if(chainName.length() > 1){
-		System.err.println("MoleculeIO.writePDB: chain name > 1 character |" +
-				   chainName + "|");
-		chainName = chainName.substring(0, 1);
+	// need to handle hydrogens a bit differently
+	if(len == 4){
+	    out.put(atomName);
+	}else if(len >= 1 && len <= 3){
+	    if(atom.attributes.contains(Atom.Attribute.NameLeftJustified)){
+		out.putLeft(atomName, 4);
+	    }else{
+		out.put(' ');
+		out.putLeft(atomName, 3);
 	    }
+	}
 
-	    output.print(" ");
+	out.put(atom.getInsertionCode());
 
-	    output.print("%s", chainName);
+	Residue res = atom.getResidue();
 
-	    output.print("%4d", res.getNumber());
+	out.putLeft(res.getName(), 3);
 
-	    char c = res.getInsertionCode();
+	Chain chain = res.getParent();
 
-	    output.print("%c", c);
+	String chainName = chain.getName();
 
-	    output.print("   ");
+	if(chainName.length() > 1){
+	    System.err.println("MoleculeIO.writePDB: chain name > 1 character |" +
+			       chainName + "|");
+	    chainName = chainName.substring(0, 1);
+	}
 
-	    output.print("%8.3f", atom.x);
-	    output.print("%8.3f", atom.y);
-	    output.print("%8.3f", atom.z);
-	    output.print("%6.2f", atom.getOccupancy());
-	    output.print("%6.2f", atom.getBFactor());
-	    output.print("          ");
+	out.put(' ');
+	out.put(chainName);
+	out.putInt(res.getNumber(), 4);
+	out.put(res.getInsertionCode());
+	out.spaces(3);
+
+	out.putFixed(atom.x, 8, 3);
+	out.putFixed(atom.y, 8, 3);
+	out.putFixed(atom.z, 8, 3);
+	out.putFixed(atom.getOccupancy(), 6, 2);
+	out.putFixed(atom.getBFactor(), 6, 2);
+	out.spaces(10);
+
+	String symbol =
+	    PeriodicTable.getAtomSymbolFromElement(atom.getElement());
+
+	if(symbol.length() == 1){
+	    out.put(' ');
+	    out.put(symbol);
+	}else{
+	    out.put(symbol.toUpperCase());
+	}
 
-	    String symbol =
-		PeriodicTable.getAtomSymbolFromElement(atom.getElement());
+	out.newline();
+    }
 
-	    if(symbol.length() == 1){
-		output.print(" %s", symbol);
-	    }else{
-		output.print("%s", symbol.toUpperCase());
+    /** Format the CONECT records that an atom needs, if any. */
+    private static void formatPDBConects(Atom atom, RecordBuffer out){
+	int bondCount = atom.getBondCount();
+	boolean needsConects = false;
+	for(int b = 0; b < bondCount; b++){
+	    Bond bond = atom.getBond(b);
+	    if(bond.getBondOrder() != Bond.BondOrder.SingleBond){
+		needsConects = true;
+		break;
 	    }
-
-	    output.print("\n");
 	}
 
-	for(int i = 0; i < atomCount; i++){
-	    Atom atom = molecule.getAtom(i);
-	    int bondCount = atom.getBondCount();
-	    boolean needsConects = false;
-	    for(int b = 0; b < bondCount; b++){
-		Bond bond = atom.getBond(b);
-		if(bond.getBondOrder() != Bond.BondOrder.SingleBond){
-		    needsConects = true;
-		    break;
-		}
-	    }
-
-	    for(int b = 0; b < bondCount; b++){
-		Bond bond = atom.getBond(b);
-		if(needsConects || bond.isExplicitBond()){
-		    // need to print the conect info out
-		    Atom otherAtom = bond.getOtherAtom(atom);
-		    output.print("CONECT");
-		    output.print("%5d", atom.getId());
-		    int bondOrder = bond.getBondOrder().getMdlBondType();
-		    int otherId = otherAtom.getId();
-		    for(int bo = 0; bo < bondOrder; bo++){
-			output.print("%5d", otherId);
-		    }
-		    output.print("\n");
+	for(int b = 0; b < bondCount; b++){
+	    Bond bond = atom.getBond(b);
+	    if(needsConects || bond.isExplicitBond()){
+		// need to print the conect info out
+		Atom otherAtom = bond.getOtherAtom(atom);
+		out.put("CONECT");
+		out.putInt(atom.getId(), 5);
+		int bondOrder = bond.getBondOrder().getMdlBondType();
+		int otherId = otherAtom.getId();
+		for(int bo = 0; bo < bondOrder; bo++){
+		    out.putInt(otherId, 5);
 		}
+		out.newline();
 	    }
 	}
     }
 
     /** Write an Sybyl mol2 file to the output stream. */
-    private static void writeMol2(Molecule molecule, FILE output){
+    private static void writeMol2(final Molecule molecule, FILE output){
         output.println("# Sybyl Mol2 file written by MoleculeViewer " + Version.getVersion());
         output.println("@<TRIPOS>MOLECULE");
         output.println(molecule.getName());
 
-        int residueCount = molecule.getResidueCount();
+        final int residueCount = molecule.getResidueCount();
         output.print("%d", molecule.getAtomCount());
         output.print(" %d", molecule.getBondCount());
-        output.print(" %d\n", residueCount);
+        output.print(" %d", residueCount);
+        output.println("");
         output.println((residueCount == 1) ? "SMALL" : "PROTEIN");
         output.println("USER_CHARGES");
         output.println("");
@@ -1475,69 +1744,95 @@ public class MoleculeIO {
 
         int atomCount = molecule.getAtomCount();
 
+        // number the atoms and residues from 1 in file order,
+        // the atom ids are put back afterwards
+        int ids[] = new int[atomCount];
+        final int resNumbers[] = new int[atomCount];
         Residue prevRes = null;
         int resNumber = 0;
 
-        HashMap<Atom, Integer> atomNumberHash = new HashMap<Atom, Integer>(500);
-
-        output.println("@<TRIPOS>ATOM");
         for(int a = 0; a < atomCount; a++){
             Atom atom = molecule.getAtom(a);
-            output.print("%5d", a + 1);
-            output.print(" %-4s", atom.getAtomLabel());
-            output.print(" %8.3f", atom.x);
-            output.print(" %8.3f", atom.y);
-            output.print(" %8.3f", atom.z);
-            output.print(" %-6s", atom.getAtomType());
+            ids[a] = atom.getId();
+            atom.setId(a + 1);
 
             Residue res = atom.getResidue();
             if(res != prevRes){
                 resNumber++;
                 prevRes = res;
             }
-            output.print(" %5d", resNumber);
-
-            if(residueCount == 1){
-                // probably a ligand
-                output.print(" %3s", res.getName());
-            }else{
-                //probably a protein
-                output.print(" %3s", res.getName());
-                output.print("%-5d", res.getNumber());
-            }
-
-            output.print(" %8.3f\n", atom.getBFactor());
-
-            atomNumberHash.put(atom, Integer.valueOf(a + 1));
+            resNumbers[a] = resNumber;
         }
 
+        try {
+            output.println("@<TRIPOS>ATOM");
+            writeRecords(output, atomCount, RecordBlock, new RecordFormatter(){
+                    public void format(RecordBuffer out, int start, int end){
+                        for(int a = start; a < end; a++){
+                            Atom atom = molecule.getAtom(a);
+                            out.putInt(a + 1, 5);
+                            out.put(' ');
+                            out.putLeft(atom.getAtomLabel(), 4);
+                            out.put(' ');
+                            out.putFixed(atom.x, 8, 3);
+                            out.put(' ');
+                            out.putFixed(atom.y, 8, 3);
+                            out.put(' ');
+                            out.putFixed(atom.z, 8, 3);
+                            out.put(' ');
+                            out.putLeft(String.valueOf(atom.getAtomType()), 6);
+                            out.put(' ');
+                            out.putInt(resNumbers[a], 5);
+
+                            Residue res = atom.getResidue();
+                            out.put(' ');
+                            out.putRight(res.getName(), 3);
+
+                            if(residueCount != 1){
+                                //probably a protein
+                                out.putIntLeft(res.getNumber(), 5);
+                            }
 
-        int bondCount = molecule.getBondCount();
-        output.println("@<TRIPOS>BOND");
-        for(int b = 0; b < bondCount; b++){
-            Bond bond = molecule.getBond(b);
-            output.print("%5d", b + 1);
-            int i = (atomNumberHash.get(bond.getFirstAtom())).intValue();
-            int j = (atomNumberHash.get(bond.getSecondAtom())).intValue();
-            output.print(" %5d", i);
-            output.print(" %5d", j);
-
-            Bond.BondOrder bondOrder = bond.getBondOrder();
-
-	    if (EnumSet.range(Bond.BondOrder.SingleBond, Bond.BondOrder.TripleBond).contains(bondOrder)) {
-                output.print(" %3d", bondOrder.getMdlBondType());
-            }else if(bondOrder == Bond.BondOrder.AromaticBond){
-                output.print("  ar");
-            }else if(bondOrder == Bond.BondOrder.AmideBond){
-                output.print("  am");
-            }else{
-                output.print("  un");
-            }
+                            out.put(' ');
+                            out.putFixed(atom.getBFactor(), 8, 3);
+                            out.newline();
+                        }
+                    }
+                });
+
+            output.println("@<TRIPOS>BOND");
+            writeRecords(output, molecule.getBondCount(), RecordBlock, new RecordFormatter(){
+                    public void format(RecordBuffer out, int start, int end){
+                        for(int b = start; b < end; b++){
+                            Bond bond = molecule.getBond(b);
+                            out.putInt(b + 1, 5);
+                            out.put(' ');
+                            out.putInt(bond.getFirstAtom().getId(), 5);
+                            out.put(' ');
+                            out.putInt(bond.getSecondAtom().getId(), 5);
+
+                            Bond.BondOrder bondOrder = bond.getBondOrder();
+
+                            if (EnumSet.range(Bond.BondOrder.SingleBond, Bond.BondOrder.TripleBond).contains(bondOrder)) {
+                                out.put(' ');
+                                out.putInt(bondOrder.getMdlBondType(), 3);
+                            }else if(bondOrder == Bond.BondOrder.AromaticBond){
+                                out.put("  ar");
+                            }else if(bondOrder == Bond.BondOrder.AmideBond){
+                                out.put("  am");
+                            }else{
+                                out.put("  un");
+                            }
 
-            output.print("\n");
+                            out.newline();
+                        }
+                    }
+                });
+        }finally{
+            for(int a = 0; a < atomCount; a++){
+                molecule.getAtom(a).setId(ids[a]);
+            }
         }
-
-        atomNumberHash = null;
     }
 
     /** Write an MDL mol file to the output stream. */
@@ -1546,16 +1841,29 @@ public class MoleculeIO {
     }
 
     private static void writeMDLMol(Molecule molecule, FILE output, boolean dollars){
-	output.println(molecule.getName());
-	output.println("MoleculeViewer");
-	output.println("");
+	RecordBuffer out = new RecordBuffer(RecordBufferSize, output);
+
+	formatMDLMol(molecule, out, dollars);
+
+	out.writeTo(output);
+    }
+
+    /** Format an MDL mol file into the buffer. */
+    private static void formatMDLMol(Molecule molecule, RecordBuffer out,
+				     boolean dollars){
+	out.put(String.valueOf(molecule.getName()));
+	out.newline();
+	out.put("MoleculeViewer");
+	out.newline();
+	out.newline();
 
 	int atomCount = molecule.getAtomCount();
 	int bondCount = molecule.getBondCount();
 
-	output.print("%3d", atomCount);
-	output.print("%3d", bondCount);
-	output.println("  0  0  0  0  0  0  0  0999 V2000");
+	out.putInt(atomCount, 3);
+	out.putInt(bondCount, 3);
+	out.put("  0  0  0  0  0  0  0  0999 V2000");
+	out.newline();
 
 	// first of all force the ids to be numbered from 1
 	for(int a = 0; a < atomCount; a++){
@@ -1566,36 +1874,28 @@ public class MoleculeIO {
 	for(int a = 0; a < atomCount; a++){
 	    Atom atom = molecule.getAtom(a);
 	    // coordinates
-	    output.print("%10.4f", atom.x);
-	    output.print("%10.4f", atom.y);
-	    output.print("%10.4f", atom.z);
+	    out.putFixed(atom.x, 10, 4);
+	    out.putFixed(atom.y, 10, 4);
+	    out.putFixed(atom.z, 10, 4);
 
 	    // element symbol
-	    output.print(" ");
-	    String symbol = atom.getAtomSymbol();
-	    output.print(symbol);
-	    if(symbol.length() == 1){
-		output.print("  ");
-	    }else if(symbol.length() == 2){
-		output.print(" ");
-	    }
+	    out.put(' ');
+	    out.putLeft(atom.getAtomSymbol(), 3);
 
 	    // isotope
-	    output.print(" ");
-	    output.print("0");
-	    output.print(" ");
+	    out.put(" 0 ");
 
 	    // charge
-            //	    output.print(" ");
 	    int charge = atom.getCharge();
 	    if(charge != 0){
 		charge = 4 - charge;
 	    }
 
-	    output.print("%2d", charge);
+	    out.putInt(charge, 2);
 
 	    // other stuff?
-	    output.println("  0  0  0  0  0  0  0  0  0  0");
+	    out.put("  0  0  0  0  0  0  0  0  0  0");
+	    out.newline();
 	}
 
 	for(int b = 0; b < bondCount; b++){
@@ -1604,15 +1904,18 @@ public class MoleculeIO {
 	    Atom secondAtom = bond.getSecondAtom();
 	    int order = bond.getBondOrder().getMdlBondType();
 
-	    output.print("%3d", firstAtom.getId());
-	    output.print("%3d", secondAtom.getId());
-	    output.print("%3d", order);
-	    output.println("  0  0  0  0");
+	    out.putInt(firstAtom.getId(), 3);
+	    out.putInt(secondAtom.getId(), 3);
+	    out.putInt(order, 3);
+	    out.put("  0  0  0  0");
+	    out.newline();
 	}
-	output.println("M  END");
+	out.put("M  END");
+	out.newline();
 
         if(dollars){
-            output.println("$$$$");
+            out.put("$$$$");
+            out.newline();
         }
     }
 }
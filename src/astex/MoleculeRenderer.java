@@ -73,6 +73,7 @@ package astex;
  */
 import java.awt.Color;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.io.*;
 import java.net.*;
 import java.lang.reflect.*;
@@ -115,9 +116,12 @@ public class MoleculeRenderer {
     /** The list of hydrogen bonds. */
     private List<Bond> hbonds = new ArrayList<Bond>(100);
 
-    /** The list of MoleculeRendererListeners. */
+    /**
+     * The list of MoleculeRendererListeners, copied on write as
+     * loads report their progress from other threads.
+     */
     private transient List<MoleculeRendererListener> moleculeRendererListeners =
-	    new ArrayList<MoleculeRendererListener>(5);
+	    new CopyOnWriteArrayList<MoleculeRendererListener>();
 
     /** The set of defined groups. */
     public HashMap<String,HashSet<Atom>> groups = new HashMap<String,HashSet<Atom>>(11);
@@ -210,6 +214,12 @@ public class MoleculeRenderer {
 	shadows      = Settings.getBoolean("config", "shadows");
 	bondLineRadius = Settings.getDouble("config", "bondlineradius");
 
+	contourScheduler.setListener(new Runnable(){
+		public void run(){
+		    repaint();
+		}
+	    });
+
 	initialise();
     }
 
@@ -353,6 +363,20 @@ public class MoleculeRenderer {
 
 		boolean changed = false;
 
+		if(args.defined("-pyramid")){
+		    map.setPyramidLevels(args.getInteger("-pyramid", 0));
+		    map.setSavePyramid(args.getBoolean("-savepyramid", false));
+		    map.setNeedsReading(true);
+		    changed = true;
+		}
+
+		if(args.defined("-precision")){
+		    map.setPrecision(GridData.Precision.parse(args.getString("-precision", null),
+							      GridData.Precision.FLOAT));
+		    map.setNeedsReading(true);
+		    changed = true;
+		}
+
 		double centerValue = args.getDouble("-multicenter",
 						    Double.NEGATIVE_INFINITY);
 
@@ -505,6 +529,23 @@ public class MoleculeRenderer {
 	}
     }
 
+    /**
+     * Write the scene to a session snapshot with -write file,
+     * or replace the scene with one with -read file.
+     */
+    public void handleSessionCommand(Arguments args){
+	String writeFile = args.getString("-write", null);
+	String readFile  = args.getString("-read", null);
+
+	if(writeFile != null){
+	    Session.write(this, writeFile);
+	}else if(readFile != null){
+	    Session.read(this, readFile);
+	}else{
+	    Log.error("you must specify -write or -read");
+	}
+    }
+
     /**
      * Write the molecule to the specified file.
      */
@@ -1035,6 +1076,19 @@ public class MoleculeRenderer {
 		    mapAtomColors(tmesh.cylinders, mapAtoms, defaultColor, dmax, wmax);
 		}
 	    }
+
+	    if(args.defined("-compact")){
+		if(args.getBoolean("-compact", true)){
+		    tmesh.compact();
+		}else{
+		    tmesh.expand();
+		}
+	    }
+
+	    if(args.defined("-write")){
+		// .tmb files are written in binary
+		tmesh.output(args.getString("-write", null));
+	    }
 	}
     }
 
@@ -1043,6 +1097,8 @@ public class MoleculeRenderer {
 			      int defaultColor, double dmax, double wmax){
 	double maxRadius = 0.0;
 
+	tmesh.ensureVertexColors();
+
 	for(Atom atom : mapAtoms){
 	    double r = atom.getVDWRadius();
 	    if(r > maxRadius){
@@ -1307,6 +1363,13 @@ public class MoleculeRenderer {
 	}
     }
 
+    /** Fire a load progress event, on the loading thread. */
+    void fireLoadProgressEvent(LoadTask task){
+	for(MoleculeRendererListener l : moleculeRendererListeners){
+	    l.loadProgress(this, task);
+	}
+    }
+
     /** Fire an atom selected event. */
     private void fireAtomSelectedEvent(Atom atom){
 	for(MoleculeRendererListener l : moleculeRendererListeners){
@@ -1314,6 +1377,218 @@ public class MoleculeRenderer {
 	}
     }
 
+    /**
+     * Load a molecule on a background thread. It is added to
+     * the scene when it has been read and prepared, and the load
+     * can be followed or cancelled through the returned task.
+     */
+    public LoadTask loadMolecule(String filename, String name){
+	LoadTask task =
+	    new LoadTask(this, LoadTask.Kind.Molecule, filename, name, true);
+
+	task.start();
+
+	return task;
+    }
+
+    /** Load a map on a background thread, as for loadMolecule. */
+    public LoadTask loadMap(String filename, String name){
+	LoadTask task =
+	    new LoadTask(this, LoadTask.Kind.Map, filename, name, true);
+
+	task.start();
+
+	return task;
+    }
+
+    /** Loads started ahead of the script commands that need them. */
+    private transient HashMap<String,LoadTask> preloads = null;
+
+    /** Files a script will load, waiting for a preload to finish. */
+    private transient LinkedList<String> preloadQueue = null;
+
+    /** Start reading a molecule that a later command will load. */
+    private void preload(String filename){
+	LoadTask task =
+	    new LoadTask(this, LoadTask.Kind.Molecule, filename, filename, false);
+	preloads.put(filename, task);
+	task.start();
+    }
+
+    /**
+     * Start the queued preloads, keeping no more than one per
+     * thread read and waiting to be taken.
+     */
+    private void startPreloads(){
+	while(!preloadQueue.isEmpty() &&
+	      preloads.size() < Parallel.getThreadCount()){
+	    preload(preloadQueue.removeFirst());
+	}
+    }
+
+    /**
+     * Return the task that read the file ahead of time, or null
+     * if it wasn't read or has changed since.
+     */
+    private LoadTask takePreload(String filename){
+	if(preloads == null){
+	    return null;
+	}
+
+	LoadTask task = preloads.remove(filename);
+
+	if(task == null){
+	    // the caller reads it now
+	    preloadQueue.remove(filename);
+	}
+
+	startPreloads();
+
+	return task == null ? null : task.take();
+    }
+
+    /**
+     * Queue the molecules a script loads and start reading the
+     * first of them, so that they are read at the same time
+     * rather than one after another. The load commands still
+     * add them in script order. Returns the files queued.
+     *
+     * A file that an earlier command names, e.g. with write -file
+     * or session -write, may not exist yet or may be rewritten
+     * before it is loaded, so it is left for its command to read.
+     * Nothing after a run command is read ahead either.
+     */
+    private List<String> preloadScript(String script){
+	List<String> queued = new ArrayList<String>();
+
+	if(preloads == null){
+	    preloads = new HashMap<String,LoadTask>();
+	    preloadQueue = new LinkedList<String>();
+	}
+
+	// the files named by the commands so far
+	HashSet<String> named = new HashSet<String>();
+
+	for(List<String> words : splitScript(script)){
+	    int n = words.size();
+
+	    if(n == 0){
+		continue;
+	    }
+
+	    String w0 = words.get(0);
+
+	    if("run".equals(w0)){
+		// the script it runs may write anything
+		break;
+	    }
+
+	    if(n >= 3 && n <= 4){
+		String w1 = words.get(1);
+		String file = words.get(n == 3 ? 2 : 3);
+
+		if(("molecule".equals(w0) && "load".equals(w1)) ||
+		   ("load".equals(w0) && "molecule".equals(w1))){
+		    // sd files are read differently
+		    if(file.toLowerCase().indexOf(".sd") == -1 &&
+		       !named.contains(getPathKey(file)) &&
+		       !preloads.containsKey(file) &&
+		       !preloadQueue.contains(file)){
+			preloadQueue.add(file);
+			queued.add(file);
+		    }
+
+		    continue;
+		}
+	    }
+
+	    for(String w : words){
+		named.add(getPathKey(w));
+	    }
+	}
+
+	startPreloads();
+
+	return queued;
+    }
+
+    /** The file a script word refers to, for comparing names. */
+    private static String getPathKey(String word){
+	return new File(word).getAbsoluteFile().toURI().normalize().getPath();
+    }
+
+    /** Forget the preloads that a script didn't use. */
+    private void cancelPreloads(List<String> queued){
+	for(String file : queued){
+	    preloadQueue.remove(file);
+
+	    LoadTask task = preloads.remove(file);
+
+	    if(task != null){
+		task.cancel();
+	    }
+	}
+    }
+
+    /**
+     * Split a script into the words of each command, roughly
+     * as the lexer does, handling quotes and comments.
+     */
+    private static List<List<String>> splitScript(String script){
+	List<List<String>> commands = new ArrayList<List<String>>();
+	List<String> words = new ArrayList<String>();
+	StringBuilder word = null;
+	int len = script.length();
+
+	for(int i = 0; i < len; i++){
+	    char c = script.charAt(i);
+
+	    if(c == '\'' || c == '"'){
+		int end = script.indexOf(c, i + 1);
+		if(end == -1){
+		    end = len;
+		}
+		if(word == null){
+		    word = new StringBuilder();
+		}
+		word.append(script, i + 1, end);
+		i = end;
+		continue;
+	    }
+
+	    if(c == '#' || c == ';' || Character.isWhitespace(c)){
+		if(word != null){
+		    words.add(word.toString());
+		    word = null;
+		}
+
+		if(c == '#'){
+		    while(i + 1 < len && script.charAt(i + 1) != '\n'){
+			i++;
+		    }
+		}else if(c == ';'){
+		    commands.add(words);
+		    words = new ArrayList<String>();
+		}
+
+		continue;
+	    }
+
+	    if(word == null){
+		word = new StringBuilder();
+	    }
+	    word.append(c);
+	}
+
+	if(word != null){
+	    words.add(word.toString());
+	}
+
+	commands.add(words);
+
+	return commands;
+    }
+
     /** Add a molecule to the scene. */
     public void addMolecule(Molecule molecule){
 	molecules.add(molecule);
@@ -1394,8 +1669,10 @@ public class MoleculeRenderer {
 	    }
 
 	}else{
+	    LoadTask preloaded = takePreload(filename);
 
-	    Molecule molecule = MoleculeIO.read(filename);
+	    Molecule molecule = preloaded != null ?
+		preloaded.getMolecule() : MoleculeIO.read(filename);
 
 	    if(molecule != null){
 		molecule.setFilename(filename);
@@ -1442,6 +1719,7 @@ public class MoleculeRenderer {
 	    String moleculeName = molecule.getName();
 
 	    if(pattern.equals(moleculeName)){
+		molecule.setTrajectory(null);
 		fireMoleculeRemovedEvent(molecule);
 		it.remove();
 		System.out.println("removed " + moleculeName);
@@ -1455,6 +1733,7 @@ public class MoleculeRenderer {
 	    Molecule molecule = it.next();
 	    
 	    if(moleculeMatches(pattern, molecule)){
+		molecule.setTrajectory(null);
 		fireMoleculeRemovedEvent(molecule);
 		it.remove();
 	    }
@@ -1501,11 +1780,113 @@ public class MoleculeRenderer {
 	}
     }
 
+    /**
+     * Add a map from a session, whose contour objects
+     * have been restored with it.
+     */
+    void restoreMap(Map map){
+	maps.add(map);
+
+	fireMapAddedEvent(map);
+    }
+
     /** Add a map to the scene. */
     public void addMap(Map map){
+	addMap(map, null);
+    }
 
+    /**
+     * Add a map to the scene. If contours is not null it holds
+     * the contour levels that prepareMap() computed, otherwise
+     * the map is read and contoured here.
+     */
+    public void addMap(Map map, Tmesh contours[]){
 	maps.add(map);
-	int mapCount = maps.size();
+
+	initialiseContours(map, maps.size());
+
+	for(int i = 0; i < contourLevelCount; i++){
+	    // create the graphical object once
+	    String contourName =
+		getContourGraphicalObjectName(map, i);
+
+	    Tmesh contourObject = new Tmesh();
+	    contourObject.setName(contourName);
+	    addGraphicalObject(contourObject);
+	}
+
+	if(contours != null){
+	    for(int j = 0; j < Map.MaximumContourLevels; j++){
+		Tmesh contourObject = getContourGraphicalObject(map, j);
+
+		if(contourObject != null){
+		    if(contours[j] != null){
+			contourObject.setGeometry(contours[j]);
+			contourObject.setColor(map.getContourColor(j));
+		    }
+
+		    contourObject.setVisible(contours[j] != null);
+		}
+	    }
+	}else{
+	    // fix the rereading of maps when we load another map
+	    readMap(map);
+
+	    for(int j = 0; j < Map.MaximumContourLevels; j++){
+		contourMap(map, j);
+	    }
+	}
+
+	fireMapAddedEvent(map);
+    }
+
+    /**
+     * Read a map that hasn't been added yet and contour its
+     * displayed levels into new objects, for addMap(map, contours).
+     * Only the map is locked, so this can run in the background.
+     */
+    public Tmesh[] prepareMap(Map map){
+	int mapCount;
+
+	synchronized(this){
+	    mapCount = maps.size() + 1;
+	}
+
+	initialiseContours(map, mapCount);
+
+	readMap(map);
+
+	Tmesh contours[] = new Tmesh[Map.MaximumContourLevels];
+
+	synchronized(map){
+	    for(int j = 0; j < Map.MaximumContourLevels; j++){
+		if(map.getContourDisplayed(j)){
+		    if(map.needsReading()){
+			determineRegion(map);
+
+			map.setNeedsReading(false);
+		    }
+
+		    contours[j] = new Tmesh();
+		    contourRegion(map, j, map.getContourStyle(j), contours[j]);
+		}
+	    }
+	}
+
+	return contours;
+    }
+
+    /**
+     * Set the contour levels of a new map from the properties,
+     * guessing its type from the name or mapCount, its position
+     * in the list of maps.
+     */
+    private void initialiseContours(Map map, int mapCount){
+	if(!map.initialiseContours){
+	    return;
+	}
+
+	map.initialiseContours = false;
 
 	String mapType = null;
 
@@ -1538,68 +1919,47 @@ public class MoleculeRenderer {
 
 	Log.info("mapType " + mapType);
 
-	if(map.initialiseContours){
-	    for(int i = 0; i < contourLevelCount; i++){
-		String prefix = mapType + "." + i;
-		String levelLabel  = prefix + ".level";
-		String levelString = (String)properties.get(levelLabel);
-		double level = 3.0;
-		if(levelString != null){
-		    level = FILE.readDouble(levelString);
-		}
-		map.setContourLevel(i, level);
-
-		String colourLabel  = prefix + ".colour";
-		String colourString = (String)properties.get(colourLabel);
-		int colour = Color32.blue;
-		if(colourString != null){
-		    colour = Color32.getColorFromName(colourString);
-		}
-		map.setContourColor(i, colour);
-
-		String displayLabel  = prefix + ".displayed";
-		String displayString = (String)properties.get(displayLabel);
-		boolean display = false;
-		if(displayString != null &&
-		   "true".equals(displayString)){
-		    display = true;
-		}
-
-		map.setContourDisplayed(i, display);
-
-		String styleLabel  = prefix + ".style";
-		String styleString = (String)properties.get(styleLabel);
-		int style = Map.Lines;
-		if(styleString != null){
-		    if("solid".equals(styleString)){
-			style = Map.Surface;
-		    }else if("lines".equals(styleString)){
-			style = Map.Lines;
-		    }
+	for(int i = 0; i < contourLevelCount; i++){
+	    String prefix = mapType + "." + i;
+	    String levelLabel  = prefix + ".level";
+	    String levelString = (String)properties.get(levelLabel);
+	    double level = 3.0;
+	    if(levelString != null){
+		level = FILE.readDouble(levelString);
+	    }
+	    map.setContourLevel(i, level);
+
+	    String colourLabel  = prefix + ".colour";
+	    String colourString = (String)properties.get(colourLabel);
+	    int colour = Color32.blue;
+	    if(colourString != null){
+		colour = Color32.getColorFromName(colourString);
+	    }
+	    map.setContourColor(i, colour);
+
+	    String displayLabel  = prefix + ".displayed";
+	    String displayString = (String)properties.get(displayLabel);
+	    boolean display = false;
+	    if(displayString != null &&
+	       "true".equals(displayString)){
+		display = true;
+	    }
+
+	    map.setContourDisplayed(i, display);
+
+	    String styleLabel  = prefix + ".style";
+	    String styleString = (String)properties.get(styleLabel);
+	    int style = Map.Lines;
+	    if(styleString != null){
+		if("solid".equals(styleString)){
+		    style = Map.Surface;
+		}else if("lines".equals(styleString)){
+		    style = Map.Lines;
 		}
-
-		map.setContourStyle(i, style);
 	    }
-	}
-
-	for(int i = 0; i < contourLevelCount; i++){
-	    // create the graphical object once
-	    String contourName =
-		getContourGraphicalObjectName(map, i);
 
-	    Tmesh contourObject = new Tmesh();
-	    contourObject.setName(contourName);
-	    addGraphicalObject(contourObject);
+	    map.setContourStyle(i, style);
 	}
-
-	// fix the rereading of maps when we load another map
-	readMap(map);
-
-	for(int j = 0; j < Map.MaximumContourLevels; j++){
-	    contourMap(map, j);
-	}
-
-	fireMapAddedEvent(map);
     }
 
     /** Change the line width. */
@@ -2127,6 +2487,200 @@ public class MoleculeRenderer {
 	return 0;
     }
 
+    /**
+     * Interpret a molecule command with arguments.
+     *
+     * -frame n     move the atoms to model n, counting from 1
+     * -step n      move n frames on, wrapping around at the end
+     * -overlay b   show the other frames as lines
+     * -trajectory  stream frames from a file, or off to stop
+     */
+    public synchronized void handleMoleculeCommand(String pattern, Arguments args){
+	if(args.defined("-trajectory")){
+	    String file = args.getString("-trajectory", "off");
+	    Trajectory.Format format = Trajectory.getFormat(file);
+	    String f = args.getString("-format", null);
+
+	    if(f != null){
+		format = null;
+
+		for(Trajectory.Format tf : Trajectory.Format.values()){
+		    if(tf.name().equalsIgnoreCase(f)){
+			format = tf;
+		    }
+		}
+
+		if(format == null){
+		    Log.error("unknown trajectory format " + f +
+			      ", use pdb, xyz or binary");
+		    file = null;
+		}
+	    }
+
+	    for(Molecule m : molecules){
+		if(file != null && moleculeMatches(pattern, m)){
+		    if("off".equals(file)){
+			m.setTrajectory(null);
+		    }else{
+			Trajectory t =
+			    new Trajectory(file, format, m.getAtomCount(),
+					   args.getInteger("-buffer", 4),
+					   args.getBoolean("-loop", true));
+			m.setTrajectory(t);
+			t.start();
+		    }
+		}
+	    }
+	}
+
+	if(args.defined("-frame")){
+	    int frame = args.getInteger("-frame", 1) - 1;
+
+	    for(Molecule m : molecules){
+		if(moleculeMatches(pattern, m)){
+		    int previous = m.getFrame();
+
+		    m.setFrame(frame);
+		    updateFrameOverlay(m, previous);
+		}
+	    }
+	}
+
+	if(args.defined("-step")){
+	    stepFrames(pattern, args.getInteger("-step", 1));
+	}
+
+	if(args.defined("-overlay")){
+	    boolean overlay = args.getBoolean("-overlay", false);
+
+	    for(Molecule m : molecules){
+		if(moleculeMatches(pattern, m)){
+		    String name = m.getName() + "_frames";
+
+		    renderer.removeGraphicalObjects(name);
+
+		    if(overlay && m.getFrameCount() > 1){
+			addGraphicalObject(createFrameOverlay(m, name));
+		    }
+		}
+	    }
+	}
+
+	for(Molecule m : molecules){
+	    if(moleculeMatches(pattern, m) && m.getTrajectory() != null){
+		System.out.println(m.getName() + ": trajectory frame " +
+				   m.getTrajectory().getFrame());
+	    }else if(moleculeMatches(pattern, m) && m.getFrameCount() > 1){
+		System.out.println(m.getName() + ": frame " + (m.getFrame() + 1) +
+				   " of " + m.getFrameCount());
+	    }
+	}
+
+	repaint();
+    }
+
+    /** Move the molecules on by step frames. */
+    public synchronized void stepFrames(String pattern, int step){
+	for(Molecule m : molecules){
+	    if(moleculeMatches(pattern, m)){
+		if(m.getTrajectory() != null){
+		    // trajectories only play forwards
+		    m.getTrajectory().step(m, step);
+		    continue;
+		}
+
+		int n = m.getFrameCount();
+		int previous = m.getFrame();
+		int frame = ((previous + step) % n + n) % n;
+
+		m.setFrame(frame);
+		updateFrameOverlay(m, previous);
+	    }
+	}
+
+	repaint();
+    }
+
+    /**
+     * Update the overlay of the other frames, if it is shown,
+     * after the current frame of the molecule has changed from
+     * previous. The overlay holds a block of points for each
+     * other frame in order, so only the blocks between the two
+     * frames are moved. It is rebuilt if the frames or bonds
+     * no longer match it.
+     */
+    private void updateFrameOverlay(Molecule m, int previous){
+	String name = m.getName() + "_frames";
+	Tmesh tm = renderer.getGraphicalObject(name);
+
+	if(tm == null){
+	    return;
+	}
+
+	int atomCount = m.getAtomCount();
+	int others = m.getFrameCount() - 1;
+	int current = m.getFrame();
+
+	if(tm.np != others * atomCount ||
+	   tm.nt != others * m.getBondCount() ||
+	   previous < 0 || previous > others){
+	    renderer.removeGraphicalObjects(name);
+	    addGraphicalObject(createFrameOverlay(m, name));
+	    return;
+	}
+
+	// block k holds frame k before the current frame, k + 1 after it
+	for(int k = Math.min(previous, current); k < Math.max(previous, current); k++){
+	    float coords[] = m.getFrameCoordinates(k < current ? k : k + 1);
+	    int first = k * atomCount;
+
+	    for(int a = 0; a < atomCount; a++){
+		tm.x[first + a] = coords[3 * a];
+		tm.y[first + a] = coords[3 * a + 1];
+		tm.z[first + a] = coords[3 * a + 2];
+	    }
+	}
+    }
+
+    /** Draw the bonds of the frames other than the current one. */
+    private Tmesh createFrameOverlay(Molecule m, String name){
+	Tmesh tm = new Tmesh();
+	tm.setName(name);
+	tm.style = Tmesh.Style.LINES;
+	tm.setColorStyle(Tmesh.ColorStyle.VertexColor);
+
+	int atomCount = m.getAtomCount();
+	IdentityHashMap<Atom,Integer> index = new IdentityHashMap<Atom,Integer>();
+
+	for(int a = 0; a < atomCount; a++){
+	    index.put(m.getAtom(a), Integer.valueOf(a));
+	}
+
+	for(int f = 0; f < m.getFrameCount(); f++){
+	    if(f == m.getFrame()){
+		continue;
+	    }
+
+	    float coords[] = m.getFrameCoordinates(f);
+	    int first = tm.np;
+
+	    for(int a = 0; a < atomCount; a++){
+		tm.addPoint(coords[3 * a], coords[3 * a + 1], coords[3 * a + 2],
+			    m.getAtom(a).getColor());
+	    }
+
+	    for(int b = 0; b < m.getBondCount(); b++){
+		Bond bond = m.getBond(b);
+		int i = index.get(bond.getFirstAtom()).intValue();
+		int j = index.get(bond.getSecondAtom()).intValue();
+
+		tm.addLine(first + i, first + j, 0);
+	    }
+	}
+
+	return tm;
+    }
+
     /** Change molecule visibility. */
     public int setMoleculeVisibility(String pattern, String action){
 	for(Molecule m : molecules){
@@ -2960,21 +3514,30 @@ public class MoleculeRenderer {
 	return contourObject;
     }
 
+    /** Contours computed in the background for the interactive controls. */
+    private ContourScheduler contourScheduler = new ContourScheduler();
+
     /** Generate one specific contour level for the map. */
     public void contourMap(Map map, int contour){
 	String contourName = getContourGraphicalObjectName(map, contour);
 
+	// anything in the background is out of date now
+	contourScheduler.cancel(contourName);
+
 	if(map.getContourDisplayed(contour)){
-	    if(map.needsReading()){
-		determineRegion(map);
+	    int style = map.getContourStyle(contour);
 
-		map.setNeedsReading(false);
-	    }
+	    Tmesh contourObject = getContourGraphicalObject(map, contour);
 
-	    int style = map.getContourStyle(contour);
+	    synchronized(map){
+		if(map.needsReading()){
+		    determineRegion(map);
 
-	    Tmesh contourObject =
-		contourRegion(map, contour, style);
+		    map.setNeedsReading(false);
+		}
+
+		contourRegion(map, contour, style, contourObject);
+	    }
 
 	    contourObject.setColor(map.getContourColor(contour));
 
@@ -2987,12 +3550,103 @@ public class MoleculeRenderer {
 	}
     }
 
+    /**
+     * Generate one contour level of the map in the background.
+     * Requests for the same contour replace each other, so only
+     * the latest is computed. The new contour is shown on the
+     * next paint, and commands wait for it before they run.
+     */
+    public void contourMapLater(final Map map, final int contour){
+	if(!map.getContourDisplayed(contour)){
+	    contourMap(map, contour);
+	    return;
+	}
+
+	final String contourName = getContourGraphicalObjectName(map, contour);
+
+	contourScheduler.submit(contourName, new ContourScheduler.Job<Tmesh>(){
+		public Tmesh compute(){
+		    Tmesh tm = new Tmesh();
+
+		    synchronized(map){
+			if(map.needsReading()){
+			    determineRegion(map);
+
+			    map.setNeedsReading(false);
+			}
+
+			contourRegion(map, contour, map.getContourStyle(contour), tm);
+		    }
+
+		    return tm;
+		}
+
+		public void install(Tmesh tm){
+		    Tmesh contourObject = getContourGraphicalObject(map, contour);
+
+		    if(contourObject != null){
+			contourObject.setGeometry(tm);
+			contourObject.setColor(map.getContourColor(contour));
+			contourObject.setVisible(map.getContourDisplayed(contour));
+		    }
+		}
+	    });
+    }
+
+    /** Wait for contours being generated in the background. */
+    public void waitForContours(){
+	contourScheduler.waitForAll();
+    }
+
+    /**
+     * Choose the pyramid level of the map so that the contoured
+     * box covers the view without contouring more grid points.
+     */
+    private int getMapLevel(Map map){
+	int levels = map.getPyramidLevels();
+	double spacing = map.getGridSpacing();
+
+	if(levels <= 0 || spacing <= 0.0 ||
+	   map.getMapType() != Map.MapType.CCP4_BINARY){
+	    return 0;
+	}
+
+	double view = renderer.getRadius() / renderer.getZoom();
+	double box = contourSize * spacing;
+	int level = 0;
+
+	while(level < levels && box * (1 << level) < view){
+	    level++;
+	}
+
+	return level;
+    }
+
+    /** Recontour maps whose pyramid level no longer suits the zoom. */
+    private void checkMapLevels(){
+	for(Map map : maps){
+	    if(map.getPyramidLevels() > 0 && map.hasContoursDisplayed() &&
+	       getMapLevel(map) != map.getContourSource().getPyramidLevel()){
+		map.setNeedsReading(true);
+		for(int j = 0; j < Map.MaximumContourLevels; j++){
+		    contourMap(map, j);
+		}
+	    }
+	}
+    }
+
     /** Figure out the region of the map we will contour. */
     private void determineRegion(Map map){
 	map.read();
+	map.setContourSource(map);
 	if(map.getMapType() == Map.MapType.CCP4_BINARY ||
 	   map.getMapType() == Map.MapType.O_BINARY){
 
+	    // the level we read from, the grid of a level is
+	    // every step'th point of the original map grid
+	    Map source = map.getLevelMap(getMapLevel(map));
+	    int step = 1 << source.getPyramidLevel();
+
 	    Matrix cartesianToFractional =
 		map.getCartesianToFractionalMatrix();
 	    Point3d mapCenter = renderer.getCenter();
@@ -3004,46 +3658,54 @@ public class MoleculeRenderer {
 
 	    swapAxes(mapCenter, map);
 
-	    map.centerGrid[0] = (int)(mapCenter.x);
-	    map.centerGrid[1] = (int)(mapCenter.y);
-	    map.centerGrid[2] = (int)(mapCenter.z);
+	    source.centerGrid[0] = (int)(mapCenter.x);
+	    source.centerGrid[1] = (int)(mapCenter.y);
+	    source.centerGrid[2] = (int)(mapCenter.z);
 
 	    for(int i = 0; i < 3; i++){
 		// subtract the map origin
-		map.centerGrid[i] -= map.nu[i];
-		map.minimumGrid[i] = map.centerGrid[i] - contourSize;
-		map.maximumGrid[i] = map.centerGrid[i] + contourSize;
+		source.centerGrid[i] -= map.nu[i];
+		source.centerGrid[i] /= step;
+		source.minimumGrid[i] = source.centerGrid[i] - contourSize;
+		source.maximumGrid[i] = source.centerGrid[i] + contourSize;
 
 		// force the grid range to lie within the bounds of the map
-		if(map.minimumGrid[i] < 0){
-		    map.minimumGrid[i] = 0;
+		if(source.minimumGrid[i] < 0){
+		    source.minimumGrid[i] = 0;
 		}
-		if(map.maximumGrid[i] < 0){
-		    map.maximumGrid[i] = 0;
+		if(source.maximumGrid[i] < 0){
+		    source.maximumGrid[i] = 0;
 		}
-		if(map.minimumGrid[i] >= map.grid[i]){
-		    map.minimumGrid[i] = map.grid[i];
+		if(source.minimumGrid[i] >= source.grid[i]){
+		    source.minimumGrid[i] = source.grid[i];
 		}
-		if(map.maximumGrid[i] >= map.grid[i]){
-		    map.maximumGrid[i] = map.grid[i];
+		if(source.maximumGrid[i] >= source.grid[i]){
+		    source.maximumGrid[i] = source.grid[i];
 		}
 	    }
 
 	    // now read the region that we identified.
-	    map.readRegion();
+	    source.readRegion();
+
+	    map.setContourSource(source);
 	}
     }
 
-    /** Contour the data that is in stored in the map. */
-    private Tmesh contourRegion(Map map, int contourNumber, int style){
+    /** Contour the data that is in stored in the map into contour. */
+    private Tmesh contourRegion(Map map, int contourNumber, int style,
+				Tmesh contour){
 	int nx =0, ny=0, nz=0;
 	Map.MapType mapType = map.getMapType();
 	double level = map.getContourLevel(contourNumber);
-	Tmesh contour = getContourGraphicalObject(map, contourNumber);
 
 	// remove all the old points from the object.
 	contour.empty();
 
+	// rms and contour levels belong to the map, the
+	// grid may come from one of its downsampled levels
+	double rms = map.rms;
+	map = map.getContourSource();
+
 	if(style == Map.Lines){
 	    contour.style = Tmesh.Style.LINES;
 	}else if(style == Map.Surface){
@@ -3060,20 +3722,20 @@ public class MoleculeRenderer {
 	    nz = map.ngrid[2];
 	}
 
-	double rmsLevel = map.rms * level;
+	double rmsLevel = rms * level;
 
 	// make sure we weren't contouring
 	// off edge of grid
 	if(nx > 0 && ny > 0 && nz > 0){
 
 	    if(style == Map.Lines){
-		March.generateTriangles = false;
-		March.surface(map.data, nx, ny, nz, (float)rmsLevel, false, contour);
+		March.surface(map.data, nx, ny, nz, (float)rmsLevel, false,
+			      contour, false);
 	    }else if(style == Map.Surface){
 		boolean invert = (rmsLevel < 0.0)?true:false;
 
-		March.generateTriangles = true;
-		March.surface(map.data, nx, ny, nz, (float)rmsLevel, invert, contour);
+		March.surface(map.data, nx, ny, nz, (float)rmsLevel, invert,
+			      contour, true);
 	    }
 	}
 
@@ -3111,7 +3773,8 @@ public class MoleculeRenderer {
 	    }
 	}
 
-	if(contour.style == Tmesh.Style.TRIANGLES && mapType == Map.MapType.CCP4_BINARY){
+	if(contour.style == Tmesh.Style.TRIANGLES && contour.nx != null &&
+	   mapType == Map.MapType.CCP4_BINARY){
 	    // swap surface normals round according
 	    // to the map header
 	    // we will regenerate them later...
@@ -3175,18 +3838,18 @@ public class MoleculeRenderer {
     /** Clip this map. */
     private void clipMap(Map map, List<Atom> selection, boolean inside){
 	Point3d p = new Point3d();
-	float data[] = map.data;
 	int point = 0;
 
-	for(int iz = map.minimumGrid[2]; iz < map.maximumGrid[2]; iz++){
-	    for(int iy = map.minimumGrid[1]; iy < map.maximumGrid[1]; iy++){
-		int gridStart = map.minimumGrid[0];
-		int gridStop = map.maximumGrid[0];
+	map = map.getContourSource();
+
+	float data[] = map.data;
+
+	for(int iz = 0; iz < map.maximumGrid[2] - map.minimumGrid[2]; iz++){
+	    for(int iy = 0; iy < map.maximumGrid[1] - map.minimumGrid[1]; iy++){
+		int gridStop = map.maximumGrid[0] - map.minimumGrid[0];
 
-		for(int ix = gridStart; ix < gridStop; ix++){
-		    map.absoluteGridToCartesian(ix + map.nu[0],
-						iy + map.nu[1],
-						iz + map.nu[2], p);
+		for(int ix = 0; ix < gridStop; ix++){
+		    map.relativeGridToCartesian(ix, iy, iz, p);
 
 		    if(clipped(p, selection) != inside){
 			data[point] = 0.0f;
@@ -3249,6 +3912,10 @@ public class MoleculeRenderer {
 
     /** Paint the rendered image into the screen. */
     public synchronized void paint(){
+	if(contourScheduler.install()){
+	    dirty = true;
+	}
+
 	if(!dirty){
 	    return;
 	}
@@ -3264,6 +3931,10 @@ public class MoleculeRenderer {
 	    renderPasses[0] = Renderer.ShadowMode.ShadowsOff;
 	}
 
+	if(displayMaps){
+	    checkMapLevels();
+	}
+
 	// this paint method needs completely restructuring
 	// this object should have a method registered with
 	// the renderer that calls back to here.
@@ -4754,6 +5425,9 @@ public class MoleculeRenderer {
     private synchronized void executeInternal(String command){
 	StringReader sr = new StringReader(command);
 
+	// commands see the contours the controls asked for
+	waitForContours();
+
 	if(!parse(sr)){
 	    System.err.println("Syntax error in command:");
 	    System.err.println(command);
@@ -4787,11 +5461,27 @@ public class MoleculeRenderer {
 
 	    if(file != null){
 		InputStream is = file.getInputStream();
+		Reader reader = new InputStreamReader(is);
+		StringBuilder script = new StringBuilder();
+		char chars[] = new char[8192];
+		int n;
 
-		parse(new InputStreamReader(is));
+		while((n = reader.read(chars)) > 0){
+		    script.append(chars, 0, n);
+		}
 
 		file.close();
 
+		// read the files the script loads at the same time
+		List<String> queued = preloadScript(script.toString());
+
+		try {
+		    parse(new StringReader(script.toString()));
+		}finally{
+		    // drop anything the script didn't use
+		    cancelPreloads(queued);
+		}
+
 		lastScriptFile = filename;
 	    }else{
 		System.out.println("couldn't open script " + filename);
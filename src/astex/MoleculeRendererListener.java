@@ -52,4 +52,11 @@ public interface MoleculeRendererListener {
 
     /** An atom was selected. */
     public void atomSelected(MoleculeRenderer renderer, Atom atom);
+
+    /**
+     * A background load moved on to a new stage, finished,
+     * failed or was cancelled. This is called on the loading
+     * thread.
+     */
+    public void loadProgress(MoleculeRenderer renderer, LoadTask task);
 }
@@ -0,0 +1,171 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Shared pool of worker threads for splitting numerical
+ * work (grids, surface vertices, atoms) across processors.
+ *
+ * The number of threads is taken from the <code>threads</code>
+ * entry in config.properties, or the number of available
+ * processors if it is missing or zero.
+ */
+public class Parallel {
+    /** A block of work covering the index range [start, end). */
+    public interface Block {
+	void run(int start, int end);
+    }
+
+    /** The worker threads. */
+    private static ExecutorService executor = null;
+
+    /** The number of worker threads. */
+    private static int threadCount = 0;
+
+    /** Worker thread, so that nested calls run inline. */
+    private static class Worker extends Thread {
+	Worker(Runnable r, String name){
+	    super(r, name);
+	    setDaemon(true);
+	}
+    }
+
+    /** Return the number of threads we will use. */
+    public static synchronized int getThreadCount(){
+	if(threadCount == 0){
+	    threadCount = Settings.getInteger("config", "threads", 0);
+
+	    if(threadCount <= 0){
+		threadCount = Runtime.getRuntime().availableProcessors();
+	    }
+	}
+
+	return threadCount;
+    }
+
+    /** Return the shared executor, creating it if necessary. */
+    public static synchronized ExecutorService getExecutor(){
+	if(executor == null){
+	    executor =
+		Executors.newFixedThreadPool(getThreadCount(),
+					     new ThreadFactory(){
+						 private int count = 0;
+						 public synchronized Thread newThread(Runnable r){
+						     return new Worker(r, "Parallel-" + count++);
+						 }
+					     });
+	}
+
+	return executor;
+    }
+
+    /** Are we running on one of the worker threads. */
+    public static boolean isWorkerThread(){
+	return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * Run block over [0, n) split into pieces of at least
+     * minBlock indices. Returns when all pieces are done.
+     */
+    public static void forRange(int n, int minBlock, final Block block){
+	int threads = getThreadCount();
+
+	if(minBlock < 1){
+	    minBlock = 1;
+	}
+
+	// a few pieces per thread to even out the load
+	int pieces = Math.min(threads * 4, (n + minBlock - 1) / minBlock);
+
+	if(pieces <= 1 || threads == 1 || isWorkerThread()){
+	    if(n > 0){
+		block.run(0, n);
+	    }
+	    return;
+	}
+
+	List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(pieces);
+
+	for(int p = 0; p < pieces; p++){
+	    final int start = (int)((long)n * p / pieces);
+	    final int end   = (int)((long)n * (p + 1) / pieces);
+
+	    tasks.add(new Callable<Object>(){
+		    public Object call(){
+			block.run(start, end);
+			return null;
+		    }
+		});
+	}
+
+	invokeAll(tasks);
+    }
+
+    /**
+     * Run the tasks on the worker threads and return their
+     * results in the same order as the tasks.
+     */
+    public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks){
+	List<T> results = new ArrayList<T>(tasks.size());
+
+	if(tasks.size() <= 1 || getThreadCount() == 1 || isWorkerThread()){
+	    for(Callable<T> task : tasks){
+		try {
+		    results.add(task.call());
+		}catch(RuntimeException e){
+		    throw e;
+		}catch(Exception e){
+		    throw new RuntimeException(e);
+		}
+	    }
+
+	    return results;
+	}
+
+	try {
+	    List<Future<T>> futures = getExecutor().invokeAll(tasks);
+
+	    for(Future<T> f : futures){
+		results.add(f.get());
+	    }
+	}catch(InterruptedException e){
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException(e);
+	}catch(ExecutionException e){
+	    Throwable cause = e.getCause();
+	    if(cause instanceof RuntimeException){
+		throw (RuntimeException)cause;
+	    }else if(cause instanceof Error){
+		throw (Error)cause;
+	    }
+	    throw new RuntimeException(cause);
+	}
+
+	return results;
+    }
+}
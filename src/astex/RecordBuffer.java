@@ -0,0 +1,255 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+/**
+ * A growable byte buffer for formatting fixed column text
+ * records, such as the atom lines of PDB, mol2 and SD files.
+ *
+ * Each field is written straight into the buffer with its
+ * width and precision given as arguments, so there is no
+ * format string to parse. Numbers come out exactly as the
+ * matching FILE.print() formats (%5d, %-5d, %8.3f and so on).
+ *
+ * Lines end with the end of line characters of the file the
+ * buffer is written to, as they do for FILE.println().
+ *
+ * A buffer is only used by one thread at a time, so chunks
+ * of records can be formatted in parallel into separate
+ * buffers and then written in order.
+ */
+class RecordBuffer {
+    /** The formatted bytes. */
+    private byte buffer[];
+
+    /** The number of bytes in the buffer. */
+    private int size = 0;
+
+    /** Scratch space for the digits of a number, in reverse. */
+    private byte digits[] = new byte[32];
+
+    /** The end of line characters. */
+    private byte eol[];
+
+    /** Powers of ten for the fractional part of fixed numbers. */
+    private static final double Powers[] = {
+	1.0, 1.0e1, 1.0e2, 1.0e3, 1.0e4, 1.0e5, 1.0e6, 1.0e7, 1.0e8, 1.0e9
+    };
+
+    /** A buffer for records that will be written to output. */
+    public RecordBuffer(int capacity, FILE output){
+	buffer = new byte[Math.max(capacity, 256)];
+	eol = output.getEol();
+    }
+
+    /** The number of bytes in the buffer. */
+    public int size(){
+	return size;
+    }
+
+    /** Empty the buffer, keeping its storage. */
+    public void clear(){
+	size = 0;
+    }
+
+    /** Write the contents to the output and empty the buffer. */
+    public void writeTo(FILE output){
+	output.write(buffer, 0, size);
+	size = 0;
+    }
+
+    /** Make room for n more bytes. */
+    private void ensure(int n){
+	if(size + n > buffer.length){
+	    int capacity = Math.max(buffer.length * 2, size + n);
+	    byte newBuffer[] = new byte[capacity];
+	    System.arraycopy(buffer, 0, newBuffer, 0, size);
+	    buffer = newBuffer;
+	}
+    }
+
+    /** Append a character. */
+    public void put(char c){
+	ensure(1);
+	buffer[size++] = (byte)c;
+    }
+
+    /** Append a string. */
+    public void put(String s){
+	int len = s.length();
+	ensure(len);
+	for(int i = 0; i < len; i++){
+	    buffer[size++] = (byte)s.charAt(i);
+	}
+    }
+
+    /** Append n spaces. */
+    public void spaces(int n){
+	if(n <= 0){
+	    return;
+	}
+	ensure(n);
+	for(int i = 0; i < n; i++){
+	    buffer[size++] = (byte)' ';
+	}
+    }
+
+    /** Append a string right justified in width (%Ns). */
+    public void putRight(String s, int width){
+	spaces(width - s.length());
+	put(s);
+    }
+
+    /** Append a string left justified in width (%-Ns). */
+    public void putLeft(String s, int width){
+	put(s);
+	spaces(width - s.length());
+    }
+
+    /** Append the end of a line. */
+    public void newline(){
+	ensure(eol.length);
+	for(int i = 0; i < eol.length; i++){
+	    buffer[size++] = eol[i];
+	}
+    }
+
+    /**
+     * Put the decimal digits of v >= 0 into the scratch
+     * space, least significant first, and return how many.
+     */
+    private int convert(long v, int n){
+	if(v == 0){
+	    digits[n++] = (byte)'0';
+	}else{
+	    while(v != 0){
+		digits[n++] = (byte)('0' + (int)(v % 10));
+		v /= 10;
+	    }
+	}
+
+	return n;
+    }
+
+    /** Copy n scratch digits to the buffer, padded to width. */
+    private void copyDigits(int n, boolean negative, int width,
+			    boolean leftAlign){
+	int len = negative ? n + 1 : n;
+	int pad = width - len;
+
+	ensure(Math.max(len, width));
+
+	if(!leftAlign){
+	    for(int i = 0; i < pad; i++){
+		buffer[size++] = (byte)' ';
+	    }
+	}
+
+	if(negative){
+	    buffer[size++] = (byte)'-';
+	}
+
+	for(int i = n - 1; i >= 0; i--){
+	    buffer[size++] = digits[i];
+	}
+
+	if(leftAlign){
+	    for(int i = 0; i < pad; i++){
+		buffer[size++] = (byte)' ';
+	    }
+	}
+    }
+
+    /** Append an integer right justified in width (%Nd). */
+    public void putInt(long v, int width){
+	putInteger(v, width, false);
+    }
+
+    /** Append an integer left justified in width (%-Nd). */
+    public void putIntLeft(long v, int width){
+	putInteger(v, width, true);
+    }
+
+    private void putInteger(long v, int width, boolean leftAlign){
+	if(v == Long.MIN_VALUE){
+	    String s = Long.toString(v);
+	    if(leftAlign){
+		putLeft(s, width);
+	    }else{
+		putRight(s, width);
+	    }
+	    return;
+	}
+
+	boolean negative = v < 0;
+	int n = convert(negative ? -v : v, 0);
+
+	copyDigits(n, negative, width, leftAlign);
+    }
+
+    /**
+     * Append a number with the given decimal places right
+     * justified in width (%N.Pf), rounding as FILE does.
+     */
+    public void putFixed(double v, int width, int precision){
+	if(Double.isNaN(v)){
+	    putRight("NaN", width);
+	    return;
+	}
+
+	boolean negative = v < 0;
+
+	if(negative){
+	    v = -v;
+	}
+
+	if(Double.isInfinite(v)){
+	    putRight(negative ? "-Inf" : "Inf", width);
+	    return;
+	}
+
+	if(precision < 1 || precision >= Powers.length ||
+	   v > Long.MAX_VALUE){
+	    // not used by the record writers, leave it to the
+	    // general formatter
+	    putRight(String.format((java.util.Locale)null,
+				   "%." + precision + "f",
+				   negative ? -v : v), width);
+	    return;
+	}
+
+	long whole = (long)v;
+	double factor = Powers[precision];
+	long fraction = (long)(factor * (v - whole) + 0.5);
+
+	if(fraction >= factor){
+	    fraction = 0;
+	    whole++;
+	}
+
+	// fractional digits, zero padded, then the point and whole part
+	int n = convert(fraction, 0);
+	while(n < precision){
+	    digits[n++] = (byte)'0';
+	}
+	digits[n++] = (byte)'.';
+	n = convert(whole, n);
+
+	copyDigits(n, negative, width, false);
+    }
+}
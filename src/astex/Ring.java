@@ -51,10 +51,17 @@ class Ring extends Generic {
 	bonds.add(b);
     }
 
+    /**
+     * Get an atom.
+     */
+    Atom getAtom(int index){
+	return atoms.get(index);
+    }
+
     /**
      * Get a bond.
      */
-    private Bond getBond(int index){
+    Bond getBond(int index){
 	return bonds.get(index);
     }
 
@@ -64,7 +71,7 @@ class Ring extends Generic {
     }
 
     /** Return the bond count. */
-    private int getBondCount(){
+    int getBondCount(){
 	return bonds.size();
     }
 
@@ -29,8 +29,11 @@ public class SecondaryStructure {
 
     private static Tmesh tm = null;
 
-    /** Assign secondary structure to residues in a protein molecule. */
-    public static Tmesh assign(List<Molecule> molecules){
+    /**
+     * Assign secondary structure to residues in a protein molecule.
+     * The workspace is shared, so only one assignment runs at once.
+     */
+    public static synchronized Tmesh assign(List<Molecule> molecules){
 	tm = new Tmesh();
 
 	for(Molecule mol : molecules){
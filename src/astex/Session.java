@@ -0,0 +1,1039 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Binary snapshots of the scene, so that a session can be
+ * reopened without reading the structure files again and
+ * recalculating bonds, rings, secondary structure, surfaces
+ * and contours.
+ *
+ * A snapshot holds the molecules, with the properties of the
+ * atoms, residues and bonds stored column by column, the
+ * graphical objects in binary tmesh form, the maps and the
+ * view. It is little endian and written through a large buffer,
+ * and memory mapped to read it back, so that the columns are
+ * moved with bulk copies.
+ *
+ * Maps read from ccp4 or O files refer back to the file, which
+ * is memory mapped when the map is next contoured. The grids
+ * of other maps, such as those made by active_site, are stored.
+ */
+public class Session {
+    /** Magic number at the start of session files. */
+    private static final int Magic = 0x4d565331;
+
+    /** Version of the format. */
+    private static final int Version = 1;
+
+    /** The file being written. */
+    private FileChannel channel = null;
+
+    /** The buffer we write through, or the mapped file. */
+    private ByteBuffer bb = null;
+
+    /** The strings of the molecule being written. */
+    private List<String> strings = new ArrayList<String>();
+    private HashMap<String,Integer> stringIndex = new HashMap<String,Integer>();
+
+    /** The scene as it is read, installed once it is complete. */
+    private List<Molecule> molecules = new ArrayList<Molecule>();
+    private List<Tmesh> objects = new ArrayList<Tmesh>();
+    private List<Map> maps = new ArrayList<Map>();
+
+    /** The view as it is read. */
+    private double rotation[] = null;
+    private Point3d center = null;
+    private double radius, zoom, frontClip, backClip;
+    private int background;
+
+    private Session(){
+    }
+
+    /** Write the scene of the renderer to the file. */
+    public static boolean write(MoleculeRenderer mr, String filename){
+	FileOutputStream fos = null;
+
+	try {
+	    fos = new FileOutputStream(filename);
+
+	    Session session = new Session();
+	    session.channel = fos.getChannel();
+	    session.bb = ByteBuffer.allocateDirect(1 << 20);
+	    session.bb.order(ByteOrder.LITTLE_ENDIAN);
+
+	    session.writeSession(mr);
+
+	    Tmesh.flush(session.channel, session.bb);
+
+	    fos.close();
+	    fos = null;
+	}catch(IOException e){
+	    Log.error("couldn't write session " + filename + " " + e);
+	    return false;
+	}finally{
+	    try {
+		if(fos != null) fos.close();
+	    }catch(IOException e){
+	    }
+	}
+
+	return true;
+    }
+
+    /** Replace the scene of the renderer with the one in the file. */
+    public static boolean read(MoleculeRenderer mr, String filename){
+	RandomAccessFile raf = null;
+
+	try {
+	    raf = new RandomAccessFile(filename, "r");
+	    FileChannel fc = raf.getChannel();
+
+	    Session session = new Session();
+	    session.bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+	    session.bb.order(ByteOrder.LITTLE_ENDIAN);
+
+	    if(fc.size() < 8 ||
+	       session.bb.getInt() != Magic || session.bb.getInt() != Version){
+		Log.error(filename + " is not a session file");
+		return false;
+	    }
+
+	    // only replace the scene once all of it has been read
+	    session.readSession();
+	    session.install(mr);
+	}catch(Exception e){
+	    Log.error("couldn't read session " + filename + " " + e);
+	    return false;
+	}finally{
+	    try {
+		if(raf != null) raf.close();
+	    }catch(IOException e){
+	    }
+	}
+
+	return true;
+    }
+
+    private void writeSession(MoleculeRenderer mr) throws IOException {
+	putInt(Magic);
+	putInt(Version);
+
+	putInt(mr.getMoleculeCount());
+
+	for(int m = 0; m < mr.getMoleculeCount(); m++){
+	    writeMolecule(mr.getMolecule(m));
+	}
+
+	List<Tmesh> objects = mr.renderer.objects;
+
+	putInt(objects.size());
+
+	for(Tmesh object : objects){
+	    putString(object.getName());
+	    putInt(object.isVisible() ? 1 : 0);
+	    putInt(object.backface ? 1 : 0);
+	    putDouble(object.getLineWidth());
+	    writeTmesh(object);
+	}
+
+	putInt(mr.getMapCount());
+
+	for(int m = 0; m < mr.getMapCount(); m++){
+	    writeMap(mr.getMap(m));
+	}
+
+	writeView(mr.renderer);
+    }
+
+    private void readSession() throws IOException {
+	int moleculeCount = bb.getInt();
+
+	for(int m = 0; m < moleculeCount; m++){
+	    molecules.add(readMolecule());
+	}
+
+	int objectCount = bb.getInt();
+
+	for(int o = 0; o < objectCount; o++){
+	    String name = getString();
+	    boolean visible = bb.getInt() == 1;
+	    boolean backface = bb.getInt() == 1;
+	    double lineWidth = bb.getDouble();
+
+	    Tmesh object = readTmesh();
+	    object.setName(name);
+	    object.setVisible(visible);
+	    object.setBackface(backface);
+	    object.setLineWidth(lineWidth);
+
+	    objects.add(object);
+	}
+
+	int mapCount = bb.getInt();
+
+	for(int m = 0; m < mapCount; m++){
+	    maps.add(readMap());
+	}
+
+	readView();
+    }
+
+    /** Replace the scene of the renderer with the one read. */
+    private void install(MoleculeRenderer mr){
+	mr.reset();
+
+	for(Molecule molecule : molecules){
+	    mr.addMolecule(molecule);
+	}
+
+	for(Tmesh object : objects){
+	    mr.addGraphicalObject(object);
+	}
+
+	for(Map map : maps){
+	    mr.restoreMap(map);
+	}
+
+	Renderer r = mr.renderer;
+
+	setMatrix(r.rotationMatrix, rotation);
+	r.setCenter(center);
+	r.setRadius(radius);
+	r.setZoom(zoom);
+	r.setFrontClip(frontClip, true);
+	r.setBackClip(backClip, true);
+	r.setBackgroundColor(background);
+    }
+
+    /* Molecules. */
+
+    private void writeMolecule(Molecule mol) throws IOException {
+	strings.clear();
+	stringIndex.clear();
+
+	putString(mol.getName());
+	putString(mol.getFilename());
+	putString(mol.getType());
+	putInt(mol.getDisplayStyle());
+	putInt(mol.getDisplayed() ? 1 : 0);
+	putInt(mol.getMoleculeType());
+
+	writeSymmetry(mol.getSymmetry());
+
+	int chainCount = mol.getChainCount();
+	int residueCount = 0;
+
+	for(int c = 0; c < chainCount; c++){
+	    residueCount += mol.getChain(c).getResidueCount();
+	}
+
+	int atomCount = mol.getAtomCount();
+	int bondCount = mol.getBondCount();
+
+	int chainName[] = new int[chainCount];
+	int chainResidues[] = new int[chainCount];
+
+	int residueName[] = new int[residueCount];
+	int residueNumber[] = new int[residueCount];
+	int residueInsertion[] = new int[residueCount];
+	int residueSS[] = new int[residueCount];
+	int residueAtoms[] = new int[residueCount];
+
+	double x[] = new double[atomCount];
+	double y[] = new double[atomCount];
+	double z[] = new double[atomCount];
+	float bfactor[] = new float[atomCount];
+	float occupancy[] = new float[atomCount];
+	float partialCharge[] = new float[atomCount];
+	float radius[] = new float[atomCount];
+	float ballRadius[] = new float[atomCount];
+	int element[] = new int[atomCount];
+	int id[] = new int[atomCount];
+	int charge[] = new int[atomCount];
+	int color[] = new int[atomCount];
+	int transparency[] = new int[atomCount];
+	int attributes[] = new int[atomCount];
+	int insertion[] = new int[atomCount];
+	int label[] = new int[atomCount];
+	int customLabel[] = new int[atomCount];
+	int atomType[] = new int[atomCount];
+
+	// the atoms are stored in chain and residue order,
+	// which is the order they have when read back
+	Atom atoms[] = new Atom[atomCount];
+	int r = 0, a = 0;
+
+	for(int c = 0; c < chainCount; c++){
+	    Chain chain = mol.getChain(c);
+
+	    chainName[c] = index(chain.getName());
+	    chainResidues[c] = chain.getResidueCount();
+
+	    for(int cr = 0; cr < chain.getResidueCount(); cr++){
+		Residue res = chain.getResidue(cr);
+
+		residueName[r] = index(res.getName());
+		residueNumber[r] = res.getNumber();
+		residueInsertion[r] = res.getInsertionCode();
+		residueSS[r] = res.getSecondaryStructure().ordinal();
+		residueAtoms[r] = res.getAtomCount();
+		r++;
+
+		for(int ra = 0; ra < res.getAtomCount(); ra++){
+		    Atom atom = res.getAtom(ra);
+
+		    atoms[a] = atom;
+		    x[a] = atom.x;
+		    y[a] = atom.y;
+		    z[a] = atom.z;
+		    bfactor[a] = (float)atom.getBFactor();
+		    occupancy[a] = (float)atom.getOccupancy();
+		    partialCharge[a] = atom.getPartialCharge();
+		    radius[a] = (float)atom.getVDWRadius();
+		    ballRadius[a] = (float)atom.getBallRadius();
+		    element[a] = atom.getElement();
+		    id[a] = atom.getId();
+		    charge[a] = atom.getCharge();
+		    color[a] = atom.getColor();
+		    transparency[a] = atom.getTransparency();
+		    attributes[a] = packAttributes(atom.attributes);
+		    insertion[a] = atom.getInsertionCode();
+		    label[a] = index(atom.getAtomLabel());
+		    customLabel[a] = index(atom.getCustomLabel());
+		    atomType[a] = index(atom.getAtomType());
+		    a++;
+		}
+	    }
+	}
+
+	if(a != atomCount){
+	    throw new IOException(mol.getName() + " has atoms outside its residues");
+	}
+
+	// number the atoms by position to find the bond atoms,
+	// as is done when looking for rings
+	for(int i = 0; i < atomCount; i++){
+	    atoms[i].setId(i);
+	}
+
+	int firstAtom[] = new int[bondCount];
+	int secondAtom[] = new int[bondCount];
+	int bondOrder[] = new int[bondCount];
+	int bondAttributes[] = new int[bondCount];
+	int bondWidths[] = new int[bondCount];
+	int bondColor[] = new int[bondCount];
+	float idealLength[] = new float[bondCount];
+
+	for(int b = 0; b < bondCount; b++){
+	    Bond bond = mol.getBond(b);
+
+	    firstAtom[b] = bond.getFirstAtom().getId();
+	    secondAtom[b] = bond.getSecondAtom().getId();
+	    bondOrder[b] = bond.getBondOrder().ordinal();
+	    bondAttributes[b] = bond.attributes;
+	    bondWidths[b] = bond.getPackedWidths();
+	    bondColor[b] = bond.getBondColor();
+	    idealLength[b] = (float)bond.getIdealBondLength();
+	}
+
+	int rings[] = null;
+
+	if(mol.hasRings()){
+	    rings = packRings(mol);
+	}
+
+	// the position of each of our atoms in the molecule
+	int order[] = new int[atomCount];
+
+	for(int i = 0; i < atomCount; i++){
+	    order[mol.getAtom(i).getId()] = i;
+	}
+
+	for(int i = 0; i < atomCount; i++){
+	    atoms[i].setId(id[i]);
+	}
+
+	putInt(chainCount);
+	putInt(residueCount);
+	putInt(atomCount);
+	putInt(bondCount);
+
+	putInt(strings.size());
+
+	for(String s : strings){
+	    putString(s);
+	}
+
+	putInts(chainName, chainCount);
+	putInts(chainResidues, chainCount);
+
+	putInts(residueName, residueCount);
+	putInts(residueNumber, residueCount);
+	putInts(residueInsertion, residueCount);
+	putInts(residueSS, residueCount);
+	putInts(residueAtoms, residueCount);
+
+	putDoubles(x, atomCount);
+	putDoubles(y, atomCount);
+	putDoubles(z, atomCount);
+	putFloats(bfactor, atomCount);
+	putFloats(occupancy, atomCount);
+	putFloats(partialCharge, atomCount);
+	putFloats(radius, atomCount);
+	putFloats(ballRadius, atomCount);
+	putInts(element, atomCount);
+	putInts(id, atomCount);
+	putInts(charge, atomCount);
+	putInts(color, atomCount);
+	putInts(transparency, atomCount);
+	putInts(attributes, atomCount);
+	putInts(insertion, atomCount);
+	putInts(label, atomCount);
+	putInts(customLabel, atomCount);
+	putInts(atomType, atomCount);
+
+	putInts(firstAtom, bondCount);
+	putInts(secondAtom, bondCount);
+	putInts(bondOrder, bondCount);
+	putInts(bondAttributes, bondCount);
+	putInts(bondWidths, bondCount);
+	putInts(bondColor, bondCount);
+	putFloats(idealLength, bondCount);
+
+	if(rings == null){
+	    putInt(-1);
+	}else{
+	    putInt(rings.length);
+	    putInts(rings, rings.length);
+	}
+
+	int frameCount = mol.getFrameCount();
+
+	if(frameCount > 1){
+	    putInt(frameCount);
+	    putInt(mol.getFrame());
+
+	    float frame[] = new float[3 * atomCount];
+
+	    for(int f = 0; f < frameCount; f++){
+		float coords[] = mol.getFrameCoordinates(f);
+
+		for(int i = 0; i < atomCount; i++){
+		    frame[3 * i]     = coords[3 * order[i]];
+		    frame[3 * i + 1] = coords[3 * order[i] + 1];
+		    frame[3 * i + 2] = coords[3 * order[i] + 2];
+		}
+
+		putFloats(frame, 3 * atomCount);
+	    }
+	}else{
+	    putInt(0);
+	}
+    }
+
+    /**
+     * Pack the rings as the atom count, atom positions and bond
+     * positions of each ring. The atom ids must be their positions.
+     */
+    private static int[] packRings(Molecule mol){
+	List<Ring> rings = mol.getRings();
+	IdentityHashMap<Bond,Integer> bondIndex =
+	    new IdentityHashMap<Bond,Integer>();
+
+	for(Ring ring : rings){
+	    for(int b = 0; b < ring.getBondCount(); b++){
+		bondIndex.put(ring.getBond(b), null);
+	    }
+	}
+
+	for(int b = 0; b < mol.getBondCount(); b++){
+	    Bond bond = mol.getBond(b);
+
+	    if(bondIndex.containsKey(bond)){
+		bondIndex.put(bond, Integer.valueOf(b));
+	    }
+	}
+
+	int size = 0;
+
+	for(Ring ring : rings){
+	    size += 1 + 2 * ring.getAtomCount();
+	}
+
+	int packed[] = new int[size];
+	int p = 0;
+
+	for(Ring ring : rings){
+	    int n = ring.getAtomCount();
+
+	    packed[p++] = n;
+
+	    for(int i = 0; i < n; i++){
+		packed[p++] = ring.getAtom(i).getId();
+	    }
+
+	    for(int i = 0; i < n; i++){
+		Integer b = bondIndex.get(ring.getBond(i));
+		packed[p++] = b == null ? -1 : b.intValue();
+	    }
+	}
+
+	return packed;
+    }
+
+    private Molecule readMolecule() throws IOException {
+	Molecule mol = new Molecule();
+
+	mol.setName(getString());
+	mol.setFilename(getString());
+	mol.setType(getString());
+	mol.setDisplayStyle(bb.getInt());
+	mol.setDisplayed(bb.getInt());
+	mol.setMoleculeType(bb.getInt());
+
+	mol.setSymmetry(readSymmetry());
+
+	int chainCount = bb.getInt();
+	int residueCount = bb.getInt();
+	int atomCount = bb.getInt();
+	int bondCount = bb.getInt();
+
+	String table[] = new String[bb.getInt()];
+
+	for(int s = 0; s < table.length; s++){
+	    table[s] = getString();
+	}
+
+	int chainName[] = getInts(chainCount);
+	int chainResidues[] = getInts(chainCount);
+
+	int residueName[] = getInts(residueCount);
+	int residueNumber[] = getInts(residueCount);
+	int residueInsertion[] = getInts(residueCount);
+	int residueSS[] = getInts(residueCount);
+	int residueAtoms[] = getInts(residueCount);
+
+	double x[] = getDoubles(atomCount);
+	double y[] = getDoubles(atomCount);
+	double z[] = getDoubles(atomCount);
+	float bfactor[] = getFloats(atomCount);
+	float occupancy[] = getFloats(atomCount);
+	float partialCharge[] = getFloats(atomCount);
+	float radius[] = getFloats(atomCount);
+	float ballRadius[] = getFloats(atomCount);
+	int element[] = getInts(atomCount);
+	int id[] = getInts(atomCount);
+	int charge[] = getInts(atomCount);
+	int color[] = getInts(atomCount);
+	int transparency[] = getInts(atomCount);
+	int attributes[] = getInts(atomCount);
+	int insertion[] = getInts(atomCount);
+	int label[] = getInts(atomCount);
+	int customLabel[] = getInts(atomCount);
+	int atomType[] = getInts(atomCount);
+
+	Residue.SS ss[] = Residue.SS.values();
+	HashMap<Integer,EnumSet<Atom.Attribute>> attributeSets =
+	    new HashMap<Integer,EnumSet<Atom.Attribute>>();
+
+	Atom atoms[] = new Atom[atomCount];
+	int r = 0, a = 0;
+
+	for(int c = 0; c < chainCount; c++){
+	    Chain chain = mol.addChain();
+	    chain.setName(table(table, chainName[c]));
+
+	    for(int cr = 0; cr < chainResidues[c]; cr++){
+		Residue res = mol.addResidue();
+		res.setName(table(table, residueName[r]));
+		res.setNumber(residueNumber[r]);
+		res.setInsertionCode((char)residueInsertion[r]);
+		res.setSecondaryStructure(ss[residueSS[r]]);
+
+		for(int ra = 0; ra < residueAtoms[r]; ra++){
+		    Atom atom = mol.addAtom();
+
+		    atom.set(x[a], y[a], z[a]);
+		    atom.setBFactor(bfactor[a]);
+		    atom.setOccupancy(occupancy[a]);
+		    atom.setPartialCharge(partialCharge[a]);
+		    atom.setVDWRadius(radius[a]);
+		    atom.setBallRadius(ballRadius[a]);
+		    atom.setElement(element[a]);
+		    atom.setId(id[a]);
+		    atom.setCharge(charge[a]);
+		    atom.setColor(color[a]);
+		    atom.setTransparency(transparency[a]);
+		    atom.setInsertionCode((char)insertion[a]);
+		    atom.setAtomLabel(table(table, label[a]));
+		    atom.setCustomLabel(table(table, customLabel[a]));
+		    atom.setAtomType(table(table, atomType[a]));
+
+		    // after the custom label, which changes them
+		    atom.attributes = unpackAttributes(attributes[a], attributeSets);
+
+		    atoms[a++] = atom;
+		}
+
+		r++;
+	    }
+	}
+
+	int firstAtom[] = getInts(bondCount);
+	int secondAtom[] = getInts(bondCount);
+	int bondOrder[] = getInts(bondCount);
+	int bondAttributes[] = getInts(bondCount);
+	int bondWidths[] = getInts(bondCount);
+	int bondColor[] = getInts(bondCount);
+	float idealLength[] = getFloats(bondCount);
+
+	Bond.BondOrder orders[] = Bond.BondOrder.values();
+	Bond bonds[] = new Bond[bondCount];
+
+	for(int b = 0; b < bondCount; b++){
+	    Bond bond = new Bond(atoms[firstAtom[b]], atoms[secondAtom[b]]);
+
+	    bond.setBondOrder(orders[bondOrder[b]]);
+	    bond.attributes = bondAttributes[b];
+	    bond.setPackedWidths(bondWidths[b]);
+	    bond.setBondColor(bondColor[b]);
+	    bond.setIdealBondLength(idealLength[b]);
+
+	    mol.addBond(bond);
+	    bonds[b] = bond;
+	}
+
+	int ringSize = bb.getInt();
+
+	if(ringSize >= 0){
+	    int packed[] = getInts(ringSize);
+	    List<Ring> rings = new ArrayList<Ring>();
+
+	    for(int p = 0; p < ringSize; /* in loop */){
+		Ring ring = new Ring();
+		int n = packed[p++];
+
+		for(int i = 0; i < n; i++){
+		    ring.addAtom(atoms[packed[p++]]);
+		}
+
+		for(int i = 0; i < n; i++){
+		    int b = packed[p++];
+		    if(b != -1){
+			ring.addBond(bonds[b]);
+		    }
+		}
+
+		rings.add(ring);
+	    }
+
+	    mol.setRings(rings);
+	}
+
+	int frameCount = bb.getInt();
+
+	if(frameCount > 1){
+	    int currentFrame = bb.getInt();
+
+	    mol.setCoordinates(getFloats(3 * atomCount));
+
+	    for(int f = 1; f < frameCount; f++){
+		mol.addFrame(getFloats(3 * atomCount));
+	    }
+
+	    mol.setFrame(currentFrame);
+
+	    // the atoms keep their full precision coordinates
+	    for(int i = 0; i < atomCount; i++){
+		atoms[i].set(x[i], y[i], z[i]);
+	    }
+	}
+
+	return mol;
+    }
+
+    private static int packAttributes(EnumSet<Atom.Attribute> set){
+	int bits = 0;
+
+	for(Atom.Attribute attribute : set){
+	    bits |= 1 << attribute.ordinal();
+	}
+
+	return bits;
+    }
+
+    /** Return a new set for the bits, copying one made earlier. */
+    private static EnumSet<Atom.Attribute>
+	unpackAttributes(int bits,
+			 HashMap<Integer,EnumSet<Atom.Attribute>> sets){
+	Integer key = Integer.valueOf(bits);
+	EnumSet<Atom.Attribute> set = sets.get(key);
+
+	if(set == null){
+	    set = EnumSet.noneOf(Atom.Attribute.class);
+
+	    for(Atom.Attribute attribute : Atom.Attribute.values()){
+		if((bits & (1 << attribute.ordinal())) != 0){
+		    set.add(attribute);
+		}
+	    }
+
+	    sets.put(key, set);
+	}
+
+	return set.clone();
+    }
+
+    private void writeSymmetry(Symmetry symmetry) throws IOException {
+	if(symmetry == null){
+	    putInt(0);
+	    return;
+	}
+
+	putInt(1);
+	putDoubles(symmetry.unitCell, 6);
+	putInt(symmetry.getSpaceGroupNumber());
+	putString(symmetry.getSpaceGroupName());
+	putString(symmetry.getOriginalSpaceGroupName());
+
+	if(symmetry.scale == null){
+	    putInt(0);
+	}else{
+	    putInt(1);
+	    putMatrix(symmetry.scale);
+	}
+    }
+
+    private Symmetry readSymmetry(){
+	if(bb.getInt() == 0){
+	    return null;
+	}
+
+	Symmetry symmetry = new Symmetry();
+
+	symmetry.setUnitCell(getDoubles(6));
+
+	int number = bb.getInt();
+	String name = getString();
+
+	if(name != null){
+	    symmetry.setSpaceGroupName(name);
+	}else{
+	    symmetry.setSpaceGroupNumber(number);
+	}
+
+	symmetry.setOriginalSpaceGroupName(getString());
+
+	if(bb.getInt() == 1){
+	    symmetry.scale = new Matrix();
+	    getMatrix(symmetry.scale);
+	}
+
+	symmetry.prepareSymmetry();
+
+	return symmetry;
+    }
+
+    /** Return the index of the string in the string table. */
+    private int index(String s){
+	if(s == null){
+	    return -1;
+	}
+
+	Integer i = stringIndex.get(s);
+
+	if(i == null){
+	    i = Integer.valueOf(strings.size());
+	    strings.add(s);
+	    stringIndex.put(s, i);
+	}
+
+	return i.intValue();
+    }
+
+    private static String table(String table[], int i){
+	return i == -1 ? null : table[i];
+    }
+
+    /* Graphical objects. */
+
+    private void writeTmesh(Tmesh tmesh) throws IOException {
+	tmesh.writeBinary(channel, bb);
+
+	putInt(tmesh.spheres != null ? 1 : 0);
+
+	if(tmesh.spheres != null){
+	    writeTmesh(tmesh.spheres);
+	}
+
+	putInt(tmesh.cylinders != null ? 1 : 0);
+
+	if(tmesh.cylinders != null){
+	    writeTmesh(tmesh.cylinders);
+	}
+    }
+
+    private Tmesh readTmesh() throws IOException {
+	Tmesh tmesh = Tmesh.readBinary(bb);
+
+	if(tmesh == null){
+	    throw new IOException("bad graphical object");
+	}
+
+	if(bb.getInt() == 1){
+	    tmesh.spheres = readTmesh();
+	}
+
+	if(bb.getInt() == 1){
+	    tmesh.cylinders = readTmesh();
+	}
+
+	return tmesh;
+    }
+
+    /* Maps. */
+
+    /** Are the maps of this type read through a mapped file. */
+    private static boolean isMapped(Map.MapType type){
+	return type == Map.MapType.CCP4_BINARY || type == Map.MapType.O_BINARY;
+    }
+
+    private void writeMap(Map map) throws IOException {
+	putString(map.getName());
+	putString(map.getFile());
+	putInt(map.getMapType().ordinal());
+
+	Point3d center = map.getCenter();
+	putDouble(center.x);
+	putDouble(center.y);
+	putDouble(center.z);
+	putDouble(map.getRadius());
+
+	for(int i = 0; i < Map.MaximumContourLevels; i++){
+	    putDouble(map.getContourLevel(i));
+	    putInt(map.getContourColor(i));
+	    putInt(map.getContourStyle(i));
+	    putInt(map.getContourDisplayed(i) ? 1 : 0);
+	}
+
+	if(isMapped(map.getMapType())){
+	    return;
+	}
+
+	// the whole grid is in memory
+	int points = map.ngrid[0] * map.ngrid[1] * map.ngrid[2];
+
+	putDouble(map.getSigma());
+	putDouble(map.origin.x);
+	putDouble(map.origin.y);
+	putDouble(map.origin.z);
+	putDouble(map.spacing.x);
+	putDouble(map.spacing.y);
+	putDouble(map.spacing.z);
+	putInts(map.ngrid, 3);
+	putFloats(map.data, points);
+    }
+
+    private Map readMap(){
+	String name = getString();
+	String file = getString();
+	Map.MapType type = Map.MapType.values()[bb.getInt()];
+
+	Map map = isMapped(type) ? Map.create() : Map.createSimpleMap();
+
+	if(file != null){
+	    map.setFile(file);
+	}
+
+	map.setName(name);
+	map.setMapType(type);
+	map.initialiseContours = false;
+	map.setCenter(bb.getDouble(), bb.getDouble(), bb.getDouble());
+	map.setRadius(bb.getDouble());
+
+	for(int i = 0; i < Map.MaximumContourLevels; i++){
+	    map.setContourLevel(i, bb.getDouble());
+	    map.setContourColor(i, bb.getInt());
+	    map.setContourStyle(i, bb.getInt());
+	    map.setContourDisplayed(i, bb.getInt() == 1);
+	}
+
+	if(!isMapped(type)){
+	    map.setSigma(bb.getDouble());
+	    map.origin.set(bb.getDouble(), bb.getDouble(), bb.getDouble());
+	    map.spacing.set(bb.getDouble(), bb.getDouble(), bb.getDouble());
+
+	    int ngrid[] = getInts(3);
+	    System.arraycopy(ngrid, 0, map.ngrid, 0, 3);
+
+	    map.data = getFloats(ngrid[0] * ngrid[1] * ngrid[2]);
+	    map.setNeedsReading(false);
+	}
+
+	return map;
+    }
+
+    /* The view. */
+
+    private void writeView(Renderer r) throws IOException {
+	putMatrix(r.rotationMatrix);
+
+	Point3d center = r.getCenter();
+	putDouble(center.x);
+	putDouble(center.y);
+	putDouble(center.z);
+	putDouble(r.getRadius());
+	putDouble(r.getZoom());
+	putDouble(r.getFrontClip());
+	putDouble(r.getBackClip());
+	putInt(r.getBackgroundColor());
+    }
+
+    private void readView(){
+	rotation = getDoubles(16);
+	center = new Point3d(bb.getDouble(), bb.getDouble(), bb.getDouble());
+	radius = bb.getDouble();
+	zoom = bb.getDouble();
+	frontClip = bb.getDouble();
+	backClip = bb.getDouble();
+	background = bb.getInt();
+    }
+
+    /* Writing. */
+
+    /** Make sure there are n bytes free in the buffer. */
+    private void ensure(int n) throws IOException {
+	if(bb.remaining() < n){
+	    Tmesh.flush(channel, bb);
+	}
+    }
+
+    private void putInt(int i) throws IOException {
+	ensure(4);
+	bb.putInt(i);
+    }
+
+    private void putDouble(double d) throws IOException {
+	ensure(8);
+	bb.putDouble(d);
+    }
+
+    /** Write a string as a byte count and UTF-8, -1 for null. */
+    private void putString(String s) throws IOException {
+	if(s == null){
+	    putInt(-1);
+	    return;
+	}
+
+	byte bytes[] = s.getBytes("UTF-8");
+
+	putInt(bytes.length);
+
+	for(int done = 0; done < bytes.length; /* in loop */){
+	    ensure(1);
+	    int count = Math.min(bytes.length - done, bb.remaining());
+	    bb.put(bytes, done, count);
+	    done += count;
+	}
+    }
+
+    private void putInts(int a[], int n) throws IOException {
+	Tmesh.writeBlock(channel, bb, a, n);
+    }
+
+    private void putFloats(float a[], int n) throws IOException {
+	Tmesh.writeBlock(channel, bb, a, n);
+    }
+
+    private void putDoubles(double a[], int n) throws IOException {
+	int done = 0;
+	while(done < n){
+	    ensure(8);
+	    int count = Math.min(n - done, bb.remaining() / 8);
+	    bb.asDoubleBuffer().put(a, done, count);
+	    bb.position(bb.position() + 8 * count);
+	    done += count;
+	}
+    }
+
+    private void putMatrix(Matrix m) throws IOException {
+	double elements[] = {
+	    m.m00, m.m01, m.m02, m.m03,
+	    m.m10, m.m11, m.m12, m.m13,
+	    m.m20, m.m21, m.m22, m.m23,
+	    m.m30, m.m31, m.m32, m.m33
+	};
+
+	putDoubles(elements, 16);
+    }
+
+    /* Reading. */
+
+    private String getString(){
+	int length = bb.getInt();
+
+	if(length == -1){
+	    return null;
+	}
+
+	byte bytes[] = new byte[length];
+	bb.get(bytes);
+
+	try {
+	    return new String(bytes, "UTF-8");
+	}catch(UnsupportedEncodingException e){
+	    return new String(bytes);
+	}
+    }
+
+    private int[] getInts(int n){
+	int a[] = new int[n];
+	Tmesh.readBlock(bb, a, n);
+	return a;
+    }
+
+    private float[] getFloats(int n){
+	float a[] = new float[n];
+	Tmesh.readBlock(bb, a, n);
+	return a;
+    }
+
+    private double[] getDoubles(int n){
+	double a[] = new double[n];
+	bb.asDoubleBuffer().get(a, 0, n);
+	bb.position(bb.position() + 8 * n);
+	return a;
+    }
+
+    private void getMatrix(Matrix m){
+	setMatrix(m, getDoubles(16));
+    }
+
+    private static void setMatrix(Matrix m, double e[]){
+	m.m00 = e[0];  m.m01 = e[1];  m.m02 = e[2];  m.m03 = e[3];
+	m.m10 = e[4];  m.m11 = e[5];  m.m12 = e[6];  m.m13 = e[7];
+	m.m20 = e[8];  m.m21 = e[9];  m.m22 = e[10]; m.m23 = e[11];
+	m.m30 = e[12]; m.m31 = e[13]; m.m32 = e[14]; m.m33 = e[15];
+    }
+}
@@ -98,6 +98,11 @@ public class Surface {
 	minimumSpacing = s;
     }
 
+    /** Get the minimum grid spacing. */
+    public static double getMinimumSpacing(){
+	return minimumSpacing;
+    }
+
     /** The x-coordinate of the atoms. */
     private static double ax[] = null;
 
@@ -250,8 +255,7 @@ public class Surface {
 	// we are defining a surface at this distance from
 	// the solvent extended surface.
 
-	March.generateTriangles = solid;
-	March.surface(grid, gx, gy, gz, (float)rp, false, surface);
+	March.surface(grid, gx, gy, gz, (float)rp, false, surface, solid);
 
 	debug("Contour         " + (System.currentTimeMillis() - then));
 
@@ -412,7 +416,9 @@ public class Surface {
 		    surface.ny[newPoints] = surface.ny[i];
 		    surface.nz[newPoints] = surface.nz[i];
 		}
-		surface.vcolor[newPoints] = surface.vcolor[i];
+		if(surface.vcolor != null){
+		    surface.vcolor[newPoints] = surface.vcolor[i];
+		}
 		reordered[i] = newPoints;
 		newPoints++;
 	    }
@@ -0,0 +1,236 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.io.File;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of computed surfaces.
+ *
+ * Surfaces are stored in binary tmesh files named by a hash of
+ * everything that determines them: the kind of surface, its
+ * parameters and the coordinates, radii and selection state
+ * of the atoms. A matching file is memory mapped back rather
+ * than recomputing the surface. When the directory grows past
+ * its size limit the least recently used files are removed.
+ *
+ * Configured by surface.cache, surface.cache.directory and
+ * surface.cache.size (megabytes) in config.properties.
+ */
+public class SurfaceCache {
+    /** Suffix for cache files. */
+    private static final String Suffix = ".tmb";
+
+    /** Is the cache on by default. */
+    public static boolean isEnabled(){
+	return Settings.getBoolean("config", "surface.cache");
+    }
+
+    /** The cache directory, created if necessary. */
+    private static File getDirectory(){
+	String dir = Settings.getString("config", "surface.cache.directory");
+
+	if(dir == null){
+	    dir = System.getProperty("user.home") + File.separator +
+		".moleculeviewer" + File.separator + "surfaces";
+	}
+
+	File directory = new File(dir);
+
+	if(!directory.isDirectory() && !directory.mkdirs()){
+	    Log.error("couldn't create surface cache " + dir);
+	    return null;
+	}
+
+	return directory;
+    }
+
+    /** The size limit of the cache in bytes. */
+    private static long getMaximumSize(){
+	return 1024L * 1024L *
+	    Settings.getInteger("config", "surface.cache.size", 512);
+    }
+
+    /**
+     * Generate the key for a surface. The parameters should
+     * be everything other than the atoms that changes the
+     * surface, e.g. the surface type, probe radius and spacing.
+     */
+    public static String getKey(List<Atom> atoms, String parameters){
+	try {
+	    MessageDigest md = MessageDigest.getInstance("SHA-1");
+
+	    md.update(parameters.getBytes("UTF-8"));
+
+	    byte buf[] = new byte[8 * 1024];
+	    int pos = 0;
+
+	    for(Atom atom : atoms){
+		if(pos > buf.length - 40){
+		    md.update(buf, 0, pos);
+		    pos = 0;
+		}
+		pos = putLong(buf, pos, Double.doubleToLongBits(atom.x));
+		pos = putLong(buf, pos, Double.doubleToLongBits(atom.y));
+		pos = putLong(buf, pos, Double.doubleToLongBits(atom.z));
+		pos = putLong(buf, pos, Double.doubleToLongBits(atom.getVDWRadius()));
+		pos = putInt(buf, pos, atom.getColor());
+		buf[pos++] = (byte)(atom.isSelected() ? 1 : 0);
+	    }
+
+	    md.update(buf, 0, pos);
+
+	    byte digest[] = md.digest();
+	    StringBuilder sb = new StringBuilder(2 * digest.length);
+
+	    for(byte b : digest){
+		sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+		sb.append(Character.forDigit(b & 0xf, 16));
+	    }
+
+	    return sb.toString();
+	}catch(Exception e){
+	    Log.error("couldn't generate surface key " + e);
+	    return null;
+	}
+    }
+
+    private static int putLong(byte buf[], int pos, long l){
+	for(int i = 0; i < 8; i++){
+	    buf[pos++] = (byte)(l >>> (8 * i));
+	}
+	return pos;
+    }
+
+    private static int putInt(byte buf[], int pos, int l){
+	for(int i = 0; i < 4; i++){
+	    buf[pos++] = (byte)(l >>> (8 * i));
+	}
+	return pos;
+    }
+
+    /** Return the cached surface for the key or null. */
+    public static synchronized Tmesh get(String key){
+	if(key == null){
+	    return null;
+	}
+
+	File directory = getDirectory();
+
+	if(directory == null){
+	    return null;
+	}
+
+	File file = new File(directory, key + Suffix);
+
+	if(!file.isFile()){
+	    return null;
+	}
+
+	Tmesh tmesh = Tmesh.readBinary(file.getPath());
+
+	if(tmesh == null){
+	    // corrupt or partial, get rid of it
+	    file.delete();
+	    return null;
+	}
+
+	// mark as recently used
+	file.setLastModified(System.currentTimeMillis());
+
+	Log.info("surface cache hit " + key);
+
+	return tmesh;
+    }
+
+    /** Store a surface in the cache under the key. */
+    public static synchronized void put(String key, Tmesh tmesh){
+	if(key == null || tmesh == null){
+	    return;
+	}
+
+	File directory = getDirectory();
+
+	if(directory == null){
+	    return;
+	}
+
+	// write to a temporary file and rename it, so that
+	// other viewers never see a partial file
+	File tmp = new File(directory, key + ".tmp");
+	File file = new File(directory, key + Suffix);
+
+	if(!tmesh.writeBinary(tmp.getPath())){
+	    tmp.delete();
+	    return;
+	}
+
+	if(!tmp.renameTo(file)){
+	    file.delete();
+	    if(!tmp.renameTo(file)){
+		tmp.delete();
+		return;
+	    }
+	}
+
+	evict(directory);
+    }
+
+    /** Remove least recently used files until we fit. */
+    private static void evict(File directory){
+	File files[] = directory.listFiles();
+
+	if(files == null){
+	    return;
+	}
+
+	long total = 0;
+
+	for(File f : files){
+	    total += f.length();
+	}
+
+	long max = getMaximumSize();
+
+	if(total <= max){
+	    return;
+	}
+
+	Arrays.sort(files, new Comparator<File>(){
+		public int compare(File a, File b){
+		    long ta = a.lastModified();
+		    long tb = b.lastModified();
+		    return ta < tb ? -1 : (ta == tb ? 0 : 1);
+		}
+	    });
+
+	for(File f : files){
+	    if(total <= max){
+		break;
+	    }
+	    if(f.getName().endsWith(Suffix)){
+		total -= f.length();
+		f.delete();
+	    }
+	}
+    }
+}
@@ -290,6 +290,11 @@ public class Symmetry {
 	spaceGroupNumber = 0;
     }
 
+    /** Get the space group name. */
+    public String getSpaceGroupName(){
+	return spaceGroupName;
+    }
+
     /** Set the original space group name (with spaces). */
     public void setOriginalSpaceGroupName(String s){
 	originalSpaceGroupName = s;
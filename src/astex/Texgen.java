@@ -17,12 +17,16 @@
 
 package astex;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 import java.util.List;
 
 /**
  * Class for generating various sorts of texture coordinates.
  */
 public class Texgen {
+    /** The smallest number of vertices handed to one thread. */
+    private static final int MinimumVertexBlock = 1024;
+
     /**
      * Measure distance to nearest point in point list.
      * Texture coordinates are normalised by dividing by max.
@@ -35,7 +39,8 @@ public class Texgen {
     public static void distance(Tmesh tm, List<Atom> points, int uv){
 	int tnp = tm.np;
 	float tlocal[] = null;
-	double dmax = 0.0;
+
+	tm.ensureTextureCoordinates();
 
 	if(uv == Tmesh.UTexture){
 	    tlocal = tm.u;
@@ -47,28 +52,28 @@ public class Texgen {
 	    return;
 	}
 
-	for(int i = 0; i < tnp; i++){
-	    double tx = tm.x[i];
-	    double ty = tm.y[i];
-	    double tz = tm.z[i];
-	    double dmin = 1.e10;
-
-	    for(Point3d p : points){
-		double dx = tx - p.x;
-		double dy = ty - p.y;
-		double dz = tz - p.z;
-		double d2 = dx*dx + dy*dy + dz*dz;
-		if(d2 < dmin){
-		    dmin = d2;
+	final KdTree tree = new KdTree(points);
+	final Tmesh mesh = tm;
+	final float values[] = tlocal;
+
+	Parallel.forRange(tnp, MinimumVertexBlock, new Parallel.Block(){
+		public void run(int start, int end){
+		    for(int i = start; i < end; i++){
+			double dmin = Math.min(1.e10,
+					       tree.nearestDistance2(mesh.x[i],
+								     mesh.y[i],
+								     mesh.z[i]));
+			values[i] = (float)Math.sqrt(dmin);
+		    }
 		}
-	    }
+	    });
 
-	    double d = Math.sqrt(dmin);
-	    if(d > dmax){
-		dmax = d;
-	    }
+	double dmax = 0.0;
 
-	    tlocal[i] = (float)d;
+	for(int i = 0; i < tnp; i++){
+	    if(tlocal[i] > dmax){
+		dmax = tlocal[i];
+	    }
 	}
 
 	if(Math.abs(dmax) > 1.e-3){
@@ -89,10 +94,13 @@ public class Texgen {
 				 int uv, double maxd){
 	int tnp = tm.np;
 	float tlocal[] = null;
-	double maxd2 = maxd*maxd;
+	final double maxd2 = maxd*maxd;
+	final double radius = maxd;
 	double min = 1.e10;
 	double max = 0.0;
 
+	tm.ensureTextureCoordinates();
+
 	if(uv == Tmesh.UTexture){
 	    tlocal = tm.u;
 	}else if(uv == Tmesh.VTexture){
@@ -103,24 +111,69 @@ public class Texgen {
 	    return;
 	}
 
-	for(int i = 0; i < tnp; i++){
-	    double tx = tm.x[i];
-	    double ty = tm.y[i];
-	    double tz = tm.z[i];
-	    double dtotal = 0.0;
-
-	    for(Point3d p : points){
-		double dx = tx - p.x;
-		double dy = ty - p.y;
-		double dz = tz - p.z;
-		double d2 = dx*dx + dy*dy + dz*dz;
-		if(d2 < maxd2){
-		    d2 = Math.sqrt(d2);
-		    dtotal += (maxd - d2);
-		}
+	final int np = points.size();
+	final double px[] = new double[np];
+	final double py[] = new double[np];
+	final double pz[] = new double[np];
+	final Tmesh mesh = tm;
+	final float values[] = tlocal;
+
+	int n = 0;
+	for(Point3d p : points){
+	    px[n] = p.x;
+	    py[n] = p.y;
+	    pz[n] = p.z;
+	    n++;
+	}
+
+	if(maxd > 0.0){
+	    // only atoms in the neighbouring cells can be in range
+	    final Lattice l = new Lattice(maxd);
+
+	    for(int j = 0; j < np; j++){
+		l.add(j, px[j], py[j], pz[j]);
 	    }
 
-	    tlocal[i] = (float)dtotal;
+	    Parallel.forRange(tnp, MinimumVertexBlock, new Parallel.Block(){
+		    public void run(int start, int end){
+			IntArrayList neighbours = new IntArrayList();
+
+			for(int i = start; i < end; i++){
+			    double tx = mesh.x[i];
+			    double ty = mesh.y[i];
+			    double tz = mesh.z[i];
+			    double dtotal = 0.0;
+
+			    neighbours.clear();
+			    l.getPossibleNeighbours(Lattice.Undefined, tx, ty, tz,
+						    neighbours, true);
+
+			    int nn = neighbours.size();
+			    int nlist[] = neighbours.elements();
+
+			    for(int k = 0; k < nn; k++){
+				int j = nlist[k];
+				double dx = tx - px[j];
+				double dy = ty - py[j];
+				double dz = tz - pz[j];
+				double d2 = dx*dx + dy*dy + dz*dz;
+				if(d2 < maxd2){
+				    dtotal += (radius - Math.sqrt(d2));
+				}
+			    }
+
+			    values[i] = (float)dtotal;
+			}
+		    }
+		});
+	}else{
+	    for(int i = 0; i < tnp; i++){
+		tlocal[i] = 0.0f;
+	    }
+	}
+
+	for(int i = 0; i < tnp; i++){
+	    double dtotal = tlocal[i];
 
 	    if(dtotal > max){
 		max = dtotal;
@@ -138,6 +191,8 @@ public class Texgen {
     /** Create rectangular texture coordinates. */
     public static void rectangular(Tmesh tm){
 	int tnp = tm.np;
+
+	tm.ensureTextureCoordinates();
 	double xmin =  1.e10;
 	double xmax = -1.e10;
 	double ymin =  1.e10;
@@ -159,31 +214,43 @@ public class Texgen {
 	}	
     }
 
-    private static double x[] = null;
-    private static double y[] = null;
-    private static double z[] = null;
-    private static double q[] = null;
-
     public enum MapFunc {
 	Electrostatic, Lipophilicity
     }
 
-    /** Generate potential. */
-    public static synchronized void property_map(Tmesh tm,
-						 List<Atom> atoms,
-						 int uv,
-						 double maxd,
-						 boolean absolute,
-						 MapFunc func){
+    /** Generate potential from the charges within maxd. */
+    public static void property_map(Tmesh tm,
+				    List<Atom> atoms,
+				    int uv,
+				    double maxd,
+				    boolean absolute,
+				    MapFunc func){
+	property_map(tm, atoms, uv, maxd, absolute, func, false);
+    }
+
+    /**
+     * Generate potential.
+     *
+     * If treecode is set the electrostatic potential is summed
+     * over all charges with a treecode and maxd is ignored.
+     */
+    public static void property_map(Tmesh tm,
+				    List<Atom> atoms,
+				    int uv,
+				    double maxd,
+				    boolean absolute,
+				    final MapFunc func,
+				    boolean treecode){
 	int atomCount = atoms.size();
 	float tlocal[] = null;
 	double min =  1.0e10;
 	double max = -1.0e10;
-	double maxd2 = maxd * maxd;
 
-	double halfWidth = 1.;
-	double dCutoff = 3.0;
-	double topPart = Math.exp(-halfWidth * dCutoff) + 1.0;
+	final double halfWidth = 1.;
+	final double dCutoff = 3.0;
+	final double topPart = Math.exp(-halfWidth * dCutoff) + 1.0;
+
+	tm.ensureTextureCoordinates();
 
 	if(uv == Tmesh.UTexture){
 	    tlocal = tm.u;
@@ -193,12 +260,10 @@ public class Texgen {
 	
 	int arraySize = atomCount * 2;
 
-	if(x == null || x.length < arraySize){
-	    x = new double[arraySize];
-	    y = new double[arraySize];
-	    z = new double[arraySize];
-	    q = new double[arraySize];
-	}
+	final double x[] = new double[arraySize];
+	final double y[] = new double[arraySize];
+	final double z[] = new double[arraySize];
+	final double q[] = new double[arraySize];
 
 	int na = 0;
 	int amideProtons = 0;
@@ -241,58 +306,92 @@ public class Texgen {
 	    }
 	}
 
-	// build the lattice
-	Lattice l = new Lattice(maxd);
-
-	for(int ia = 0; ia < na; ia++){
-	    l.add(ia, x[ia], y[ia], z[ia]);
-	}
-
 	if(func == MapFunc.Electrostatic){
 	    System.out.println("added " + amideProtons + " amide protons");
 	}
 
-	double totalCharge = 0.0;
-	
-	for(int i = 0; i < na; i++){
-	    totalCharge += q[i];
-	}
-	
+	final Tmesh mesh = tm;
+	final float values[] = tlocal;
 	int tnp = tm.np;
 
-	for(int i = 0; i < tnp; i++){
-	    double tx = tm.x[i];
-	    double ty = tm.y[i];
-	    double tz = tm.z[i];
-	    double dtotal = 0.0;
-	    double norm = 0.0;
-
-	    for(int j = 0; j < na; j++){
-		double dx = tx - x[j];
-		double dy = ty - y[j];
-		double dz = tz - z[j];
-		double d2 = dx*dx + dy*dy + dz*dz;
-
-		if(d2 < maxd2){
-		    if(func == MapFunc.Electrostatic){
-			dtotal += q[j]/d2;
-		    }else if(func == MapFunc.Lipophilicity){
-			double d = Math.sqrt(d2);
-			double gd = topPart /
-			    (Math.exp(halfWidth * (d - dCutoff)) + 1.0);
-
-
-			dtotal += q[j] * gd;
-			norm += gd;
+	if(func == MapFunc.Electrostatic && treecode){
+	    final ChargeTree tree = new ChargeTree(x, y, z, q, na);
+
+	    Parallel.forRange(tnp, MinimumVertexBlock, new Parallel.Block(){
+		    public void run(int start, int end){
+			int stack[] = tree.createStack();
+
+			for(int i = start; i < end; i++){
+			    values[i] = (float)tree.potential(mesh.x[i],
+							      mesh.y[i],
+							      mesh.z[i],
+							      stack);
+			}
 		    }
-		}
-	    }
+		});
+	}else{
+	    final double maxd2 = maxd * maxd;
 
-	    if(func == MapFunc.Lipophilicity){
-		dtotal /= norm;
+	    // build the lattice, a zero cutoff finds no charges
+	    final Lattice l = maxd2 > 0.0 ? new Lattice(Math.abs(maxd)) : null;
+
+	    for(int ia = 0; l != null && ia < na; ia++){
+		l.add(ia, x[ia], y[ia], z[ia]);
 	    }
 
-	    tlocal[i] = (float)dtotal;
+	    Parallel.forRange(tnp, MinimumVertexBlock, new Parallel.Block(){
+		    public void run(int start, int end){
+			IntArrayList neighbours = new IntArrayList();
+
+			for(int i = start; i < end; i++){
+			    double tx = mesh.x[i];
+			    double ty = mesh.y[i];
+			    double tz = mesh.z[i];
+			    double dtotal = 0.0;
+			    double norm = 0.0;
+
+			    neighbours.clear();
+			    if(l != null){
+				l.getPossibleNeighbours(Lattice.Undefined, tx, ty, tz,
+							neighbours, true);
+			    }
+
+			    int nn = neighbours.size();
+			    int nlist[] = neighbours.elements();
+
+			    for(int k = 0; k < nn; k++){
+				int j = nlist[k];
+				double dx = tx - x[j];
+				double dy = ty - y[j];
+				double dz = tz - z[j];
+				double d2 = dx*dx + dy*dy + dz*dz;
+
+				if(d2 < maxd2){
+				    if(func == MapFunc.Electrostatic){
+					dtotal += q[j]/d2;
+				    }else if(func == MapFunc.Lipophilicity){
+					double d = Math.sqrt(d2);
+					double gd = topPart /
+					    (Math.exp(halfWidth * (d - dCutoff)) + 1.0);
+
+					dtotal += q[j] * gd;
+					norm += gd;
+				    }
+				}
+			    }
+
+			    if(func == MapFunc.Lipophilicity){
+				dtotal /= norm;
+			    }
+
+			    values[i] = (float)dtotal;
+			}
+		    }
+		});
+	}
+
+	for(int i = 0; i < tnp; i++){
+	    double dtotal = tlocal[i];
 
 	    if(dtotal > max){
 		max = dtotal;
@@ -322,6 +421,69 @@ public class Texgen {
 	}
     }
 
+    /**
+     * Sample a map at each vertex. The texture coordinates are
+     * scaled to cover the range of values on the surface, and
+     * vertices outside the map get the lowest value.
+     */
+    public static void map(Tmesh tm, Map map, int uv){
+	float tlocal[] = null;
+
+	tm.ensureTextureCoordinates();
+
+	if(uv == Tmesh.UTexture){
+	    tlocal = tm.u;
+	}else if(uv == Tmesh.VTexture){
+	    tlocal = tm.v;
+	}else{
+	    System.out.println("Texgen.map: " +
+			       "invalid texture coordinate " + uv);
+	    return;
+	}
+
+	int tnp = tm.np;
+
+	map.sample(tm.x, tm.y, tm.z, tnp, tlocal, Float.NaN);
+
+	double min =  1.0e10;
+	double max = -1.0e10;
+
+	for(int i = 0; i < tnp; i++){
+	    if(tlocal[i] == tlocal[i]){
+		if(tlocal[i] > max){
+		    max = tlocal[i];
+		}
+		if(tlocal[i] < min){
+		    min = tlocal[i];
+		}
+	    }
+	}
+
+	if(max < min){
+	    Log.error("surface is outside map " + map.getName());
+	    min = max = 0.0;
+	}
+
+	for(int i = 0; i < tnp; i++){
+	    if(tlocal[i] != tlocal[i]){
+		tlocal[i] = (float)min;
+	    }
+	}
+
+	FILE.out.print("map min %.3f ", min);
+	FILE.out.print("max %.3f\n", max);
+
+	double scale = (max > min) ? 1.0/(max - min) : 1.0;
+
+	if(uv == Tmesh.UTexture){
+	    tm.setUOffset(min);
+	    tm.setUScale(scale);
+	}else{
+	    tm.setVOffset(min);
+	    tm.setVScale(scale);
+	}
+    }
+
     /** Generate an amide hydrogen position. */
     private static Point3d getAmideHydrogen(Atom N){
 	if(N == null){
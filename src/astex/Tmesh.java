@@ -24,6 +24,7 @@ package astex;
  */
 
 import java.util.*;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
 
 public class Tmesh {
     /** The number of points in the object. */
@@ -112,12 +113,29 @@ public class Tmesh {
     /** The indices of the points in the triangles. */
     public int tcolor[] = null;
 
-    /** The number of points we will grow a tmesh by. */
+    /** The smallest number of points we will grow a tmesh by. */
     private static final int PointAllocationIncrement = 4096;
 
-    /** The number of triangles we will grow a tmesh by. */
+    /** The smallest number of triangles we will grow a tmesh by. */
     private static final int TriangleAllocationIncrement = 8192;
 
+    /** Oct-encoded normals, two 16 bit values, in compact mode. */
+    private int onormal[] = null;
+
+    /** 16 bit texture coordinates in compact mode. */
+    private short qu[] = null;
+    private short qv[] = null;
+
+    /** The range of the 16 bit texture coordinates. */
+    private float qumin, qustep, qvmin, qvstep;
+
+    /**
+     * Is the object in compact form. Lines and points may have
+     * nothing to encode, but still have their triangle colors
+     * dropped, so this can't be told from the arrays.
+     */
+    private boolean compact = false;
+
     public enum Style {
 	DOTS, LINES, TRIANGLES, CYLINDERS, SPHERES
     }
@@ -181,6 +199,37 @@ public class Tmesh {
 	nt = 0;
     }
 
+    /**
+     * Take the points and triangles of another object, keeping
+     * our name, colors and other display settings. The other
+     * object shouldn't be used afterwards.
+     */
+    public void setGeometry(Tmesh tm){
+	npalloc = tm.npalloc;
+	x = tm.x; y = tm.y; z = tm.z;
+	nx = tm.nx; ny = tm.ny; nz = tm.nz;
+	u = tm.u; v = tm.v;
+	vcolor = tm.vcolor;
+	onormal = tm.onormal;
+	qu = tm.qu; qv = tm.qv;
+	qumin = tm.qumin; qustep = tm.qustep;
+	qvmin = tm.qvmin; qvstep = tm.qvstep;
+	compact = tm.compact;
+	ntalloc = tm.ntalloc;
+	t0 = tm.t0; t1 = tm.t1; t2 = tm.t2;
+	tcolor = tm.tcolor;
+	style = tm.style;
+	np = tm.np;
+	nt = tm.nt;
+
+	// new geometry has no vertex colors of ours, keep vertex
+	// colored objects drawable with the object color
+	if(colorStyle == ColorStyle.VertexColor && vcolor == null){
+	    ensureVertexColors();
+	    Arrays.fill(vcolor, 0, np, color);
+	}
+    }
+
     /** Get inverse texture coordinate. */
     public double getInverseTexture(int uv, double val){
 	double inv = 0.0;
@@ -220,6 +269,9 @@ public class Tmesh {
     /** Set the object color style. */
     public void setColorStyle(ColorStyle s){
 	colorStyle = s;
+	if(s == ColorStyle.VertexColor){
+	    ensureVertexColors();
+	}
 	if(lines != null) lines.setColorStyle(s);
 	if(spheres != null) spheres.setColorStyle(s);
 	if(cylinders != null) cylinders.setColorStyle(s);
@@ -349,6 +401,8 @@ public class Tmesh {
 			double tu, double tv){
 	
 	ensurePointCapacity();
+	ensureNormals();
+	ensureTextureCoordinates();
 
 	x[np] = (float)xp;
 	y[np] = (float)yp;
@@ -358,13 +412,16 @@ public class Tmesh {
 	nz[np] = (float)zn;
 	u[np] = (float)tu;
 	v[np] = (float)tv;
-	vcolor[np] = 0;
+	if(vcolor != null){
+	    vcolor[np] = 0;
+	}
 
 	return np++;
     }
 
     public int addPoint(double xp, double yp, double zp, int c){
 	ensurePointCapacity();
+	ensureVertexColors();
 	x[np] = (float)xp;
 	y[np] = (float)yp;
 	z[np] = (float)zp;
@@ -372,15 +429,44 @@ public class Tmesh {
 	return np++;
     }
 
+    /**
+     * Add a point with no normal, texture coordinate or color,
+     * for line objects that never use them.
+     */
+    public int addPoint(double xp, double yp, double zp){
+	ensurePointCapacity();
+	x[np] = (float)xp;
+	y[np] = (float)yp;
+	z[np] = (float)zp;
+	if(nx != null){
+	    nx[np] = ny[np] = nz[np] = 0.0f;
+	}
+	if(u != null){
+	    u[np] = v[np] = 0.0f;
+	}
+	if(vcolor != null){
+	    vcolor[np] = 0;
+	}
+	return np++;
+    }
+
     /** Get the vertex info for the specified point. */
     public void getVertex(int v, double px[], double nxx[]){
 	px[0] = x[v];
 	px[1] = y[v];
 	px[2] = z[v];
 	if(nxx != null){
-	    nxx[0] = nx[v];
-	    nxx[1] = ny[v];
-	    nxx[2] = nz[v];
+	    if(onormal != null){
+		float n[] = new float[3];
+		octDecode(onormal[v], n);
+		nxx[0] = n[0];
+		nxx[1] = n[1];
+		nxx[2] = n[2];
+	    }else if(nx != null){
+		nxx[0] = nx[v];
+		nxx[1] = ny[v];
+		nxx[2] = nz[v];
+	    }
 	}
     }
 
@@ -389,58 +475,279 @@ public class Tmesh {
 	return np;
     }
 
-    /** Set the initial capacity for points. */
+    /**
+     * Set the initial capacity for points. Only the coordinates
+     * are allocated, the other attributes are allocated the
+     * first time they are used.
+     */
     private void setPointCapacity(int nn){
 	npalloc = nn;
 	x = new float[npalloc];
 	y = new float[npalloc];
 	z = new float[npalloc];
-	nx = new float[npalloc];
-	ny = new float[npalloc];
-	nz = new float[npalloc];
-	u = new float[npalloc];
-	v = new float[npalloc];
-	vcolor = new int[npalloc];
+	nx = ny = nz = null;
+	u = v = null;
+	vcolor = null;
+    }
+
+    /** Make sure the normal arrays exist. */
+    public void ensureNormals(){
+	if(compact){
+	    expand();
+	}
+	if(nx == null || ny == null || nz == null){
+	    nx = new float[npalloc];
+	    ny = new float[npalloc];
+	    nz = new float[npalloc];
+	}
+    }
+
+    /** Make sure the texture coordinate arrays exist. */
+    public void ensureTextureCoordinates(){
+	if(compact){
+	    expand();
+	}
+	if(u == null || v == null){
+	    u = new float[npalloc];
+	    v = new float[npalloc];
+	}
+    }
+
+    /** Make sure the vertex color array exists. */
+    public void ensureVertexColors(){
+	if(vcolor == null){
+	    vcolor = new int[npalloc];
+	}
+    }
+
+    /** Is the object stored in compact form. */
+    public boolean isCompact(){
+	return compact;
+    }
+
+    /**
+     * Store the object in compact form. Normals are oct-encoded
+     * into one int, texture coordinates are quantized to 16 bits
+     * over their range, unused triangle colors are dropped and the
+     * arrays are trimmed to the number of points and triangles.
+     * Anything that adds points or changes the normals or
+     * texture coordinates expands the object again first.
+     */
+    public void compact(){
+	if(compact || np == 0){
+	    return;
+	}
+
+	compact = true;
+
+	if(nx != null && ny != null && nz != null && style == Style.TRIANGLES){
+	    onormal = new int[np];
+	    for(int i = 0; i < np; i++){
+		onormal[i] = octEncode(nx[i], ny[i], nz[i]);
+	    }
+	    nx = ny = nz = null;
+	}
+
+	if(u != null && v != null){
+	    float umin = u[0], umax = u[0], vmin = v[0], vmax = v[0];
+	    for(int i = 1; i < np; i++){
+		if(u[i] < umin) umin = u[i];
+		if(u[i] > umax) umax = u[i];
+		if(v[i] < vmin) vmin = v[i];
+		if(v[i] > vmax) vmax = v[i];
+	    }
+	    qumin = umin;
+	    qvmin = vmin;
+	    qustep = (umax - umin) / 65535.0f;
+	    qvstep = (vmax - vmin) / 65535.0f;
+	    qu = new short[np];
+	    qv = new short[np];
+	    for(int i = 0; i < np; i++){
+		qu[i] = (short)(qustep == 0.0f ? 0 : Math.round((u[i] - umin)/qustep));
+		qv[i] = (short)(qvstep == 0.0f ? 0 : Math.round((v[i] - vmin)/qvstep));
+	    }
+	    u = v = null;
+	}
+
+	boolean triangleColors = false;
+	for(int i = 0; tcolor != null && i < nt; i++){
+	    if(tcolor[i] != 0){
+		triangleColors = true;
+		break;
+	    }
+	}
+
+	// trim to size
+	npalloc = np;
+	x = grow(x, np, np);
+	y = grow(y, np, np);
+	z = grow(z, np, np);
+	nx = grow(nx, np, np);
+	ny = grow(ny, np, np);
+	nz = grow(nz, np, np);
+	u = grow(u, np, np);
+	v = grow(v, np, np);
+	vcolor = grow(vcolor, np, np);
+
+	if(nt > 0){
+	    ntalloc = nt;
+	    t0 = grow(t0, nt, nt);
+	    t1 = grow(t1, nt, nt);
+	    t2 = grow(t2, nt, nt);
+	    tcolor = triangleColors ? grow(tcolor, nt, nt) : null;
+	}
+    }
+
+    /** Restore the full float normals and texture coordinates. */
+    public void expand(){
+	if(onormal != null){
+	    float n[] = new float[3];
+	    nx = new float[npalloc];
+	    ny = new float[npalloc];
+	    nz = new float[npalloc];
+	    for(int i = 0; i < np; i++){
+		octDecode(onormal[i], n);
+		nx[i] = n[0];
+		ny[i] = n[1];
+		nz[i] = n[2];
+	    }
+	    onormal = null;
+	}
+
+	if(qu != null){
+	    u = new float[npalloc];
+	    v = new float[npalloc];
+	    for(int i = 0; i < np; i++){
+		u[i] = qumin + (qu[i] & 0xffff) * qustep;
+		v[i] = qvmin + (qv[i] & 0xffff) * qvstep;
+	    }
+	    qu = qv = null;
+	}
+
+	if(tcolor == null && t0 != null){
+	    tcolor = new int[ntalloc];
+	}
+
+	compact = false;
+    }
+
+    /** Get the normal of point i, from either representation. */
+    public void getNormal(int i, float n[]){
+	if(onormal != null){
+	    octDecode(onormal[i], n);
+	}else if(nx != null){
+	    n[0] = nx[i];
+	    n[1] = ny[i];
+	    n[2] = nz[i];
+	}else{
+	    n[0] = n[1] = n[2] = 0.0f;
+	}
+    }
+
+    /** Get texture coordinate u of point i. */
+    public float getU(int i){
+	if(qu != null){
+	    return qumin + (qu[i] & 0xffff) * qustep;
+	}
+	return u == null ? 0.0f : u[i];
+    }
+
+    /** Get texture coordinate v of point i. */
+    public float getV(int i){
+	if(qv != null){
+	    return qvmin + (qv[i] & 0xffff) * qvstep;
+	}
+	return v == null ? 0.0f : v[i];
+    }
+
+    /** Encode a unit vector as two 16 bit octahedral coordinates. */
+    private static int octEncode(float x, float y, float z){
+	float l = Math.abs(x) + Math.abs(y) + Math.abs(z);
+	if(l == 0.0f){
+	    return 0;
+	}
+	float px = x / l;
+	float py = y / l;
+	if(z < 0.0f){
+	    float tx = (1.0f - Math.abs(py)) * (px >= 0.0f ? 1.0f : -1.0f);
+	    float ty = (1.0f - Math.abs(px)) * (py >= 0.0f ? 1.0f : -1.0f);
+	    px = tx;
+	    py = ty;
+	}
+	int ix = Math.round(px * 32767.0f);
+	int iy = Math.round(py * 32767.0f);
+	return (ix & 0xffff) | (iy << 16);
+    }
+
+    /** Decode two 16 bit octahedral coordinates to a unit vector. */
+    private static void octDecode(int o, float n[]){
+	float x = (short)(o & 0xffff) / 32767.0f;
+	float y = (short)(o >> 16) / 32767.0f;
+	float z = 1.0f - Math.abs(x) - Math.abs(y);
+	if(z < 0.0f){
+	    float tx = (1.0f - Math.abs(y)) * (x >= 0.0f ? 1.0f : -1.0f);
+	    float ty = (1.0f - Math.abs(x)) * (y >= 0.0f ? 1.0f : -1.0f);
+	    x = tx;
+	    y = ty;
+	}
+	float l = (float)Math.sqrt(x*x + y*y + z*z);
+	if(l > 0.0f){
+	    x /= l; y /= l; z /= l;
+	}
+	n[0] = x;
+	n[1] = y;
+	n[2] = z;
+    }
+
+    /** Copy of the array with a new length, or null. */
+    private static float[] grow(float a[], int n, int size){
+	if(a == null){
+	    return null;
+	}
+	float b[] = new float[size];
+	System.arraycopy(a, 0, b, 0, n);
+	return b;
     }
 
-    /** Make sure we have room for the next point. */
+    /** Copy of the array with a new length, or null. */
+    private static int[] grow(int a[], int n, int size){
+	if(a == null){
+	    return null;
+	}
+	int b[] = new int[size];
+	System.arraycopy(a, 0, b, 0, n);
+	return b;
+    }
+
+    /**
+     * Make sure we have room for the next point. The arrays
+     * grow by half their size each time, so that adding n
+     * points costs O(n) copying.
+     */
     private void ensurePointCapacity(){
+	if(compact){
+	    expand();
+	}
+
 	if(np == npalloc){
-	    npalloc += PointAllocationIncrement;
-
-	    float newx[] = new float[npalloc];
-	    float newy[] = new float[npalloc];
-	    float newz[] = new float[npalloc];
-	    float newnx[] = new float[npalloc];
-	    float newny[] = new float[npalloc];
-	    float newnz[] = new float[npalloc];
-	    float newu[] = new float[npalloc];
-	    float newv[] = new float[npalloc];
-	    int newvcolor[] = new int[npalloc];
-
-	    if(np != 0){
-		for(int i = 0; i < np; i++){
-		    newx[i] = x[i];
-		    newy[i] = y[i];
-		    newz[i] = z[i];
-		    newnx[i] = nx[i];
-		    newny[i] = ny[i];
-		    newnz[i] = nz[i];
-		    newu[i] = u[i];
-		    newv[i] = v[i];
-		    newvcolor[i] = vcolor[i];
-		}
-	    }
+	    npalloc = Math.max(npalloc + npalloc/2,
+			       npalloc + PointAllocationIncrement);
 
-	    x = newx;
-	    y = newy;
-	    z = newz;
-	    nx = newnx;
-	    ny = newny;
-	    nz = newnz;
-	    u = newu;
-	    v = newv;
-	    vcolor = newvcolor;
+	    if(x == null){
+		x = new float[npalloc];
+		y = new float[npalloc];
+		z = new float[npalloc];
+	    }else{
+		x = grow(x, np, npalloc);
+		y = grow(y, np, npalloc);
+		z = grow(z, np, npalloc);
+	    }
+	    nx = grow(nx, np, npalloc);
+	    ny = grow(ny, np, npalloc);
+	    nz = grow(nz, np, npalloc);
+	    u = grow(u, np, npalloc);
+	    v = grow(v, np, npalloc);
+	    vcolor = grow(vcolor, np, npalloc);
 	}
     }
 
@@ -496,26 +803,26 @@ public class Tmesh {
 
     /** Make sure we have room for the next triangle. */
     private void ensureTriangleCapacity(){
+	if(tcolor == null && t0 != null){
+	    // dropped by compact()
+	    tcolor = new int[ntalloc];
+	}
+
 	if(nt == ntalloc){
-	    ntalloc += TriangleAllocationIncrement;
-
-	    int newt0[] = new int[ntalloc];
-	    int newt1[] = new int[ntalloc];
-	    int newt2[] = new int[ntalloc];
-	    int newtcolor[] = new int[ntalloc];
-	    if(nt != 0){
-		for(int i = 0; i < nt; i++){
-		    newt0[i] = t0[i];
-		    newt1[i] = t1[i];
-		    newt2[i] = t2[i];
-		    newtcolor[i] = tcolor[i];
-		}
+	    ntalloc = Math.max(ntalloc + ntalloc/2,
+			       ntalloc + TriangleAllocationIncrement);
+
+	    if(t0 == null){
+		t0 = new int[ntalloc];
+		t1 = new int[ntalloc];
+		t2 = new int[ntalloc];
+		tcolor = new int[ntalloc];
+	    }else{
+		t0 = grow(t0, nt, ntalloc);
+		t1 = grow(t1, nt, ntalloc);
+		t2 = grow(t2, nt, ntalloc);
+		tcolor = grow(tcolor, nt, ntalloc);
 	    }
-
-	    t0 = newt0;
-	    t1 = newt1;
-	    t2 = newt2;
-	    tcolor = newtcolor;
 	}
     }
 
@@ -530,6 +837,8 @@ public class Tmesh {
 	    spheres.addSphere(xx, yy, zz, rr, cc);
 	}else{
 	    ensurePointCapacity();
+	    ensureVertexColors();
+	    ensureNormals();
 
 	    x[np] = (float)xx;
 	    y[np] = (float)yy;
@@ -557,6 +866,8 @@ public class Tmesh {
 	    cylinders.addCylinder(x1, y1, z1, x2, y2, z2, r, c1, c2);
 	}else{
 	    ensurePointCapacity();
+	    ensureVertexColors();
+	    ensureNormals();
 
 	    x[np] = (float)x1;
 	    y[np] = (float)y1;
@@ -652,51 +963,17 @@ public class Tmesh {
 	    }
 	}
 
-	double a[] = new double[3];
-	double b[] = new double[3];
-	double n[] = new double[3];
-
-	for(int i = 0;i < tmesh.nt; i++){
-	    int ti = tmesh.t0[i];
-	    int tj = tmesh.t1[i];
-	    int tk = tmesh.t2[i];
-
-	    a[0] = tmesh.x[ti] - tmesh.x[tj];
-	    a[1] = tmesh.y[ti] - tmesh.y[tj];
-	    a[2] = tmesh.z[ti] - tmesh.z[tj];
-	    b[0] = tmesh.x[tk] - tmesh.x[tj];
-	    b[1] = tmesh.y[tk] - tmesh.y[tj];
-	    b[2] = tmesh.z[tk] - tmesh.z[tj];
-
-	    Point3d.cross(n, b, a);
-
-	    tmesh.nx[ti] += n[0];
-	    tmesh.ny[ti] += n[1];
-	    tmesh.nz[ti] += n[2];
-	    tmesh.nx[tj] += n[0];
-	    tmesh.ny[tj] += n[1];
-	    tmesh.nz[tj] += n[2];
-	    tmesh.nx[tk] += n[0];
-	    tmesh.ny[tk] += n[1];
-	    tmesh.nz[tk] += n[2];
-	}
-
-	for(int i = 0;i < tmesh.np; i++){
-	    double dx = tmesh.nx[i];
-	    double dy = tmesh.ny[i];
-	    double dz = tmesh.nz[i];
-	    double len = Math.sqrt(dx*dx+dy*dy+dz*dz);
-	    
-	    tmesh.nx[i] /= len;
-	    tmesh.ny[i] /= len;
-	    tmesh.nz[i] /= len;
-	}
+	tmesh.calculatePlyNormals();
 
 	return tmesh;
     }
 
     /** Create a tmesh from a file. */
     public static Tmesh read(String file){
+	if(file.endsWith(".tmb")){
+	    return readBinary(file);
+	}
+
 	FILE f = FILE.open(file);
 
 	if(f == null){
@@ -705,6 +982,10 @@ public class Tmesh {
 	}
 
 	if(file.indexOf(".ply") != -1){
+	    if(isBinaryPly(f)){
+		f.close();
+		return readBinaryPly(file);
+	    }
 	    return readPly(f);
 	}
 
@@ -786,6 +1067,11 @@ public class Tmesh {
     public void output(String filename){
 	int i;
 
+	if(filename.endsWith(".tmb")){
+	    writeBinary(filename);
+	    return;
+	}
+
 	FILE output = FILE.write(filename);
 
 	if(output == null){
@@ -793,25 +1079,20 @@ public class Tmesh {
 	    return;
 	}
 
+	float n[] = new float[3];
+
 	output.print("%d\n", np);
 	for(i = 0; i < np; i++){
 	    output.print(" %.3f", x[i]);
 	    output.print(" %.3f", y[i]);
 	    output.print(" %.3f", z[i]);
-	    output.print(" %.3f", nx[i]);
-	    output.print(" %.3f", ny[i]);
-	    output.print(" %.3f", nz[i]);
+	    getNormal(i, n);
+	    output.print(" %.3f", n[0]);
+	    output.print(" %.3f", n[1]);
+	    output.print(" %.3f", n[2]);
             output.print(" 0");
-            if(u != null){
-                output.print(" %.3f", u[i]);
-            }else{
-                output.print(" 0");
-            }
-            if(v != null){
-                output.print(" %.3f", v[i]);
-            }else{
-                output.print(" 0");
-            }
+            output.print(" %.3f", getU(i));
+            output.print(" %.3f", getV(i));
 	    output.println("");
 	}
 
@@ -826,6 +1107,715 @@ public class Tmesh {
 	output.close();
     }
 
+    /** Generate vertex normals from the triangles. */
+    private void calculatePlyNormals(){
+	double a[] = new double[3];
+	double b[] = new double[3];
+	double n[] = new double[3];
+
+	for(int i = 0;i < nt; i++){
+	    int ti = t0[i];
+	    int tj = t1[i];
+	    int tk = t2[i];
+
+	    a[0] = x[ti] - x[tj];
+	    a[1] = y[ti] - y[tj];
+	    a[2] = z[ti] - z[tj];
+	    b[0] = x[tk] - x[tj];
+	    b[1] = y[tk] - y[tj];
+	    b[2] = z[tk] - z[tj];
+
+	    Point3d.cross(n, b, a);
+
+	    nx[ti] += n[0];
+	    ny[ti] += n[1];
+	    nz[ti] += n[2];
+	    nx[tj] += n[0];
+	    ny[tj] += n[1];
+	    nz[tj] += n[2];
+	    nx[tk] += n[0];
+	    ny[tk] += n[1];
+	    nz[tk] += n[2];
+	}
+
+	for(int i = 0;i < np; i++){
+	    double dx = nx[i];
+	    double dy = ny[i];
+	    double dz = nz[i];
+	    double len = Math.sqrt(dx*dx+dy*dy+dz*dz);
+	    
+	    nx[i] /= len;
+	    ny[i] /= len;
+	    nz[i] /= len;
+	}
+    }
+
+    /**
+     * Is this a binary ply file. Leaves the FILE positioned
+     * after the format line, so it must be reopened.
+     */
+    private static boolean isBinaryPly(FILE f){
+	for(int line = 0; line < 4 && f.nextLine(); line++){
+	    if(f.getFieldCount() >= 2 && "format".equals(f.getField(0))){
+		return f.getField(1).startsWith("binary");
+	    }
+	}
+
+	return false;
+    }
+
+    /** Ply property types. */
+    private static final int PlyInt8    = 0;
+    private static final int PlyUInt8   = 1;
+    private static final int PlyInt16   = 2;
+    private static final int PlyUInt16  = 3;
+    private static final int PlyInt32   = 4;
+    private static final int PlyUInt32  = 5;
+    private static final int PlyFloat32 = 6;
+    private static final int PlyFloat64 = 7;
+
+    /** Map a ply property type name to a type. */
+    private static int plyType(String type){
+	if("char".equals(type) || "int8".equals(type)){
+	    return PlyInt8;
+	}else if("uchar".equals(type) || "uint8".equals(type)){
+	    return PlyUInt8;
+	}else if("short".equals(type) || "int16".equals(type)){
+	    return PlyInt16;
+	}else if("ushort".equals(type) || "uint16".equals(type)){
+	    return PlyUInt16;
+	}else if("uint".equals(type) || "uint32".equals(type)){
+	    return PlyUInt32;
+	}else if("float".equals(type) || "float32".equals(type)){
+	    return PlyFloat32;
+	}else if("double".equals(type) || "float64".equals(type)){
+	    return PlyFloat64;
+	}
+	return PlyInt32;
+    }
+
+    /** Number of bytes in a ply property type. */
+    private static int plyTypeSize(int type){
+	switch(type){
+	case PlyInt8: case PlyUInt8: return 1;
+	case PlyInt16: case PlyUInt16: return 2;
+	case PlyFloat64: return 8;
+	default: return 4;
+	}
+    }
+
+    /** Read a ply property of the type at the buffer offset. */
+    private static double plyValue(java.nio.ByteBuffer bb, int offset, int type){
+	switch(type){
+	case PlyInt8:    return bb.get(offset);
+	case PlyUInt8:   return bb.get(offset) & 0xff;
+	case PlyInt16:   return bb.getShort(offset);
+	case PlyUInt16:  return bb.getShort(offset) & 0xffff;
+	case PlyUInt32:  return bb.getInt(offset) & 0xffffffffL;
+	case PlyFloat32: return bb.getFloat(offset);
+	case PlyFloat64: return bb.getDouble(offset);
+	default:         return bb.getInt(offset);
+	}
+    }
+
+    /** An element of a ply file with its properties, as declared. */
+    private static class PlyElement {
+	String name;
+	int count;
+	List<String> names = new ArrayList<String>();
+	IntArrayList types = new IntArrayList();
+
+	/** The count type of a list property, or -1 if it isn't a list. */
+	IntArrayList countTypes = new IntArrayList();
+
+	PlyElement(String name, int count){
+	    this.name = name;
+	    this.count = count;
+	}
+
+	/** The size of each record, or -1 if it has lists. */
+	int size(){
+	    int size = 0;
+	    for(int i = 0; i < types.size(); i++){
+		if(countTypes.getInt(i) != -1){
+		    return -1;
+		}
+		size += plyTypeSize(types.getInt(i));
+	    }
+	    return size;
+	}
+
+	/** The list property holding the face vertices. */
+	int indexList(){
+	    int list = -1;
+	    for(int i = 0; i < names.size(); i++){
+		if(countTypes.getInt(i) != -1){
+		    String n = names.get(i);
+		    if("vertex_indices".equals(n) || "vertex_index".equals(n)){
+			return i;
+		    }
+		    if(list == -1){
+			list = i;
+		    }
+		}
+	    }
+	    return list;
+	}
+    }
+
+    /**
+     * Read a binary (little or big endian) ply file. The file
+     * is memory mapped and the vertex and face records are
+     * decoded straight from the mapped buffer. Vertex x, y, z,
+     * nx, ny, nz, u/s, v/t and red, green, blue are used, faces
+     * with more than three vertices are split into fans. Other
+     * properties and elements are skipped, as long as they don't
+     * hold lists in front of the vertices or faces.
+     */
+    private static Tmesh readBinaryPly(String filename){
+	java.io.RandomAccessFile raf = null;
+
+	try {
+	    raf = new java.io.RandomAccessFile(filename, "r");
+	    java.nio.channels.FileChannel channel = raf.getChannel();
+	    java.nio.MappedByteBuffer bb =
+		channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY,
+			    0, channel.size());
+
+	    // parse the ascii header
+	    List<PlyElement> elements = new ArrayList<PlyElement>();
+	    PlyElement element = null;
+	    StringBuilder line = new StringBuilder();
+
+	    while(true){
+		line.setLength(0);
+		while(bb.hasRemaining()){
+		    char c = (char)(bb.get() & 0xff);
+		    if(c == '\n') break;
+		    if(c != '\r') line.append(c);
+		}
+
+		String fields[] = FILE.split(line.toString());
+
+		if(fields.length == 0){
+		    if(!bb.hasRemaining()){
+			raf.close();
+			return null;
+		    }
+		    continue;
+		}
+
+		if("end_header".equals(fields[0])){
+		    break;
+		}else if("format".equals(fields[0]) && fields.length > 1){
+		    if(fields[1].startsWith("binary_little")){
+			bb.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		    }else{
+			bb.order(java.nio.ByteOrder.BIG_ENDIAN);
+		    }
+		}else if("element".equals(fields[0]) && fields.length > 2){
+		    element = new PlyElement(fields[1], Integer.parseInt(fields[2]));
+		    elements.add(element);
+		}else if("property".equals(fields[0]) && element != null){
+		    if("list".equals(fields[1]) && fields.length > 4){
+			element.countTypes.add(plyType(fields[2]));
+			element.types.add(plyType(fields[3]));
+			element.names.add(fields[4]);
+		    }else if(fields.length > 2){
+			element.countTypes.add(-1);
+			element.types.add(plyType(fields[1]));
+			element.names.add(fields[2]);
+		    }
+		}
+	    }
+
+	    // find where the vertices and faces start
+	    PlyElement vertices = null, faces = null;
+	    int vertexStart = 0, faceStart = 0;
+	    int p = bb.position();
+
+	    for(PlyElement e : elements){
+		if(vertices != null && faces != null){
+		    break;
+		}
+
+		if("vertex".equals(e.name) && vertices == null){
+		    vertices = e;
+		    vertexStart = p;
+		}else if("face".equals(e.name) && faces == null){
+		    faces = e;
+		    faceStart = p;
+
+		    // the face records are measured as they are read
+		    if(vertices == null){
+			System.err.println("Tmesh.readBinaryPly: faces before vertices " + filename);
+			raf.close();
+			return null;
+		    }
+		    continue;
+		}
+
+		int size = e.size();
+
+		if(size == -1){
+		    System.err.println("Tmesh.readBinaryPly: can't skip element " + e.name);
+		    raf.close();
+		    return null;
+		}
+
+		p += e.count * size;
+	    }
+
+	    if(vertices == null){
+		System.err.println("Tmesh.readBinaryPly: no vertices " + filename);
+		raf.close();
+		return null;
+	    }
+
+	    int vcount = vertices.count;
+	    int fcount = faces == null ? 0 : faces.count;
+	    List<String> vertexNames = vertices.names;
+	    IntArrayList vertexTypes = vertices.types;
+
+	    // work out where each vertex property lives
+	    int vertexSize = 0;
+	    int offsets[] = new int[vertexNames.size()];
+	    for(int i = 0; i < offsets.length; i++){
+		offsets[i] = vertexSize;
+		vertexSize += plyTypeSize(vertexTypes.getInt(i));
+	    }
+
+	    int ix = vertexNames.indexOf("x");
+	    int iy = vertexNames.indexOf("y");
+	    int iz = vertexNames.indexOf("z");
+	    int inx = vertexNames.indexOf("nx");
+	    int iny = vertexNames.indexOf("ny");
+	    int inz = vertexNames.indexOf("nz");
+	    int iu = vertexNames.indexOf("u");
+	    if(iu == -1) iu = vertexNames.indexOf("s");
+	    int iv = vertexNames.indexOf("v");
+	    if(iv == -1) iv = vertexNames.indexOf("t");
+	    int ir = vertexNames.indexOf("red");
+	    int ig = vertexNames.indexOf("green");
+	    int ib = vertexNames.indexOf("blue");
+
+	    if(ix == -1 || iy == -1 || iz == -1){
+		System.err.println("Tmesh.readBinaryPly: no vertex coordinates " + filename);
+		raf.close();
+		return null;
+	    }
+
+	    boolean normals = inx != -1 && iny != -1 && inz != -1;
+
+	    Tmesh tmesh = new Tmesh();
+	    tmesh.name = filename;
+	    tmesh.setPointCapacity(Math.max(vcount, 1));
+	    tmesh.setTriangleCapacity(Math.max(fcount, 1));
+	    tmesh.ensureNormals();
+	    tmesh.ensureTextureCoordinates();
+	    if(ir != -1 && ig != -1 && ib != -1){
+		tmesh.ensureVertexColors();
+	    }
+
+	    int base = vertexStart;
+
+	    for(int i = 0; i < vcount; i++){
+		int q = base + i * vertexSize;
+		tmesh.x[i] = (float)plyValue(bb, q + offsets[ix], vertexTypes.getInt(ix));
+		tmesh.y[i] = (float)plyValue(bb, q + offsets[iy], vertexTypes.getInt(iy));
+		tmesh.z[i] = (float)plyValue(bb, q + offsets[iz], vertexTypes.getInt(iz));
+		if(normals){
+		    tmesh.nx[i] = (float)plyValue(bb, q + offsets[inx], vertexTypes.getInt(inx));
+		    tmesh.ny[i] = (float)plyValue(bb, q + offsets[iny], vertexTypes.getInt(iny));
+		    tmesh.nz[i] = (float)plyValue(bb, q + offsets[inz], vertexTypes.getInt(inz));
+		}
+		if(iu != -1){
+		    tmesh.u[i] = (float)plyValue(bb, q + offsets[iu], vertexTypes.getInt(iu));
+		}
+		if(iv != -1){
+		    tmesh.v[i] = (float)plyValue(bb, q + offsets[iv], vertexTypes.getInt(iv));
+		}
+		if(ir != -1 && ig != -1 && ib != -1){
+		    tmesh.vcolor[i] =
+			Color32.pack((int)plyValue(bb, q + offsets[ir], vertexTypes.getInt(ir)),
+				     (int)plyValue(bb, q + offsets[ig], vertexTypes.getInt(ig)),
+				     (int)plyValue(bb, q + offsets[ib], vertexTypes.getInt(ib)));
+		}
+	    }
+
+	    tmesh.np = vcount;
+
+	    if(ir != -1 && ig != -1 && ib != -1){
+		tmesh.colorStyle = ColorStyle.VertexColor;
+	    }
+
+	    int list = faces == null ? -1 : faces.indexList();
+
+	    if(faces != null && list == -1){
+		System.err.println("Tmesh.readBinaryPly: no face vertices " + filename);
+		raf.close();
+		return null;
+	    }
+
+	    p = faceStart;
+
+	    for(int i = 0; i < fcount; i++){
+		// read the face properties in the order they were declared
+		for(int k = 0; k < faces.types.size(); k++){
+		    int countType = faces.countTypes.getInt(k);
+		    int type = faces.types.getInt(k);
+		    int size = plyTypeSize(type);
+
+		    if(countType == -1){
+			p += size;
+			continue;
+		    }
+
+		    int n = (int)plyValue(bb, p, countType);
+		    p += plyTypeSize(countType);
+
+		    if(k == list && n >= 3){
+			int first = (int)plyValue(bb, p, type);
+			int prev = (int)plyValue(bb, p + size, type);
+
+			for(int j = 2; j < n; j++){
+			    int next = (int)plyValue(bb, p + j * size, type);
+			    tmesh.addTriangle(first, prev, next);
+			    prev = next;
+			}
+		    }
+
+		    p += n * size;
+		}
+	    }
+
+	    raf.close();
+
+	    if(!normals){
+		tmesh.calculatePlyNormals();
+	    }
+
+	    return tmesh;
+	}catch(Exception e){
+	    System.err.println("Tmesh.readBinaryPly: couldn't read " + filename);
+	    System.err.println("exception " + e);
+	    try { if(raf != null) raf.close(); }catch(java.io.IOException e2){}
+	    return null;
+	}
+    }
+
+    /** Magic number at the start of binary tmesh files. */
+    private static final int BinaryMagic = 0x544d4231;
+
+    /** Size of the header of binary tmesh files. */
+    private static final int BinaryHeaderSize = 64;
+
+    /** Flags for the optional blocks in binary tmesh files. */
+    private static final int BinaryNormals   = 1;
+    private static final int BinaryTexture   = 2;
+    private static final int BinaryVertexColor = 4;
+
+    /**
+     * Write the object in binary form. The header is followed
+     * by the little endian blocks x, y, z, [nx, ny, nz], [u, v],
+     * [vcolor], t0, t1, t2, tcolor so that each can be read
+     * back with a single bulk copy. A compact object is decoded
+     * as it is written and stays compact.
+     */
+    public boolean writeBinary(String filename){
+	java.io.FileOutputStream fos = null;
+
+	try {
+	    fos = new java.io.FileOutputStream(filename);
+	    java.nio.channels.FileChannel channel = fos.getChannel();
+	    java.nio.ByteBuffer bb = java.nio.ByteBuffer.allocateDirect(1 << 20);
+	    bb.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+
+	    writeBinary(channel, bb);
+	    flush(channel, bb);
+
+	    fos.close();
+	}catch(java.io.IOException e){
+	    System.err.println("tmesh.writeBinary() couldn't write " + filename);
+	    System.err.println("exception " + e);
+	    try { if(fos != null) fos.close(); }catch(java.io.IOException e2){}
+	    return false;
+	}
+
+	return true;
+    }
+
+    /**
+     * Write the object through the little endian buffer bb to
+     * the channel. The buffer may be left holding the end of
+     * the object, the caller must flush it.
+     */
+    void writeBinary(java.nio.channels.FileChannel channel,
+		     java.nio.ByteBuffer bb) throws java.io.IOException {
+	int flags = 0;
+	if(onormal != null || (nx != null && ny != null && nz != null)){
+	    flags |= BinaryNormals;
+	}
+	if(qu != null || (u != null && v != null)) flags |= BinaryTexture;
+	if(vcolor != null) flags |= BinaryVertexColor;
+
+	if(bb.remaining() < BinaryHeaderSize){
+	    flush(channel, bb);
+	}
+
+	int start = bb.position();
+
+	bb.putInt(BinaryMagic);
+	bb.putInt(1);
+	bb.putInt(style.ordinal());
+	bb.putInt(colorStyle.ordinal());
+	bb.putInt(color);
+	bb.putInt(transparency);
+	bb.putInt(np);
+	bb.putInt(nt);
+	bb.putInt(flags);
+	bb.putFloat(uoffset);
+	bb.putFloat(uscale);
+	bb.putFloat(voffset);
+	bb.putFloat(vscale);
+	while(bb.position() < start + BinaryHeaderSize){
+	    bb.put((byte)0);
+	}
+
+	writeBlock(channel, bb, x, np);
+	writeBlock(channel, bb, y, np);
+	writeBlock(channel, bb, z, np);
+	if((flags & BinaryNormals) != 0){
+	    if(onormal != null){
+		writeDecoded(channel, bb, 0);
+		writeDecoded(channel, bb, 1);
+		writeDecoded(channel, bb, 2);
+	    }else{
+		writeBlock(channel, bb, nx, np);
+		writeBlock(channel, bb, ny, np);
+		writeBlock(channel, bb, nz, np);
+	    }
+	}
+	if((flags & BinaryTexture) != 0){
+	    if(qu != null){
+		writeDecoded(channel, bb, 3);
+		writeDecoded(channel, bb, 4);
+	    }else{
+		writeBlock(channel, bb, u, np);
+		writeBlock(channel, bb, v, np);
+	    }
+	}
+	if((flags & BinaryVertexColor) != 0){
+	    writeBlock(channel, bb, vcolor, np);
+	}
+	writeBlock(channel, bb, t0, nt);
+	writeBlock(channel, bb, t1, nt);
+	writeBlock(channel, bb, t2, nt);
+	if(tcolor != null){
+	    writeBlock(channel, bb, tcolor, nt);
+	}else{
+	    // dropped by compact() as they were all 0
+	    writeZeros(channel, bb, nt);
+	}
+    }
+
+    /** The number of points decoded at a time when writing. */
+    private static final int DecodeBlock = 4096;
+
+    /**
+     * Write one block of float values from the compact arrays,
+     * nx, ny, nz, u or v for item 0 to 4, decoding a few points
+     * at a time.
+     */
+    private void writeDecoded(java.nio.channels.FileChannel channel,
+			      java.nio.ByteBuffer bb, int item)
+	throws java.io.IOException {
+	float block[] = new float[Math.min(np, DecodeBlock)];
+	float n[] = new float[3];
+
+	for(int from = 0; from < np; from += block.length){
+	    int count = Math.min(np - from, block.length);
+
+	    for(int i = 0; i < count; i++){
+		if(item < 3){
+		    octDecode(onormal[from + i], n);
+		    block[i] = n[item];
+		}else if(item == 3){
+		    block[i] = getU(from + i);
+		}else{
+		    block[i] = getV(from + i);
+		}
+	    }
+
+	    writeBlock(channel, bb, block, count);
+	}
+    }
+
+    /** Write out the contents of the buffer and clear it. */
+    static void flush(java.nio.channels.FileChannel channel,
+		      java.nio.ByteBuffer bb) throws java.io.IOException {
+	bb.flip();
+	while(bb.hasRemaining()){
+	    channel.write(bb);
+	}
+	bb.clear();
+    }
+
+    /** Copy floats through the buffer to the channel. */
+    static void writeBlock(java.nio.channels.FileChannel channel,
+			   java.nio.ByteBuffer bb, float a[], int n)
+	throws java.io.IOException {
+	int done = 0;
+	while(done < n){
+	    if(bb.remaining() < 4){
+		flush(channel, bb);
+	    }
+	    int count = Math.min(n - done, bb.remaining() / 4);
+	    bb.asFloatBuffer().put(a, done, count);
+	    bb.position(bb.position() + 4 * count);
+	    done += count;
+	}
+    }
+
+    /** Copy ints through the buffer to the channel. */
+    static void writeBlock(java.nio.channels.FileChannel channel,
+			   java.nio.ByteBuffer bb, int a[], int n)
+	throws java.io.IOException {
+	int done = 0;
+	while(done < n){
+	    if(bb.remaining() < 4){
+		flush(channel, bb);
+	    }
+	    int count = Math.min(n - done, bb.remaining() / 4);
+	    bb.asIntBuffer().put(a, done, count);
+	    bb.position(bb.position() + 4 * count);
+	    done += count;
+	}
+    }
+
+    /** Write n zero ints through the buffer to the channel. */
+    static void writeZeros(java.nio.channels.FileChannel channel,
+			   java.nio.ByteBuffer bb, int n)
+	throws java.io.IOException {
+	for(int i = 0; i < n; i++){
+	    if(bb.remaining() < 4){
+		flush(channel, bb);
+	    }
+	    bb.putInt(0);
+	}
+    }
+
+    /**
+     * Read an object written by writeBinary(). The file is
+     * memory mapped and each block is copied straight into
+     * the arrays. Returns null if the file isn't readable.
+     */
+    public static Tmesh readBinary(String filename){
+	java.io.RandomAccessFile raf = null;
+
+	try {
+	    raf = new java.io.RandomAccessFile(filename, "r");
+	    java.nio.channels.FileChannel channel = raf.getChannel();
+	    java.nio.MappedByteBuffer bb =
+		channel.map(java.nio.channels.FileChannel.MapMode.READ_ONLY,
+			    0, channel.size());
+	    bb.order(java.nio.ByteOrder.LITTLE_ENDIAN);
+
+	    Tmesh tmesh = readBinary(bb);
+
+	    if(tmesh == null){
+		System.err.println("Tmesh.readBinary: not a binary tmesh " + filename);
+		raf.close();
+		return null;
+	    }
+
+	    tmesh.name = filename;
+
+	    raf.close();
+
+	    return tmesh;
+	}catch(Exception e){
+	    System.err.println("Tmesh.readBinary: couldn't read " + filename);
+	    System.err.println("exception " + e);
+	    try { if(raf != null) raf.close(); }catch(java.io.IOException e2){}
+	    return null;
+	}
+    }
+
+    /**
+     * Read an object written by writeBinary() from the little
+     * endian buffer, starting at its position and leaving the
+     * position after the object. Returns null if the buffer
+     * doesn't hold a binary tmesh.
+     */
+    static Tmesh readBinary(java.nio.ByteBuffer bb){
+	int start = bb.position();
+
+	if(bb.remaining() < BinaryHeaderSize ||
+	   bb.getInt() != BinaryMagic || bb.getInt() != 1){
+	    return null;
+	}
+
+	Tmesh tmesh = new Tmesh();
+	tmesh.style = Style.values()[bb.getInt()];
+	tmesh.colorStyle = ColorStyle.values()[bb.getInt()];
+	tmesh.color = bb.getInt();
+	tmesh.transparency = bb.getInt();
+	int npoints = bb.getInt();
+	int ntriangles = bb.getInt();
+	int flags = bb.getInt();
+	tmesh.uoffset = bb.getFloat();
+	tmesh.uscale = bb.getFloat();
+	tmesh.voffset = bb.getFloat();
+	tmesh.vscale = bb.getFloat();
+
+	tmesh.setPointCapacity(Math.max(npoints, 1));
+	tmesh.setTriangleCapacity(Math.max(ntriangles, 1));
+
+	if((flags & BinaryNormals) != 0) tmesh.ensureNormals();
+	if((flags & BinaryTexture) != 0) tmesh.ensureTextureCoordinates();
+	if((flags & BinaryVertexColor) != 0) tmesh.ensureVertexColors();
+
+	bb.position(start + BinaryHeaderSize);
+
+	readBlock(bb, tmesh.x, npoints);
+	readBlock(bb, tmesh.y, npoints);
+	readBlock(bb, tmesh.z, npoints);
+	if((flags & BinaryNormals) != 0){
+	    readBlock(bb, tmesh.nx, npoints);
+	    readBlock(bb, tmesh.ny, npoints);
+	    readBlock(bb, tmesh.nz, npoints);
+	}
+	if((flags & BinaryTexture) != 0){
+	    readBlock(bb, tmesh.u, npoints);
+	    readBlock(bb, tmesh.v, npoints);
+	}
+	if((flags & BinaryVertexColor) != 0){
+	    readBlock(bb, tmesh.vcolor, npoints);
+	}
+	readBlock(bb, tmesh.t0, ntriangles);
+	readBlock(bb, tmesh.t1, ntriangles);
+	readBlock(bb, tmesh.t2, ntriangles);
+	readBlock(bb, tmesh.tcolor, ntriangles);
+
+	tmesh.np = npoints;
+	tmesh.nt = ntriangles;
+
+	return tmesh;
+    }
+
+    /** Bulk copy floats from the buffer. */
+    static void readBlock(java.nio.ByteBuffer bb, float a[], int n){
+	bb.asFloatBuffer().get(a, 0, n);
+	bb.position(bb.position() + 4 * n);
+    }
+
+    /** Bulk copy ints from the buffer. */
+    static void readBlock(java.nio.ByteBuffer bb, int a[], int n){
+	bb.asIntBuffer().get(a, 0, n);
+	bb.position(bb.position() + 4 * n);
+    }
+
     private HashMap<Integer, Integer> clipHash = null;
 
     /** 
@@ -833,6 +1823,13 @@ public class Tmesh {
      * visible texture coordinates.
      */
     public void clip(int uv){
+	expand();
+
+	// nothing to clip against without texture coordinates
+	if(u == null || v == null){
+	    return;
+	}
+
 	int pclip[] = new int[np];
 	int used[] = new int[np];
 	int remainingPoints = 0;
@@ -978,12 +1975,16 @@ public class Tmesh {
 		x[remainingPoints] = x[i];
 		y[remainingPoints] = y[i];
 		z[remainingPoints] = z[i];
-		nx[remainingPoints] = nx[i];
-		ny[remainingPoints] = ny[i];
-		nz[remainingPoints] = nz[i];
+		if(nx != null){
+		    nx[remainingPoints] = nx[i];
+		    ny[remainingPoints] = ny[i];
+		    nz[remainingPoints] = nz[i];
+		}
 		u[remainingPoints] = u[i];
 		v[remainingPoints] = v[i];
-		vcolor[remainingPoints] = vcolor[i];
+		if(vcolor != null){
+		    vcolor[remainingPoints] = vcolor[i];
+		}
 		pclip[i] = remainingPoints++;
 	    }else{
 		pclip[i] = -1;
@@ -1056,21 +2057,26 @@ public class Tmesh {
 	x[np]  = (float)( x[v0] + frac *  (x[v1] -  x[v0]));
 	y[np]  = (float)( y[v0] + frac *  (y[v1] -  y[v0]));
 	z[np]  = (float)( z[v0] + frac *  (z[v1] -  z[v0]));
-	nx[np] = (float)(nx[v0] + frac * (nx[v1] - nx[v0]));
-	ny[np] = (float)(ny[v0] + frac * (ny[v1] - ny[v0]));
-	nz[np] = (float)(nz[v0] + frac * (nz[v1] - nz[v0]));
 	u[np]  = (float)( u[v0] + frac *  (u[v1] -  u[v0]));
 	v[np]  = (float)( v[v0] + frac *  (v[v1] -  v[v0]));
-	vcolor[np] = Color32.blend(vcolor[v0], vcolor[v1], frac);
+	if(vcolor != null){
+	    vcolor[np] = Color32.blend(vcolor[v0], vcolor[v1], frac);
+	}
 
-	double len = nx[np]*nx[np];
-	len += ny[np]*ny[np];
-	len += nz[np]*nz[np];
-	len = Math.sqrt(len);
+	if(nx != null){
+	    nx[np] = (float)(nx[v0] + frac * (nx[v1] - nx[v0]));
+	    ny[np] = (float)(ny[v0] + frac * (ny[v1] - ny[v0]));
+	    nz[np] = (float)(nz[v0] + frac * (nz[v1] - nz[v0]));
 
-	nx[np] /= len;
-	ny[np] /= len;
-	nz[np] /= len;
+	    double len = nx[np]*nx[np];
+	    len += ny[np]*ny[np];
+	    len += nz[np]*nz[np];
+	    len = Math.sqrt(len);
+
+	    nx[np] /= len;
+	    ny[np] /= len;
+	    nz[np] /= len;
+	}
 
 	clipHash.put(hashVal, newVertex);
 
@@ -1086,6 +2092,8 @@ public class Tmesh {
 
     /** Recalculate normals. */
     public void recalculateNormals(){
+	expand();
+
 	double newnx[] = new double[np];
 	double newny[] = new double[np];
 	double newnz[] = new double[np];
@@ -1156,12 +2164,23 @@ public class Tmesh {
 	for(Tmesh tm : objects){
 	    int cp = newTmesh.np;
 
+	    tm.expand();
+
+	    if(tm.vcolor != null){
+		newTmesh.ensureVertexColors();
+	    }
+
 	    for(int i = 0; i < tm.np; i++){
 		newTmesh.addPoint(tm.x[i],  tm.y[i],  tm.z[i],
-				  tm.nx[i], tm.ny[i], tm.nz[i],
-				  tm.u[i],  tm.v[i]);
-
-		newTmesh.vcolor[cp + i] = tm.vcolor[i];
+				  tm.nx == null ? 0.0 : tm.nx[i],
+				  tm.nx == null ? 0.0 : tm.ny[i],
+				  tm.nx == null ? 0.0 : tm.nz[i],
+				  tm.u == null ? 0.0 : tm.u[i],
+				  tm.u == null ? 0.0 : tm.v[i]);
+
+		if(tm.vcolor != null){
+		    newTmesh.vcolor[cp + i] = tm.vcolor[i];
+		}
 	    }
 
 	    for(int i = 0; i < tm.nt; i++){
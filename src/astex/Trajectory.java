@@ -0,0 +1,372 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A stream of coordinate frames for the atoms of a molecule,
+ * such as a molecular dynamics trajectory.
+ *
+ * Frames are read on a background thread into a small ring of
+ * coordinate arrays, so only a few frames are held in memory
+ * whatever the length of the file. The formats are
+ *
+ * pdb     models of ATOM and HETATM records ended by ENDMDL
+ * xyz     concatenated xyz files, an atom count, a comment line
+ *         and then one "element x y z" line per atom
+ * binary  a big endian int atom count, followed by 3 * count
+ *         big endian floats x, y, z for each frame
+ *
+ * The atoms in each frame must be in the same order as in the
+ * molecule.
+ */
+public class Trajectory implements Runnable {
+    public enum Format {
+	PDB, XYZ, BINARY
+    }
+
+    /** The file the frames come from. */
+    private String filename;
+
+    /** The format of the file. */
+    private Format format;
+
+    /** The number of atoms in each frame. */
+    private int atomCount;
+
+    /** Start again at the end of the file. */
+    private boolean loop;
+
+    /** Frames waiting to be shown. */
+    private BlockingQueue<float[]> ready;
+
+    /** Frames that can be reused. */
+    private BlockingQueue<float[]> free;
+
+    /** The reading thread. */
+    private Thread reader = null;
+
+    /** Set when the trajectory is closed. */
+    private volatile boolean closed = false;
+
+    /** Set when there are no more frames. */
+    private volatile boolean finished = false;
+
+    /** The number of the frame last taken. */
+    private int frame = 0;
+
+    /** The number of frames read in the current pass of the file. */
+    private int framesRead = 0;
+
+    /**
+     * Create a trajectory of frames with atomCount atoms,
+     * holding up to bufferSize frames ahead.
+     */
+    public Trajectory(String filename, Format format, int atomCount,
+		      int bufferSize, boolean loop){
+	this.filename = filename;
+	this.format = format;
+	this.atomCount = atomCount;
+	this.loop = loop;
+
+	if(bufferSize < 1){
+	    bufferSize = 1;
+	}
+
+	ready = new ArrayBlockingQueue<float[]>(bufferSize);
+	free = new ArrayBlockingQueue<float[]>(bufferSize + 1);
+
+	for(int i = 0; i <= bufferSize; i++){
+	    free.add(new float[3 * atomCount]);
+	}
+    }
+
+    /** Guess the format from the file name, pdb by default. */
+    public static Format getFormat(String filename){
+	if(filename.indexOf(".xyz") != -1){
+	    return Format.XYZ;
+	}else if(filename.indexOf(".trj") != -1 ||
+		 filename.indexOf(".bin") != -1){
+	    return Format.BINARY;
+	}
+
+	return Format.PDB;
+    }
+
+    /** Start reading frames. */
+    public synchronized void start(){
+	if(reader == null){
+	    reader = new Thread(this, "Trajectory");
+	    reader.setDaemon(true);
+	    reader.start();
+	}
+    }
+
+    /** Stop reading frames. */
+    public synchronized void close(){
+	closed = true;
+
+	if(reader != null){
+	    reader.interrupt();
+	    reader = null;
+	}
+    }
+
+    /** Return the number of the frame last taken, from 1. */
+    public int getFrame(){
+	return frame;
+    }
+
+    /**
+     * Take the frame step frames on and copy it into the atoms.
+     * This is called with the renderer locked, so it never waits
+     * for the reader. If fewer frames are ready it moves to the
+     * last of them, and if none are it leaves the atoms alone.
+     * Returns false if there are no more frames.
+     */
+    public boolean step(Molecule molecule, int step){
+	if(molecule.getAtomCount() != atomCount){
+	    Log.error("molecule has " + molecule.getAtomCount() +
+		      " atoms, trajectory has " + atomCount);
+	    return false;
+	}
+
+	float coords[] = null;
+
+	for(int s = 0; s < Math.max(step, 1); s++){
+	    float next[] = ready.poll();
+
+	    if(next == null){
+		break;
+	    }
+
+	    if(coords != null){
+		free.offer(coords);
+	    }
+
+	    coords = next;
+	    frame++;
+	}
+
+	if(coords == null){
+	    // the reader may just be behind
+	    return !(finished || closed) || !ready.isEmpty();
+	}
+
+	molecule.setCoordinates(coords);
+	free.offer(coords);
+
+	return true;
+    }
+
+    /** Read frames until the file ends or we are closed. */
+    public void run(){
+	try {
+	    do {
+		framesRead = 0;
+
+		if(format == Format.BINARY){
+		    readBinary();
+		}else{
+		    readText();
+		}
+
+		// don't spin on a file with no usable frames
+	    } while(loop && !closed && framesRead > 0);
+	}catch(InterruptedException e){
+	    // closed
+	}catch(IOException e){
+	    // closing interrupts a read, e.g. ClosedByInterruptException
+	    if(!closed){
+		Log.error("error reading " + filename + ": " + e);
+	    }
+	}finally{
+	    finished = true;
+	}
+    }
+
+    /** Hand a complete frame to the display side. */
+    private void emit(float coords[]) throws InterruptedException {
+	ready.put(coords);
+	framesRead++;
+    }
+
+    /** Read frames from a pdb or xyz file. */
+    private void readText() throws InterruptedException, IOException {
+	FILE file = FILE.open(filename);
+
+	if(file == null){
+	    throw new FileNotFoundException(filename);
+	}
+
+	try {
+	    if(format == Format.PDB){
+		readPDB(file);
+	    }else{
+		readXYZ(file);
+	    }
+	}finally{
+	    file.close();
+	}
+    }
+
+    private void readPDB(FILE file) throws InterruptedException {
+	float coords[] = null;
+	int n = 0;
+
+	while(!closed && file.nextLine()){
+	    char c0 = file.getChar(0);
+	    char c1 = file.getChar(1);
+	    char c2 = file.getChar(2);
+	    char c3 = file.getChar(3);
+
+	    if((c0 == 'A' && c1 == 'T' && c2 == 'O' && c3 == 'M') ||
+	       (c0 == 'H' && c1 == 'E' && c2 == 'T' && c3 == 'A')){
+		if(coords == null){
+		    coords = free.take();
+		    n = 0;
+		}
+
+		if(n < atomCount){
+		    coords[3 * n]     = (float)file.readDouble(30, 8);
+		    coords[3 * n + 1] = (float)file.readDouble(38, 8);
+		    coords[3 * n + 2] = (float)file.readDouble(46, 8);
+		}
+
+		n++;
+	    }else if(c0 == 'E' && c1 == 'N' && c2 == 'D' && c3 == 'M' &&
+		     coords != null){
+		coords = finishFrame(coords, n);
+	    }
+	}
+
+	if(coords != null){
+	    finishFrame(coords, n);
+	}
+    }
+
+    private void readXYZ(FILE file) throws InterruptedException {
+	while(!closed && file.nextLine()){
+	    if(file.getFieldCount() == 0){
+		continue;
+	    }
+
+	    int n = file.getInteger(0);
+
+	    // comment line
+	    if(!file.nextLine()){
+		break;
+	    }
+
+	    float coords[] = free.take();
+	    int a = 0;
+
+	    for(/* nothing */; a < n && file.nextLine(); a++){
+		if(a < atomCount){
+		    coords[3 * a]     = (float)file.getDouble(1);
+		    coords[3 * a + 1] = (float)file.getDouble(2);
+		    coords[3 * a + 2] = (float)file.getDouble(3);
+		}
+	    }
+
+	    if(a < n){
+		// truncated
+		free.offer(coords);
+		break;
+	    }
+
+	    finishFrame(coords, n);
+	}
+    }
+
+    /**
+     * Emit the frame if it has the right number of atoms.
+     * Always returns null, the frame is no longer ours.
+     */
+    private float[] finishFrame(float coords[], int n)
+	throws InterruptedException {
+	if(n == atomCount){
+	    emit(coords);
+	}else{
+	    Log.warn("skipping frame with " + n + " atoms");
+	    free.offer(coords);
+	}
+
+	return null;
+    }
+
+    private void readBinary() throws InterruptedException, IOException {
+	FileInputStream fis = new FileInputStream(filename);
+	FileChannel channel = fis.getChannel();
+
+	try {
+	    ByteBuffer header = ByteBuffer.allocate(4);
+
+	    if(!readFully(channel, header)){
+		return;
+	    }
+
+	    int n = header.getInt(0);
+
+	    if(n != atomCount){
+		Log.error(filename + " has " + n + " atoms, molecule has " +
+			  atomCount);
+		return;
+	    }
+
+	    ByteBuffer frameBuffer = ByteBuffer.allocateDirect(12 * n);
+	    FloatBuffer floats = frameBuffer.asFloatBuffer();
+
+	    while(!closed){
+		frameBuffer.clear();
+
+		if(!readFully(channel, frameBuffer)){
+		    break;
+		}
+
+		float coords[] = free.take();
+
+		floats.clear();
+		floats.get(coords, 0, 3 * n);
+
+		emit(coords);
+	    }
+	}finally{
+	    fis.close();
+	}
+    }
+
+    /** Fill the buffer, returning false at the end of the file. */
+    private static boolean readFully(FileChannel channel, ByteBuffer b)
+	throws IOException {
+	while(b.hasRemaining()){
+	    if(channel.read(b) < 0){
+		return false;
+	    }
+	}
+
+	b.flip();
+
+	return true;
+    }
+}
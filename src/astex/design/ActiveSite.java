@@ -19,6 +19,7 @@ package astex.design;
 
 import astex.*;
 import java.util.*;
+import java.util.concurrent.Callable;
 import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 
@@ -31,6 +32,7 @@ public class ActiveSite {
 	List<Atom> asp        = (List<Atom>)args.get("-asp");
 	List<Atom> spheres    = (List<Atom>)args.get("-spheres");
 	List<Atom> pass       = (List<Atom>)args.get("-pass");
+	List<Atom> potential  = (List<Atom>)args.get("-electrostatic");
 
 	exclusion  = (List<Atom>)args.get("-exclusion");
 
@@ -45,6 +47,8 @@ public class ActiveSite {
 	}else if(pass != null){
 	    Molecule mol = PASS.generatePASS(args, pass);
 	    mv.addMolecule(mol);
+	}else if(potential != null){
+	    generateElectrostaticMap(mv, args, potential);
 	}
 
 	System.gc();
@@ -156,6 +160,10 @@ public class ActiveSite {
 	// initialise the map
 	initialiseMap(args, map, superstar);
 
+	// the central groups to fit, in the order
+	// that they contribute to the map
+	List<SuperstarFit> fits = new ArrayList<SuperstarFit>();
+
 	for(int groups = 0; groups < 1000; groups++){
 	    String groupLabel = "group." + groups;
 
@@ -170,11 +178,13 @@ public class ActiveSite {
 		    Log.info(groupName);
 
 		    processSuperstarGroup(mv, args, superstar,
-					  groupName, molNamePrefix, map);
+					  groupName, molNamePrefix, map, fits);
 		}
 	    }
 	}
 
+	mapSuperstarFits(fits, map);
+
 	finaliseMap(mapName, map);
 
         if(newMap){
@@ -186,13 +196,18 @@ public class ActiveSite {
 	lattice        = null;
     }
 
-    /** The space in which we contribute the small map. */
-    private static float scatterPlot[] = null;
-
     /** Set up the map. */
     private static astex.Map initialiseMap(Arguments args,
                                            astex.Map map,
 					   List<Atom> superstarAtoms){
+	return initialiseMap(args, map, superstarAtoms, 0.5);
+    }
+
+    /** Set up the map, with the given default grid spacing. */
+    private static astex.Map initialiseMap(Arguments args,
+                                           astex.Map map,
+					   List<Atom> superstarAtoms,
+					   double defaultSpacing){
 	if(superstarAtoms.isEmpty()){
 	    // no atoms so do nothing.
 	    return null;
@@ -206,7 +221,7 @@ public class ActiveSite {
         }
 
 	// spacing for the map
-	double spacing    = args.getDouble("-mapspacing", 0.5);
+	double spacing    = args.getDouble("-mapspacing", defaultSpacing);
 	double gridBorder = args.getDouble("-border", 5.0);
 
 	double xmin =  1.e10, ymin =  1.e10, zmin =  1.e10;
@@ -244,8 +259,6 @@ public class ActiveSite {
 
 	map.data = new float[gridPoints];
 
-	scatterPlot = new float[gridPoints];
-
 	// the map will accumulate probabilities and
 	// so needs setting to 1.0 initially
 	for(int i = 0; i < gridPoints; i++){
@@ -375,12 +388,21 @@ public class ActiveSite {
 	return i + j * map.ngrid[0] + k * map.ngrid[0] * map.ngrid[1];
     }
 
-    /** Prepare the current scatter plot mask. */
-    private static void prepareScatterPlotRegion(astex.Map map,
-						 float scatterPlot[],
-						 double probeRadius,
-						 List<Atom> centralAtoms,
-						 int gmin[], int gmax[]){
+    /** Calculate the index of the grid point in a region. */
+    private static int regionIndex(int gmin[], int gmax[],
+				   int i, int j, int k){
+	return (i - gmin[0]) +
+	    (gmax[0] - gmin[0]) * ((j - gmin[1]) + (gmax[1] - gmin[1]) * (k - gmin[2]));
+    }
+
+    /**
+     * Prepare the scatter plot mask for a central group, covering
+     * the region gmin to gmax around it.
+     */
+    private static float[] prepareScatterPlotRegion(astex.Map map,
+						    double probeRadius,
+						    List<Atom> centralAtoms,
+						    int gmin[], int gmax[]){
 	// grid min, max for each atom
 	int gamin[] = new int[3];
 	int gamax[] = new int[3];
@@ -392,7 +414,7 @@ public class ActiveSite {
 
 	if(centralAtoms == null){
 	    Log.error("centralAtoms was null");
-	    return;
+	    return null;
 	}
 
 	double rp = probeRadius;
@@ -409,12 +431,22 @@ public class ActiveSite {
 	    }
 	}
 
+	for(int i = 0; i < 3; i++){
+	    if(gmax[i] <= gmin[i]){
+		return null;
+	    }
+	}
+
+	float scatterPlot[] = new float[(gmax[0] - gmin[0]) *
+					(gmax[1] - gmin[1]) *
+					(gmax[2] - gmin[2])];
+
 	Point3d gp = new Point3d();
 
 	for(int i = gmin[0]; i < gmax[0]; i++){
 	    for(int j = gmin[1]; j < gmax[1]; j++){
 		for(int k = gmin[2]; k < gmax[2]; k++){
-		    int index = gridIndex(map, i, j, k);
+		    int index = regionIndex(gmin, gmax, i, j, k);
 
 		    scatterPlot[index] = 1.0f;
 
@@ -432,30 +464,20 @@ public class ActiveSite {
 		}
 	    }
 	}
+
+	return scatterPlot;
     }
 
     /** Multiply in the partial scatter plot. */
     private static void multiplyScatterPlot(astex.Map map,
 					    float scatterPlot[],
 					    int gmin[], int gmax[]){
-	double spmin =  1.e10;
-	double spmax = -1.e10;
-	double mmin =  1.e10;
-	double mmax = -1.e10;
-
 	for(int i = gmin[0]; i < gmax[0]; i++){
 	    for(int j = gmin[1]; j < gmax[1]; j++){
 		for(int k = gmin[2]; k < gmax[2]; k++){
 		    int index = gridIndex(map, i, j, k);
-		    double v = scatterPlot[index];
 
-		    if(v < spmin) spmin = v;
-		    if(v > spmax) spmax = v;
-
-		    map.data[index] *= v;
-
-		    if(map.data[index] > mmax) mmax = map.data[index];
-		    if(map.data[index] < mmin) mmin = map.data[index];
+		    map.data[index] *= scatterPlot[regionIndex(gmin, gmax, i, j, k)];
 		}
 	    }
 	}
@@ -464,35 +486,38 @@ public class ActiveSite {
     /** The number of grid points. */
     private static int gridOffset = 2;
 
-    private static int gmin[] = new int[3];
-    private static int gmax[] = new int[3];
-
-    private static int    included[] = new int[1000];
-    private static double contrib[]  = new double[1000];
-
-    /** Trim the atoms that are in the superstar molecule. */
-    private static void mapSuperstarMolecule(List<Atom> centralAtoms,
-					     List<Atom> scatterPlotAtoms,
-					     double probeRadius,
-					     astex.Map map){
+    /**
+     * Build the scatter plot of the atoms that are in the
+     * superstar molecule, over the region gmin to gmax.
+     */
+    private static float[] mapSuperstarMolecule(List<Atom> centralAtoms,
+						List<Atom> scatterPlotAtoms,
+						double probeRadius,
+						astex.Map map,
+						int gmin[], int gmax[]){
 	int ninc = 0;
+	int included[] = new int[8 * gridOffset * gridOffset * gridOffset];
+	double contrib[] = new double[included.length];
+	boolean inside[] = new boolean[included.length];
 
 	double expConst = 2.*0.5*0.5;
 
 	// form volume
 	double volume = map.spacing.x * map.spacing.y * map.spacing.z;
 
-	prepareScatterPlotRegion(map, scatterPlot,
-				 probeRadius, centralAtoms,
-				 gmin, gmax);
+	float scatterPlot[] =
+	    prepareScatterPlotRegion(map, probeRadius, centralAtoms,
+				     gmin, gmax);
+
+	if(scatterPlot == null){
+	    return null;
+	}
 
 	Point3d pp = new Point3d();
 
 	for(Atom atom : scatterPlotAtoms){
 	    double d = 1.0 / (atom.getBFactor() * volume);
 
-	    //Log.info("contribution %f", d);
-
 	    int xp = (int)(0.5 + (atom.x - map.origin.x)/map.spacing.x);
 	    int yp = (int)(0.5 + (atom.y - map.origin.y)/map.spacing.y);
 	    int zp = (int)(0.5 + (atom.z - map.origin.z)/map.spacing.z);
@@ -519,9 +544,14 @@ public class ActiveSite {
 			    gridPoint(map, i, j, k, pp);
 			    double r2 = pp.distanceSquared(atom);
 			    if(r2 < 1.0){
-				int index = gridIndex(map, i, j, k);
 				double v = Math.exp(-r2/expConst);
-				included[ninc] = index;
+				// points outside the region count towards
+				// the normalisation but aren't stored
+				inside[ninc] =
+				    i < gmax[0] && j < gmax[1] && k < gmax[2] &&
+				    i >= gmin[0] && j >= gmin[1] && k >= gmin[2];
+				included[ninc] =
+				    inside[ninc] ? regionIndex(gmin, gmax, i, j, k) : -1;
 				contrib[ninc] = v;
 				ninc++;
 			    }
@@ -539,13 +569,38 @@ public class ActiveSite {
 		norm = Math.sqrt(norm);
 
 		for(int i = 0; i < ninc; i++){
-		    int index = included[i];
-		    scatterPlot[index] += d * contrib[i] / norm;
+		    if(inside[i]){
+			scatterPlot[included[i]] += d * contrib[i] / norm;
+		    }
 		}
 	    }
 	}
-	
-	multiplyScatterPlot(map, scatterPlot, gmin, gmax);
+
+	return scatterPlot;
+    }
+
+    /**
+     * Fit the central groups and multiply their scatter plots
+     * into the map. The fits don't depend on each other, so
+     * batches of them are run on the worker threads, each with
+     * its own scatter plot. They are multiplied into the map in
+     * their original order, so the map doesn't depend on the
+     * number of threads.
+     */
+    private static void mapSuperstarFits(List<SuperstarFit> fits,
+					 astex.Map map){
+	int batch = 8 * Parallel.getThreadCount();
+
+	for(int start = 0; start < fits.size(); start += batch){
+	    List<SuperstarFit> tasks =
+		fits.subList(start, Math.min(start + batch, fits.size()));
+
+	    Parallel.invokeAll(tasks);
+
+	    for(SuperstarFit fit : tasks){
+		fit.combine(map);
+	    }
+	}
     }
 
     /** Handle a superstar group definition. */
@@ -554,7 +609,8 @@ public class ActiveSite {
 					      List<Atom> superstar,
 					      String groupName,
 					      String molPrefix,
-					      astex.Map map){
+					      astex.Map map,
+					      List<SuperstarFit> fits){
 	MoleculeRenderer mr = mv.getMoleculeRenderer();
 	String typeLabel  = groupName + ".type";
 	String istr       = groupName + ".istr";
@@ -686,8 +742,9 @@ public class ActiveSite {
 		}
 		//FIXME I don't think pdbAtoms.size() can equal pdbMap.size()
 		if(pdbAtoms.size() == pdbMap.size()){
-		    fitSuperstarGroup(pdbAtoms, istrAtoms,
-				      superstarMol, istrMol, plotScale, map);
+		    fits.add(new SuperstarFit(new ArrayList<Atom>(pdbAtoms),
+					      istrAtoms, superstarMol,
+					      istrMol, plotScale, map));
 		}
 	    }
 	}
@@ -725,202 +782,246 @@ public class ActiveSite {
 	}
     }
 
-    private static DoubleArrayList x = new DoubleArrayList();
-    private static DoubleArrayList y = new DoubleArrayList();
-    private static DoubleArrayList z = new DoubleArrayList();
-    private static DoubleArrayList xp = new DoubleArrayList();
-    private static DoubleArrayList yp = new DoubleArrayList();
-    private static DoubleArrayList zp = new DoubleArrayList();
+    /**
+     * A central group in the protein, the istr molecule fitted
+     * onto it, and the scatter plot that it contributes to the
+     * map. Fits run on the worker threads, so they only touch
+     * their own working space.
+     */
+    private static class SuperstarFit implements Callable<Object> {
+	List<Atom> pdbAtoms;
+	List<Atom> istrAtoms;
+	Molecule superstarMol;
+	Molecule istrMol;
+	double plotScale;
+	astex.Map map;
+
+	/** The atoms that survived clipping, once fitted. */
+	List<Atom> scatterPlotAtoms = null;
+
+	/** The scatter plot, over the region gmin to gmax. */
+	float scatterPlot[] = null;
+	int gmin[] = new int[3];
+	int gmax[] = new int[3];
+
+	/** The radius of the probe atoms. */
+	double probeRadius = 0.0;
+
+	SuperstarFit(List<Atom> pdbAtoms, List<Atom> istrAtoms,
+		     Molecule superstarMol, Molecule istrMol,
+		     double plotScale, astex.Map map){
+	    this.pdbAtoms     = pdbAtoms;
+	    this.istrAtoms    = istrAtoms;
+	    this.superstarMol = superstarMol;
+	    this.istrMol      = istrMol;
+	    this.plotScale    = plotScale;
+	    this.map          = map;
+	}
 
-    private static IntArrayList neighbours  = new IntArrayList();
+	public Object call(){
+	    scatterPlotAtoms = fit();
 
-    private static void fitSuperstarGroup(List<Atom> pdbAtoms,
-					  List<Atom> istrAtoms,
-					  Molecule superstarMol,
-					  Molecule istrMol,
-					  double plotScale,
-					  astex.Map map){
-	List<Atom> scatterPlotAtoms = new ArrayList<Atom>(20);
-
-	int nfit = pdbAtoms.size();
-
-	x.clear();
-	y.clear();
-	z.clear();
-	xp.clear();
-	yp.clear();
-	zp.clear();
-
-	for(int i = 0; i < nfit; i++){
-	    Atom a = pdbAtoms.get(i);
-	    x.add(a.x);
-	    y.add(a.y);
-	    z.add(a.z);
-
-	    // mark the pdb atom as having been in a central group
-	    a.setTemporarilySelected(true);
-
-	    a = istrAtoms.get(i);
-	    xp.add(a.x);
-	    yp.add(a.y);
-	    zp.add(a.z);
+	    if(scatterPlotAtoms != null){
+		scatterPlot =
+		    mapSuperstarMolecule(pdbAtoms, scatterPlotAtoms,
+					 probeRadius, map, gmin, gmax);
+	    }
 
+	    return null;
 	}
 
-	Matrix rot = new Matrix();
+	/** Fit the group and return the atoms of the scatter plot. */
+	private List<Atom> fit(){
+	    List<Atom> scatterPlotAtoms = new ArrayList<Atom>(20);
 
-	double rmsd = Fit.fit(x.toDoubleArray(),
-				    y.toDoubleArray(),
-				    z.toDoubleArray(),
-				    xp.toDoubleArray(),
-				    yp.toDoubleArray(),
-				    zp.toDoubleArray(), nfit, rot);
+	    int nfit = pdbAtoms.size();
 
-	if(rmsd > rmsdWarningLevel){
-	    Atom baseAtom = pdbAtoms.get(0);
-	    Residue res = baseAtom.getResidue();
+	    double x[]  = new double[nfit];
+	    double y[]  = new double[nfit];
+	    double z[]  = new double[nfit];
+	    double xp[] = new double[nfit];
+	    double yp[] = new double[nfit];
+	    double zp[] = new double[nfit];
 
-	    Log.warn("residue " + res + " rmsd=%5.2f", rmsd);
+	    IntArrayList neighbours = new IntArrayList();
+
+	    for(int i = 0; i < nfit; i++){
+		Atom a = pdbAtoms.get(i);
+		x[i] = a.x;
+		y[i] = a.y;
+		z[i] = a.z;
+
+		// mark the pdb atom as having been in a central group
+		a.setTemporarilySelected(true);
+
+		a = istrAtoms.get(i);
+		xp[i] = a.x;
+		yp[i] = a.y;
+		zp[i] = a.z;
 
-	    if(rmsd > rmsdFailLevel){
-		Log.error("fitting abandoned");
-		return;
 	    }
-	}
 
-	Point3d p            = new Point3d();
-	int centralAtomCount = istrMol.getCentralAtomCount();
-	int istrCount        = istrMol.getAtomCount();
-	boolean addit        = true;
-	Atom cacheHit        = null;
+	    Matrix rot = new Matrix();
 
-	int boxx             = Integer.MIN_VALUE;
-	int boxy             = Integer.MIN_VALUE;
-	int boxz             = Integer.MIN_VALUE;
+	    double rmsd = Fit.fit(x, y, z, xp, yp, zp, nfit, rot);
 
-	double probeRadius   = 0.0;
+	    if(rmsd > rmsdWarningLevel){
+		Atom baseAtom = pdbAtoms.get(0);
+		Residue res = baseAtom.getResidue();
 
-	// skip the central group atoms
-	for(int i = centralAtomCount; i < istrCount; i++){
-	    Atom a = istrMol.getAtom(i);
-	    int elementa = a.getElement();
-	    double ra    = vdwRadii[elementa];
-	    probeRadius  = ra;
+		Log.warn("residue " + res + " rmsd=%5.2f", rmsd);
 
-	    // occupancy > 0.0 indicates it is an
-	    // atom we want to proceed with
-	    if(a.getOccupancy() > 0.0){
-		p.set(a);
+		if(rmsd > rmsdFailLevel){
+		    Log.error("fitting abandoned");
+		    return null;
+		}
+	    }
+
+	    Point3d p            = new Point3d();
+	    int centralAtomCount = istrMol.getCentralAtomCount();
+	    int istrCount        = istrMol.getAtomCount();
+	    boolean addit        = true;
+	    Atom cacheHit        = null;
+
+	    int boxx             = Integer.MIN_VALUE;
+	    int boxy             = Integer.MIN_VALUE;
+	    int boxz             = Integer.MIN_VALUE;
+
+	    // skip the central group atoms
+	    for(int i = centralAtomCount; i < istrCount; i++){
+		Atom a = istrMol.getAtom(i);
+		int elementa = a.getElement();
+		double ra    = vdwRadii[elementa];
+		probeRadius  = ra;
+
+		// occupancy > 0.0 indicates it is an
+		// atom we want to proceed with
+		if(a.getOccupancy() > 0.0){
+		    p.set(a);
 		
-		rot.transform(p);
+		    rot.transform(p);
 		
-		addit = true;
+		    addit = true;
 		
-		// if there were exclusion atoms
-		// check them for collisions
-		if(exclusion != null){
-		    if(cacheHit != null){
-			int elementc = cacheHit.getElement();
-			double rc    = vdwRadii[elementc];
-			double rvdw  = (ra + rc) - 2.0 * dtol;
-
-			if(cacheHit.distanceSquared(p) < rvdw*rvdw){
-			    addit = false;
-			}else{
-			    cacheHit = null;
+		    // if there were exclusion atoms
+		    // check them for collisions
+		    if(exclusion != null){
+			if(cacheHit != null){
+			    int elementc = cacheHit.getElement();
+			    double rc    = vdwRadii[elementc];
+			    double rvdw  = (ra + rc) - 2.0 * dtol;
+
+			    if(cacheHit.distanceSquared(p) < rvdw*rvdw){
+				addit = false;
+			    }else{
+				cacheHit = null;
+			    }
 			}
-		    }
 
-		    if(addit){
-			// check for whether we are looking
-			// for neighbours in the same cell
-			// as before.
-			int pboxx = lattice.BOX(p.x);
-			int pboxy = lattice.BOX(p.y);
-			int pboxz = lattice.BOX(p.z);
-
-			if(pboxx != boxx ||
-			   pboxy != boxy ||
-			   pboxz != boxz){
-			    neighbours.clear();
-			    lattice.getPossibleNeighbours(-1, p.x, p.y, p.z,
-							  neighbours, true);
-			    boxx = pboxx;
-			    boxy = pboxy;
-			    boxz = pboxz;
-			}
+			if(addit){
+			    // check for whether we are looking
+			    // for neighbours in the same cell
+			    // as before.
+			    int pboxx = lattice.BOX(p.x);
+			    int pboxy = lattice.BOX(p.y);
+			    int pboxz = lattice.BOX(p.z);
+
+			    if(pboxx != boxx ||
+			       pboxy != boxy ||
+			       pboxz != boxz){
+				neighbours.clear();
+				lattice.getPossibleNeighbours(-1, p.x, p.y, p.z,
+							      neighbours, true);
+				boxx = pboxx;
+				boxy = pboxy;
+				boxz = pboxz;
+			    }
 
-			int ncount = neighbours.size();
+			    int ncount = neighbours.size();
 		    
-			for(int n = 0; n < ncount; n++){
-			    int id             = neighbours.getInt(n);
-			    Atom atomNeighbour = exclusion.get(id);
-			    int elementn       = atomNeighbour.getElement();
-			    double rn          = vdwRadii[elementn];
-			    // allow closer approach to allow for hbonding
-			    double rvdw        = (ra + rn) - 2.0 * dtol;
-			    boolean ignore     = false;
+			    for(int n = 0; n < ncount; n++){
+				int id             = neighbours.getInt(n);
+				Atom atomNeighbour = exclusion.get(id);
+				int elementn       = atomNeighbour.getElement();
+				double rn          = vdwRadii[elementn];
+				// allow closer approach to allow for hbonding
+				double rvdw        = (ra + rn) - 2.0 * dtol;
+				boolean ignore     = false;
 			
-			    if(p.distanceSquared(atomNeighbour) < rvdw*rvdw){
-				// but we shouldn't allow collisions
-				// with the actual fit atoms
-				// of the central group itself
-				for(int j = 0; j < nfit; j++){
-				    Atom pdbAtom = pdbAtoms.get(j);
-				    if(pdbAtom == atomNeighbour){
-					ignore = true;
-					break;
+				if(p.distanceSquared(atomNeighbour) < rvdw*rvdw){
+				    // but we shouldn't allow collisions
+				    // with the actual fit atoms
+				    // of the central group itself
+				    for(int j = 0; j < nfit; j++){
+					Atom pdbAtom = pdbAtoms.get(j);
+					if(pdbAtom == atomNeighbour){
+					    ignore = true;
+					    break;
+					}
 				    }
-				}
 			    
-				if(!ignore){
-				    addit = false;
-				    cacheHit = atomNeighbour;
-				    break;
+				    if(!ignore){
+					addit = false;
+					cacheHit = atomNeighbour;
+					break;
+				    }
 				}
 			    }
 			}
 		    }
-		}
 
-		// atom survived clipping by neighbours
-		// so add it to the scatter plot
-		if(addit){
-		    // this should only be non-null if
-		    // we are keeping scatterplots
-		    if(superstarMol != null){
-			//System.out.println("adding atom");
-			Atom newAtom = superstarMol.addAtom();
-			newAtom.setElement(a.getElement());
-			newAtom.set(p);
+		    // atom survived clipping by neighbours
+		    // so add it to the scatter plot
+		    if(addit){
 			// multiply in the plot scale
 			// at this point
-			newAtom.setBFactor(a.getBFactor() / plotScale);
-			newAtom.setCharge(0);
-		    }
+			Atom atom = Atom.create();
+			atom.setElement(a.getElement());
+			atom.set(p);
+			atom.setBFactor(a.getBFactor() / plotScale);
+			atom.setCharge(0);
 
-		    // hmm, duplicate atom creation here
-		    Atom atom = Atom.create();
-		    atom.setElement(a.getElement());
-		    atom.set(p);
-		    atom.setBFactor(a.getBFactor() / plotScale);
-		    atom.setCharge(0);
-
-		    scatterPlotAtoms.add(atom);
+			scatterPlotAtoms.add(atom);
+		    }
 		}
 	    }
+
+	    return scatterPlotAtoms;
 	}
 
-	mapSuperstarMolecule(pdbAtoms,
-			     scatterPlotAtoms, probeRadius, map);
+	/** Add the fit to the map and the scatter plot molecule. */
+	void combine(astex.Map map){
+	    if(scatterPlotAtoms == null){
+		return;
+	    }
+
+	    if(scatterPlot != null){
+		multiplyScatterPlot(map, scatterPlot, gmin, gmax);
+	    }
+
+	    for(Atom atom : scatterPlotAtoms){
+		// this should only be non-null if
+		// we are keeping scatterplots
+		if(superstarMol != null){
+		    Atom newAtom = superstarMol.addAtom();
+		    newAtom.setElement(atom.getElement());
+		    newAtom.set(atom);
+		    newAtom.setBFactor(atom.getBFactor());
+		    newAtom.setCharge(0);
+		}
 
-	// push the atoms from the scatter plot back
-	// into the central atom cache
-	for(Atom a : scatterPlotAtoms){
-	    a.release();
+		// push the atoms from the scatter plot back
+		// into the central atom cache
+		atom.release();
+	    }
+
+	    scatterPlotAtoms = null;
+	    scatterPlot = null;
 	}
     }
 
+    private static IntArrayList neighbours  = new IntArrayList();
+
     private static double xs[][] = {{0.0, 0.0, 0.0, 0.0},
 				    {0.0, 0.0, 0.0, 0.0},
 				    {0.0, 0.0, 0.0, 0.0},
@@ -1109,21 +1210,11 @@ public class ActiveSite {
 
 	initialiseMap(args, map, aspAtoms);
 
-	// build the lattice datastructure
-	// but actually put the exclusion set into it
 	int exclusionCount = exclusion.size();
 
-	Lattice aspLattice = new Lattice(6.0);
-
-	for(ListIterator<Atom> it = exclusion.listIterator(); it.hasNext();){
-	    int i = it.nextIndex();
-	    Atom aspAtom = it.next();
-	    aspLattice.add(i, aspAtom.x, aspAtom.y, aspAtom.z);
-	}
-
 	// build the type information
 	List<String> types = new ArrayList<String>(exclusionCount);
-	HashMap<String, DoubleArrayList> pmfs = new HashMap<String, DoubleArrayList>(11);
+	HashMap<String, double[]> pmfs = new HashMap<String, double[]>(11);
 
 	for(Atom atom : exclusion){
 	    Residue res = atom.getResidue();
@@ -1146,19 +1237,15 @@ public class ActiveSite {
 
 	    String pmf = type + "_" + probeName;
 
-	    if(pmfs.get(pmf) == null){
-		loadPmf(pmfs, location, pmf);
+	    if(!pmfs.containsKey(pmf)){
+		pmfs.put(pmf, loadPmf(location, pmf));
 	    }
 
 	    types.add(pmf);
 	}
 
 	// now go through each atom, and sum the field
-	for(ListIterator<Atom> it = exclusion.listIterator(); it.hasNext();){
-	    int i = it.nextIndex();
-	    Atom atom = it.next();
-	    incorporatePotential(map, i, atom, types, pmfs, maxd);
-	}
+	incorporatePotentials(map, types, pmfs, maxd);
 	
 	int gridPoints = map.ngrid[0] * map.ngrid[1] * map.ngrid[2];
 
@@ -1198,86 +1285,238 @@ public class ActiveSite {
         }
     }
 
-    /** Add in the potential of an atom. */
-    private static void incorporatePotential(astex.Map map, int iatom,
-					    Atom atom, List<String> types,
-					    HashMap<String,DoubleArrayList> pmfs, double maxd){
-	String type = types.get(iatom);
-	DoubleArrayList pmf = pmfs.get(type);
+    /**
+     * Generate a Coulomb potential map. The dielectric is
+     * distance dependent, e(r) = dielectric * r, so the
+     * potential falls off as 1/r^2.
+     */
+    private static void generateElectrostaticMap(MoleculeViewer mv,
+						 Arguments args,
+						 List<Atom> atoms){
+	String mapName    = args.getString("-prefix", "electrostatic");
+	double cutoff     = args.getDouble("-cutoff", 10.0);
+	double dielectric = args.getDouble("-dielectric", 4.0);
+	double level      = args.getDouble("-level", 5.0);
+	MoleculeRenderer mr = mv.getMoleculeRenderer();
+
+	// create a map and set it up
+	astex.Map map = mr.getMap(mapName);
+	boolean newMap = false;
+
+	if(map == null){
+	    Log.info("creating new map " + mapName);
+	    map = astex.Map.createSimpleMap();
+	    newMap = true;
+	}
 
-	if(pmf == null){
-	    Log.error("couldn't find pmf for " + type);
+	map.setName(mapName);
+	map.setFile(mapName);
+
+	if(initialiseMap(args, map, atoms, 1.0) == null){
 	    return;
 	}
 
-	double maxd2 = maxd * maxd;
+	long then = System.currentTimeMillis();
 
-	int nx = map.ngrid[0];
-	int ny = map.ngrid[1];
-	int nz = map.ngrid[2];
+	Coulomb.potential(map, atoms, cutoff, dielectric);
 
-	double ax = atom.x - map.origin.x;
-	double ay = atom.y - map.origin.y;
-	double az = atom.z - map.origin.z;
+	Log.info("potential took %dms", System.currentTimeMillis() - then);
 
-	int gxmin =     (int)((ax - maxd)/map.spacing.x);
-	int gymin =     (int)((ay - maxd)/map.spacing.y);
-	int gzmin =     (int)((az - maxd)/map.spacing.z);
+	int gridPoints = map.ngrid[0] * map.ngrid[1] * map.ngrid[2];
 
-	if(gxmin >= nx || gymin >= ny || gzmin >= nz) return;
+	double min =  1.e10;
+	double max = -1.e10;
 
-	if(gxmin < 0) gxmin = 0;
-	if(gymin < 0) gymin = 0;
-	if(gzmin < 0) gzmin = 0;
+	for(int i = 0; i < gridPoints; i++){
+	    if(map.data[i] > max) max = map.data[i];
+	    if(map.data[i] < min) min = map.data[i];
+	}
 
-	int gxmax = 1 + (int)((ax + maxd)/map.spacing.x);
-	int gymax = 1 + (int)((ay + maxd)/map.spacing.y);
-	int gzmax = 1 + (int)((az + maxd)/map.spacing.z);
+	Log.info("map min %f", min);
+	Log.info("map max %f", max);
 
-	if(gxmax < 0 || gymax < 0 || gzmax < 0) return;
+	// positive potential in blue, negative in red
+	double levels[] = { level, -level, 0.0 };
+	String colors[] = { "blue", "red", "white" };
 
-	if(gxmax >= nx) gxmax = nx - 1;
-	if(gymax >= ny) gymax = ny - 1;
-	if(gzmax >= nz) gzmax = nz - 1;
+	for(int i = 0; i < astex.Map.MaximumContourLevels; i++){
+            map.setContourLevel(i, levels[i]);
+            map.setContourDisplayed(i, i < 2);
+            map.setContourStyle(i, astex.Map.Lines);
+            map.setContourColor(i, Color32.getColorFromName(colors[i]));
+	}
 
-	Point3d gp = new Point3d();
-	int pmfSize = pmf.size();
-	double pmfData[] = pmf.toDoubleArray();
+        if(newMap){
+            mr.addMap(map);
+        }
+    }
+
+    /** The width of the distance bins in the pmf files. */
+    private static final double PmfBinWidth = 0.1;
+
+    /**
+     * The step of the squared distance lookup table. The squared
+     * bin boundaries are at least 0.02 apart, so each step
+     * crosses at most one of them.
+     */
+    private static final double PmfLookupStep = 0.01;
 
-	for(int iz = gzmin; iz <= gzmax; iz++){
-	    gp.z = map.origin.z + iz * map.spacing.z;
-	    for(int iy = gymin; iy <= gymax; iy++){
-		gp.y = map.origin.y + iy * map.spacing.y;
-		for(int ix = gxmin; ix <= gxmax; ix++){
-		    gp.x = map.origin.x + ix * map.spacing.x;
+    /**
+     * Add in the potential of the exclusion atoms.
+     *
+     * The grid is split into blocks of planes which are filled
+     * in parallel. Each block adds the atoms that reach it in
+     * the same order as a single pass would, so the map doesn't
+     * depend on the number of threads.
+     */
+    private static void incorporatePotentials(final astex.Map map,
+					      List<String> types,
+					      HashMap<String,double[]> pmfs,
+					      double maxd){
+	final int nx = map.ngrid[0];
+	final int ny = map.ngrid[1];
+	final int nz = map.ngrid[2];
+
+	final int atomCount = exclusion.size();
+	final double ax[] = new double[atomCount];
+	final double ay[] = new double[atomCount];
+	final double az[] = new double[atomCount];
+	final double potentials[][] = new double[atomCount][];
+	final int box[] = new int[6 * atomCount];
+
+	for(int i = 0; i < atomCount; i++){
+	    Atom atom = exclusion.get(i);
+	    String type = types.get(i);
+	    double pmf[] = pmfs.get(type);
+
+	    if(pmf == null){
+		Log.error("couldn't find pmf for " + type);
+		continue;
+	    }
+
+	    ax[i] = atom.x;
+	    ay[i] = atom.y;
+	    az[i] = atom.z;
+
+	    double rx = atom.x - map.origin.x;
+	    double ry = atom.y - map.origin.y;
+	    double rz = atom.z - map.origin.z;
+
+	    int gxmin =     (int)((rx - maxd)/map.spacing.x);
+	    int gymin =     (int)((ry - maxd)/map.spacing.y);
+	    int gzmin =     (int)((rz - maxd)/map.spacing.z);
+
+	    if(gxmin >= nx || gymin >= ny || gzmin >= nz) continue;
+
+	    int gxmax = 1 + (int)((rx + maxd)/map.spacing.x);
+	    int gymax = 1 + (int)((ry + maxd)/map.spacing.y);
+	    int gzmax = 1 + (int)((rz + maxd)/map.spacing.z);
+
+	    if(gxmax < 0 || gymax < 0 || gzmax < 0) continue;
+
+	    box[6*i]   = Math.max(gxmin, 0);
+	    box[6*i+1] = Math.min(gxmax, nx - 1);
+	    box[6*i+2] = Math.max(gymin, 0);
+	    box[6*i+3] = Math.min(gymax, ny - 1);
+	    box[6*i+4] = Math.max(gzmin, 0);
+	    box[6*i+5] = Math.min(gzmax, nz - 1);
+
+	    potentials[i] = pmf;
+	}
+
+	// squared distance to bin lookup, coarse gives the bin
+	// at the start of each step and boundary the squared
+	// distance at which each bin ends
+	final double maxd2 = maxd * maxd;
+	int bins = 2 + (int)(maxd / PmfBinWidth);
+	final double boundary[] = new double[bins + 1];
+
+	for(int b = 0; b <= bins; b++){
+	    double d = (b + 0.5) * PmfBinWidth;
+	    boundary[b] = d * d;
+	}
 
-		    int gridPoint = ix + iy * nx + iz * nx * ny;
+	final int coarse[] = new int[2 + (int)(maxd2 / PmfLookupStep)];
 
-		    double d2 = gp.distanceSquared(atom);
+	for(int c = 0, b = 0; c < coarse.length; c++){
+	    while(b < bins && boundary[b] <= c * PmfLookupStep){
+		b++;
+	    }
+	    coarse[c] = b;
+	}
 
-		    if(d2 < maxd2){
-			double d = Math.sqrt(d2);
-			int bin = (int)(0.5 + (d / 0.1));
+	final float data[] = map.data;
+	final double ox = map.origin.x, oy = map.origin.y, oz = map.origin.z;
+	final double sx = map.spacing.x, sy = map.spacing.y, sz = map.spacing.z;
 
-			if(bin < pmfSize){
-			    map.data[gridPoint] += pmfData[bin];
+	Parallel.forRange(nz, 1, new Parallel.Block(){
+		public void run(int start, int end){
+		    for(int i = 0; i < atomCount; i++){
+			double pmfData[] = potentials[i];
+
+			if(pmfData == null){
+			    continue;
+			}
+
+			int gzmin = Math.max(box[6*i+4], start);
+			int gzmax = Math.min(box[6*i+5], end - 1);
+			int pmfSize = pmfData.length;
+
+			for(int iz = gzmin; iz <= gzmax; iz++){
+			    double dz = oz + iz * sz - az[i];
+			    for(int iy = box[6*i+2]; iy <= box[6*i+3]; iy++){
+				double dy = oy + iy * sy - ay[i];
+				double dyz2 = dy*dy + dz*dz;
+
+				if(dyz2 >= maxd2){
+				    continue;
+				}
+
+				int gridPoint = box[6*i] + iy * nx + iz * nx * ny;
+
+				for(int ix = box[6*i]; ix <= box[6*i+1]; ix++, gridPoint++){
+				    double dx = ox + ix * sx - ax[i];
+				    double d2 = dx*dx + dyz2;
+
+				    if(d2 < maxd2){
+					int bin = coarse[(int)(d2 / PmfLookupStep)];
+
+					if(d2 >= boundary[bin]){
+					    bin++;
+					}
+
+					if(bin < pmfSize){
+					    data[gridPoint] += pmfData[bin];
+					}
+				    }
+				}
+			    }
 			}
 		    }
 		}
-	    }
-	}
+	    });
     }
 
-    /** Try and load the pmf. */
-    private static void loadPmf(HashMap<String, DoubleArrayList> pmfs, String location, String pmf){
+    /** Pmf tables that have been read, by file name. */
+    private static HashMap<String, double[]> pmfCache =
+	new HashMap<String, double[]>();
+
+    /** Try and load the pmf, or return the copy we already read. */
+    private static synchronized double[] loadPmf(String location, String pmf){
 	String filename = location + "/" + pmf + ".pmf";
+	double cached[] = pmfCache.get(filename);
+
+	if(cached != null){
+	    return cached;
+	}
+
 	DoubleArrayList values = new DoubleArrayList();
 
 	FILE f = FILE.open(filename);
 
 	if(f == null){
 	    Log.error("couldn't load " + filename);
-	    return;
+	    return null;
 	}
 
 	while(f.nextLine()){
@@ -1287,7 +1526,9 @@ public class ActiveSite {
 
 	f.close();
 
-	pmfs.put(pmf, values);
-    }
+	cached = values.toDoubleArray();
+	pmfCache.put(filename, cached);
 
-}
\ No newline at end of file
+	return cached;
+    }
+}
@@ -0,0 +1,485 @@
+/*
+ * This file is part of MoleculeViewer.
+ *
+ * MoleculeViewer is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MoleculeViewer is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with MoleculeViewer.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package astex.design;
+
+import astex.*;
+import java.util.*;
+
+/**
+ * Coulomb potential on a map grid, with a distance dependent
+ * dielectric, i.e. 332 q / (e r^2) in kcal/mol/e.
+ *
+ * The interaction is split smoothly at the cutoff. The short
+ * range part is summed exactly over the atoms near each grid
+ * point, found from a cell list. The long range part varies
+ * slowly, so the charges are spread onto a coarse grid, the
+ * potential there is found by FFT convolution and then
+ * interpolated back onto the map.
+ */
+class Coulomb {
+    /** Converts e^2/A to kcal/mol. */
+    private static final double CoulombConstant = 332.0636;
+
+    /** Closest approach, to stop the potential blowing up at atoms. */
+    private static final double MinimumDistance = 1.0;
+
+    /** The largest coarse grid along each axis. */
+    private static final int MaximumCoarseGrid = 128;
+
+    /** The points along each side of the blocks the map is split into. */
+    private static final int BlockSize = 4;
+
+    /** The number of entries in the short range lookup table. */
+    private static final int TableSize = 4096;
+
+    /** The charged atoms. */
+    private double x[], y[], z[], q[];
+    private int n = 0;
+
+    /** The cutoff and the start of the switching region, squared. */
+    private double rc2, rs2;
+
+    /** 1 / dielectric. */
+    private double invDielectric;
+
+    /** The short range interaction by squared distance. */
+    private double table[];
+    private double tableScale;
+
+    /** The coarse grid. */
+    private double coarseOrigin[] = new double[3];
+    private double h;
+    private int cn[] = new int[3];
+    private float coarse[];
+
+    private Coulomb(List<Atom> atoms, double dielectric){
+	x = new double[atoms.size()];
+	y = new double[atoms.size()];
+	z = new double[atoms.size()];
+	q = new double[atoms.size()];
+
+	for(Atom a : atoms){
+	    // scale charge by occupancy
+	    // to allow for multiple positions.
+	    double qa = a.getPartialCharge() * a.getOccupancy();
+
+	    if(Math.abs(qa) > 1.e-3){
+		x[n] = a.x;
+		y[n] = a.y;
+		z[n] = a.z;
+		q[n] = qa;
+		n++;
+	    }
+	}
+
+	invDielectric = 1.0 / dielectric;
+    }
+
+    /**
+     * Fill the map with the potential of the atoms. The map
+     * must be a simple map with its grid already set up.
+     */
+    public static void potential(astex.Map map, List<Atom> atoms,
+				 double cutoff, double dielectric){
+	Coulomb c = new Coulomb(atoms, dielectric);
+
+	Log.info("charged atoms %d", c.n);
+
+	c.setupCoarseGrid(map, cutoff);
+	c.longRange();
+	c.shortRange(map);
+    }
+
+    /** Switching function, 0 inside rs and 1 beyond rc. */
+    private double longRangeFraction(double d2){
+	if(d2 <= rs2){
+	    return 0.0;
+	}else if(d2 >= rc2){
+	    return 1.0;
+	}
+
+	double s = (d2 - rs2) / (rc2 - rs2);
+
+	return s * s * (3.0 - 2.0 * s);
+    }
+
+    /** The interaction at squared distance d2, without the charges. */
+    private double interaction(double d2){
+	return invDielectric / Math.max(d2, MinimumDistance * MinimumDistance);
+    }
+
+    /**
+     * Choose the coarse grid. It covers the atoms and the map,
+     * and has room for the convolution not to wrap around. The
+     * switching region has to be a couple of coarse grid points
+     * wide for the long range part to be smooth, so the cutoff
+     * grows if the coarse grid has to be very coarse.
+     */
+    private void setupCoarseGrid(astex.Map map, double cutoff){
+	double min[] = { map.origin.x, map.origin.y, map.origin.z };
+	double max[] = {
+	    map.origin.x + (map.ngrid[0] - 1) * map.spacing.x,
+	    map.origin.y + (map.ngrid[1] - 1) * map.spacing.y,
+	    map.origin.z + (map.ngrid[2] - 1) * map.spacing.z,
+	};
+
+	for(int i = 0; i < n; i++){
+	    min[0] = Math.min(min[0], x[i]); max[0] = Math.max(max[0], x[i]);
+	    min[1] = Math.min(min[1], y[i]); max[1] = Math.max(max[1], y[i]);
+	    min[2] = Math.min(min[2], z[i]); max[2] = Math.max(max[2], z[i]);
+	}
+
+	h = cutoff / 4.0;
+
+	for(int k = 0; k < 3; k++){
+	    h = Math.max(h, 2.0 * (max[k] - min[k]) / (MaximumCoarseGrid - 6));
+	}
+
+	if(cutoff < 4.0 * h){
+	    cutoff = 4.0 * h;
+	    Log.info("cutoff increased to %.1f", cutoff);
+	}
+
+	rc2 = cutoff * cutoff;
+	rs2 = 0.25 * rc2;
+
+	// the short range part is smooth apart from at the
+	// minimum distance, so interpolating a table is good
+	table = new double[TableSize + 2];
+	tableScale = TableSize / rc2;
+
+	for(int i = 0; i < table.length; i++){
+	    double d2 = i / tableScale;
+	    table[i] = (1.0 - longRangeFraction(d2)) * interaction(d2);
+	}
+
+	for(int k = 0; k < 3; k++){
+	    coarseOrigin[k] = min[k] - h;
+
+	    // twice the extent, so that the convolution doesn't wrap
+	    int points = 2 * (3 + (int)((max[k] - min[k]) / h));
+
+	    cn[k] = 1;
+	    while(cn[k] < points){
+		cn[k] *= 2;
+	    }
+	}
+    }
+
+    /** Calculate the long range part of the potential on the coarse grid. */
+    private void longRange(){
+	final int nx = cn[0], ny = cn[1], nz = cn[2];
+	int size = nx * ny * nz;
+
+	float qre[] = new float[size];
+	float qim[] = new float[size];
+
+	// spread the charges onto the neighbouring coarse points
+	for(int i = 0; i < n; i++){
+	    double gx = (x[i] - coarseOrigin[0]) / h;
+	    double gy = (y[i] - coarseOrigin[1]) / h;
+	    double gz = (z[i] - coarseOrigin[2]) / h;
+	    int ix = (int)gx, iy = (int)gy, iz = (int)gz;
+	    double fx = gx - ix, fy = gy - iy, fz = gz - iz;
+
+	    for(int c = 0; c < 8; c++){
+		int dx = c & 1, dy = (c >> 1) & 1, dz = (c >> 2) & 1;
+		double w = (dx == 1 ? fx : 1.0 - fx) *
+		    (dy == 1 ? fy : 1.0 - fy) *
+		    (dz == 1 ? fz : 1.0 - fz);
+
+		qre[((iz + dz) * ny + iy + dy) * nx + ix + dx] += (float)(w * q[i]);
+	    }
+	}
+
+	// the long range interaction for each offset,
+	// negative offsets wrap around
+	final float kre[] = new float[size];
+	float kim[] = new float[size];
+
+	Parallel.forRange(nz, 1, new Parallel.Block(){
+		public void run(int start, int end){
+		    for(int k = start; k < end; k++){
+			double dz = h * (k < nz / 2 ? k : k - nz);
+			for(int j = 0; j < ny; j++){
+			    double dy = h * (j < ny / 2 ? j : j - ny);
+			    for(int i = 0; i < nx; i++){
+				double dx = h * (i < nx / 2 ? i : i - nx);
+				double d2 = dx*dx + dy*dy + dz*dz;
+				kre[(k * ny + j) * nx + i] =
+				    (float)(longRangeFraction(d2) * interaction(d2));
+			    }
+			}
+		    }
+		}
+	    });
+
+	fft3d(qre, qim, false);
+	fft3d(kre, kim, false);
+
+	float scale = 1.0f / size;
+
+	for(int i = 0; i < size; i++){
+	    float re = qre[i] * kre[i] - qim[i] * kim[i];
+	    float im = qre[i] * kim[i] + qim[i] * kre[i];
+	    qre[i] = re * scale;
+	    qim[i] = im * scale;
+	}
+
+	fft3d(qre, qim, true);
+
+	coarse = qre;
+    }
+
+    /** The long range potential at a point, interpolated from the coarse grid. */
+    private double interpolate(double px, double py, double pz){
+	double gx = (px - coarseOrigin[0]) / h;
+	double gy = (py - coarseOrigin[1]) / h;
+	double gz = (pz - coarseOrigin[2]) / h;
+	int ix = (int)gx, iy = (int)gy, iz = (int)gz;
+	double fx = gx - ix, fy = gy - iy, fz = gz - iz;
+	int nx = cn[0], ny = cn[1];
+	int p = (iz * ny + iy) * nx + ix;
+	int r = p + nx * ny;
+
+	double c00 = coarse[p]      + fx * (coarse[p + 1]      - coarse[p]);
+	double c10 = coarse[p + nx] + fx * (coarse[p + nx + 1] - coarse[p + nx]);
+	double c01 = coarse[r]      + fx * (coarse[r + 1]      - coarse[r]);
+	double c11 = coarse[r + nx] + fx * (coarse[r + nx + 1] - coarse[r + nx]);
+
+	double c0 = c00 + fy * (c10 - c00);
+	double c1 = c01 + fy * (c11 - c01);
+
+	return c0 + fz * (c1 - c0);
+    }
+
+    /**
+     * Add the short range part at each map point and fill the
+     * map. The map is split into blocks, each of which gathers
+     * the atoms within the cutoff from the cell list once.
+     */
+    private void shortRange(final astex.Map map){
+	final double cutoff = Math.sqrt(rc2);
+
+	// cell list with cells as wide as the cutoff
+	final double cellOrigin[] = { coarseOrigin[0], coarseOrigin[1], coarseOrigin[2] };
+	final int cells[] = new int[3];
+
+	for(int k = 0; k < 3; k++){
+	    cells[k] = 1 + (int)(cn[k] * h / cutoff);
+	}
+
+	final int cellStart[] = new int[cells[0] * cells[1] * cells[2] + 1];
+	final int cellAtoms[] = new int[n];
+	int atomCell[] = new int[n];
+
+	for(int i = 0; i < n; i++){
+	    int cx = (int)((x[i] - cellOrigin[0]) / cutoff);
+	    int cy = (int)((y[i] - cellOrigin[1]) / cutoff);
+	    int cz = (int)((z[i] - cellOrigin[2]) / cutoff);
+	    atomCell[i] = (cz * cells[1] + cy) * cells[0] + cx;
+	    cellStart[atomCell[i] + 1]++;
+	}
+
+	for(int c = 0; c < cells[0] * cells[1] * cells[2]; c++){
+	    cellStart[c + 1] += cellStart[c];
+	}
+
+	int next[] = cellStart.clone();
+
+	for(int i = 0; i < n; i++){
+	    cellAtoms[next[atomCell[i]]++] = i;
+	}
+
+	final int ng[] = map.ngrid;
+	final int bx = (ng[0] + BlockSize - 1) / BlockSize;
+	final int by = (ng[1] + BlockSize - 1) / BlockSize;
+	final int bz = (ng[2] + BlockSize - 1) / BlockSize;
+
+	Parallel.forRange(bx * by * bz, 1, new Parallel.Block(){
+		public void run(int start, int end){
+		    double lx[] = new double[n], ly[] = new double[n];
+		    double lz[] = new double[n], lq[] = new double[n];
+
+		    for(int b = start; b < end; b++){
+			int i0 = (b % bx) * BlockSize;
+			int j0 = ((b / bx) % by) * BlockSize;
+			int k0 = (b / (bx * by)) * BlockSize;
+			int i1 = Math.min(i0 + BlockSize, ng[0]);
+			int j1 = Math.min(j0 + BlockSize, ng[1]);
+			int k1 = Math.min(k0 + BlockSize, ng[2]);
+
+			// gather the atoms that can reach the block
+			double bmin[] = {
+			    map.origin.x + i0 * map.spacing.x,
+			    map.origin.y + j0 * map.spacing.y,
+			    map.origin.z + k0 * map.spacing.z,
+			};
+			double bmax[] = {
+			    map.origin.x + (i1 - 1) * map.spacing.x,
+			    map.origin.y + (j1 - 1) * map.spacing.y,
+			    map.origin.z + (k1 - 1) * map.spacing.z,
+			};
+			int cmin[] = new int[3], cmax[] = new int[3];
+
+			for(int k = 0; k < 3; k++){
+			    cmin[k] = Math.max(0, (int)((bmin[k] - cutoff - cellOrigin[k]) / cutoff));
+			    cmax[k] = Math.min(cells[k] - 1, (int)((bmax[k] + cutoff - cellOrigin[k]) / cutoff));
+			}
+
+			int nl = 0;
+
+			for(int cz = cmin[2]; cz <= cmax[2]; cz++){
+			    for(int cy = cmin[1]; cy <= cmax[1]; cy++){
+				for(int cx = cmin[0]; cx <= cmax[0]; cx++){
+				    int c = (cz * cells[1] + cy) * cells[0] + cx;
+				    for(int a = cellStart[c]; a < cellStart[c + 1]; a++){
+					int i = cellAtoms[a];
+					// distance to the nearest point of the block
+					double dx = Math.max(0.0, Math.max(bmin[0] - x[i], x[i] - bmax[0]));
+					double dy = Math.max(0.0, Math.max(bmin[1] - y[i], y[i] - bmax[1]));
+					double dz = Math.max(0.0, Math.max(bmin[2] - z[i], z[i] - bmax[2]));
+					if(dx*dx + dy*dy + dz*dz < rc2){
+					    lx[nl] = x[i]; ly[nl] = y[i];
+					    lz[nl] = z[i]; lq[nl] = q[i];
+					    nl++;
+					}
+				    }
+				}
+			    }
+			}
+
+			for(int k = k0; k < k1; k++){
+			    double pz = map.origin.z + k * map.spacing.z;
+			    for(int j = j0; j < j1; j++){
+				double py = map.origin.y + j * map.spacing.y;
+				for(int i = i0; i < i1; i++){
+				    double px = map.origin.x + i * map.spacing.x;
+				    double v = interpolate(px, py, pz);
+
+				    for(int a = 0; a < nl; a++){
+					double dx = px - lx[a];
+					double dy = py - ly[a];
+					double dz = pz - lz[a];
+					double d2 = dx*dx + dy*dy + dz*dz;
+
+					if(d2 < rc2){
+					    double t = d2 * tableScale;
+					    int it = (int)t;
+					    v += lq[a] * (table[it] + (t - it) * (table[it + 1] - table[it]));
+					}
+				    }
+
+				    map.data[(k * ng[1] + j) * ng[0] + i] =
+					(float)(CoulombConstant * v);
+				}
+			    }
+			}
+		    }
+		}
+	    });
+    }
+
+    /** In place 3d FFT of the coarse grid. */
+    private void fft3d(final float re[], final float im[], final boolean inverse){
+	final int nx = cn[0], ny = cn[1], nz = cn[2];
+
+	// along x
+	Parallel.forRange(ny * nz, 16, new Parallel.Block(){
+		public void run(int start, int end){
+		    float lre[] = new float[nx], lim[] = new float[nx];
+		    for(int line = start; line < end; line++){
+			fftLine(re, im, line * nx, 1, nx, lre, lim, inverse);
+		    }
+		}
+	    });
+
+	// along y
+	Parallel.forRange(nx * nz, 16, new Parallel.Block(){
+		public void run(int start, int end){
+		    float lre[] = new float[ny], lim[] = new float[ny];
+		    for(int line = start; line < end; line++){
+			int offset = (line / nx) * nx * ny + line % nx;
+			fftLine(re, im, offset, nx, ny, lre, lim, inverse);
+		    }
+		}
+	    });
+
+	// along z
+	Parallel.forRange(nx * ny, 16, new Parallel.Block(){
+		public void run(int start, int end){
+		    float lre[] = new float[nz], lim[] = new float[nz];
+		    for(int line = start; line < end; line++){
+			fftLine(re, im, line, nx * ny, nz, lre, lim, inverse);
+		    }
+		}
+	    });
+    }
+
+    /**
+     * FFT of the m values (a power of two) spaced stride apart,
+     * using the scratch arrays lre and lim.
+     */
+    private static void fftLine(float re[], float im[], int offset, int stride,
+				int m, float lre[], float lim[], boolean inverse){
+	// copy in, in bit reversed order
+	for(int i = 0, j = 0; i < m; i++){
+	    lre[j] = re[offset + i * stride];
+	    lim[j] = im[offset + i * stride];
+
+	    int bit = m >> 1;
+	    while(bit > 0 && (j & bit) != 0){
+		j ^= bit;
+		bit >>= 1;
+	    }
+	    j |= bit;
+	}
+
+	double sign = inverse ? 1.0 : -1.0;
+
+	for(int len = 2; len <= m; len <<= 1){
+	    double angle = sign * 2.0 * Math.PI / len;
+	    double wr = Math.cos(angle), wi = Math.sin(angle);
+	    int half = len >> 1;
+
+	    for(int i = 0; i < m; i += len){
+		double cr = 1.0, ci = 0.0;
+
+		for(int k = 0; k < half; k++){
+		    int a = i + k, b = a + half;
+		    double tr = lre[b] * cr - lim[b] * ci;
+		    double ti = lre[b] * ci + lim[b] * cr;
+
+		    lre[b] = (float)(lre[a] - tr);
+		    lim[b] = (float)(lim[a] - ti);
+		    lre[a] = (float)(lre[a] + tr);
+		    lim[a] = (float)(lim[a] + ti);
+
+		    double t = cr * wr - ci * wi;
+		    ci = cr * wi + ci * wr;
+		    cr = t;
+		}
+	    }
+	}
+
+	for(int i = 0; i < m; i++){
+	    re[offset + i * stride] = lre[i];
+	    im[offset + i * stride] = lim[i];
+	}
+    }
+}
@@ -75,12 +75,11 @@ class Fit {
 
 	trans.translate(-xpc, -ypc, -zpc);
 
-	// clear the quaternion matrix.
-	for(int i = 1; i <= 4; i++){
-	    for(int j = 1; j <= 4; j++){
-		m[i][j] = 0.0;
-	    }
-	}
+	// working space, per call so that fits can run
+	// on several threads at once
+	double m[][] = new double[5][5];
+	double d[]   = new double[5];
+	double e[]   = new double[5];
 
 	// build the initial matrix
 	for(int i = 0; i < n; i++){
@@ -184,6 +183,8 @@ class Fit {
 	    Log.warn("quaternion norm is not 1.0... %8.3f", nq);
 	}
 
+	Matrix rotation = new Matrix();
+
 	rotation.set(new Quat4d(m[1][emin], m[2][emin], m[3][emin], m[4][emin]));
 
 	trans.transform(rotation);
@@ -200,12 +201,6 @@ class Fit {
         return Math.sqrt(Math.abs(d[emin])/n);
     }
 
-    /** Private working space for fitting routines. */
-    private static final double m[][]    = new double[5][5];
-    private static final double d[]      = new double[5];
-    private static final double e[]      = new double[5];
-    private static final Matrix rotation = new Matrix();
-
     /** Should we output debugging info. */
     public static boolean debug = false;
 
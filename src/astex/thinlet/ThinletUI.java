@@ -632,6 +632,10 @@ public class ThinletUI extends Thinlet implements WindowListener,
         }
     }
 
+    /** A background load made progress. */
+    public void loadProgress(final MoleculeRenderer renderer, final LoadTask task){
+    }
+
     public boolean handleRendererEvent(final RendererEvent re){
         if(re.getType() == RendererEvent.Type.ObjectAdded){
             final Tmesh tmesh = (Tmesh)re.getItem();